@@ -0,0 +1,60 @@
+package Server;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * benchmarks.jar 的入口, 参数和 JMH 自己的命令行相同 (比如 -f 2 -wi 5 RequestHandler)
+ * 默认打开 GC 分析器 (gc.alloc.rate.norm 就是每次操作分配的字节数), 结果以 JSON 写到
+ * benchmarks/results/当前提交.json, 两个提交的结果用 CompareResults 比较.
+ * 只想看列表或帮助时直接交给 JMH (-l, -h)
+ */
+public class BenchmarkMain {
+    static final String RESULTS_DIR = "benchmarks/results";
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        if (cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams() || cli.shouldListProfilers()
+                || cli.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cli);
+        if (cli.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+        if (!cli.getResult().hasValue()) {
+            File dir = new File(RESULTS_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            options.resultFormat(ResultFormatType.JSON);
+            options.result(new File(dir, revision() + ".json").getPath());
+        }
+        new Runner(options.build()).run();
+    }
+
+    /**
+     * 当前的 git 提交, 工作区有改动时加上 -dirty; 不在 git 仓库里时用 local
+     */
+    static String revision() {
+        try {
+            Process process = new ProcessBuilder("git", "describe", "--always", "--dirty")
+                    .redirectErrorStream(true)
+                    .start();
+            String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            if (process.waitFor() == 0 && !output.isEmpty()) return output;
+        } catch (IOException e) {
+            // 没有 git
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "local";
+    }
+}
@@ -0,0 +1,246 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * 比较两次 JMH 运行的 JSON 结果 (一般是两个提交), 按基准和参数一一对应
+ * 得分的置信区间 (score ± scoreError) 不重叠才算有变化, 方向按单位判断 (ops/... 越大越好, 其他越小越好);
+ * 每次操作的分配字节数 (gc.alloc.rate.norm) 增加超过阈值也算退化. 有退化时退出码为 1
+ * 用法: CompareResults base.json head.json [分配阈值百分比, 默认 10]
+ */
+public class CompareResults {
+    static final String ALLOC_METRIC = "gc.alloc.rate.norm";
+
+    record Score(double score, double error, String unit) {
+        boolean higherIsBetter() {
+            return unit.startsWith("ops/");
+        }
+    }
+
+    record Result(Score primary, Score alloc) { }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults <base.json> <head.json> [allocThresholdPercent]");
+            System.exit(2);
+        }
+        double allocThreshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String, Result> base = load(Path.of(args[0]));
+        Map<String, Result> head = load(Path.of(args[1]));
+        int regressions = compare(base, head, allocThreshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * 打印对比表格
+     * @return 退化的基准数量
+     */
+    static int compare(Map<String, Result> base, Map<String, Result> head, double allocThresholdPercent) {
+        int regressions = 0;
+        System.out.printf(Locale.ROOT, "%-70s %14s %14s %9s %12s %12s  %s%n",
+                "Benchmark", "base", "head", "change", "B/op base", "B/op head", "verdict");
+        for (Map.Entry<String, Result> entry : head.entrySet()) {
+            Result before = base.get(entry.getKey());
+            Result after = entry.getValue();
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "%-70s %14s %14.3f %9s %12s %12s  new%n",
+                        entry.getKey(), "-", after.primary().score(), "", "", allocText(after.alloc()));
+                continue;
+            }
+            Score b = before.primary();
+            Score a = after.primary();
+            double change = b.score() == 0 ? 0 : (a.score() - b.score()) / b.score() * 100;
+            String verdict = "same";
+            boolean separated = a.score() - a.error() > b.score() + b.error()
+                    || a.score() + a.error() < b.score() - b.error();
+            if (separated) {
+                boolean better = (a.score() > b.score()) == a.higherIsBetter();
+                verdict = better ? "faster" : "SLOWER";
+                if (!better) regressions++;
+            }
+            if (before.alloc() != null && after.alloc() != null
+                    && after.alloc().score() > before.alloc().score() * (1 + allocThresholdPercent / 100)
+                    && after.alloc().score() - before.alloc().score() >= 1) {
+                verdict += ", MORE ALLOC";
+                regressions++;
+            }
+            System.out.printf(Locale.ROOT, "%-70s %14.3f %14.3f %+8.1f%% %12s %12s  %s%n",
+                    entry.getKey(), b.score(), a.score(), change,
+                    allocText(before.alloc()), allocText(after.alloc()), verdict);
+        }
+        for (String key : base.keySet()) {
+            if (!head.containsKey(key)) System.out.printf(Locale.ROOT, "%-70s  only in base%n", key);
+        }
+        return regressions;
+    }
+
+    private static String allocText(Score alloc) {
+        return alloc == null ? "-" : String.format(Locale.ROOT, "%.1f", alloc.score());
+    }
+
+    /**
+     * 读 JMH 的 JSON 结果, 键是 "基准名:模式" 加上参数
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Result> load(Path file) throws IOException {
+        Object root = new Parser(Files.readString(file, StandardCharsets.UTF_8)).parse();
+        Map<String, Result> results = new TreeMap<>();
+        for (Object item : (List<Object>) root) {
+            Map<String, Object> run = (Map<String, Object>) item;
+            StringBuilder key = new StringBuilder((String) run.get("benchmark"))
+                    .append(':').append(run.get("mode"));
+            Map<String, Object> params = (Map<String, Object>) run.get("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> param : new TreeMap<>(params).entrySet()) {
+                    key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            Score primary = score((Map<String, Object>) run.get("primaryMetric"));
+            Score alloc = null;
+            Map<String, Object> secondary = (Map<String, Object>) run.get("secondaryMetrics");
+            if (secondary != null) {
+                for (Map.Entry<String, Object> metric : secondary.entrySet()) {
+                    // JMH 在名字前面加了 "·"
+                    if (metric.getKey().endsWith(ALLOC_METRIC)) alloc = score((Map<String, Object>) metric.getValue());
+                }
+            }
+            results.put(key.toString(), new Result(primary, alloc));
+        }
+        return results;
+    }
+
+    private static Score score(Map<String, Object> metric) {
+        Object error = metric.get("scoreError");
+        return new Score(
+                ((Number) metric.get("score")).doubleValue(),
+                error instanceof Number n && !Double.isNaN(n.doubleValue()) ? n.doubleValue() : 0,
+                (String) metric.get("scoreUnit"));
+    }
+
+    /**
+     * 够用的 JSON 解析器: 对象变成 LinkedHashMap, 数组变成 ArrayList, 数字都是 Double; "NaN" 字符串保持原样
+     */
+    static final class Parser {
+        private final String text;
+        private int pos = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Object parse() {
+            Object value = value();
+            skipSpace();
+            if (pos != text.length()) throw error("trailing data");
+            return value;
+        }
+
+        private Object value() {
+            skipSpace();
+            if (pos >= text.length()) throw error("unexpected end");
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{': return object();
+                case '[': return array();
+                case '"': return string();
+                case 't': expect("true"); return Boolean.TRUE;
+                case 'f': expect("false"); return Boolean.FALSE;
+                case 'n': expect("null"); return null;
+                default: return number();
+            }
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            pos++;
+            skipSpace();
+            if (peek() == '}') {
+                pos++;
+                return map;
+            }
+            while (true) {
+                skipSpace();
+                String key = string();
+                skipSpace();
+                if (text.charAt(pos++) != ':') throw error("expected ':'");
+                map.put(key, value());
+                skipSpace();
+                char c = text.charAt(pos++);
+                if (c == '}') return map;
+                if (c != ',') throw error("expected ',' or '}'");
+            }
+        }
+
+        private List<Object> array() {
+            List<Object> list = new ArrayList<>();
+            pos++;
+            skipSpace();
+            if (peek() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                list.add(value());
+                skipSpace();
+                char c = text.charAt(pos++);
+                if (c == ']') return list;
+                if (c != ',') throw error("expected ',' or ']'");
+            }
+        }
+
+        private String string() {
+            if (text.charAt(pos) != '"') throw error("expected string");
+            pos++;
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = text.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'n' -> sb.append('\n');
+                    case 't' -> sb.append('\t');
+                    case 'r' -> sb.append('\r');
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'u' -> {
+                        sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                    }
+                    default -> sb.append(escaped);
+                }
+            }
+        }
+
+        private Double number() {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) pos++;
+            if (start == pos) throw error("unexpected character");
+            return Double.parseDouble(text.substring(start, pos));
+        }
+
+        private void expect(String word) {
+            if (!text.startsWith(word, pos)) throw error("expected " + word);
+            pos += word.length();
+        }
+
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Bad JSON at " + pos + ": " + message);
+        }
+    }
+}
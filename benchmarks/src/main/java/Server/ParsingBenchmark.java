@@ -0,0 +1,79 @@
+package Server;
+
+import io.netty.handler.codec.http.*;
+import org.openjdk.jmh.annotations.*;
+import util.MimeType;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RequestHandler 和工具类里每个请求都会走到的小函数
+ * 参数放在各自的 State 里, 每个函数只按自己的参数展开
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+    @State(Scope.Thread)
+    public static class Form {
+        @Param({"username=admin&password=password", "username=%E7%94%A8%E6%88%B7&password=p%40ss+word&remember=on&next=%2Fadmin"})
+        public String body;
+    }
+
+    @State(Scope.Thread)
+    public static class Filename {
+        @Param({"index.html", "archive.tar.gz", "IMAGE-10.PNG", "no_extension"})
+        public String name;
+    }
+
+    private HttpRequest cookieRequest;
+    private HttpRequest logRequest;
+    private InetAddress client;
+    private File logFile;
+    private RequestLogger logger;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        cookieRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+        cookieRequest.headers().set(HttpHeaderNames.COOKIE,
+                "theme=dark; lang=zh-CN; _ga=GA1.1.123456789.1700000000; sessionId=6f1c2d8e-0b7a-4c55-9a1e-3d2f4b6a8c90");
+        logRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/search?q=image");
+        client = InetAddress.getLoopbackAddress();
+        logFile = File.createTempFile("bench-access", ".log");
+        logger = new RequestLogger(logFile.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        logger.close();
+        Files.deleteIfExists(logFile.toPath());
+    }
+
+    @Benchmark
+    public Map<String, String> parseFormData(Form form) {
+        return RequestHandler.parseFormData(form.body);
+    }
+
+    @Benchmark
+    public String getCookieValue() {
+        return RequestHandler.getCookieValue(cookieRequest, "sessionId");
+    }
+
+    @Benchmark
+    public MimeType mimeFromFilename(Filename filename) {
+        return MimeType.fromFilename(filename.name);
+    }
+
+    @Benchmark
+    public void requestLoggerLog() {
+        logger.log(logRequest, 200, 5120, client);
+    }
+}
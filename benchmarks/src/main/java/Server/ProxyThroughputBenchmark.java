@@ -0,0 +1,213 @@
+package Server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP 透传模式的吞吐量和 CPU 对比: 用户态复制 (TCP) 与 splice (SPLICE)
+ * 在 7070 和 8080 上启动两个假后端, 收到请求后连续发送指定大小的数据再关闭连接 (模拟大文件下载),
+ * 健康检查请求则正常返回; 代理在同一个进程里运行, 客户端通过代理并发下载.
+ * CPU 只统计代理 worker 线程 (proxy-worker-*) 的 CPU 时间, 包括内核态;
+ * 运行前 7070 / 8080 / 4090 端口需要空闲
+ *
+ * 不是 JMH 基准, 单独运行 (在仓库根目录):
+ *   java -cp benchmarks/target/benchmarks.jar Server.ProxyThroughputBenchmark [并发连接数] [每个连接的 MB] [轮数]
+ */
+public class ProxyThroughputBenchmark {
+    private static final int PROXY_PORT = 4090;
+    private static final int[] BACKEND_PORTS = { 7070, 8080 };
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final byte[] REQUEST = "GET /blast HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long bytesPerConnection = (args.length > 1 ? Long.parseLong(args[1]) : 256) * 1024 * 1024;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        EventLoopGroup backendGroup = new NioEventLoopGroup(2);
+        EventLoopGroup clientGroup = new NioEventLoopGroup(2);
+        try {
+            for (int port : BACKEND_PORTS) startBackend(backendGroup, port, bytesPerConnection);
+
+            System.out.printf("transport: %s, %d connections x %d MB, %d rounds%n",
+                    ReverseProxyServer.useEpoll() ? "epoll" : "nio", connections, bytesPerConnection >> 20, rounds);
+            System.out.printf("%-8s %5s %10s %12s %14s%n", "mode", "round", "MB/s", "proxy CPU s", "CPU ms per GB");
+            for (ReverseProxyServer.Mode mode : List.of(ReverseProxyServer.Mode.TCP, ReverseProxyServer.Mode.SPLICE)) {
+                ReverseProxyServer proxy = new ReverseProxyServer(mode, new P2CLoadBalancer());
+                Thread proxyThread = new Thread(() -> {
+                    try {
+                        proxy.start(PROXY_PORT);
+                    } catch (Exception e) {
+                        System.err.println("Failed to start proxy: " + e.getMessage());
+                    }
+                });
+                proxyThread.start();
+                waitForPort(PROXY_PORT);
+
+                // 第 0 轮用于预热, 不计入结果
+                for (int round = 0; round <= rounds; round++) {
+                    long cpuBefore = proxyCpuNanos();
+                    long start = System.nanoTime();
+                    long bytes = download(clientGroup, connections);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    double cpu = (proxyCpuNanos() - cpuBefore) / 1e9;
+                    if (round == 0) continue;
+                    if (bytes != connections * bytesPerConnection) {
+                        System.err.printf("%s round %d received %d of %d bytes%n",
+                                mode, round, bytes, connections * bytesPerConnection);
+                    }
+                    System.out.printf("%-8s %5d %10.1f %12.2f %14.1f%n",
+                            mode, round, bytes / 1048576.0 / seconds, cpu, cpu * 1000 / (bytes / 1073741824.0));
+                }
+                proxy.stop();
+                proxyThread.join(5000);
+                // 等旧的代理线程退出, 避免它们的 CPU 时间算进下一个模式
+                Thread.sleep(2000);
+            }
+        } finally {
+            clientGroup.shutdownGracefully();
+            backendGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 假后端: 健康检查请求返回 HTTP 响应, 其他请求直接发送 bytes 字节后关闭
+     */
+    private static void startBackend(EventLoopGroup group, int port, long bytes) throws InterruptedException {
+        ByteBuf chunk = Unpooled.unreleasableBuffer(Unpooled.directBuffer(CHUNK_SIZE).writeZero(CHUNK_SIZE));
+        new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            private long remaining = -1;
+
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                String text = ((ByteBuf) msg).toString(StandardCharsets.US_ASCII);
+                                ReferenceCountUtil.release(msg);
+                                if (text.contains(HealthChecker.CHECK_PATH)) {
+                                    ctx.writeAndFlush(Unpooled.copiedBuffer(
+                                            "HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n0", StandardCharsets.US_ASCII));
+                                } else if (remaining < 0) {
+                                    remaining = bytes;
+                                    send(ctx);
+                                }
+                            }
+
+                            @Override
+                            public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+                                if (ctx.channel().isWritable() && remaining > 0) send(ctx);
+                            }
+
+                            private void send(ChannelHandlerContext ctx) {
+                                while (remaining > 0 && ctx.channel().isWritable()) {
+                                    int n = (int) Math.min(CHUNK_SIZE, remaining);
+                                    remaining -= n;
+                                    ctx.write(chunk.retainedSlice(0, n), ctx.voidPromise());
+                                }
+                                if (remaining == 0) {
+                                    ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                                } else {
+                                    ctx.flush();
+                                }
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                ctx.close();
+                            }
+                        });
+                    }
+                })
+                .bind(port).sync();
+    }
+
+    /**
+     * 并发下载, 返回收到的总字节数
+     */
+    private static long download(EventLoopGroup group, int connections) throws InterruptedException {
+        AtomicLong received = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(connections);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelActive(ChannelHandlerContext ctx) {
+                                ctx.writeAndFlush(Unpooled.wrappedBuffer(REQUEST));
+                            }
+
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                received.addAndGet(((ByteBuf) msg).readableBytes());
+                                ReferenceCountUtil.release(msg);
+                            }
+
+                            @Override
+                            public void channelInactive(ChannelHandlerContext ctx) {
+                                done.countDown();
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                ctx.close();
+                            }
+                        });
+                    }
+                });
+        for (int i = 0; i < connections; i++) {
+            bootstrap.connect("localhost", PROXY_PORT);
+        }
+        if (!done.await(10, TimeUnit.MINUTES)) {
+            System.err.println("Timed out waiting for downloads");
+        }
+        return received.get();
+    }
+
+    private static long proxyCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("proxy-worker")) {
+                long cpu = threads.getThreadCpuTime(thread.getId());
+                if (cpu > 0) total += cpu;
+            }
+        }
+        return total;
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (Exception e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Proxy did not start on port " + port);
+    }
+}
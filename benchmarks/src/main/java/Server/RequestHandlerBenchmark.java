@@ -0,0 +1,131 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过 EmbeddedChannel 直接驱动 RequestHandler, 不经过网络和 HTTP 编解码
+ * 覆盖静态文件, 登录 POST (命中校验缓存, 不算 PBKDF2), 搜索页, 下载和 404 错误页;
+ * 访问日志照常写入当前目录的 access.log, 和线上一样是处理路径的一部分.
+ * 处理器里逐请求的 System.out 打印会淹没 JMH 的输出, 在 fork 里重定向到空流
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestHandlerBenchmark {
+    private HttpWebServer server;
+    private EmbeddedChannel channel;
+    private ByteBuf loginBody;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        server = new HttpWebServer();
+        server.getUserStore().init();
+        // 先校验一次, 之后的登录都命中缓存, 在 event loop 上同步完成
+        server.getLoginVerifier().verify("admin", "password").join();
+        // /repo 下载是分块写出的, 和服务器的 pipeline 一样需要 ChunkedWriteHandler
+        channel = new ClientChannel(new ChunkedWriteHandler(), new RequestHandler(server));
+        loginBody = Unpooled.unreleasableBuffer(
+                Unpooled.copiedBuffer("username=admin&password=password", StandardCharsets.UTF_8));
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearSessions() {
+        // 每次登录都会新建 session, 不清理的话 map 会一直增长
+        server.getSessions().clear();
+        server.getActiveUsers().set(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        server.getLoginVerifier().stop();
+        server.getLogger().close();
+    }
+
+    @Benchmark
+    public int staticFile() {
+        return exchange(get("/index.html"));
+    }
+
+    @Benchmark
+    public int loginPost() {
+        FullHttpRequest request = new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1, HttpMethod.POST, "/login", loginBody.duplicate());
+        request.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED);
+        request.headers().set(HttpHeaderNames.CONTENT_LENGTH, loginBody.readableBytes());
+        return exchange(request);
+    }
+
+    @Benchmark
+    public int search() {
+        return exchange(get("/search?q=image"));
+    }
+
+    @Benchmark
+    public int download() {
+        return exchange(get("/repo?abcd.html"));
+    }
+
+    @Benchmark
+    public int errorPage() {
+        return exchange(get("/no-such-page.html"));
+    }
+
+    /**
+     * RequestHandler 把远端地址当作 InetSocketAddress 使用, EmbeddedChannel 默认的地址不是
+     */
+    static final class ClientChannel extends EmbeddedChannel {
+        private static final InetSocketAddress CLIENT = new InetSocketAddress(InetAddress.getLoopbackAddress(), 50000);
+
+        ClientChannel(ChannelHandler... handlers) {
+            super(handlers);
+        }
+
+        @Override
+        protected SocketAddress remoteAddress0() {
+            return CLIENT;
+        }
+    }
+
+    private static FullHttpRequest get(String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        request.headers().set(HttpHeaderNames.COOKIE, "theme=dark; lang=zh-CN");
+        return request;
+    }
+
+    /**
+     * 写入一个请求, 取出响应的所有消息并释放, 返回响应内容的字节数 (交给 JMH 防止被优化掉)
+     */
+    private int exchange(FullHttpRequest request) {
+        channel.writeInbound(request);
+        Object msg = channel.readOutbound();
+        if (msg == null) throw new IllegalStateException("No response for " + request.uri());
+        int size = 0;
+        while (msg != null) {
+            if (msg instanceof HttpContent content) size += content.content().readableBytes();
+            ReferenceCountUtil.release(msg);
+            msg = channel.readOutbound();
+        }
+        return size;
+    }
+}
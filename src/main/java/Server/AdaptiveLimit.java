@@ -0,0 +1,79 @@
+package Server;
+
+/**
+ * 根据延迟自动调整的并发上限 (gradient 算法, 失败时按 AIMD 乘性减小)
+ * 长期延迟 longRtt 是样本的慢速 EWMA, 代表没有排队时的延迟; 短期延迟 shortRtt 是快速 EWMA.
+ * 两者之比 gradient 小于 1 说明请求开始排队, 上限按比例缩小; 等于 1 时上限每次增加 queueSize,
+ * 只有实际并发超过上限一半时才增加, 避免空闲时上限无限增长. 上限变化经过平滑, 始终在 [min, max] 之间
+ */
+public class AdaptiveLimit {
+    private static final double LONG_WINDOW_ALPHA = 0.01;
+    private static final double SHORT_WINDOW_ALPHA = 0.2;
+    // 短期延迟在长期延迟的这个倍数以内都算正常波动
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final int QUEUE_SIZE = 4;
+
+    private final int minLimit;
+    private int maxLimit;
+    private double limit;
+    // limit 取整后的值, 读取时不用加锁
+    private volatile int current;
+    private double longRtt = 0;
+    private double shortRtt = 0;
+
+    public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.current = initialLimit;
+    }
+
+    public int getLimit() {
+        return current;
+    }
+
+    /**
+     * 修改上限的最大值, 当前上限超过时立即降下来
+     */
+    public synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        if (limit > this.maxLimit) {
+            limit = this.maxLimit;
+            current = this.maxLimit;
+        }
+    }
+
+    /**
+     * 一个请求结束
+     * @param rttNanos 请求的延迟, 小于 0 表示没有样本
+     * @param inFlight 请求开始时的并发数
+     * @param dropped 请求失败或超时, 说明后端已经过载
+     */
+    public synchronized void onSample(long rttNanos, int inFlight, boolean dropped) {
+        if (dropped) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            current = (int) limit;
+            return;
+        }
+        if (rttNanos < 0) return;
+        if (longRtt == 0) {
+            longRtt = rttNanos;
+            shortRtt = rttNanos;
+            return;
+        }
+        longRtt += (rttNanos - longRtt) * LONG_WINDOW_ALPHA;
+        shortRtt += (rttNanos - shortRtt) * SHORT_WINDOW_ALPHA;
+        // 延迟已经明显回落 (比如过载结束), 让长期延迟更快跟上
+        if (longRtt > shortRtt * 2) longRtt *= 0.95;
+
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRtt / shortRtt));
+        double next = limit * gradient + QUEUE_SIZE;
+        // 并发远低于上限时, 延迟说明不了上限是否合适, 不再增加
+        if (next > limit && inFlight < limit / 2) return;
+        next = limit * (1 - SMOOTHING) + next * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+        current = (int) limit;
+    }
+}
@@ -0,0 +1,159 @@
+package Server;
+
+import io.netty.channel.EventLoop;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP 模式下代理的全局准入控制
+ * 同时转发的请求数受 AdaptiveLimit 限制, 超出的请求排队; 队列满了直接拒绝,
+ * 排队超过 queueTimeout 的请求被丢弃 (503), 过载时延迟不会无限增长.
+ * 每个请求 tryAcquire 或排队成功后必须调用一次 release
+ */
+public class AdmissionController {
+    private static final int WAITING = 0;
+    private static final int ADMITTED = 1;
+    private static final int SHED = 2;
+    private static final int CANCELLED = 3;
+
+    private final AdaptiveLimit limit;
+    private volatile int maxQueue;
+    private volatile long queueTimeoutMillis;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Waiter> queue = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queuedTotal = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * 排队中的请求, 状态只会从 WAITING 变一次
+     */
+    public final class Waiter {
+        private final EventLoop loop;
+        private final Runnable onAdmit;
+        private final Runnable onShed;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private Waiter(EventLoop loop, Runnable onAdmit, Runnable onShed) {
+            this.loop = loop;
+            this.onAdmit = onAdmit;
+            this.onShed = onShed;
+        }
+
+        /**
+         * 客户端断开时取消排队; 返回 false 表示已经被放行, 调用方仍然要 release
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                queued.decrementAndGet();
+                queue.remove(this);
+                return true;
+            }
+            return state.get() != ADMITTED;
+        }
+    }
+
+    public AdmissionController(AdaptiveLimit limit, int maxQueue, long queueTimeoutMillis) {
+        this.limit = limit;
+        this.maxQueue = maxQueue;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    /**
+     * 修改并发上限的最大值和排队参数, 已经在排队的请求按原来的超时处理
+     */
+    public void update(int maxLimit, int maxQueue, long queueTimeoutMillis) {
+        limit.setMaxLimit(maxLimit);
+        this.maxQueue = maxQueue;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        drain();
+    }
+
+    /**
+     * 没有排队的请求并且没有达到上限时直接放行
+     */
+    public boolean tryAcquire() {
+        if (queued.get() > 0) return false;
+        int max = limit.getLimit();
+        while (true) {
+            int current = inFlight.get();
+            if (current >= max) return false;
+            if (inFlight.compareAndSet(current, current + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 排队等待放行, 回调都在 loop 上执行
+     * @return 队列已满时返回 null, 调用方应该立即拒绝
+     */
+    public Waiter enqueue(EventLoop loop, Runnable onAdmit, Runnable onShed) {
+        if (queued.incrementAndGet() > maxQueue) {
+            queued.decrementAndGet();
+            rejected.increment();
+            return null;
+        }
+        queuedTotal.increment();
+        Waiter waiter = new Waiter(loop, onAdmit, onShed);
+        queue.add(waiter);
+        loop.schedule(() -> {
+            if (waiter.state.compareAndSet(WAITING, SHED)) {
+                queued.decrementAndGet();
+                queue.remove(waiter);
+                shed.increment();
+                waiter.onShed.run();
+            }
+        }, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        // 入队之前可能刚好有请求结束, 检查一次
+        drain();
+        return waiter;
+    }
+
+    /**
+     * 请求结束, 更新自适应上限并放行排队的请求
+     * @param rttNanos 请求延迟, 小于 0 表示没有样本
+     * @param dropped 请求因为后端失败或超时结束
+     */
+    public void release(long rttNanos, boolean dropped) {
+        int before = inFlight.getAndDecrement();
+        limit.onSample(rttNanos, before, dropped);
+        drain();
+    }
+
+    private void drain() {
+        while (!queue.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= limit.getLimit()) return;
+            if (!inFlight.compareAndSet(current, current + 1)) continue;
+            Waiter waiter;
+            while ((waiter = queue.poll()) != null) {
+                if (waiter.state.compareAndSet(WAITING, ADMITTED)) break;
+            }
+            if (waiter == null) {
+                // 队列里都是已经超时或取消的请求, 归还名额
+                inFlight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            admitted.increment();
+            waiter.loop.execute(waiter.onAdmit);
+        }
+    }
+
+    // 统计数据
+    public int getLimit() { return limit.getLimit(); }
+    public int getInFlight() { return inFlight.get(); }
+    public int getQueued() { return queued.get(); }
+    public long getAdmitted() { return admitted.sum(); }
+    public long getQueuedTotal() { return queuedTotal.sum(); }
+    public long getRejected() { return rejected.sum(); }
+    public long getShed() { return shed.sum(); }
+}
@@ -0,0 +1,144 @@
+package Server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 后端列表配置文件, 每行一个后端:
+ * <pre>
+ * # host:port [weight=N] [maxConnections=N] [drain]
+ * localhost:7070 weight=2
+ * 10.0.0.5:8080 maxConnections=200 drain
+ * </pre>
+ * 用 WatchService 监听所在目录, 文件变化后重新读取, 解析失败时保留原来的列表
+ */
+public class BackendConfig {
+    public record Entry(String host, int port, int weight, int maxConnections, boolean drain) { }
+
+    private final Path file;
+    private final Consumer<List<Entry>> listener;
+    private WatchService watchService;
+    private Thread watchThread;
+
+    public BackendConfig(Path file, Consumer<List<Entry>> listener) {
+        this.file = file.toAbsolutePath();
+        this.listener = listener;
+    }
+
+    public List<Entry> load() throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    static List<Entry> parse(List<String> lines) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            try {
+                entries.add(parseEntry(line.split("\\s+")));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 解析 host:port 和后面的选项, 管理接口的参数也用同样的格式
+     */
+    static Entry parseEntry(String[] parts) {
+        String address = parts[0];
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("expected host:port, got " + address);
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        if (port <= 0 || port > 65535) throw new IllegalArgumentException("invalid port " + port);
+        int weight = 1;
+        int maxConnections = 0;
+        boolean drain = false;
+        for (int i = 1; i < parts.length; i++) {
+            String option = parts[i];
+            if (option.equals("drain")) {
+                drain = true;
+            } else if (option.startsWith("weight=")) {
+                weight = Integer.parseInt(option.substring("weight=".length()));
+            } else if (option.startsWith("maxConnections=")) {
+                maxConnections = Integer.parseInt(option.substring("maxConnections=".length()));
+            } else {
+                throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+        BackendServer.checkLimits(weight, maxConnections);
+        return new Entry(host, port, weight, maxConnections, drain);
+    }
+
+    /**
+     * 启动监听线程
+     */
+    public void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Failed to watch " + file + ": " + e.getMessage());
+            return;
+        }
+        watchThread = new Thread(this::watchLoop, "backend-config-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (file.getFileName().equals(event.context())) changed = true;
+            }
+            if (changed) reload();
+            if (!key.reset()) return;
+        }
+    }
+
+    private void reload() {
+        List<Entry> entries;
+        try {
+            entries = load();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed to reload " + file + ", keeping current backends: " + e.getMessage());
+            return;
+        }
+        if (entries.isEmpty()) {
+            // 多半是编辑器先清空再写入, 不要因此删掉所有后端
+            System.err.println("Ignoring empty backend config " + file);
+            return;
+        }
+        System.out.println("Reloading backends from " + file);
+        listener.accept(entries);
+    }
+
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // 忽略关闭错误
+            }
+        }
+        if (watchThread != null) watchThread.interrupt();
+    }
+}
@@ -0,0 +1,15 @@
+package Server;
+
+/**
+ * 正在使用一个池化后端连接的一方: 客户端请求的转发, 或者健康检查
+ * 由 HttpProxyBackendHandler 把后端连接上的事件转交过来, 都在连接的 event loop 上调用
+ */
+interface BackendExchange {
+    void onBackendRead(Object msg);
+
+    void onBackendReadComplete();
+
+    void onBackendWritabilityChanged(boolean writable);
+
+    void onBackendClosed();
+}
@@ -0,0 +1,179 @@
+package Server;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个后端的健康状态, 同时也是它的熔断器
+ * CLOSED: 正常接收流量; 连续失败 (连接失败, 连接重置, 超时, 502/503/504, 过慢的响应) 达到阈值后剔除, 进入 OPEN.
+ *         应用自己返回的 500 之类只说明某个路由有问题, 不算失败, 否则一个出错的路由就能把健康的后端剔除;
+ * OPEN: 不接收流量, 剔除时间按连续剔除次数指数增长;
+ * HALF_OPEN: 剔除时间到了, 等主动健康检查放行, 检查成功回到 CLOSED, 失败重新 OPEN;
+ * 恢复后的一段时间内按比例逐渐增加权重 (慢启动), 刚恢复的后端不会被瞬间压满
+ */
+public class BackendHealth {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final int CONSECUTIVE_FAILURES = 5;
+    static final int CONSECUTIVE_PROBE_FAILURES = 2;
+    static final long SLOW_RESPONSE_NANOS = 5_000_000_000L;
+    static final long BASE_EJECTION_NANOS = 5_000_000_000L;
+    static final long MAX_EJECTION_NANOS = 300_000_000_000L;
+    static final long SLOW_START_NANOS = 30_000_000_000L;
+    static final double SLOW_START_MIN_FACTOR = 0.1;
+
+    /**
+     * 状态变化的监听者, 代理用它限制同时剔除的后端数量并刷新可用后端列表
+     */
+    interface Listener {
+        boolean mayEject(BackendServer server);
+
+        void onStateChange(BackendServer server);
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public boolean mayEject(BackendServer server) { return true; }
+
+        @Override
+        public void onStateChange(BackendServer server) { }
+    };
+
+    private final BackendServer server;
+    private volatile Listener listener = NO_LISTENER;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile State state = State.CLOSED;
+    private volatile boolean slowStart = false;
+    private volatile long recoveredAt;
+    // 以下字段只在 synchronized 方法里访问
+    private int ejections = 0;
+    private long ejectedUntil;
+    private int probeFailures = 0;
+
+    BackendHealth(BackendServer server) {
+        this.server = server;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isAvailable() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * 响应是否说明后端本身不可用 (网关错误, 过载, 超时), 被动检测只把这些响应算作失败
+     */
+    static boolean isUnavailable(HttpResponseStatus status) {
+        int code = status.code();
+        return code == 502 || code == 503 || code == 504;
+    }
+
+    /**
+     * 被动检测: 一次转发的结果
+     * @param rttNanos 延迟样本, 没有时为 -1
+     */
+    void record(boolean success, long rttNanos) {
+        if (success && rttNanos < SLOW_RESPONSE_NANOS) {
+            if (consecutiveFailures.get() != 0) consecutiveFailures.set(0);
+            return;
+        }
+        String reason = success ? "slow responses" : "errors";
+        if (consecutiveFailures.incrementAndGet() >= CONSECUTIVE_FAILURES) {
+            eject(CONSECUTIVE_FAILURES + " consecutive " + reason);
+        }
+    }
+
+    /**
+     * 主动检查前调用: OPEN 状态下剔除时间已到就转为 HALF_OPEN
+     * @return 这一轮是否需要检查该后端
+     */
+    synchronized boolean beforeProbe(long now) {
+        if (state == State.OPEN) {
+            if (now - ejectedUntil < 0) return false;
+            state = State.HALF_OPEN;
+        }
+        return true;
+    }
+
+    /**
+     * 主动检查的结果
+     */
+    synchronized void onProbeResult(boolean ok, long now) {
+        switch (state) {
+            case CLOSED -> {
+                if (ok) {
+                    probeFailures = 0;
+                    // 恢复后稳定运行超过上一次的剔除时长, 退避次数清零
+                    if (ejections > 0 && !slowStart && now - recoveredAt > ejectionNanos()) ejections = 0;
+                } else if (++probeFailures >= CONSECUTIVE_PROBE_FAILURES) {
+                    // 主动检查失败说明后端确实不可用, 不受同时剔除数量的限制
+                    open("failed " + probeFailures + " health checks", now);
+                }
+            }
+            case HALF_OPEN -> {
+                if (ok) {
+                    state = State.CLOSED;
+                    probeFailures = 0;
+                    consecutiveFailures.set(0);
+                    recoveredAt = now;
+                    slowStart = true;
+                    System.out.println("Backend " + server + " recovered, slow start for "
+                            + SLOW_START_NANOS / 1_000_000 + " ms");
+                    listener.onStateChange(server);
+                } else {
+                    open("health check failed while half-open", now);
+                }
+            }
+            case OPEN -> { }
+        }
+    }
+
+    /**
+     * 被动检测或延迟异常检测触发的剔除, 受同时剔除数量的限制
+     */
+    synchronized void eject(String reason) {
+        if (state != State.CLOSED) return;
+        if (!listener.mayEject(server)) {
+            consecutiveFailures.set(0);
+            return;
+        }
+        open(reason, System.nanoTime());
+    }
+
+    private void open(String reason, long now) {
+        ejections++;
+        long duration = ejectionNanos();
+        ejectedUntil = now + duration;
+        state = State.OPEN;
+        slowStart = false;
+        probeFailures = 0;
+        consecutiveFailures.set(0);
+        System.err.println("Backend " + server + " ejected for " + duration / 1_000_000 + " ms: " + reason);
+        listener.onStateChange(server);
+    }
+
+    private long ejectionNanos() {
+        int shift = Math.min(Math.max(ejections - 1, 0), 16);
+        return Math.min(BASE_EJECTION_NANOS << shift, MAX_EJECTION_NANOS);
+    }
+
+    /**
+     * 慢启动系数: 恢复后从 SLOW_START_MIN_FACTOR 线性增长到 1
+     */
+    double rampFactor() {
+        if (!slowStart) return 1;
+        long elapsed = System.nanoTime() - recoveredAt;
+        if (elapsed >= SLOW_START_NANOS) {
+            slowStart = false;
+            return 1;
+        }
+        return SLOW_START_MIN_FACTOR + (1 - SLOW_START_MIN_FACTOR) * elapsed / SLOW_START_NANOS;
+    }
+}
@@ -0,0 +1,225 @@
+package Server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 一个后端的 HTTP keep-alive 连接池
+ * 每个 event loop 有一个独立的子池, 子池只在自己的 event loop 上访问, 不需要加锁,
+ * 取到的后端连接和客户端连接在同一个线程上, 转发时不会跨线程;
+ * 子池保持至少 minIdle 个连接, 最多 maxConnections 个, 空闲超过 idleTimeout 的连接会被关闭
+ */
+public class BackendPool {
+    private final BackendServer backend;
+    private final int minIdle;
+    private final int maxConnections;
+    private final long idleTimeoutMillis;
+    private final long acquireTimeoutMillis;
+    private final Map<EventLoop, LoopPool> pools = new ConcurrentHashMap<>();
+
+    public BackendPool(BackendServer backend, int minIdle, int maxConnections,
+                       long idleTimeoutMillis, long acquireTimeoutMillis) {
+        this.backend = backend;
+        this.minIdle = minIdle;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /**
+     * 在指定的 event loop 上取一个可用连接, 必须在该 event loop 上调用
+     */
+    public Future<Channel> acquire(EventLoop loop) {
+        return pools.computeIfAbsent(loop, LoopPool::new).acquire();
+    }
+
+    /**
+     * 归还连接, reusable 为 false 或连接已不可用时直接关闭
+     */
+    public void release(Channel ch, boolean reusable) {
+        LoopPool pool = pools.get(ch.eventLoop());
+        if (pool == null || !reusable) {
+            ch.close();
+            return;
+        }
+        pool.release(ch);
+    }
+
+    public void close() {
+        for (LoopPool pool : pools.values()) {
+            pool.loop.execute(pool::close);
+        }
+    }
+
+    // 统计数据, 各子池的值在各自线程上更新, 这里读到的是近似值
+    public int getTotalConnections() {
+        int sum = 0;
+        for (LoopPool pool : pools.values()) sum += pool.total;
+        return sum;
+    }
+
+    public int getIdleConnections() {
+        int sum = 0;
+        for (LoopPool pool : pools.values()) sum += pool.idle.size();
+        return sum;
+    }
+
+    public int getWaiters() {
+        int sum = 0;
+        for (LoopPool pool : pools.values()) sum += pool.waiters.size();
+        return sum;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections * Math.max(1, pools.size());
+    }
+
+    private record IdleEntry(Channel channel, long since) { }
+
+    /**
+     * 一个 event loop 上的子池
+     */
+    private final class LoopPool {
+        final EventLoop loop;
+        final Bootstrap bootstrap;
+        final ArrayDeque<IdleEntry> idle = new ArrayDeque<>();
+        final ArrayDeque<Promise<Channel>> waiters = new ArrayDeque<>();
+        int total = 0;
+        ScheduledFuture<?> evictTask;
+        boolean closed = false;
+
+        LoopPool(EventLoop loop) {
+            this.loop = loop;
+            this.bootstrap = new Bootstrap()
+                    .group(loop)
+                    .channel(ReverseProxyServer.socketChannelClass())
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            // 水位可以热加载, 每个新连接读取一次
+                            ch.config().setWriteBufferWaterMark(ReverseProxyServer.waterMark());
+                            ch.pipeline()
+                              .addLast(new HttpClientCodec())
+                              .addLast(new HttpProxyBackendHandler());
+                        }
+                    });
+            long period = Math.max(1000, idleTimeoutMillis / 2);
+            this.evictTask = loop.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        Future<Channel> acquire() {
+            Promise<Channel> promise = loop.newPromise();
+            // LIFO 取最近归还的连接, 较老的连接更容易因为空闲被回收
+            while (!idle.isEmpty()) {
+                Channel ch = idle.pollLast().channel();
+                if (isHealthy(ch)) return promise.setSuccess(ch);
+                ch.close();
+            }
+            if (total < maxConnections) {
+                connect(promise);
+            } else {
+                waiters.addLast(promise);
+                loop.schedule(() -> {
+                    if (waiters.remove(promise)) {
+                        promise.tryFailure(new TimeoutException("Timed out waiting for a connection to " + backend));
+                    }
+                }, acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            return promise;
+        }
+
+        void release(Channel ch) {
+            if (closed || !isHealthy(ch)) {
+                ch.close();
+                return;
+            }
+            Promise<Channel> waiter = waiters.pollFirst();
+            if (waiter != null) {
+                waiter.trySuccess(ch);
+            } else {
+                idle.addLast(new IdleEntry(ch, System.currentTimeMillis()));
+            }
+        }
+
+        /**
+         * 新建连接, 连接关闭时 (不管是哪里关的) 统一在 closeFuture 里减计数
+         */
+        private void connect(Promise<Channel> promise) {
+            total++;
+            long start = System.nanoTime();
+            ChannelFuture future = bootstrap.connect(backend.host, backend.port);
+            future.channel().closeFuture().addListener(f -> onClosed(future.channel()));
+            future.addListener((ChannelFutureListener) f -> {
+                if (f.isSuccess()) {
+                    backend.stats.recordConnect(System.nanoTime() - start);
+                    if (!promise.trySuccess(f.channel())) release(f.channel());
+                } else {
+                    promise.tryFailure(f.cause());
+                }
+            });
+        }
+
+        private void onClosed(Channel ch) {
+            total--;
+            idle.removeIf(entry -> entry.channel() == ch);
+            // 有人在等连接, 用空出来的名额新建一个
+            if (!closed && !waiters.isEmpty() && total < maxConnections) {
+                connect(waiters.pollFirst());
+            }
+        }
+
+        /**
+         * 关闭空闲过久的连接, 再把空闲连接补到 minIdle
+         */
+        private void evictIdle() {
+            long now = System.currentTimeMillis();
+            Iterator<IdleEntry> it = idle.iterator();
+            while (it.hasNext()) {
+                IdleEntry entry = it.next();
+                boolean expired = now - entry.since() > idleTimeoutMillis && idle.size() > minIdle;
+                if (expired || !isHealthy(entry.channel())) {
+                    it.remove();
+                    entry.channel().close();
+                }
+            }
+            for (int i = idle.size(); i < minIdle && total < maxConnections; i++) {
+                Promise<Channel> warm = loop.newPromise();
+                warm.addListener(f -> {
+                    if (f.isSuccess()) release(warm.getNow());
+                });
+                connect(warm);
+            }
+        }
+
+        void close() {
+            closed = true;
+            evictTask.cancel(false);
+            for (IdleEntry entry : idle) entry.channel().close();
+            idle.clear();
+            for (Promise<Channel> waiter : waiters) waiter.tryFailure(new IllegalStateException("Pool closed"));
+            waiters.clear();
+        }
+    }
+
+    /**
+     * 连接仍然打开, 且空闲期间没有收到多余的数据
+     */
+    private static boolean isHealthy(Channel ch) {
+        if (!ch.isActive()) return false;
+        HttpProxyBackendHandler handler = HttpProxyBackendHandler.of(ch);
+        return handler != null && handler.isIdleClean();
+    }
+}
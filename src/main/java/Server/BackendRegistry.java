@@ -0,0 +1,157 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 代理的后端列表, 写时复制
+ * 读取方 (负载均衡, 健康检查, 统计) 拿到的是不可变快照, 不需要加锁; 增删改都在锁内生成新列表再整体替换.
+ * 摘除 (drain) 的后端不再分配新请求; 删除 (remove) 先摘除, 等在途请求结束 (最多 drainTimeout) 后
+ * 关闭它的连接池并从列表中去掉
+ */
+public class BackendRegistry {
+    private static final long DRAIN_CHECK_INTERVAL_MS = 200;
+
+    private volatile List<BackendServer> servers = List.of();
+    private final Consumer<BackendServer> initializer;
+    private final Runnable onChange;
+    private final long drainTimeoutMillis;
+    private final ScheduledExecutorService drainExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "backend-drain");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param initializer 新后端加入列表之前调用, 用来创建连接池等
+     * @param onChange 列表或者摘除状态变化后调用
+     */
+    public BackendRegistry(Consumer<BackendServer> initializer, Runnable onChange, long drainTimeoutMillis) {
+        this.initializer = initializer;
+        this.onChange = onChange;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /**
+     * 当前所有后端 (包括正在摘除的) 的快照
+     */
+    public List<BackendServer> all() {
+        return servers;
+    }
+
+    public BackendServer find(String host, int port) {
+        for (BackendServer server : servers) {
+            if (server.port == port && server.host.equalsIgnoreCase(host)) return server;
+        }
+        return null;
+    }
+
+    /**
+     * 添加后端; 已经存在时更新权重和连接上限, 并取消摘除
+     * @return 添加或更新后的后端
+     */
+    public BackendServer add(String host, int port, int weight, int maxConnections) {
+        BackendServer.checkLimits(weight, maxConnections);
+        BackendServer server;
+        synchronized (this) {
+            server = find(host, port);
+            if (server != null) {
+                server.weight = weight;
+                server.maxConnections = maxConnections;
+                server.draining = false;
+            } else {
+                server = new BackendServer(host, port, weight, maxConnections);
+                initializer.accept(server);
+                List<BackendServer> next = new ArrayList<>(servers);
+                next.add(server);
+                servers = List.copyOf(next);
+                System.out.println("Backend added: " + server + " (weight " + weight + ")");
+            }
+        }
+        onChange.run();
+        return server;
+    }
+
+    /**
+     * 摘除后端, 不再分配新请求, 但保留在列表里
+     * @return 后端不存在时返回 false
+     */
+    public boolean drain(String host, int port) {
+        return startDrain(host, port) != null;
+    }
+
+    /**
+     * 摘除后端, 在途请求结束后从列表中删除
+     * @return 后端不存在时返回 false
+     */
+    public boolean remove(String host, int port) {
+        BackendServer server = startDrain(host, port);
+        if (server == null) return false;
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        drainExecutor.execute(() -> awaitIdle(server, deadline));
+        return true;
+    }
+
+    /**
+     * 查找和标记摘除在同一个锁内, 不会和并发的 add 交错 (否则 add 刚取消的摘除可能又被设上)
+     * @return 后端不存在时为 null
+     */
+    private BackendServer startDrain(String host, int port) {
+        BackendServer server;
+        synchronized (this) {
+            server = find(host, port);
+            if (server == null || server.draining) return server;
+            server.draining = true;
+        }
+        System.out.println("Backend draining: " + server + " (in flight: " + server.getInFlight() + ")");
+        onChange.run();
+        return server;
+    }
+
+    private void awaitIdle(BackendServer server, long deadline) {
+        // 等待期间又被重新添加, 放弃删除
+        if (!server.draining) return;
+        if (server.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            drainExecutor.schedule(() -> awaitIdle(server, deadline), DRAIN_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        synchronized (this) {
+            if (!server.draining || !servers.contains(server)) return;
+            List<BackendServer> next = new ArrayList<>(servers);
+            next.remove(server);
+            servers = List.copyOf(next);
+        }
+        if (server.getInFlight() > 0) {
+            System.err.println("Backend removed with " + server.getInFlight() + " requests still in flight: " + server);
+        } else {
+            System.out.println("Backend removed: " + server);
+        }
+        server.pool.close();
+        onChange.run();
+    }
+
+    /**
+     * 让列表和配置一致: 配置里没有的后端按 remove 处理, 标记为 drain 的后端摘除, 其余添加或更新
+     */
+    public void apply(List<BackendConfig.Entry> entries) {
+        for (BackendConfig.Entry entry : entries) {
+            add(entry.host(), entry.port(), entry.weight(), entry.maxConnections());
+            if (entry.drain()) drain(entry.host(), entry.port());
+        }
+        for (BackendServer server : servers) {
+            boolean listed = false;
+            for (BackendConfig.Entry entry : entries) {
+                if (entry.port() == server.port && entry.host().equalsIgnoreCase(server.host)) listed = true;
+            }
+            if (!listed) remove(server.host, server.port);
+        }
+    }
+
+    public void stop() {
+        drainExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,102 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个后端服务器, 以及代理本地统计的负载数据
+ * inFlight 和延迟都由代理自己在转发时更新, 选择后端时读到的总是最新值;
+ * 权重和连接上限可以在运行时修改, 地址不变 (地址变了就是另一个后端)
+ */
+public class BackendServer {
+    final String host;
+    final int port;
+    volatile int weight;
+    // 同时转发到该后端的请求 (TCP 模式下是连接) 上限, 0 表示不限制
+    volatile int maxConnections;
+    // HTTP 模式下按延迟自动调整的并发上限, 透传模式下为 null
+    volatile AdaptiveLimit limit;
+    // 正在摘除: 不再分配新请求, 在途请求照常完成
+    volatile boolean draining = false;
+    // 后端 /admin/connections 报告的连接数, 由监控线程定时刷新, 只用于展示
+    volatile int activeConnections;
+    BackendPool pool;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final PeakEwma latency = new PeakEwma(PeakEwma.DEFAULT_DECAY_NANOS);
+    final BackendHealth health = new BackendHealth(this);
+    final BackendStats stats = new BackendStats();
+
+    BackendServer(int port, int weight) {
+        this(ReverseProxyServer.TARGET_HOST, port, weight, 0);
+    }
+
+    BackendServer(String host, int port, int weight, int maxConnections) {
+        checkLimits(weight, maxConnections);
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+        this.maxConnections = maxConnections;
+    }
+
+    static void checkLimits(int weight, int maxConnections) {
+        if (weight <= 0) throw new IllegalArgumentException("weight must be positive: " + weight);
+        if (maxConnections < 0) throw new IllegalArgumentException("maxConnections must not be negative: " + maxConnections);
+    }
+
+    /**
+     * 请求 (TCP 模式下是连接) 开始转发到该后端
+     */
+    void onStart() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * 请求结束
+     * @param rttNanos 本次请求的延迟, 小于 0 表示没有可用的样本 (比如连接失败)
+     * @param nowNanos 当前时间
+     */
+    void onEnd(long rttNanos, long nowNanos) {
+        inFlight.decrementAndGet();
+        if (rttNanos >= 0) latency.observe(rttNanos, nowNanos);
+    }
+
+    /**
+     * 负载均衡使用的权重, 慢启动期间按比例降低
+     */
+    double effectiveWeight() {
+        return weight * health.rampFactor();
+    }
+
+    /**
+     * 一次转发的结果, 交给被动健康检测和自适应上限
+     * @param rttNanos 延迟样本, 小于 0 表示没有
+     */
+    void recordResult(boolean success, long rttNanos) {
+        health.record(success, rttNanos);
+        AdaptiveLimit adaptive = limit;
+        if (adaptive != null) adaptive.onSample(rttNanos, inFlight.get() + 1, !success);
+    }
+
+    /**
+     * 没有达到连接上限和自适应上限
+     */
+    boolean hasCapacity() {
+        int max = maxConnections;
+        int current = inFlight.get();
+        AdaptiveLimit adaptive = limit;
+        return (max == 0 || current < max) && (adaptive == null || current < adaptive.getLimit());
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    PeakEwma getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
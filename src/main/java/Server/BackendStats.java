@@ -0,0 +1,81 @@
+package Server;
+
+import util.Histogram;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 代理在转发路径上对一个后端的统计, 延迟都以微秒记录
+ * connect 是新建后端连接的耗时, acquire 是从请求开始到拿到池中连接, ttfb 是请求开始到收到响应头,
+ * total 是请求开始到响应结束 (TCP 模式下 ttfb 是第一个字节, total 是整个连接的时长).
+ * 字节数只统计 body (TCP 模式下是全部数据); SPLICE 模式的数据不经过用户态, 没有字节数
+ */
+public class BackendStats {
+    final Histogram connect = new Histogram();
+    final Histogram acquire = new Histogram();
+    final Histogram ttfb = new Histogram();
+    final Histogram total = new Histogram();
+    // 发往后端 / 从后端收到的字节数
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder failures = new LongAdder();
+
+    static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    void recordConnect(long nanos) {
+        connect.record(micros(nanos));
+    }
+
+    void recordAcquire(long nanos) {
+        acquire.record(micros(nanos));
+    }
+
+    /**
+     * 一次转发结束
+     * @param ttfbNanos 收到第一个字节的时间, 小于 0 表示没有收到
+     */
+    void recordExchange(boolean success, long ttfbNanos, long totalNanos) {
+        requests.increment();
+        if (!success) failures.increment();
+        if (ttfbNanos >= 0) ttfb.record(micros(ttfbNanos));
+        if (success) total.record(micros(totalNanos));
+    }
+
+    /**
+     * 输出 JSON 对象, 延迟单位是毫秒; 连接池的使用情况也放在这里
+     * @param pool HTTP 模式下的连接池, 透传模式下为 null
+     */
+    void appendJson(StringBuilder sb, BackendPool pool) {
+        sb.append("{\"requests\":").append(requests.sum())
+          .append(",\"failures\":").append(failures.sum())
+          .append(",\"bytesOut\":").append(bytesOut.sum())
+          .append(",\"bytesIn\":").append(bytesIn.sum())
+          .append(",\"connectMs\":");
+        connect.appendJson(sb, 1000);
+        sb.append(",\"acquireMs\":");
+        acquire.appendJson(sb, 1000);
+        sb.append(",\"ttfbMs\":");
+        ttfb.appendJson(sb, 1000);
+        sb.append(",\"totalMs\":");
+        total.appendJson(sb, 1000);
+        if (pool != null) {
+            int connections = pool.getTotalConnections();
+            int idle = pool.getIdleConnections();
+            int max = pool.getMaxConnections();
+            sb.append(",\"pool\":{\"connections\":").append(connections)
+              .append(",\"idle\":").append(idle)
+              .append(",\"busy\":").append(connections - idle)
+              .append(",\"waiters\":").append(pool.getWaiters())
+              .append(",\"max\":").append(max)
+              .append(",\"utilization\":").append(String.format(Locale.ROOT, "%.3f",
+                      max == 0 ? 0.0 : (double) (connections - idle) / max))
+              .append('}');
+        }
+        sb.append('}');
+    }
+}
@@ -0,0 +1,135 @@
+package Server;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按客户端 IP 的令牌桶限流
+ * 状态分成 STRIPES 段, 每段一把锁, 不同 IP 的请求很少互相等待; 每段是开放寻址的定长表,
+ * 每个 IP 只占两个 long: 地址的 64 位哈希, 以及打包在一起的上次补充时间 (毫秒) 和剩余令牌 (千分之一个).
+ * 表满时覆盖探测范围内最久没有访问的条目, 被覆盖的 IP 下次相当于满桶, 只会放宽不会误杀.
+ * 令牌按 ratePerSecond 连续补充, 最多积累 burst 个
+ */
+public class ClientRateLimiter {
+    private static final int STRIPES = 64;
+    private static final int SLOTS_PER_STRIPE = 1024;
+    private static final int MAX_PROBES = 8;
+    private static final int TOKEN_BITS = 22;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long MILLI = 1000;
+    // 打包格式能表示的最大突发量
+    static final long MAX_BURST = TOKEN_MASK / MILLI;
+
+    private final long ratePerSecond;
+    private final long burstMilli;
+    private final long epoch = System.currentTimeMillis();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder limited = new LongAdder();
+
+    public ClientRateLimiter(long ratePerSecond, long burst) {
+        if (ratePerSecond <= 0) throw new IllegalArgumentException("rate must be positive: " + ratePerSecond);
+        if (burst <= 0 || burst * MILLI > TOKEN_MASK) throw new IllegalArgumentException("invalid burst: " + burst);
+        this.ratePerSecond = ratePerSecond;
+        this.burstMilli = burst * MILLI;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    /**
+     * 配置的突发量, 没有配置 (0) 时取 rate 的两倍, 但不超过打包格式的上限 MAX_BURST
+     */
+    static long effectiveBurst(long ratePerSecond, long burst) {
+        return burst > 0 ? burst : Math.min(ratePerSecond * 2, MAX_BURST);
+    }
+
+    /**
+     * 取一个令牌
+     * @return 0 表示放行, 否则是下一个令牌可用前需要等待的毫秒数 (至少 1)
+     */
+    public long tryAcquire(InetAddress address) {
+        return tryAcquire(address, System.currentTimeMillis());
+    }
+
+    /**
+     * @param nowMillis 当前时间 (System.currentTimeMillis), 测试时由调用方给出
+     */
+    long tryAcquire(InetAddress address, long nowMillis) {
+        long key = hash(address.getAddress());
+        Stripe stripe = stripes[(int) (key >>> 58)];
+        long now = nowMillis - epoch;
+        long wait = stripe.acquire(key, now);
+        if (wait > 0) limited.increment();
+        return wait;
+    }
+
+    /**
+     * 参数是否和给定的相同, 配置重新加载时用来判断是否需要换一个限流器
+     */
+    boolean hasLimits(long ratePerSecond, long burst) {
+        return this.ratePerSecond == ratePerSecond && this.burstMilli == burst * MILLI;
+    }
+
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    private final class Stripe {
+        private final long[] keys = new long[SLOTS_PER_STRIPE];
+        private final long[] states = new long[SLOTS_PER_STRIPE];
+
+        synchronized long acquire(long key, long now) {
+            int start = (int) key & (SLOTS_PER_STRIPE - 1);
+            int victim = start;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (start + i) & (SLOTS_PER_STRIPE - 1);
+                if (keys[slot] == key) return take(slot, now);
+                if (keys[slot] == 0) {
+                    victim = slot;
+                    break;
+                }
+                long last = states[slot] >>> TOKEN_BITS;
+                if (last < oldest) {
+                    oldest = last;
+                    victim = slot;
+                }
+            }
+            keys[victim] = key;
+            states[victim] = pack(now, burstMilli);
+            return take(victim, now);
+        }
+
+        private long take(int slot, long now) {
+            long state = states[slot];
+            long last = state >>> TOKEN_BITS;
+            long tokens = state & TOKEN_MASK;
+            long elapsed = Math.min(burstMilli, Math.max(0, now - last));
+            // 每毫秒补充 ratePerSecond 个千分之一令牌
+            tokens = Math.min(burstMilli, tokens + elapsed * ratePerSecond);
+            if (tokens >= MILLI) {
+                states[slot] = pack(now, tokens - MILLI);
+                return 0;
+            }
+            states[slot] = pack(now, tokens);
+            return Math.max(1, (MILLI - tokens + ratePerSecond - 1) / ratePerSecond);
+        }
+    }
+
+    private static long pack(long now, long tokens) {
+        return (now << TOKEN_BITS) | tokens;
+    }
+
+    /**
+     * FNV-1a 加 fmix64, 结果为 0 时换成 1 (0 表示空槽)
+     */
+    private static long hash(byte[] address) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : address) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
@@ -0,0 +1,196 @@
+package Server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+import util.Histogram;
+import util.Json;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群视图: 通过连接池向每个后端请求 /admin/stats, 和代理本地的 BackendStats 合在一起
+ * 计数直接相加, 延迟直方图按桶合并, 得到整个集群的分位数; 没有响应的后端标记为 up=false, 不计入合计.
+ * 所有请求都在调用方给出的 event loop 上进行
+ */
+public class ClusterStats {
+    static final String STATS_PATH = "/admin/stats";
+    // 后端报告的计数字段, 合计时直接相加
+    private static final String[] COUNTERS = {
+            "requests", "activeUsers", "connections", "loginVerifications", "loginFailures", "loginRejected",
+            "closedIdle", "closedHeaderTimeout", "closedBodyTimeout", "closedWriteTimeout",
+            "shapingDelayedWrites", "shapingWriteDelayMs", "shapingReadPauses", "shapingReadDelayMs",
+            "shapingInteractiveBytes", "shapingBulkBytes"
+    };
+    private static final int MAX_BODY = 64 * 1024;
+
+    private ClusterStats() { }
+
+    /**
+     * 轮询所有后端并生成 JSON
+     */
+    static CompletableFuture<String> collect(List<BackendServer> servers, EventLoop loop, long timeoutMillis) {
+        List<CompletableFuture<Map<String, String>>> polls = new ArrayList<>(servers.size());
+        for (BackendServer server : servers) polls.add(poll(server, loop, timeoutMillis));
+        return CompletableFuture.allOf(polls.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            StringBuilder sb = new StringBuilder("{\"backends\":[");
+            long[] totals = new long[COUNTERS.length];
+            Histogram serviceTime = new Histogram();
+            BackendStats proxySide = new BackendStats();
+            int up = 0;
+            for (int i = 0; i < polls.size(); i++) {
+                BackendServer server = servers.get(i);
+                Map<String, String> remote = polls.get(i).join();
+                if (i > 0) sb.append(',');
+                sb.append("{\"address\":");
+                Json.appendQuoted(sb, server.toString());
+                sb.append(",\"up\":").append(remote != null);
+                if (remote != null) {
+                    up++;
+                    Histogram backendTime = new Histogram();
+                    try {
+                        for (int j = 0; j < COUNTERS.length; j++) {
+                            long value = Long.parseLong(remote.getOrDefault(COUNTERS[j], "0"));
+                            totals[j] += value;
+                            sb.append(",\"").append(COUNTERS[j]).append("\":").append(value);
+                        }
+                        sb.append(",\"uptimeSeconds\":").append(Long.parseLong(remote.getOrDefault("uptimeSeconds", "0")));
+                        backendTime.addEncoded(remote.getOrDefault("serviceTime", "0;0;"));
+                    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                        System.err.println("Bad stats from " + server + ": " + e.getMessage());
+                    }
+                    serviceTime.add(backendTime);
+                    sb.append(",\"serviceTimeMs\":");
+                    backendTime.appendJson(sb, 1000);
+                }
+                sb.append(",\"proxy\":");
+                server.stats.appendJson(sb, server.pool);
+                merge(proxySide, server.stats);
+                sb.append('}');
+            }
+            sb.append("],\"cluster\":{\"backends\":").append(servers.size()).append(",\"up\":").append(up);
+            for (int j = 0; j < COUNTERS.length; j++) {
+                sb.append(",\"").append(COUNTERS[j]).append("\":").append(totals[j]);
+            }
+            sb.append(",\"serviceTimeMs\":");
+            serviceTime.appendJson(sb, 1000);
+            sb.append(",\"proxy\":");
+            proxySide.appendJson(sb, null);
+            return sb.append("}}").toString();
+        });
+    }
+
+    private static void merge(BackendStats into, BackendStats from) {
+        into.connect.add(from.connect);
+        into.acquire.add(from.acquire);
+        into.ttfb.add(from.ttfb);
+        into.total.add(from.total);
+        into.bytesOut.add(from.bytesOut.sum());
+        into.bytesIn.add(from.bytesIn.sum());
+        into.requests.add(from.requests.sum());
+        into.failures.add(from.failures.sum());
+    }
+
+    /**
+     * 请求一个后端的 /admin/stats, 失败或超时时结果为 null
+     */
+    private static CompletableFuture<Map<String, String>> poll(BackendServer server, EventLoop loop, long timeoutMillis) {
+        CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+        loop.execute(() -> {
+            Future<Channel> acquire = server.pool.acquire(loop);
+            acquire.addListener(f -> {
+                if (acquire.isSuccess()) {
+                    new Poll(server, acquire.getNow(), loop, result).start(timeoutMillis);
+                } else {
+                    result.complete(null);
+                }
+            });
+        });
+        return result;
+    }
+
+    /**
+     * 一次统计请求, 占用一个池化连接直到收到完整响应或超时
+     */
+    private static final class Poll implements BackendExchange {
+        private final BackendServer server;
+        private final Channel channel;
+        private final EventLoop loop;
+        private final CompletableFuture<Map<String, String>> result;
+        private final StringBuilder body = new StringBuilder();
+        private ScheduledFuture<?> timeout;
+        private boolean ok = false;
+        private boolean reusable = true;
+        private boolean done = false;
+
+        Poll(BackendServer server, Channel channel, EventLoop loop, CompletableFuture<Map<String, String>> result) {
+            this.server = server;
+            this.channel = channel;
+            this.loop = loop;
+            this.result = result;
+        }
+
+        void start(long timeoutMillis) {
+            timeout = loop.schedule(() -> finish(false, false), timeoutMillis, TimeUnit.MILLISECONDS);
+            HttpProxyBackendHandler.of(channel).attach(this);
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, STATS_PATH);
+            request.headers().set(HttpHeaderNames.HOST, server.toString());
+            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            channel.writeAndFlush(request, channel.voidPromise());
+        }
+
+        @Override
+        public void onBackendRead(Object msg) {
+            try {
+                if (msg instanceof HttpResponse response) {
+                    ok = response.status().code() == 200;
+                    reusable = HttpUtil.isKeepAlive(response);
+                }
+                if (msg instanceof HttpContent content && body.length() < MAX_BODY) {
+                    body.append(content.content().toString(StandardCharsets.UTF_8));
+                }
+                if (msg instanceof LastHttpContent) finish(ok, reusable);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void onBackendReadComplete() { }
+
+        @Override
+        public void onBackendWritabilityChanged(boolean writable) { }
+
+        @Override
+        public void onBackendClosed() {
+            finish(false, false);
+        }
+
+        private void finish(boolean success, boolean reuse) {
+            if (done) return;
+            done = true;
+            timeout.cancel(false);
+            HttpProxyBackendHandler.detach(channel);
+            server.pool.release(channel, reuse);
+            if (!success) {
+                result.complete(null);
+                return;
+            }
+            Map<String, String> values = new HashMap<>();
+            for (String line : body.toString().split("\n")) {
+                int space = line.indexOf(' ');
+                if (space > 0) values.put(line.substring(0, space), line.substring(space + 1).trim());
+            }
+            result.complete(values);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package Server;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 客户端连接数上限, 放在每个客户端连接 pipeline 的最前面
+ * 超过上限的新连接直接关闭; 透传模式 (TCP / SPLICE) 看不到请求, 按 IP 限流也在这里按连接进行
+ */
+@ChannelHandler.Sharable
+public class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+    private volatile int maxConnections;
+    private final Supplier<ClientRateLimiter> rateLimiter;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param rateLimiter 按连接限流时使用, 返回 null 时不限流; 每个新连接取一次, 限流参数可以随时替换
+     */
+    public ConnectionLimiter(int maxConnections, Supplier<ClientRateLimiter> rateLimiter) {
+        this.maxConnections = maxConnections;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        ClientRateLimiter rateLimiter = this.rateLimiter.get();
+        if (connections.incrementAndGet() > maxConnections
+                || (rateLimiter != null
+                    && rateLimiter.tryAcquire(((InetSocketAddress) ctx.channel().remoteAddress()).getAddress()) > 0)) {
+            rejected.increment();
+            ctx.close();
+            return;
+        }
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        connections.decrementAndGet();
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * 调小上限不会关闭已有的连接
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
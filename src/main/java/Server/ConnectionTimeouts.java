@@ -0,0 +1,240 @@
+package Server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 后端服务器连接上的超时, 防止慢客户端和放弃的连接一直占着 channel 和聚合器里没收完的请求
+ *   idle    两次请求之间 (没有在读的请求, 没有没写完的响应) 的空闲时间, 直接关闭
+ *   header  从请求的第一个字节到请求头读完的绝对时限, 逐字节慢慢发请求头 (slowloris) 也会超时, 回 408 后关闭
+ *   body    读请求体的时限, 每收到 bodyMinRate 字节延长一秒, 即要求客户端至少按这个速率发送; 回 408 后关闭.
+ *           UploadHandler 因为写盘背压关闭 autoRead 的时间不算
+ *   write   待写数据超过这么久没有任何进展 (客户端不再读), 直接关闭
+ * 本身紧跟在 HttpServerCodec 后面, 另外把 byteWatcher() 放在 HttpServerCodec 前面, 用来发现请求头的第一个字节.
+ * 每个连接按 tick 定时检查一次, 所有状态只在连接的 event loop 上访问
+ */
+public class ConnectionTimeouts extends ChannelDuplexHandler {
+    /**
+     * 各项超时 (毫秒), 0 表示不限制; bodyMinRate 单位是字节/秒, 0 表示请求体只有固定时限
+     */
+    public record Config(long idleMs, long headerMs, long bodyMs, long bodyMinRate, long writeMs) {
+        /**
+         * 检查间隔: 最短超时的四分之一, 在 50ms 和 1s 之间
+         */
+        long tickMs() {
+            long shortest = Long.MAX_VALUE;
+            for (long timeout : new long[] { idleMs, headerMs, bodyMs, writeMs }) {
+                if (timeout > 0) shortest = Math.min(shortest, timeout);
+            }
+            return Math.max(50, Math.min(1000, shortest / 4));
+        }
+    }
+
+    /**
+     * 按原因统计的超时关闭次数, 整个服务器共用
+     */
+    public static final class Counters {
+        final LongAdder idle = new LongAdder();
+        final LongAdder header = new LongAdder();
+        final LongAdder body = new LongAdder();
+        final LongAdder write = new LongAdder();
+
+        public long getIdle() { return idle.sum(); }
+        public long getHeader() { return header.sum(); }
+        public long getBody() { return body.sum(); }
+        public long getWrite() { return write.sum(); }
+    }
+
+    private enum Reading { NONE, HEADERS, BODY }
+
+    private final Config config;
+    private final Counters counters;
+    private ChannelHandlerContext ctx;
+    private ScheduledFuture<?> tick;
+
+    private Reading reading = Reading.NONE;
+    private long readDeadline;
+    // 已读到请求头但还没写完响应的请求数 (流水线)
+    private int pendingResponses = 0;
+    // 当前响应已经写出了响应头, 这时不能再插入 408
+    private boolean responseStarted = false;
+    private boolean informational = false;
+    private long idleSince;
+    // 写进展: 出站缓冲区里第一条消息和它已写出的字节数, 变化时记下时间
+    private Object writeCurrent;
+    private long writeProgress;
+    private long writeProgressAt;
+    private boolean closing = false;
+
+    public ConnectionTimeouts(Config config, Counters counters) {
+        this.config = config;
+        this.counters = counters;
+    }
+
+    /**
+     * 放在 HttpServerCodec 前面 (HTTPS 时在 SslHandler 后面), 看到原始字节时开始计请求头的时限
+     */
+    public ChannelInboundHandler byteWatcher() {
+        return new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                if (reading == Reading.NONE && config.headerMs() > 0) {
+                    reading = Reading.HEADERS;
+                    readDeadline = now() + config.headerMs();
+                }
+                ctx.fireChannelRead(msg);
+            }
+        };
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        if (ctx.channel().isActive()) start();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        start();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        stop();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        stop();
+    }
+
+    private void start() {
+        if (tick != null) return;
+        idleSince = now();
+        writeProgressAt = idleSince;
+        long interval = config.tickMs();
+        tick = ctx.executor().scheduleAtFixedRate(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+        if (tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest) {
+            pendingResponses++;
+            reading = Reading.BODY;
+            readDeadline = now() + config.bodyMs();
+        }
+        if (msg instanceof HttpContent content && reading == Reading.BODY && config.bodyMinRate() > 0) {
+            readDeadline += content.content().readableBytes() * 1000L / config.bodyMinRate();
+        }
+        if (msg instanceof LastHttpContent) reading = Reading.NONE;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof HttpResponse response) {
+            informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+            if (!informational) responseStarted = true;
+        }
+        if (msg instanceof LastHttpContent) {
+            if (!informational) {
+                responseStarted = false;
+                if (pendingResponses > 0) pendingResponses--;
+                idleSince = now();
+            }
+            informational = false;
+        }
+        ctx.write(msg, promise);
+    }
+
+    private void check() {
+        Channel channel = ctx.channel();
+        if (!channel.isActive()) return;
+        if (closing) {
+            // 408 在上一次检查时就该写完了, 写不出去说明客户端不读, 直接关闭
+            channel.close();
+            return;
+        }
+        long now = now();
+
+        ChannelOutboundBuffer out = channel.unsafe().outboundBuffer();
+        if (out != null && !out.isEmpty()) {
+            Object current = out.current();
+            long progress = out.currentProgress();
+            if (current != writeCurrent || progress != writeProgress) {
+                writeCurrent = current;
+                writeProgress = progress;
+                writeProgressAt = now;
+            } else if (config.writeMs() > 0 && now - writeProgressAt >= config.writeMs()) {
+                counters.write.increment();
+                channel.close();
+                return;
+            }
+            idleSince = now;
+        } else {
+            writeCurrent = null;
+            writeProgressAt = now;
+        }
+
+        switch (reading) {
+            case HEADERS -> {
+                if (now >= readDeadline) timeout(counters.header, pendingResponses == 0);
+            }
+            case BODY -> {
+                if (config.bodyMs() <= 0) break;
+                // 服务器自己暂停了读取, 这段时间不算客户端的
+                if (!channel.config().isAutoRead()) {
+                    readDeadline += config.tickMs();
+                } else if (now >= readDeadline) {
+                    timeout(counters.body, pendingResponses == 1);
+                }
+            }
+            case NONE -> {
+                if (pendingResponses == 0 && config.idleMs() > 0 && now - idleSince >= config.idleMs()) {
+                    counters.idle.increment();
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 读超时: 超时的请求之前没有别的响应在写时回 408, 然后关闭连接
+     */
+    private void timeout(LongAdder counter, boolean onlyRequest) {
+        counter.increment();
+        reading = Reading.NONE;
+        if (!onlyRequest || responseStarted) {
+            ctx.close();
+            return;
+        }
+        closing = true;
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.REQUEST_TIMEOUT,
+                Unpooled.copiedBuffer("Request Timeout", StandardCharsets.UTF_8));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
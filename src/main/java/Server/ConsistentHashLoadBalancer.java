@@ -0,0 +1,96 @@
+package Server;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按粘性会话键 (sessionId) 做一致性哈希, 同一个会话总是落到同一个后端
+ * 每个后端按权重在环上放若干虚拟节点, 增减后端时只有相邻区间的会话会迁移;
+ * 没有会话键的请求交给 fallback 策略
+ */
+public class ConsistentHashLoadBalancer implements LoadBalancer {
+    private static final int VIRTUAL_NODES_PER_WEIGHT = 160;
+
+    private record Ring(List<BackendServer> servers, int[] weights, long[] hashes, BackendServer[] owners) {
+        /**
+         * 后端列表和各自的权重都没变 (权重可以在运行时修改)
+         */
+        boolean matches(List<BackendServer> current) {
+            if (!servers.equals(current)) return false;
+            for (int i = 0; i < weights.length; i++) {
+                if (servers.get(i).weight != weights[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private final LoadBalancer fallback;
+    private volatile Ring ring;
+
+    public ConsistentHashLoadBalancer(LoadBalancer fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public BackendServer select(List<BackendServer> servers, String affinityKey) {
+        if (affinityKey == null || affinityKey.isEmpty()) {
+            return fallback.select(servers, null);
+        }
+        Ring current = ring;
+        if (current == null || !current.matches(servers)) {
+            current = build(servers);
+            ring = current;
+        }
+        long hash = hash(affinityKey);
+        int index = Arrays.binarySearch(current.hashes(), hash);
+        if (index < 0) index = -index - 1;
+        // 超过环上最大的节点就回到第一个
+        if (index == current.hashes().length) index = 0;
+        return current.owners()[index];
+    }
+
+    private static Ring build(List<BackendServer> servers) {
+        List<BackendServer> snapshot = List.copyOf(servers);
+        int[] weights = new int[snapshot.size()];
+        int count = 0;
+        for (int s = 0; s < snapshot.size(); s++) {
+            weights[s] = snapshot.get(s).weight;
+            count += weights[s] * VIRTUAL_NODES_PER_WEIGHT;
+        }
+
+        long[][] nodes = new long[count][];
+        int k = 0;
+        for (int s = 0; s < snapshot.size(); s++) {
+            BackendServer server = snapshot.get(s);
+            for (int v = 0; v < weights[s] * VIRTUAL_NODES_PER_WEIGHT; v++) {
+                nodes[k++] = new long[] { hash(server + "#" + v), s };
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> Long.compare(a[0], b[0]));
+
+        long[] hashes = new long[count];
+        BackendServer[] owners = new BackendServer[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = nodes[i][0];
+            owners[i] = snapshot.get((int) nodes[i][1]);
+        }
+        return new Ring(snapshot, weights, hashes, owners);
+    }
+
+    /**
+     * FNV-1a 再做一次 murmur3 的 fmix64, 相近的字符串也能均匀分布在环上
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
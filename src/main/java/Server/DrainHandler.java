@@ -0,0 +1,65 @@
+package Server;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+
+/**
+ * 排空时的连接处理, 放在 HttpServerCodec 后面
+ * 收到 DRAIN 事件 (或者连接在排空开始之后才建立) 时: 没有未完成的请求就立即关闭;
+ * 否则之后的响应都带上 Connection: close, 最后一个未完成的响应写完后关闭连接, 正在进行的下载不会被截断
+ */
+public class DrainHandler extends ChannelDuplexHandler {
+    static final Object DRAIN = new Object();
+
+    private final HttpWebServer server;
+    // 已读到请求头但还没写完响应的请求数 (流水线)
+    private int pendingResponses = 0;
+    private boolean draining = false;
+    private boolean informational = false;
+
+    public DrainHandler(HttpWebServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        if (server.isDraining()) draining = true;
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt != DRAIN) {
+            ctx.fireUserEventTriggered(evt);
+            return;
+        }
+        draining = true;
+        if (pendingResponses == 0) ctx.close();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest) pendingResponses++;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof HttpResponse response) {
+            informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+            if (draining && !informational) HttpUtil.setKeepAlive(response, false);
+        }
+        if (msg instanceof LastHttpContent && !informational) {
+            if (pendingResponses > 0) pendingResponses--;
+            if (draining && pendingResponses == 0) {
+                ctx.write(msg, promise.unvoid()).addListener(ChannelFutureListener.CLOSE);
+                return;
+            }
+        }
+        if (msg instanceof LastHttpContent) informational = false;
+        ctx.write(msg, promise);
+    }
+}
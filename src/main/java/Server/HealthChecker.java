@@ -0,0 +1,164 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 后端的主动健康检查和延迟异常检测
+ * 每隔 interval 通过连接池里的 keep-alive 连接请求一次 /admin/connections, 不再每次新建 socket;
+ * 响应体是后端当前的活跃用户数, 顺便刷新 activeConnections 用于展示.
+ * 所有检查都在同一个 event loop 上进行
+ */
+public class HealthChecker {
+    static final String CHECK_PATH = "/admin/connections";
+    // 延迟 EWMA 超过其他健康后端最小值的这个倍数, 并且超过 LATENCY_OUTLIER_MIN_NANOS, 视为异常
+    static final double LATENCY_OUTLIER_FACTOR = 5;
+    static final long LATENCY_OUTLIER_MIN_NANOS = 1_000_000_000L;
+
+    private final Supplier<List<BackendServer>> servers;
+    private final EventLoop loop;
+    private final long intervalMillis;
+    private final long timeoutMillis;
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param servers 每次检查时取当前的后端列表
+     */
+    public HealthChecker(Supplier<List<BackendServer>> servers, EventLoop loop, long intervalMillis, long timeoutMillis) {
+        this.servers = servers;
+        this.loop = loop;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void start() {
+        task = loop.scheduleAtFixedRate(this::checkAll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (task != null) task.cancel(false);
+    }
+
+    private void checkAll() {
+        long now = System.nanoTime();
+        List<BackendServer> current = servers.get();
+        detectLatencyOutliers(current, now);
+        for (BackendServer server : current) {
+            if (server.health.beforeProbe(now)) probe(server);
+        }
+    }
+
+    /**
+     * 和其他健康后端比较延迟, 明显更慢的后端按被动检测的规则剔除
+     */
+    private void detectLatencyOutliers(List<BackendServer> servers, long now) {
+        for (BackendServer server : servers) {
+            if (!server.health.isAvailable()) continue;
+            double latency = server.getLatency().get(now);
+            if (latency < LATENCY_OUTLIER_MIN_NANOS) continue;
+            double best = Double.MAX_VALUE;
+            for (BackendServer other : servers) {
+                if (other != server && other.health.isAvailable()) {
+                    best = Math.min(best, other.getLatency().get(now));
+                }
+            }
+            if (best != Double.MAX_VALUE && latency > best * LATENCY_OUTLIER_FACTOR) {
+                server.health.eject(String.format("latency outlier (%.0f ms vs %.0f ms)", latency / 1e6, best / 1e6));
+            }
+        }
+    }
+
+    private void probe(BackendServer server) {
+        Future<Channel> acquire = server.pool.acquire(loop);
+        acquire.addListener(f -> {
+            if (acquire.isSuccess()) {
+                new Probe(server, acquire.getNow()).start();
+            } else {
+                server.health.onProbeResult(false, System.nanoTime());
+            }
+        });
+    }
+
+    /**
+     * 一次检查请求, 占用一个池化连接直到收到完整响应或超时
+     */
+    private final class Probe implements BackendExchange {
+        private final BackendServer server;
+        private final Channel channel;
+        private final StringBuilder body = new StringBuilder();
+        private ScheduledFuture<?> timeout;
+        private boolean ok = false;
+        private boolean reusable = true;
+        private boolean done = false;
+
+        Probe(BackendServer server, Channel channel) {
+            this.server = server;
+            this.channel = channel;
+        }
+
+        void start() {
+            timeout = loop.schedule(() -> finish(false, false), timeoutMillis, TimeUnit.MILLISECONDS);
+            HttpProxyBackendHandler.of(channel).attach(this);
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, CHECK_PATH);
+            request.headers().set(HttpHeaderNames.HOST, server.toString());
+            request.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            channel.writeAndFlush(request, channel.voidPromise());
+        }
+
+        @Override
+        public void onBackendRead(Object msg) {
+            try {
+                if (msg instanceof HttpResponse response) {
+                    ok = response.status().code() == 200;
+                    reusable = HttpUtil.isKeepAlive(response);
+                }
+                if (msg instanceof HttpContent content) {
+                    ByteBuf buf = content.content();
+                    if (body.length() < 64) body.append(buf.toString(StandardCharsets.US_ASCII));
+                }
+                if (msg instanceof LastHttpContent) {
+                    if (ok) {
+                        try {
+                            server.activeConnections = Integer.parseInt(body.toString().trim());
+                        } catch (NumberFormatException e) {
+                            ok = false;
+                        }
+                    }
+                    finish(ok, reusable);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void onBackendReadComplete() { }
+
+        @Override
+        public void onBackendWritabilityChanged(boolean writable) { }
+
+        @Override
+        public void onBackendClosed() {
+            finish(false, false);
+        }
+
+        private void finish(boolean success, boolean reuse) {
+            if (done) return;
+            done = true;
+            timeout.cancel(false);
+            HttpProxyBackendHandler.detach(channel);
+            server.pool.release(channel, reuse);
+            server.health.onProbeResult(success, System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package Server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 池化后端连接上的处理器
+ * 连接被取出时绑定到当前的使用方 (客户端请求或健康检查), 归还时解绑; 空闲期间收到任何数据都说明连接状态异常, 直接关闭
+ */
+public class HttpProxyBackendHandler extends ChannelInboundHandlerAdapter {
+    private BackendExchange exchange;
+    private boolean dirty = false;
+
+    static HttpProxyBackendHandler of(Channel ch) {
+        return ch.pipeline().get(HttpProxyBackendHandler.class);
+    }
+
+    /**
+     * 解绑连接上的处理器, 连接已经销毁时什么也不做
+     */
+    static void detach(Channel ch) {
+        HttpProxyBackendHandler handler = of(ch);
+        if (handler != null) handler.detach();
+    }
+
+    void attach(BackendExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    void detach() {
+        this.exchange = null;
+    }
+
+    boolean isIdleClean() {
+        return exchange == null && !dirty;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (exchange == null) {
+            dirty = true;
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+            return;
+        }
+        exchange.onBackendRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (exchange != null) exchange.onBackendReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (exchange != null) exchange.onBackendWritabilityChanged(ctx.channel().isWritable());
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        BackendExchange current = exchange;
+        exchange = null;
+        if (current != null) current.onBackendClosed();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+}
@@ -0,0 +1,646 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * HTTP 模式下客户端一侧的处理器
+ * 每个请求单独选择后端, 从该后端的连接池里取一个 keep-alive 连接转发, 响应结束后归还连接;
+ * 请求和响应都是流式转发 (不聚合), 对端不可写时暂停读取另一端;
+ * 每次转发的结果交给被动健康检测, 后端在响应前失败时, 没有请求体的幂等请求会换一个后端重试一次;
+ * 开启代理缓存时, 可缓存的 GET 先查 ProxyCache.
+ * 每个请求有一个 Trace, 记录准入排队, 取连接, 等后端响应头和写响应的耗时, trace ID 用 X-Trace-Id 转发给后端
+ */
+public class HttpProxyFrontendHandler extends ChannelInboundHandlerAdapter implements BackendExchange {
+    // 逐跳头部, 不能原样转发给下一跳
+    private static final CharSequence[] HOP_BY_HOP = {
+            HttpHeaderNames.CONNECTION,
+            AsciiString.cached("keep-alive"),
+            HttpHeaderNames.PROXY_AUTHENTICATE,
+            HttpHeaderNames.PROXY_AUTHORIZATION,
+            HttpHeaderNames.TE,
+            HttpHeaderNames.TRAILER,
+            HttpHeaderNames.UPGRADE,
+            AsciiString.cached("proxy-connection")
+    };
+    static final CharSequence X_FORWARDED_FOR = "X-Forwarded-For";
+    static final CharSequence X_FORWARDED_PROTO = "X-Forwarded-Proto";
+    private static final String SESSION_COOKIE = "sessionId";
+    // 幂等请求失败后最多尝试的次数 (包括第一次)
+    private static final int MAX_ATTEMPTS = 2;
+    private static final Set<HttpMethod> IDEMPOTENT_METHODS = Set.of(
+            HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS, HttpMethod.TRACE, HttpMethod.PUT, HttpMethod.DELETE);
+
+    private final ReverseProxyServer proxy;
+    private ChannelHandlerContext ctx;
+
+    // 还没转发出去的请求对象, 包括被流水线提前发来的后续请求
+    private final ArrayDeque<HttpObject> queue = new ArrayDeque<>();
+    private boolean busy = false;
+    private boolean requestDone = false;
+    private boolean responseStarted = false;
+    private boolean informational = false;
+    private boolean keepAlive = true;
+    private boolean backendReusable = true;
+    private BackendServer target;
+    // target 上的在途计数是否还没结束
+    private boolean counted = false;
+    private long requestStart;
+    // 收到响应头的耗时, 作为后端的延迟样本; 还没收到时为 -1
+    private long firstByteNanos;
+    private boolean responseFailed = false;
+    // 响应说明后端本身不可用 (502/503/504), 交给被动健康检测
+    private boolean backendUnavailable = false;
+    private ScheduledFuture<?> responseTimeout;
+    private Channel backend;
+    private String affinity;
+    // 当前请求可以重试时保存请求头 (这样的请求没有请求体), 否则为 null
+    private HttpRequest retryRequest;
+    private boolean headSent = false;
+    private int attempts = 0;
+    // 当前请求占用了准入名额 / 正在排队等待准入
+    private boolean admitted = false;
+    private AdmissionController.Waiter waiter;
+    // 当前请求的追踪, 请求结束时交给 Tracer 并置空
+    private Trace trace;
+    // 开始等待准入名额或合并的缓存回源的时间
+    private long waitStart;
+    private long acquiredNanos;
+    private long activeNanos;
+    // TLS 握手的耗时, 记到连接上的第一个请求后清零
+    private long tlsNanos = 0;
+
+    public HttpProxyFrontendHandler(ReverseProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        activeNanos = System.nanoTime();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof SslHandshakeCompletionEvent) tlsNanos = System.nanoTime() - activeNanos;
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof HttpObject)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        queue.addLast((HttpObject) msg);
+        if (!busy) {
+            startNext();
+        } else {
+            drainRequest(false);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (backend != null) backend.flush();
+    }
+
+    /**
+     * 队首请求的 LastHttpContent 是否已经到了 (紧跟在请求头后面, 没有请求体的请求)
+     */
+    private boolean requestComplete() {
+        Iterator<HttpObject> it = queue.iterator();
+        it.next();
+        return it.hasNext() && it.next() instanceof LastHttpContent;
+    }
+
+    /**
+     * 开始处理队列里的下一个请求: 选择后端并取连接
+     */
+    private void startNext() {
+        if (busy || queue.isEmpty()) return;
+        HttpObject head = queue.peekFirst();
+        if (!(head instanceof HttpRequest request) || request.decoderResult().isFailure()) {
+            sendErrorAndClose(HttpResponseStatus.BAD_REQUEST, "Bad Request");
+            return;
+        }
+        // 可缓存的请求没有请求体, 等 LastHttpContent 到了再查缓存
+        if (proxy.getCache() != null && ProxyCache.isCacheableRequest(request) && !requestComplete()) {
+            return;
+        }
+
+        busy = true;
+        requestDone = false;
+        responseStarted = false;
+        informational = false;
+        backendReusable = true;
+        keepAlive = HttpUtil.isKeepAlive(request);
+        trace = proxy.getTracer().start(request, System.nanoTime());
+        trace.add(Trace.Span.TLS, tlsNanos);
+        tlsNanos = 0;
+        prepareRequest(request);
+
+        affinity = affinityKey(request);
+        retryRequest = isRetryable(request) ? request : null;
+        headSent = false;
+        attempts = 0;
+        ClientRateLimiter rateLimiter = proxy.getRateLimiter();
+        if (rateLimiter != null) {
+            long waitMillis = rateLimiter.tryAcquire(((InetSocketAddress) ctx.channel().remoteAddress()).getAddress());
+            if (waitMillis > 0) {
+                sendErrorAndClose(HttpResponseStatus.TOO_MANY_REQUESTS, "Too Many Requests", (waitMillis + 999) / 1000);
+                return;
+            }
+        }
+        if (proxy.getCache() != null && tryCache(request)) return;
+        forward();
+    }
+
+    /**
+     * 取得准入名额后把当前请求转发给负载均衡选出的后端; 名额不够时排队, 队列满了或排队超时返回 503
+     */
+    private void forward() {
+        ctx.channel().config().setAutoRead(false);
+        waitStart = System.nanoTime();
+        AdmissionController admission = proxy.getAdmission();
+        if (admission != null) {
+            if (!admission.tryAcquire()) {
+                waiter = admission.enqueue(ctx.channel().eventLoop(), this::onAdmitted, this::onShed);
+                if (waiter == null) sendErrorAndClose(HttpResponseStatus.SERVICE_UNAVAILABLE, "Service Unavailable", 1);
+                return;
+            }
+            admitted = true;
+        }
+        proxy.getRetryBudget().deposit();
+        dispatch(proxy.selectBestServer(affinity));
+    }
+
+    private void onAdmitted() {
+        waiter = null;
+        admitted = true;
+        if (!ctx.channel().isActive()) {
+            releaseAdmission(-1, false);
+            return;
+        }
+        proxy.getRetryBudget().deposit();
+        dispatch(proxy.selectBestServer(affinity));
+    }
+
+    private void onShed() {
+        waiter = null;
+        sendErrorAndClose(HttpResponseStatus.SERVICE_UNAVAILABLE, "Service Unavailable", 1);
+    }
+
+    /**
+     * 归还准入名额, 重复调用无效
+     * @param dropped 请求因为后端失败或超时结束
+     */
+    private void releaseAdmission(long rttNanos, boolean dropped) {
+        if (!admitted) return;
+        admitted = false;
+        proxy.getAdmission().release(rttNanos, dropped);
+    }
+
+    /**
+     * 查代理缓存: 命中 (包括过期但可以先用的) 时直接响应; 未命中时等合并后的后端请求, 结果不能用时再正常转发
+     * @return 请求是否由缓存接手
+     */
+    private boolean tryCache(HttpRequest request) {
+        ProxyCache cache = proxy.getCache();
+        ProxyCache.Lookup lookup = cache.lookup(request);
+        switch (lookup.status()) {
+            case HIT, STALE -> {
+                if (lookup.status() == ProxyCache.Status.STALE) {
+                    cache.revalidate(lookup.key(), request, ctx.channel().eventLoop());
+                }
+                writeCached(ProxyCache.toResponse(lookup.entry(), lookup.content(), lookup.status().name()));
+                return true;
+            }
+            case MISS -> {
+                ctx.channel().config().setAutoRead(false);
+                waitStart = System.nanoTime();
+                boolean[] leader = new boolean[1];
+                cache.fetch(lookup.key(), request, ctx.channel().eventLoop(), leader).whenComplete(
+                        (result, e) -> ctx.executor().execute(() -> onCacheFetched(result, leader[0])));
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    private void onCacheFetched(ProxyCache.FetchResult result, boolean leader) {
+        FullHttpResponse uncacheable = result != null && leader ? result.response() : null;
+        if (!ctx.channel().isActive()) {
+            if (uncacheable != null) uncacheable.release();
+            return;
+        }
+        trace.since(Trace.Span.CACHE, waitStart);
+        if (result != null && result.entry() != null) {
+            ByteBuf content = proxy.getCache().retainContent(result.entry());
+            if (content != null) {
+                writeCached(ProxyCache.toResponse(result.entry(), content, ProxyCache.Status.MISS.name()));
+                return;
+            }
+        }
+        if (uncacheable != null) {
+            uncacheable.headers().set(ProxyCache.X_CACHE, ProxyCache.Status.MISS.name());
+            writeCached(uncacheable);
+            return;
+        }
+        // 后端请求失败, 或者响应不能给其他等待者共用
+        forward();
+    }
+
+    /**
+     * 不经过后端直接写出完整响应, 丢掉队列里的当前请求 (只有请求头和空的 LastHttpContent)
+     */
+    private void writeCached(FullHttpResponse response) {
+        ReferenceCountUtil.release(queue.pollFirst());
+        ReferenceCountUtil.release(queue.pollFirst());
+        HttpUtil.setKeepAlive(response, keepAlive);
+        response.headers().set(Tracer.X_TRACE_ID, trace.idString());
+        if (trace.upstream == null) trace.upstream = "cache";
+        finishTrace(response.status().code());
+        busy = false;
+        if (!keepAlive) {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        ctx.writeAndFlush(response, ctx.voidPromise());
+        ctx.channel().config().setAutoRead(true);
+        startNext();
+    }
+
+    /**
+     * 把当前请求交给指定后端: 计入在途请求并从它的连接池取连接; 没有后端 (server 为 null) 时返回 503
+     */
+    private void dispatch(BackendServer server) {
+        if (server == null) {
+            sendErrorAndClose(HttpResponseStatus.SERVICE_UNAVAILABLE, "Service Unavailable");
+            return;
+        }
+        target = server;
+        target.onStart();
+        counted = true;
+        attempts++;
+        requestStart = System.nanoTime();
+        if (attempts == 1) trace.add(Trace.Span.QUEUE, requestStart - waitStart);
+        trace.upstream = server.toString();
+        trace.attempts = attempts;
+        firstByteNanos = -1;
+        responseFailed = false;
+        backendUnavailable = false;
+        Future<Channel> acquire = target.pool.acquire(ctx.channel().eventLoop());
+        if (acquire.isDone()) {
+            onAcquired(acquire);
+        } else {
+            acquire.addListener(f -> onAcquired(acquire));
+        }
+    }
+
+    private void onAcquired(Future<Channel> future) {
+        acquiredNanos = System.nanoTime();
+        if (trace != null) trace.add(Trace.Span.CONNECT, acquiredNanos - requestStart);
+        if (!future.isSuccess()) {
+            System.err.println("Error connecting to target server " + target + ": " + future.cause().getMessage());
+            if (future.cause() instanceof TimeoutException) {
+                // 等连接超时只说明本地连接池已满, 不算后端的失败
+                abandonTarget();
+                sendErrorAndClose(HttpResponseStatus.SERVICE_UNAVAILABLE, "Service Unavailable");
+                return;
+            }
+            finishTarget(false, false);
+            if (!tryRetry()) sendErrorAndClose(HttpResponseStatus.BAD_GATEWAY, "Bad Gateway");
+            return;
+        }
+        Channel ch = future.getNow();
+        target.stats.recordAcquire(System.nanoTime() - requestStart);
+        if (!ctx.channel().isActive()) {
+            target.pool.release(ch, true);
+            return;
+        }
+        backend = ch;
+        HttpProxyBackendHandler.of(ch).attach(this);
+        drainRequest(true);
+    }
+
+    /**
+     * 把当前请求已经收到的部分写给后端, 请求结束后停止读取客户端, 直到响应结束
+     */
+    private void drainRequest(boolean flush) {
+        if (backend == null || requestDone) return;
+        while (!queue.isEmpty()) {
+            HttpObject obj = queue.pollFirst();
+            if (obj instanceof HttpContent content) target.stats.bytesOut.add(content.content().readableBytes());
+            backend.write(obj, backend.voidPromise());
+            if (obj instanceof HttpRequest) headSent = true;
+            if (obj instanceof LastHttpContent) {
+                requestDone = true;
+                // 请求发完后开始计算响应超时
+                if (!responseStarted) {
+                    responseTimeout = ctx.executor().schedule(this::onResponseTimeout,
+                            ReverseProxyServer.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+                break;
+            }
+        }
+        if (flush) backend.flush();
+        ctx.channel().config().setAutoRead(!requestDone && backend.isWritable());
+    }
+
+    /**
+     * 去掉逐跳头部, 加上 X-Forwarded-For / X-Forwarded-Proto, 到后端的连接总是 keep-alive
+     */
+    private void prepareRequest(HttpRequest request) {
+        HttpHeaders headers = request.headers();
+        stripHopByHop(headers);
+        String clientIp = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress();
+        String forwardedFor = headers.get(X_FORWARDED_FOR);
+        headers.set(X_FORWARDED_FOR, forwardedFor == null ? clientIp : forwardedFor + ", " + clientIp);
+        headers.set(X_FORWARDED_PROTO, ctx.pipeline().get(SslHandler.class) != null ? "https" : "http");
+        headers.set(Tracer.X_TRACE_ID, trace.idString());
+        HttpUtil.setKeepAlive(request, true);
+    }
+
+    static void stripHopByHop(HttpHeaders headers) {
+        // Connection 头里列出的字段也是逐跳的
+        for (String token : headers.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String name : token.split(",")) {
+                String trimmed = name.trim();
+                if (!trimmed.isEmpty()) headers.remove(trimmed);
+            }
+        }
+        for (CharSequence name : HOP_BY_HOP) headers.remove(name);
+    }
+
+    private static boolean isRetryable(HttpRequest request) {
+        return IDEMPOTENT_METHODS.contains(request.method())
+                && !HttpUtil.isTransferEncodingChunked(request)
+                && HttpUtil.getContentLength(request, 0L) == 0;
+    }
+
+    /**
+     * 后端在发出响应之前失败时, 幂等且没有请求体的请求换一个后端重试, 受重试预算限制
+     * @return 是否已经开始重试
+     */
+    private boolean tryRetry() {
+        if (retryRequest == null || attempts >= MAX_ATTEMPTS || !ctx.channel().isActive()) return false;
+        if (!proxy.getRetryBudget().tryWithdraw()) return false;
+        // 已经写给失败后端的部分放回队列
+        if (requestDone) {
+            queue.addFirst(LastHttpContent.EMPTY_LAST_CONTENT);
+            queue.addFirst(retryRequest);
+        } else if (headSent) {
+            queue.addFirst(retryRequest);
+        }
+        requestDone = false;
+        headSent = false;
+        responseStarted = false;
+        informational = false;
+        backendReusable = true;
+        BackendServer failed = target;
+        System.err.println("Retrying " + retryRequest.method() + " " + retryRequest.uri() + " after failure on " + failed);
+        dispatch(proxy.selectRetryServer(affinity, failed));
+        return true;
+    }
+
+    private void onResponseTimeout() {
+        responseTimeout = null;
+        if (responseStarted || backend == null) return;
+        Channel ch = backend;
+        backend = null;
+        HttpProxyBackendHandler.detach(ch);
+        target.pool.release(ch, false);
+        finishTarget(false, false);
+        sendErrorAndClose(HttpResponseStatus.GATEWAY_TIMEOUT, "Gateway Timeout");
+    }
+
+    private void cancelResponseTimeout() {
+        if (responseTimeout != null) {
+            responseTimeout.cancel(false);
+            responseTimeout = null;
+        }
+    }
+
+    @Override
+    public void onBackendRead(Object msg) {
+        if (msg instanceof HttpResponse response) {
+            if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                informational = true;
+            } else {
+                responseStarted = true;
+                cancelResponseTimeout();
+                long now = System.nanoTime();
+                firstByteNanos = now - requestStart;
+                trace.add(Trace.Span.UPSTREAM, now - acquiredNanos);
+                trace.responseNanos = now;
+                trace.status = response.status().code();
+                response.headers().set(Tracer.X_TRACE_ID, trace.idString());
+                responseFailed = response.status().codeClass() == HttpStatusClass.SERVER_ERROR;
+                backendUnavailable = BackendHealth.isUnavailable(response.status());
+                backendReusable = HttpUtil.isKeepAlive(response);
+                stripHopByHop(response.headers());
+                HttpUtil.setKeepAlive(response, keepAlive);
+            }
+        }
+        if (msg instanceof HttpContent content) target.stats.bytesIn.add(content.content().readableBytes());
+        ctx.write(msg, ctx.voidPromise());
+        if (!ctx.channel().isWritable() && backend != null) {
+            backend.config().setAutoRead(false);
+        }
+        if (msg instanceof LastHttpContent) {
+            if (informational) {
+                informational = false;
+            } else {
+                onResponseComplete();
+            }
+        }
+    }
+
+    @Override
+    public void onBackendReadComplete() {
+        ctx.flush();
+    }
+
+    @Override
+    public void onBackendWritabilityChanged(boolean writable) {
+        if (busy && !requestDone) ctx.channel().config().setAutoRead(writable);
+    }
+
+    /**
+     * 响应结束: 归还后端连接, 继续处理下一个请求或关闭客户端连接
+     */
+    private void onResponseComplete() {
+        ctx.flush();
+        Channel ch = backend;
+        backend = null;
+        HttpProxyBackendHandler.detach(ch);
+        ch.config().setAutoRead(true);
+        // 请求体还没发完后端就响应了, 这个连接上的状态不确定, 不能复用
+        target.pool.release(ch, backendReusable && requestDone);
+        finishTarget(!responseFailed, !backendUnavailable);
+        releaseAdmission(firstByteNanos, responseFailed);
+        finishTrace(trace.status);
+        busy = false;
+
+        if (!requestDone || !keepAlive) {
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        ctx.channel().config().setAutoRead(true);
+        startNext();
+    }
+
+    @Override
+    public void onBackendClosed() {
+        backend = null;
+        if (!busy) return;
+        cancelResponseTimeout();
+        finishTarget(false, false);
+        if (!responseStarted) {
+            if (!tryRetry()) sendErrorAndClose(HttpResponseStatus.BAD_GATEWAY, "Bad Gateway");
+        } else {
+            ProxyFrontendHandler.closeOnFlush(ctx.channel());
+        }
+    }
+
+    /**
+     * 当前请求在 target 上结束, 把在途计数和延迟样本交给负载均衡统计, 结果交给被动健康检测, 并记入后端统计; 重复调用无效
+     * @param success 后端统计里是否算成功, 5xx 都算失败
+     * @param healthy 被动健康检测里是否算成功, 只有连接失败, 超时和 502/503/504 算失败
+     */
+    private void finishTarget(boolean success, boolean healthy) {
+        if (!counted) return;
+        counted = false;
+        long now = System.nanoTime();
+        target.onEnd(firstByteNanos, now);
+        target.recordResult(healthy, firstByteNanos);
+        target.stats.recordExchange(success, firstByteNanos, now - requestStart);
+    }
+
+    /**
+     * 当前请求结束, 把追踪交给 Tracer; 重复调用无效
+     * @param status 响应状态码, 0 表示没有响应
+     */
+    private void finishTrace(int status) {
+        if (trace == null) return;
+        long now = System.nanoTime();
+        if (trace.responseNanos != 0) trace.add(Trace.Span.WRITE, now - trace.responseNanos);
+        proxy.getTracer().finish(trace, status, now);
+        trace = null;
+    }
+
+    /**
+     * 请求没有完成但原因不在后端 (客户端断开, 本地连接池已满), 只结束在途计数
+     */
+    private void abandonTarget() {
+        if (!counted) return;
+        counted = false;
+        target.onEnd(-1, System.nanoTime());
+    }
+
+    /**
+     * 粘性会话键, 取 sessionId cookie
+     */
+    private static String affinityKey(HttpRequest request) {
+        String header = request.headers().get(HttpHeaderNames.COOKIE);
+        if (header == null) return null;
+        for (Cookie cookie : ServerCookieDecoder.LAX.decode(header)) {
+            if (SESSION_COOKIE.equals(cookie.name())) return cookie.value();
+        }
+        return null;
+    }
+
+    private void sendErrorAndClose(HttpResponseStatus status, String message) {
+        sendErrorAndClose(status, message, 0);
+    }
+
+    /**
+     * @param retryAfterSeconds 大于 0 时加上 Retry-After 头
+     */
+    private void sendErrorAndClose(HttpResponseStatus status, String message, long retryAfterSeconds) {
+        releaseQueue();
+        cancelResponseTimeout();
+        abandonTarget();
+        releaseAdmission(-1, status == HttpResponseStatus.BAD_GATEWAY || status == HttpResponseStatus.GATEWAY_TIMEOUT);
+        busy = true;
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                status,
+                Unpooled.copiedBuffer(message, StandardCharsets.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        if (retryAfterSeconds > 0) response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfterSeconds);
+        if (trace != null) response.headers().set(Tracer.X_TRACE_ID, trace.idString());
+        finishTrace(status.code());
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private void releaseQueue() {
+        HttpObject obj;
+        while ((obj = queue.pollFirst()) != null) ReferenceCountUtil.release(obj);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable() && backend != null) {
+            backend.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        releaseQueue();
+        if (backend != null) {
+            Channel ch = backend;
+            backend = null;
+            HttpProxyBackendHandler.detach(ch);
+            target.pool.release(ch, false);
+        }
+        cancelResponseTimeout();
+        abandonTarget();
+        // 已经被放行但回调还没执行时, 由 onAdmitted 归还名额
+        if (waiter != null) {
+            waiter.cancel();
+            waiter = null;
+        }
+        releaseAdmission(-1, false);
+        if (trace != null) finishTrace(trace.status);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+}
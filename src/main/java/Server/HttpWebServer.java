@@ -2,17 +2,29 @@ package Server;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioChannelOption;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import util.Histogram;
 import util.Session;
-import util.User;
 
 import java.io.*;
+import java.net.StandardSocketOptions;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -23,12 +35,28 @@ import javax.net.ssl.*;
 import java.security.KeyStore;
 
 public class HttpWebServer {
-    private static final String LOG_FILE = "access.log";
     static final String RECOURSES_DIR = "static/recourses";
     private static final String SESSIONS_FILE = "sessions.dat";
+    private static final String USERS_FILE = "users.txt";
+    // 各路由自己的请求体上限, 其余路由使用 server.maxContentLength; 大请求体走 UploadHandler 的流式处理
+    private static final Map<String, Integer> ROUTE_BODY_LIMITS = Map.of(
+            "/login", 8192,
+            "/logout", 1024,
+            "/search", 8192
+    );
+    private static final String THUMBNAIL_CACHE_DIR = "cache/thumbs";
+    // 传输, 线程数和监听参数需要重启才生效 (见 Settings), 快速路径服务器 Server 使用同样的选项
+    private static final boolean EPOLL = Epoll.isAvailable() && Settings.SERVER_EPOLL.get();
+    static final int WORKER_THREADS = Settings.SERVER_THREADS.get();
+    // 滚动重启: 开启 SO_REUSEPORT 后新进程可以在旧进程排空前绑定同一个端口.
+    // 旧进程关闭监听 socket 时, 它的 accept 队列里还没取走的连接会被内核重置, 需要 Linux 5.14+ 的 net.ipv4.tcp_migrate_req=1 才会转给新进程
+    private static final boolean REUSE_PORT = Settings.SERVER_REUSE_PORT.get();
+    // 旧进程还在运行时, 每秒合并一次它写下的会话快照和日志
+    private static final long SESSION_FOLLOW_INTERVAL_MS = 1_000;
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private ExecutorService uploadExecutor;
     private Channel httpServerChannel;
     private Channel httpsServerChannel;
     private volatile boolean running = false;
@@ -37,69 +65,133 @@ public class HttpWebServer {
     private final AtomicLong totalRequests = new AtomicLong(0);
     private final AtomicLong startTime = new AtomicLong(System.currentTimeMillis());
     private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
+    private final AtomicInteger openConnections = new AtomicInteger(0);
+    // 请求从收到请求头到写完响应的耗时 (微秒)
+    private final Histogram serviceTime = new Histogram();
+    private final ConnectionTimeouts.Counters timeoutCloses = new ConnectionTimeouts.Counters();
+    private final TrafficShaper.Shared shaping = new TrafficShaper.Shared(TrafficShaper.Config.fromSettings());
+    // 可热加载的连接参数, 配置变化时整体替换, 新连接生效
+    private volatile ConnectionTimeouts.Config timeoutConfig = timeoutsFromSettings();
+    private volatile WriteBufferWaterMark waterMark = waterMarkFromSettings();
+    private final Runnable settingsListener = this::applySettings;
 
     private final Map<String, Session> sessions = new ConcurrentHashMap<>();
-    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final SessionJournal sessionJournal;
+    private volatile ScheduledFuture<?> sessionFollow;
+    // 所有客户端连接, 排空时逐个通知, 关闭的连接自动移除
+    private final ChannelGroup clients = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private volatile boolean draining = false;
 
     private final RequestLogger logger;
+    private final RepoSearchService repoSearch;
+    private final UserStore userStore;
+    private final LoginVerifier loginVerifier;
+    private final ThumbnailService thumbnails;
+    private final Tracer tracer;
+    // 没有配置录制文件时为 null
+    private final TrafficCapture capture;
     
     public HttpWebServer() {
-        this.logger = new RequestLogger(LOG_FILE);
-        users.put("admin", new User("admin", "password", "Administrator"));
-        users.put("user", new User("user", "123456", "Regular User"));
+        this(Paths.get(""));
     }
 
-    private void loadSessions() {
-        File file = new File(SESSIONS_FILE);
-        if (!file.exists()) {
-            System.out.println("No session file found, start with empty sessions.");
-            return;
-        }
+    /**
+     * @param dataDir 会话快照和用户文件所在的目录, 默认是工作目录; PerfRegression 用临时目录, 不在工作目录里留下文件
+     */
+    HttpWebServer(Path dataDir) {
+        this.sessionJournal = new SessionJournal(dataDir.resolve(SESSIONS_FILE).toString(), sessions, activeUsers);
+        this.logger = new RequestLogger(Settings.SERVER_ACCESS_LOG.get());
+        this.tracer = new Tracer(Settings.SERVER_TRACE_SAMPLE_RATE, Settings.SERVER_TRACE_SLOW_MS,
+                Settings.SERVER_TRACE_BUFFER_SIZE.get(), Settings.SERVER_TRACE_LOG.get(), true);
+        this.capture = Settings.SERVER_CAPTURE_FILE.get().isEmpty() ? null
+                : new TrafficCapture(Settings.SERVER_CAPTURE_SAMPLE_RATE, Settings.SERVER_CAPTURE_MAX_BODY_BYTES,
+                        Settings.SERVER_CAPTURE_MAX_FILE_BYTES, Settings.SERVER_CAPTURE_FILE.get());
+        this.repoSearch = new RepoSearchService(RECOURSES_DIR);
+        this.thumbnails = new ThumbnailService(RECOURSES_DIR, THUMBNAIL_CACHE_DIR, Settings.SERVER_THUMBNAIL_CACHE_BYTES.get());
+        this.userStore = new UserStore(dataDir.resolve(USERS_FILE).toString());
+        this.loginVerifier = new LoginVerifier(userStore, Settings.SERVER_LOGIN_THREADS.get());
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            Object obj = ois.readObject();
-            if (obj instanceof Map) {
-                @SuppressWarnings("unchecked")
-                Map<String, Session> loadedSessions = (Map<String, Session>) obj;
-                sessions.putAll(loadedSessions);
-                System.out.println("Loaded " + loadedSessions.size() + " sessions from file.");
-                activeUsers.set(loadedSessions.size());
-            }
-        } catch (Exception e) {
-            System.err.println("Failed to load sessions: " + e.getMessage());
-        }
+    private static ConnectionTimeouts.Config timeoutsFromSettings() {
+        return new ConnectionTimeouts.Config(
+                Settings.SERVER_IDLE_TIMEOUT_MS.get(),
+                Settings.SERVER_HEADER_TIMEOUT_MS.get(),
+                Settings.SERVER_BODY_TIMEOUT_MS.get(),
+                Settings.SERVER_BODY_MIN_RATE.get(),
+                Settings.SERVER_WRITE_TIMEOUT_MS.get());
     }
 
-    private void saveSessions() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(SESSIONS_FILE))) {
-            oos.writeObject(sessions);
-            System.out.println("Saved " + sessions.size() + " sessions to file.");
-        } catch (IOException e) {
-            System.err.println("Failed to save sessions: " + e.getMessage());
-        }
+    private static WriteBufferWaterMark waterMarkFromSettings() {
+        return new WriteBufferWaterMark(Settings.SERVER_WRITE_BUFFER_LOW.get(), Settings.SERVER_WRITE_BUFFER_HIGH.get());
+    }
+
+    /**
+     * 配置文件重新加载后应用可热加载的项; 超时, 水位和聚合器上限只影响新连接
+     */
+    private void applySettings() {
+        timeoutConfig = timeoutsFromSettings();
+        waterMark = waterMarkFromSettings();
+        shaping.update(TrafficShaper.Config.fromSettings());
+        thumbnails.setMaxCacheBytes(Settings.SERVER_THUMBNAIL_CACHE_BYTES.get());
+    }
+
+    /**
+     * 新建会话, 排空期间同时写入会话日志
+     */
+    public void putSession(Session session) {
+        sessions.put(session.getSessionId(), session);
+        sessionJournal.added(session);
+    }
+
+    public void removeSession(String sessionId) {
+        if (sessions.remove(sessionId) != null) sessionJournal.removed(sessionId);
     }
 
     public void start(int http_port, int https_port) {
-        loadSessions();
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        sessionJournal.load();
+        userStore.init();
+        repoSearch.start();
+        thumbnails.start();
+        uploadExecutor = Executors.newFixedThreadPool(Settings.SERVER_UPLOAD_THREADS.get());
+        bossGroup = newEventLoopGroup(1, "server-boss");
+        workerGroup = newEventLoopGroup(WORKER_THREADS, "server-worker");
         running = true;
+        Settings.onReload(settingsListener);
+        sessionFollow = bossGroup.scheduleAtFixedRate(() -> {
+            if (!sessionJournal.follow()) sessionFollow.cancel(false);
+        }, SESSION_FOLLOW_INTERVAL_MS, SESSION_FOLLOW_INTERVAL_MS, TimeUnit.MILLISECONDS);
 
         ServerBootstrap httpBootstrap = new ServerBootstrap();
         try {
             httpBootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(serverChannelClass())
+                    .option(ChannelOption.SO_BACKLOG, Settings.SERVER_BACKLOG.get())
+                    .option(reusePortOption(), REUSE_PORT)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
+                            ConnectionTimeouts timeouts = new ConnectionTimeouts(timeoutConfig, timeoutCloses);
+                            ch.config().setWriteBufferWaterMark(waterMark);
+                            clients.add(ch);
+                            RequestTimer timer = new RequestTimer(HttpWebServer.this);
                             ch.pipeline()
+                              .addLast(timeouts.byteWatcher())
+                              .addLast(timer.byteWatcher())
                               .addLast(new HttpServerCodec())
-                              .addLast(new HttpObjectAggregator(65536))
+                              .addLast(timeouts)
+                              .addLast(new DrainHandler(HttpWebServer.this))
+                              .addLast(timer);
+                            if (capture != null) ch.pipeline().addLast(capture.newHandler());
+                            if (shaping.enabled()) ch.pipeline().addLast(new TrafficShaper(shaping));
+                            ch.pipeline()
+                              .addLast(new UploadHandler(HttpWebServer.this, uploadExecutor))
+                              .addLast(new RouteAwareAggregator(Settings.SERVER_MAX_CONTENT_LENGTH.get(), ROUTE_BODY_LIMITS))
+                              .addLast(new ChunkedWriteHandler())
                               .addLast(new RequestHandler(HttpWebServer.this));
                         }
                     });
             httpServerChannel = httpBootstrap.bind(http_port).sync().channel();
-            System.out.println("HTTP Server started on port " + http_port);
+            System.out.println("HTTP Server started on port " + http_port + " (" + (EPOLL ? "epoll" : "nio") + ")");
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -108,14 +200,30 @@ public class HttpWebServer {
         try {
             SslContext sslCtx = setupSSL();
             httpsBootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(serverChannelClass())
+                    .option(ChannelOption.SO_BACKLOG, Settings.SERVER_BACKLOG.get())
+                    .option(reusePortOption(), REUSE_PORT)
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
+                            ConnectionTimeouts timeouts = new ConnectionTimeouts(timeoutConfig, timeoutCloses);
+                            ch.config().setWriteBufferWaterMark(waterMark);
+                            clients.add(ch);
+                            RequestTimer timer = new RequestTimer(HttpWebServer.this);
                             ch.pipeline()
                               .addLast(sslCtx.newHandler(ch.alloc()))
+                              .addLast(timeouts.byteWatcher())
+                              .addLast(timer.byteWatcher())
                               .addLast(new HttpServerCodec())
-                              .addLast(new HttpObjectAggregator(65536))
+                              .addLast(timeouts)
+                              .addLast(new DrainHandler(HttpWebServer.this))
+                              .addLast(timer);
+                            if (capture != null) ch.pipeline().addLast(capture.newHandler());
+                            if (shaping.enabled()) ch.pipeline().addLast(new TrafficShaper(shaping));
+                            ch.pipeline()
+                              .addLast(new UploadHandler(HttpWebServer.this, uploadExecutor))
+                              .addLast(new RouteAwareAggregator(Settings.SERVER_MAX_CONTENT_LENGTH.get(), ROUTE_BODY_LIMITS))
+                              .addLast(new ChunkedWriteHandler())
                               .addLast(new RequestHandler(HttpWebServer.this));
                         }
                     });
@@ -126,6 +234,23 @@ public class HttpWebServer {
         }
     }
     
+    static boolean useEpoll() {
+        return EPOLL;
+    }
+
+    static EventLoopGroup newEventLoopGroup(int threads, String name) {
+        DefaultThreadFactory factory = new DefaultThreadFactory(name);
+        return EPOLL ? new EpollEventLoopGroup(threads, factory) : new NioEventLoopGroup(threads, factory);
+    }
+
+    static Class<? extends ServerChannel> serverChannelClass() {
+        return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    static ChannelOption<Boolean> reusePortOption() {
+        return EPOLL ? EpollChannelOption.SO_REUSEPORT : NioChannelOption.of(StandardSocketOptions.SO_REUSEPORT);
+    }
+
     private SslContext setupSSL() throws Exception {
         KeyStore keyStore = KeyStore.getInstance("PKCS12");
         try (InputStream keyStoreStream = Files.newInputStream(Paths.get("keystore.p12"))) {
@@ -138,28 +263,87 @@ public class HttpWebServer {
         return SslContextBuilder.forServer(kmf).build();
     }
 
+    /**
+     * 排空: 停止接受新连接, 空闲的连接立即关闭, 有在途请求的连接在响应 (带 Connection: close) 写完后关闭;
+     * 期间会话的变化逐条写入会话日志. 等到所有连接关闭或者超过期限, 超过期限时强制关闭剩下的连接
+     * @return 是否在期限内排空
+     */
+    public boolean drain(long timeoutMillis) {
+        if (draining) return clients.isEmpty();
+        draining = true;
+        shuttingDown.set(true);
+        sessionJournal.startJournal();
+        try {
+            if (httpServerChannel != null) httpServerChannel.close().sync();
+            if (httpsServerChannel != null) httpsServerChannel.close().sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Draining " + clients.size() + " connections");
+        for (Channel channel : clients) channel.pipeline().fireUserEventTriggered(DrainHandler.DRAIN);
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!clients.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int remaining = clients.size();
+        if (remaining > 0) {
+            System.out.println("Drain timed out, closing " + remaining + " connections");
+            clients.close().awaitUninterruptibly();
+        }
+        return remaining == 0;
+    }
+
     public void stop() {
         if (!running) return;
 
         running = false;
-        saveSessions();
+        Settings.removeListener(settingsListener);
+        drain(Settings.SERVER_DRAIN_TIMEOUT_MS.get());
+        sessionJournal.close();
         try {
-            if (httpServerChannel != null) httpServerChannel.close().sync();
-            if (httpsServerChannel != null) httpsServerChannel.close().sync();
             if (workerGroup != null) workerGroup.shutdownGracefully().sync();
             if (bossGroup != null) bossGroup.shutdownGracefully().sync();
+            if (uploadExecutor != null) uploadExecutor.shutdown();
+            repoSearch.stop();
+            thumbnails.stop();
+            loginVerifier.stop();
+            userStore.stop();
             logger.close();
+            tracer.close();
+            if (capture != null) capture.close();
             System.out.println("Server stopped");
         } catch (InterruptedException e) {
             System.out.println("Error stopping server: " + e.getMessage());
         }
     }
 
+    public boolean isDraining() { return draining; }
     public Map<String, Session> getSessions() { return sessions; }
-    public Map<String, User> getUsers() { return users; }
+    public UserStore getUserStore() { return userStore; }
+    public LoginVerifier getLoginVerifier() { return loginVerifier; }
     public RequestLogger getLogger() { return logger; }
+    public Tracer getTracer() { return tracer; }
+    public RepoSearchService getRepoSearch() { return repoSearch; }
+    public ThumbnailService getThumbnails() { return thumbnails; }
     public AtomicInteger getActiveUsers() { return activeUsers; }
     public AtomicLong getTotalRequests() { return totalRequests; }
     public AtomicLong getStartTime() { return startTime; }
     public AtomicBoolean getShuttingDown() { return shuttingDown; }
+    public AtomicInteger getOpenConnections() { return openConnections; }
+    public Histogram getServiceTime() { return serviceTime; }
+    public ConnectionTimeouts.Counters getTimeoutCloses() { return timeoutCloses; }
+    public TrafficShaper.Shared getShaping() { return shaping; }
+
+    /**
+     * 实际监听的 HTTP 端口, 以 0 启动时由系统分配
+     */
+    public int getHttpPort() {
+        return ((java.net.InetSocketAddress) httpServerChannel.localAddress()).getPort();
+    }
 }
@@ -0,0 +1,31 @@
+package Server;
+
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * 后端选择策略
+ * select 会被多个 event loop 同时调用, 实现需要线程安全, 并且不能阻塞
+ */
+public interface LoadBalancer {
+
+    /**
+     * @param servers 候选后端, 不为空
+     * @param affinityKey 粘性会话使用的键 (HTTP 模式下是 sessionId cookie), 没有时为 null
+     */
+    BackendServer select(List<BackendServer> servers, String affinityKey);
+
+    /**
+     * 按名字创建策略: p2c, ewma, wrr, hash
+     * @param clock 纳秒时钟, 基于延迟的策略用它计算衰减, 模拟测试时传入模拟时间
+     */
+    static LoadBalancer create(String name, LongSupplier clock) {
+        return switch (name.toLowerCase()) {
+            case "p2c" -> new P2CLoadBalancer();
+            case "ewma" -> new PeakEwmaLoadBalancer(clock);
+            case "wrr" -> new WeightedRoundRobinLoadBalancer();
+            case "hash" -> new ConsistentHashLoadBalancer(new P2CLoadBalancer());
+            default -> throw new IllegalArgumentException("Unknown load balancer: " + name);
+        };
+    }
+}
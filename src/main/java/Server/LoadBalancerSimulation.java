@@ -0,0 +1,228 @@
+package Server;
+
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * 负载均衡策略的离散事件模拟, 比较各策略在负载不均时的尾延迟
+ * 模拟 4 个后端, 每个后端 8 个并发处理槽, 排队 FIFO:
+ * 后端 3 的处理速度只有其他后端的 1/3 (权重按容量设为 3:3:3:1),
+ * 模拟中段后端 0 临时变慢 5 倍, 另有 1% 的请求耗时是平均值的 10 倍;
+ * 80% 的请求带会话键, 会话热度服从 Zipf 分布.
+ * 作为对照的 stale-min 模拟原来的做法: 每 2 秒刷新一次全局连接数快照, 总是选快照里最小的后端
+ *
+ * 用法: LoadBalancerSimulation [秒数] [每秒请求数]
+ */
+public class LoadBalancerSimulation {
+    private static final int SLOTS = 8;
+    private static final double[] SERVICE_MEAN_MS = { 10, 10, 10, 30 };
+    private static final int[] WEIGHTS = { 3, 3, 3, 1 };
+    private static final double DEGRADE_FACTOR = 5;
+    private static final double TAIL_PROBABILITY = 0.01;
+    private static final double TAIL_FACTOR = 10;
+    private static final int SESSIONS = 1000;
+    private static final double ZIPF_EXPONENT = 1.1;
+    private static final double SESSION_PROBABILITY = 0.8;
+    private static final long STALE_REFRESH_NANOS = 2_000_000_000L;
+    private static final long SEED = 42;
+
+    private static final int ARRIVAL = 0;
+    private static final int COMPLETION = 1;
+
+    private record Event(long time, long seq, int type, Request request) { }
+
+    private static final class Request {
+        final long arrival;
+        final double work;
+        final String session;
+        Backend backend;
+
+        Request(long arrival, double work, String session) {
+            this.arrival = arrival;
+            this.work = work;
+            this.session = session;
+        }
+    }
+
+    private static final class Backend {
+        final int index;
+        final BackendServer server;
+        final ArrayDeque<Request> queue = new ArrayDeque<>();
+        int busy = 0;
+        long served = 0;
+
+        Backend(int index, BackendServer server) {
+            this.index = index;
+            this.server = server;
+        }
+    }
+
+    /**
+     * 原来的策略: 定时刷新的全局最小值, 两次刷新之间所有请求都会压到同一个后端上
+     */
+    private static final class StaleMinLoadBalancer implements LoadBalancer {
+        private final LongSupplier clock;
+        private final Map<BackendServer, Integer> snapshot = new IdentityHashMap<>();
+        private long refreshedAt = -STALE_REFRESH_NANOS;
+
+        StaleMinLoadBalancer(LongSupplier clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public BackendServer select(List<BackendServer> servers, String affinityKey) {
+            long now = clock.getAsLong();
+            if (now - refreshedAt >= STALE_REFRESH_NANOS) {
+                for (BackendServer server : servers) snapshot.put(server, server.getInFlight());
+                refreshedAt = now;
+            }
+            return Collections.min(servers, Comparator.comparingInt(snapshot::get));
+        }
+    }
+
+    private final String name;
+    private final long durationNanos;
+    private final double ratePerSecond;
+    private final PriorityQueue<Event> events = new PriorityQueue<>(
+            Comparator.comparingLong(Event::time).thenComparingLong(Event::seq));
+    private final List<Backend> backends = new ArrayList<>();
+    private final List<BackendServer> servers = new ArrayList<>();
+    private final Random random = new Random(SEED);
+    private final double[] zipfCdf = zipfCdf();
+    private final LoadBalancer loadBalancer;
+    private long now = 0;
+    private long seq = 0;
+    private long[] latencies = new long[1024];
+    private int completed = 0;
+
+    private LoadBalancerSimulation(String name, long durationNanos, double ratePerSecond) {
+        this.name = name;
+        this.durationNanos = durationNanos;
+        this.ratePerSecond = ratePerSecond;
+        for (int i = 0; i < SERVICE_MEAN_MS.length; i++) {
+            BackendServer server = new BackendServer(9000 + i, WEIGHTS[i]);
+            servers.add(server);
+            backends.add(new Backend(i, server));
+        }
+        LongSupplier clock = () -> now;
+        this.loadBalancer = name.equals("stale-min")
+                ? new StaleMinLoadBalancer(clock)
+                : LoadBalancer.create(name, clock);
+    }
+
+    private void run() {
+        schedule(nextArrival(0), ARRIVAL, null);
+        Event event;
+        while ((event = events.poll()) != null) {
+            now = event.time();
+            if (event.type() == ARRIVAL) {
+                onArrival();
+            } else {
+                onCompletion(event.request());
+            }
+        }
+    }
+
+    private void onArrival() {
+        if (now >= durationNanos) return;
+        schedule(nextArrival(now), ARRIVAL, null);
+
+        double work = -Math.log(1 - random.nextDouble());
+        if (random.nextDouble() < TAIL_PROBABILITY) work *= TAIL_FACTOR;
+        String session = random.nextDouble() < SESSION_PROBABILITY ? "session-" + zipf() : null;
+        Request request = new Request(now, work, session);
+
+        BackendServer server = loadBalancer.select(servers, session);
+        Backend backend = backends.get(servers.indexOf(server));
+        request.backend = backend;
+        server.onStart();
+        if (backend.busy < SLOTS) {
+            startService(backend, request);
+        } else {
+            backend.queue.addLast(request);
+        }
+    }
+
+    private void startService(Backend backend, Request request) {
+        backend.busy++;
+        double mean = SERVICE_MEAN_MS[backend.index];
+        // 模拟中段后端 0 变慢
+        if (backend.index == 0 && now > durationNanos / 3 && now < durationNanos * 2 / 3) {
+            mean *= DEGRADE_FACTOR;
+        }
+        long service = (long) (request.work * mean * 1_000_000);
+        schedule(now + service, COMPLETION, request);
+    }
+
+    private void onCompletion(Request request) {
+        Backend backend = request.backend;
+        long latency = now - request.arrival;
+        backend.server.onEnd(latency, now);
+        backend.busy--;
+        backend.served++;
+        if (completed == latencies.length) latencies = Arrays.copyOf(latencies, completed * 2);
+        latencies[completed++] = latency;
+        Request next = backend.queue.pollFirst();
+        if (next != null) startService(backend, next);
+    }
+
+    private void schedule(long time, int type, Request request) {
+        events.add(new Event(time, seq++, type, request));
+    }
+
+    private long nextArrival(long from) {
+        return from + (long) (-Math.log(1 - random.nextDouble()) / ratePerSecond * 1e9);
+    }
+
+    private int zipf() {
+        int index = Arrays.binarySearch(zipfCdf, random.nextDouble());
+        return index < 0 ? -index - 1 : index;
+    }
+
+    private static double[] zipfCdf() {
+        double[] cdf = new double[SESSIONS];
+        double sum = 0;
+        for (int i = 0; i < SESSIONS; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < SESSIONS; i++) cdf[i] /= sum;
+        return cdf;
+    }
+
+    private void report() {
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        StringBuilder shares = new StringBuilder();
+        for (Backend backend : backends) {
+            shares.append(String.format(" %5.1f%%", 100.0 * backend.served / completed));
+        }
+        System.out.printf("%-10s %8d %8.1f %8.1f %8.1f %8.1f %9.1f  %s%n",
+                name, completed,
+                percentile(sorted, 0.50), percentile(sorted, 0.90),
+                percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted[completed - 1] / 1e6, shares);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    public static void main(String[] args) {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 60;
+        double capacity = 0;
+        for (double mean : SERVICE_MEAN_MS) capacity += SLOTS * 1000 / mean;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : capacity * 0.6;
+
+        System.out.printf("%d s simulated, %.0f req/s (capacity %.0f req/s), latencies in ms%n",
+                seconds, rate, capacity);
+        System.out.printf("%-10s %8s %8s %8s %8s %8s %9s  %s%n",
+                "strategy", "requests", "p50", "p90", "p99", "p99.9", "max", "share per backend");
+        for (String name : List.of("stale-min", "p2c", "ewma", "wrr", "hash")) {
+            LoadBalancerSimulation simulation = new LoadBalancerSimulation(name, seconds * 1_000_000_000L, rate);
+            simulation.run();
+            simulation.report();
+        }
+    }
+}
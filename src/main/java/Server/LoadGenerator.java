@@ -0,0 +1,536 @@
+package Server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.cookie.ClientCookieDecoder;
+import io.netty.handler.codec.http.cookie.Cookie;
+import util.Histogram;
+import util.Json;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本机 HTTP 压测工具, 可以压 HttpWebServer 也可以压 ReverseProxyServer
+ * 每个虚拟用户有自己的连接和 sessionId cookie, 一次操作 (op) 是场景里的一串请求:
+ *   session  登录页 → 登录 → 首页 → 搜索 → 下载 → 退出, 和真实用户一样带着 cookie
+ *   static   随机请求一个静态资源
+ *   mixed    static, 但按 keepalive 比例混合长连接和每次新建连接 (Connection: close)
+ *   fastpath 随机请求 /plaintext 或 /json, 用来压快速路径服务器 Server
+ * closed 模式下 connections 个用户各自连续执行操作; 给了 rate 时按 rate 均分给各用户定速执行.
+ * open 模式按 rate 在固定的计划时间发起操作, 没有空闲用户时新建 (最多 connections 个) 或排队,
+ * 操作延迟从计划时间算起, 服务端变慢时排队时间也计入, 不会因为协调遗漏 (coordinated omission) 偏低;
+ * closed 模式定速时同样从计划时间算起: 上一次操作超时导致落后时, 下一次立即开始, 等待的时间计入它的延迟.
+ * 只允许压本机回环地址
+ *
+ * 用法: LoadGenerator [--target=localhost:8080] [--scenario=session|static|mixed|fastpath] [--mode=closed|open]
+ *       [--rate=ops/s] [--connections=N] [--duration=秒] [--warmup=秒] [--keepalive=0~1]
+ *       [--user=admin] [--password=password] [--query=image] [--file=abcd.html] [--output=text|json] [--json=文件]
+ */
+public class LoadGenerator {
+    private static final String[] STATIC_ASSETS = {
+            "/", "/index.html", "/login.html", "/error_style.css", "/success_style.css", "/list.txt"
+    };
+    private static final String[] FASTPATH_URIS = { "/plaintext", "/json" };
+    private static final String SESSION_COOKIE = "sessionId";
+    // 测量结束后等待在途操作完成的时间
+    private static final long DRAIN_TIMEOUT_MS = 10_000;
+    private static final long TICK_MICROS = 500;
+
+    enum Scenario { SESSION, STATIC, MIXED, FASTPATH }
+    enum Mode { CLOSED, OPEN }
+
+    private final String host;
+    private final int port;
+    private final Scenario scenario;
+    private final Mode mode;
+    private final double rate;
+    private final int maxConnections;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final double keepAliveRatio;
+    private final Map<String, String> options;
+
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+    private final List<VirtualUser> users = new ArrayList<>();
+    private final AtomicInteger activeOps = new AtomicInteger();
+    private long measureStart;
+    private long endTime;
+    private volatile boolean stopping = false;
+
+    // 统计, 只记录计划时间在预热之后的操作
+    private final Histogram opLatency = new Histogram();
+    private final Map<String, StepStats> steps = new ConcurrentHashMap<>();
+    private final LongAdder ops = new LongAdder();
+    private final LongAdder opErrors = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+
+    // open 模式的调度状态, 只在 dispatcher 上访问
+    private EventLoop dispatcher;
+    private final ArrayDeque<Long> pending = new ArrayDeque<>();
+    private final ArrayDeque<VirtualUser> idle = new ArrayDeque<>();
+    private long nextIntended;
+    private long intervalNanos;
+    private long maxBacklog = 0;
+
+    private static final class StepStats {
+        final Histogram latency = new Histogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        // 失败请求的状态码, 0 表示连接失败或连接提前关闭
+        final Map<Integer, LongAdder> errorStatuses = new ConcurrentHashMap<>();
+    }
+
+    private record Step(HttpMethod method, String uri, String body, String name) { }
+
+    LoadGenerator(Map<String, String> options) throws IOException {
+        this.options = options;
+        String target = options.getOrDefault("target", "localhost:8080");
+        int colon = target.lastIndexOf(':');
+        this.host = target.substring(0, colon);
+        this.port = Integer.parseInt(target.substring(colon + 1));
+        if (!InetAddress.getByName(host).isLoopbackAddress()) {
+            throw new IllegalArgumentException("Only loopback targets are allowed: " + target);
+        }
+        this.scenario = Scenario.valueOf(options.getOrDefault("scenario", "session").toUpperCase(Locale.ROOT));
+        this.mode = Mode.valueOf(options.getOrDefault("mode", "closed").toUpperCase(Locale.ROOT));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        this.maxConnections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        this.keepAliveRatio = Double.parseDouble(options.getOrDefault("keepalive",
+                scenario == Scenario.MIXED ? "0.5" : "1"));
+        if (mode == Mode.OPEN && rate <= 0) throw new IllegalArgumentException("open mode requires --rate");
+        if (maxConnections <= 0) throw new IllegalArgumentException("connections must be positive");
+
+        this.group = new NioEventLoopGroup(Math.min(maxConnections, Runtime.getRuntime().availableProcessors()));
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Bad argument: " + arg + " (expected --name=value)");
+                System.exit(2);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        try {
+            generator.run();
+        } finally {
+            generator.group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+        String json = generator.toJson();
+        if (options.containsKey("json")) Files.writeString(Path.of(options.get("json")), json);
+        if ("json".equals(options.get("output"))) {
+            System.out.println(json);
+        } else {
+            generator.printText();
+        }
+    }
+
+    void run() throws InterruptedException {
+        long start = System.nanoTime();
+        measureStart = start + warmupNanos;
+        endTime = measureStart + durationNanos;
+        if (mode == Mode.CLOSED) {
+            // 定速时每个用户的间隔是 connections / rate
+            long interval = rate > 0 ? (long) (1e9 * maxConnections / rate) : 0;
+            for (int i = 0; i < maxConnections; i++) {
+                VirtualUser user = new VirtualUser(group.next(), interval);
+                users.add(user);
+                user.loop.execute(() -> user.begin(System.nanoTime()));
+            }
+        } else {
+            dispatcher = group.next();
+            intervalNanos = (long) (1e9 / rate);
+            nextIntended = start;
+            dispatcher.scheduleAtFixedRate(this::tick, 0, TICK_MICROS, TimeUnit.MICROSECONDS);
+        }
+
+        while (System.nanoTime() < endTime) Thread.sleep(100);
+        stopping = true;
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while ((activeOps.get() > 0 || pendingSize() > 0) && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        for (VirtualUser user : users) user.loop.execute(user::close);
+    }
+
+    private int pendingSize() {
+        if (dispatcher == null) return 0;
+        try {
+            return dispatcher.submit(pending::size).get();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * open 模式: 把计划时间已到的操作放进队列, 交给空闲用户
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        while (nextIntended <= now && nextIntended < endTime) {
+            pending.addLast(nextIntended);
+            nextIntended += intervalNanos;
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (!pending.isEmpty()) {
+            VirtualUser user = idle.pollFirst();
+            if (user == null) {
+                if (users.size() >= maxConnections) break;
+                user = new VirtualUser(group.next(), 0);
+                users.add(user);
+            }
+            long intended = pending.pollFirst();
+            VirtualUser chosen = user;
+            chosen.loop.execute(() -> chosen.begin(intended));
+        }
+        maxBacklog = Math.max(maxBacklog, pending.size());
+    }
+
+    private void onUserIdle(VirtualUser user) {
+        if (mode == Mode.OPEN) {
+            dispatcher.execute(() -> {
+                idle.addLast(user);
+                dispatch();
+            });
+            return;
+        }
+        if (stopping || System.nanoTime() >= endTime) return;
+        long now = System.nanoTime();
+        if (user.interval == 0) {
+            user.begin(now);
+            return;
+        }
+        // 定速: 下一次的计划时间是上一次加间隔, 已经落后时立即开始 (延迟从计划时间算起)
+        long next = user.intended + user.interval;
+        if (next <= now) {
+            user.begin(next);
+        } else {
+            user.loop.schedule(() -> user.begin(next), next - now, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private List<Step> stepsFor(VirtualUser user) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (scenario == Scenario.FASTPATH) {
+            String uri = FASTPATH_URIS[random.nextInt(FASTPATH_URIS.length)];
+            return List.of(new Step(HttpMethod.GET, uri, null, "GET " + uri));
+        }
+        if (scenario != Scenario.SESSION) {
+            String asset = STATIC_ASSETS[random.nextInt(STATIC_ASSETS.length)];
+            return List.of(new Step(HttpMethod.GET, asset, null, "GET " + asset));
+        }
+        String username = options.getOrDefault("user", "admin");
+        String password = options.getOrDefault("password", "password");
+        String query = options.getOrDefault("query", "image");
+        String file = options.getOrDefault("file", "abcd.html");
+        String form = "username=" + encode(username)
+                + "&password=" + encode(password);
+        return List.of(
+                new Step(HttpMethod.GET, "/login", null, "GET /login"),
+                new Step(HttpMethod.POST, "/login", form, "POST /login"),
+                new Step(HttpMethod.GET, "/", null, "GET /"),
+                new Step(HttpMethod.GET, "/search?q=" + encode(query), null, "GET /search"),
+                new Step(HttpMethod.GET, "/repo?" + file, null, "GET /repo"),
+                new Step(HttpMethod.GET, "/logout", null, "GET /logout"));
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一个虚拟用户, 所有状态只在自己的 event loop 上访问
+     */
+    private final class VirtualUser {
+        final EventLoop loop;
+        final long interval;
+        Channel channel;
+        String sessionId;
+        long intended;
+        List<Step> script;
+        int index;
+        boolean keepAlive;
+        boolean failed;
+        long stepStart;
+        // 正在等待响应的连接, 连接提前关闭时用来判断是否失败
+        Channel waiting;
+
+        VirtualUser(EventLoop loop, long interval) {
+            this.loop = loop;
+            this.interval = interval;
+        }
+
+        void begin(long intended) {
+            this.intended = intended;
+            activeOps.incrementAndGet();
+            script = stepsFor(this);
+            index = 0;
+            failed = false;
+            keepAlive = keepAliveRatio >= 1 || ThreadLocalRandom.current().nextDouble() < keepAliveRatio;
+            nextStep();
+        }
+
+        private void nextStep() {
+            if (index == script.size()) {
+                finishOp();
+                return;
+            }
+            Step step = script.get(index);
+            stepStart = System.nanoTime();
+            if (channel != null && channel.isActive()) {
+                send(step);
+                return;
+            }
+            connects.increment();
+            bootstrap.clone(loop)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline()
+                              .addLast(new HttpClientCodec())
+                              .addLast(new ResponseReader(VirtualUser.this));
+                        }
+                    })
+                    .connect(host, port)
+                    .addListener((ChannelFutureListener) f -> {
+                        if (f.isSuccess()) {
+                            channel = f.channel();
+                            send(step);
+                        } else {
+                            onStepDone(step, 0, 0, false);
+                        }
+                    });
+        }
+
+        private void send(Step step) {
+            FullHttpRequest request = step.body() == null
+                    ? new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, step.method(), step.uri())
+                    : new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, step.method(), step.uri(),
+                            Unpooled.copiedBuffer(step.body(), StandardCharsets.UTF_8));
+            HttpHeaders headers = request.headers();
+            headers.set(HttpHeaderNames.HOST, host + ":" + port);
+            headers.set(HttpHeaderNames.USER_AGENT, "LoadGenerator");
+            headers.set(HttpHeaderNames.CONTENT_LENGTH, request.content().readableBytes());
+            if (step.body() != null) headers.set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED);
+            if (sessionId != null) headers.set(HttpHeaderNames.COOKIE, SESSION_COOKIE + "=" + sessionId);
+            if (!keepAlive) headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            waiting = channel;
+            channel.writeAndFlush(request);
+        }
+
+        void onResponse(HttpResponse response, long bodyBytes) {
+            waiting = null;
+            for (String header : response.headers().getAll(HttpHeaderNames.SET_COOKIE)) {
+                Cookie cookie = ClientCookieDecoder.LAX.decode(header);
+                if (cookie != null && SESSION_COOKIE.equals(cookie.name())) {
+                    sessionId = cookie.maxAge() == 0 || cookie.value().isEmpty() ? null : cookie.value();
+                }
+            }
+            if (!keepAlive || !HttpUtil.isKeepAlive(response)) closeChannel();
+            onStepDone(script.get(index), response.status().code(), bodyBytes, response.status().code() < 400);
+        }
+
+        void onChannelClosed(Channel ch) {
+            if (ch == channel) channel = null;
+            if (ch == waiting) {
+                waiting = null;
+                onStepDone(script.get(index), 0, 0, false);
+            }
+        }
+
+        private void onStepDone(Step step, int status, long bodyBytes, boolean ok) {
+            if (intended >= measureStart) {
+                String name = keepAlive ? step.name() : step.name() + " [new conn]";
+                StepStats stats = steps.computeIfAbsent(name, k -> new StepStats());
+                requests.increment();
+                bytes.add(bodyBytes);
+                stats.bytes.add(bodyBytes);
+                if (ok) {
+                    stats.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - stepStart));
+                } else {
+                    stats.errors.increment();
+                    stats.errorStatuses.computeIfAbsent(status, k -> new LongAdder()).increment();
+                }
+            }
+            if (!ok) {
+                // 会话中途失败, 后面的步骤没有意义; 连接状态不确定, 也不再复用
+                failed = true;
+                closeChannel();
+                sessionId = null;
+                finishOp();
+                return;
+            }
+            index++;
+            nextStep();
+        }
+
+        private void finishOp() {
+            if (intended >= measureStart) {
+                ops.increment();
+                if (failed) {
+                    opErrors.increment();
+                } else {
+                    // 定速时落后的操作也按计划时间开始计时 (见 onUserIdle), 排队时间已经计入, 不再补记样本
+                    opLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+                }
+            }
+            activeOps.decrementAndGet();
+            onUserIdle(this);
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                Channel ch = channel;
+                channel = null;
+                ch.close();
+            }
+        }
+
+        void close() {
+            closeChannel();
+        }
+    }
+
+    /**
+     * 读响应, 不聚合响应体, 只统计字节数
+     */
+    private static final class ResponseReader extends SimpleChannelInboundHandler<HttpObject> {
+        private final VirtualUser user;
+        private HttpResponse response;
+        private long bodyBytes;
+
+        ResponseReader(VirtualUser user) {
+            this.user = user;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (msg instanceof HttpResponse r) {
+                response = r;
+                bodyBytes = 0;
+            }
+            if (msg instanceof HttpContent content) bodyBytes += content.content().readableBytes();
+            if (msg instanceof LastHttpContent && response != null) {
+                HttpResponse done = response;
+                response = null;
+                if (done.status().codeClass() != HttpStatusClass.INFORMATIONAL) user.onResponse(done, bodyBytes);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            user.onChannelClosed(ctx.channel());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    private double seconds() {
+        return durationNanos / 1e9;
+    }
+
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{\"target\":");
+        Json.appendQuoted(sb, host + ":" + port);
+        sb.append(",\"scenario\":\"").append(scenario.name().toLowerCase(Locale.ROOT)).append('"')
+          .append(",\"mode\":\"").append(mode.name().toLowerCase(Locale.ROOT)).append('"')
+          .append(",\"rate\":").append(rate)
+          .append(",\"connections\":").append(maxConnections)
+          .append(",\"keepAliveRatio\":").append(keepAliveRatio)
+          .append(",\"durationSeconds\":").append(seconds())
+          .append(",\"ops\":").append(ops.sum())
+          .append(",\"opErrors\":").append(opErrors.sum())
+          .append(",\"opsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", ops.sum() / seconds()))
+          .append(",\"requests\":").append(requests.sum())
+          .append(",\"requestsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", requests.sum() / seconds()))
+          .append(",\"bytes\":").append(bytes.sum())
+          .append(",\"connects\":").append(connects.sum())
+          .append(",\"maxBacklog\":").append(maxBacklog)
+          .append(",\"opLatencyMs\":");
+        opLatency.appendJson(sb, 1000);
+        sb.append(",\"steps\":{");
+        boolean first = true;
+        for (Map.Entry<String, StepStats> entry : new TreeMap<>(steps).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            Json.appendQuoted(sb, entry.getKey());
+            sb.append(":{\"errors\":").append(entry.getValue().errors.sum())
+              .append(",\"bytes\":").append(entry.getValue().bytes.sum())
+              .append(",\"errorStatuses\":{");
+            boolean firstStatus = true;
+            for (Map.Entry<Integer, LongAdder> status : new TreeMap<>(entry.getValue().errorStatuses).entrySet()) {
+                if (!firstStatus) sb.append(',');
+                firstStatus = false;
+                sb.append('"').append(status.getKey()).append("\":").append(status.getValue().sum());
+            }
+            sb.append("},\"latencyMs\":");
+            entry.getValue().latency.appendJson(sb, 1000);
+            sb.append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    void printText() {
+        System.out.printf(Locale.ROOT, "target %s:%d, scenario %s, %s loop%s, %d connections, keep-alive %.0f%%, %.0f s%n",
+                host, port, scenario.name().toLowerCase(Locale.ROOT), mode.name().toLowerCase(Locale.ROOT),
+                rate > 0 ? String.format(Locale.ROOT, " at %.0f ops/s", rate) : "", maxConnections,
+                keepAliveRatio * 100, seconds());
+        System.out.printf(Locale.ROOT, "ops %d (%.1f/s), errors %d; requests %d (%.1f/s); %.1f MB received; %d connects; max backlog %d%n",
+                ops.sum(), ops.sum() / seconds(), opErrors.sum(), requests.sum(), requests.sum() / seconds(),
+                bytes.sum() / 1048576.0, connects.sum(), maxBacklog);
+        System.out.printf(Locale.ROOT, "%-34s %8s %7s %9s %9s %9s %9s %9s %9s%n",
+                "latency (ms)", "count", "errors", "mean", "p50", "p90", "p99", "p99.9", "max");
+        printRow("op" + (mode == Mode.OPEN || rate > 0 ? " (from intended start)" : ""), opLatency, opErrors.sum());
+        for (Map.Entry<String, StepStats> entry : new TreeMap<>(steps).entrySet()) {
+            printRow("  " + entry.getKey(), entry.getValue().latency, entry.getValue().errors.sum());
+        }
+        for (Map.Entry<String, StepStats> entry : new TreeMap<>(steps).entrySet()) {
+            if (entry.getValue().errorStatuses.isEmpty()) continue;
+            StringBuilder sb = new StringBuilder("errors ").append(entry.getKey()).append(':');
+            new TreeMap<>(entry.getValue().errorStatuses).forEach((status, count) ->
+                    sb.append(' ').append(status == 0 ? "connection" : status).append(" x").append(count.sum()));
+            System.out.println(sb);
+        }
+    }
+
+    private static void printRow(String name, Histogram h, long errors) {
+        System.out.printf(Locale.ROOT, "%-34s %8d %7d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                name, h.getCount(), errors, h.getMean() / 1000, h.valueAt(0.5) / 1000.0, h.valueAt(0.9) / 1000.0,
+                h.valueAt(0.99) / 1000.0, h.valueAt(0.999) / 1000.0, h.getMax() / 1000.0);
+    }
+}
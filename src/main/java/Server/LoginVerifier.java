@@ -0,0 +1,173 @@
+package Server;
+
+import util.PasswordHasher;
+import util.User;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 登录密码校验, PBKDF2 计算放在独立的有界线程池中, 不占用 event loop
+ * 每个用户同时最多 MAX_PER_USER 个校验任务, 超出的直接拒绝;
+ * 校验成功后在 CACHE_TTL_MS 内缓存密码的 HMAC, 重复登录不用再跑一次 PBKDF2
+ */
+public class LoginVerifier {
+    private static final int MAX_PER_USER = 2;
+    private static final long CACHE_TTL_MS = 60_000;
+    private static final int QUEUE_CAPACITY = 256;
+
+    /**
+     * 校验结果的类型
+     */
+    public enum Status {
+        OK, INVALID, BUSY, THROTTLED
+    }
+
+    /**
+     * @param user 校验成功时为对应用户, 否则为 null
+     */
+    public record Result(Status status, User user) { }
+
+    private record CachedCredential(byte[] mac, String passwordHash, long expiresAt) { }
+
+    private final UserStore store;
+    private final ThreadPoolExecutor pool;
+    private final Map<String, Integer> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, CachedCredential> verified = new ConcurrentHashMap<>();
+    private final SecretKeySpec cacheKey;
+    // 用户不存在时也计算一次哈希, 响应时间不会暴露用户名是否存在
+    private final String dummyHash = PasswordHasher.hash("dummy-password");
+
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejectedBusy = new LongAdder();
+    private final LongAdder rejectedThrottled = new LongAdder();
+    private final LongAdder totalQueueNanos = new LongAdder();
+    private final LongAdder totalVerifyNanos = new LongAdder();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+    private final AtomicLong maxVerifyNanos = new AtomicLong();
+
+    public LoginVerifier(UserStore store, int threads) {
+        this.store = store;
+        this.pool = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.cacheKey = new SecretKeySpec(key, "HmacSHA256");
+        store.addReloadListener(verified::clear);
+    }
+
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * 异步校验用户名和密码
+     * @return 结果的 Future, 不会以异常结束
+     */
+    public CompletableFuture<Result> verify(String username, String password) {
+        User user = store.get(username);
+        byte[] mac = hmac(password);
+
+        if (user != null) {
+            CachedCredential cached = verified.get(username);
+            if (cached != null) {
+                if (cached.expiresAt() > System.currentTimeMillis()
+                        && cached.passwordHash().equals(user.passwordHash())
+                        && MessageDigest.isEqual(cached.mac(), mac)) {
+                    cacheHits.increment();
+                    return CompletableFuture.completedFuture(new Result(Status.OK, user));
+                }
+                verified.remove(username, cached);
+            }
+        }
+
+        if (inFlight.merge(username, 1, Integer::sum) > MAX_PER_USER) {
+            release(username);
+            rejectedThrottled.increment();
+            return CompletableFuture.completedFuture(new Result(Status.THROTTLED, null));
+        }
+
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        long submitted = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                long started = System.nanoTime();
+                record(totalQueueNanos, maxQueueNanos, started - submitted);
+                try {
+                    boolean ok = PasswordHasher.verify(password, user != null ? user.passwordHash() : dummyHash)
+                            && user != null;
+                    record(totalVerifyNanos, maxVerifyNanos, System.nanoTime() - started);
+                    verifications.increment();
+                    if (ok) {
+                        verified.put(username, new CachedCredential(mac, user.passwordHash(),
+                                System.currentTimeMillis() + CACHE_TTL_MS));
+                        future.complete(new Result(Status.OK, user));
+                    } else {
+                        failures.increment();
+                        future.complete(new Result(Status.INVALID, null));
+                    }
+                } catch (RuntimeException e) {
+                    failures.increment();
+                    future.complete(new Result(Status.INVALID, null));
+                } finally {
+                    release(username);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(username);
+            rejectedBusy.increment();
+            future.complete(new Result(Status.BUSY, null));
+        }
+        return future;
+    }
+
+    private void release(String username) {
+        inFlight.computeIfPresent(username, (k, v) -> v <= 1 ? null : v - 1);
+    }
+
+    private byte[] hmac(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(cacheKey);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void record(LongAdder total, AtomicLong max, long nanos) {
+        total.add(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    // 统计数据, 在管理页面展示
+    public long getVerifications() { return verifications.sum(); }
+    public long getCacheHits() { return cacheHits.sum(); }
+    public long getFailures() { return failures.sum(); }
+    public long getRejectedBusy() { return rejectedBusy.sum(); }
+    public long getRejectedThrottled() { return rejectedThrottled.sum(); }
+    public int getQueueDepth() { return pool.getQueue().size(); }
+    public double getAvgQueueMillis() {
+        long n = verifications.sum();
+        return n == 0 ? 0 : totalQueueNanos.sum() / 1e6 / n;
+    }
+    public double getAvgVerifyMillis() {
+        long n = verifications.sum();
+        return n == 0 ? 0 : totalVerifyNanos.sum() / 1e6 / n;
+    }
+    public double getMaxQueueMillis() { return maxQueueNanos.get() / 1e6; }
+    public double getMaxVerifyMillis() { return maxVerifyNanos.get() / 1e6; }
+}
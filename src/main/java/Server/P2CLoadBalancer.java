@@ -0,0 +1,32 @@
+package Server;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * power of two choices: 随机取两个后端, 选本地在途请求数少的那个
+ * 不需要全局最小值, 多个线程同时选择时也不会全部压到同一个后端上
+ */
+public class P2CLoadBalancer implements LoadBalancer {
+
+    @Override
+    public BackendServer select(List<BackendServer> servers, String affinityKey) {
+        int n = servers.size();
+        if (n == 1) return servers.get(0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(n);
+        // 第二个下标跳过第一个, 保证两个候选不同
+        int j = random.nextInt(n - 1);
+        if (j >= i) j++;
+        BackendServer a = servers.get(i);
+        BackendServer b = servers.get(j);
+        return load(b) < load(a) ? b : a;
+    }
+
+    /**
+     * 按权重折算后的负载, 权重大的后端可以承担更多在途请求
+     */
+    private static double load(BackendServer server) {
+        return (double) server.getInFlight() / server.effectiveWeight();
+    }
+}
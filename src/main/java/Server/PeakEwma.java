@@ -0,0 +1,43 @@
+package Server;
+
+/**
+ * 峰值敏感的指数加权移动平均 (peak EWMA)
+ * 样本比当前值大时直接取样本, 延迟变高能立刻反映出来; 比当前值小时按时间衰减, 慢慢回落
+ */
+public class PeakEwma {
+    static final long DEFAULT_DECAY_NANOS = 10_000_000_000L;
+
+    private final double decayNanos;
+    private double value = 0;
+    private long stamp = 0;
+
+    public PeakEwma(long decayNanos) {
+        this.decayNanos = decayNanos;
+    }
+
+    public synchronized void observe(long sampleNanos, long nowNanos) {
+        if (sampleNanos > value) {
+            value = sampleNanos;
+        } else {
+            double w = weight(nowNanos);
+            value = value * w + sampleNanos * (1 - w);
+        }
+        stamp = Math.max(stamp, nowNanos);
+    }
+
+    /**
+     * 当前值, 没有新样本时向 0 衰减, 一次慢请求不会让后端一直被冷落
+     */
+    public synchronized double get(long nowNanos) {
+        return decayed(nowNanos);
+    }
+
+    private double decayed(long nowNanos) {
+        return value * weight(nowNanos);
+    }
+
+    private double weight(long nowNanos) {
+        long elapsed = Math.max(0, nowNanos - stamp);
+        return Math.exp(-elapsed / decayNanos);
+    }
+}
@@ -0,0 +1,41 @@
+package Server;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+/**
+ * 基于延迟的 power of two choices
+ * 代价 = 峰值 EWMA 延迟 * (在途请求数 + 1), 变慢的后端会很快少分到请求
+ */
+public class PeakEwmaLoadBalancer implements LoadBalancer {
+    // 还没有延迟样本但已经有在途请求时的代价, 避免新后端一上来就被压满
+    private static final double PENALTY_NANOS = 1_000_000_000.0;
+
+    private final LongSupplier clock;
+
+    public PeakEwmaLoadBalancer(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public BackendServer select(List<BackendServer> servers, String affinityKey) {
+        int n = servers.size();
+        if (n == 1) return servers.get(0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(n);
+        int j = random.nextInt(n - 1);
+        if (j >= i) j++;
+        long now = clock.getAsLong();
+        BackendServer a = servers.get(i);
+        BackendServer b = servers.get(j);
+        return cost(b, now) < cost(a, now) ? b : a;
+    }
+
+    private static double cost(BackendServer server, long now) {
+        int inFlight = server.getInFlight();
+        double latency = server.getLatency().get(now);
+        if (latency == 0 && inFlight > 0) return PENALTY_NANOS + inFlight;
+        return latency * (inFlight + 1) / server.effectiveWeight();
+    }
+}
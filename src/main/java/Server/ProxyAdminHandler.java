@@ -0,0 +1,238 @@
+package Server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.*;
+import util.Json;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 代理的管理接口, 只监听本机地址
+ * GET /backends                              列出后端和它们的状态
+ * POST /backends?address=host:port&weight=N&maxConnections=N   添加后端, 已存在时更新权重和上限并取消摘除
+ * POST /backends/drain?address=host:port     摘除, 不再分配新请求
+ * DELETE /backends?address=host:port         摘除并在在途请求结束后删除
+ * GET /admission                             准入控制和限流的上限与计数
+ * GET /stats                                 每个后端在代理一侧的延迟直方图, 字节数和连接池使用情况
+ * GET /cluster                               轮询所有后端的 /admin/stats, 合并成集群视图
+ * GET /config                                生效的 proxy.* 配置, 来源, 是否可热加载, 以及等待重启生效的值
+ * GET /traces?id=&minMs=&limit=              HTTP 模式下最近保存的请求追踪, 新的在前, limit 默认 100
+ */
+public class ProxyAdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private static final long CLUSTER_POLL_TIMEOUT_MS = 2000;
+
+    private final ReverseProxyServer proxy;
+
+    public ProxyAdminHandler(ReverseProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        HttpMethod method = request.method();
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (decoder.path().equals("/cluster")) {
+            ClusterStats.collect(proxy.getRegistry().all(), ctx.channel().eventLoop(), CLUSTER_POLL_TIMEOUT_MS)
+                    .whenComplete((content, e) -> ctx.executor().execute(() -> write(ctx, e == null
+                            ? json(HttpResponseStatus.OK, content)
+                            : RequestHandler.jsonError(HttpResponseStatus.INTERNAL_SERVER_ERROR, String.valueOf(e.getMessage())),
+                            keepAlive)));
+            return;
+        }
+        FullHttpResponse response;
+        try {
+            response = switch (decoder.path()) {
+                case "/backends" -> {
+                    if (method == HttpMethod.GET) yield json(HttpResponseStatus.OK, backendsJson());
+                    if (method == HttpMethod.POST) yield addBackend(decoder);
+                    if (method == HttpMethod.DELETE) yield removeBackend(decoder);
+                    yield RequestHandler.jsonError(HttpResponseStatus.METHOD_NOT_ALLOWED, "Method Not Allowed");
+                }
+                case "/backends/drain" -> method == HttpMethod.POST
+                        ? drainBackend(decoder)
+                        : RequestHandler.jsonError(HttpResponseStatus.METHOD_NOT_ALLOWED, "Method Not Allowed");
+                case "/admission" -> json(HttpResponseStatus.OK, admissionJson());
+                case "/stats" -> json(HttpResponseStatus.OK, statsJson());
+                case "/config" -> json(HttpResponseStatus.OK, configJson());
+                case "/traces" -> traces(decoder);
+                default -> RequestHandler.jsonError(HttpResponseStatus.NOT_FOUND, "Not Found");
+            };
+        } catch (IllegalArgumentException e) {
+            response = RequestHandler.jsonError(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+        }
+        write(ctx, response, keepAlive);
+    }
+
+    private static void write(ChannelHandlerContext ctx, FullHttpResponse response, boolean keepAlive) {
+        HttpUtil.setKeepAlive(response, keepAlive);
+        if (keepAlive) {
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private FullHttpResponse addBackend(QueryStringDecoder decoder) {
+        BackendConfig.Entry entry = BackendConfig.parseEntry(new String[] {
+                address(decoder),
+                "weight=" + param(decoder, "weight", "1"),
+                "maxConnections=" + param(decoder, "maxConnections", "0")
+        });
+        BackendServer server = proxy.getRegistry().add(entry.host(), entry.port(), entry.weight(), entry.maxConnections());
+        return json(HttpResponseStatus.OK, backendJson(new StringBuilder(), server).toString());
+    }
+
+    private FullHttpResponse drainBackend(QueryStringDecoder decoder) {
+        BackendConfig.Entry entry = BackendConfig.parseEntry(new String[] { address(decoder) });
+        if (!proxy.getRegistry().drain(entry.host(), entry.port())) {
+            return RequestHandler.jsonError(HttpResponseStatus.NOT_FOUND, "No such backend");
+        }
+        return json(HttpResponseStatus.ACCEPTED, "{\"draining\":true}");
+    }
+
+    private FullHttpResponse removeBackend(QueryStringDecoder decoder) {
+        BackendConfig.Entry entry = BackendConfig.parseEntry(new String[] { address(decoder) });
+        if (!proxy.getRegistry().remove(entry.host(), entry.port())) {
+            return RequestHandler.jsonError(HttpResponseStatus.NOT_FOUND, "No such backend");
+        }
+        return json(HttpResponseStatus.ACCEPTED, "{\"removing\":true}");
+    }
+
+    private static String address(QueryStringDecoder decoder) {
+        String address = param(decoder, "address", null);
+        if (address == null) throw new IllegalArgumentException("address is required");
+        return address;
+    }
+
+    private static String param(QueryStringDecoder decoder, String name, String defaultValue) {
+        List<String> values = decoder.parameters().get(name);
+        return values == null || values.isEmpty() ? defaultValue : values.get(0);
+    }
+
+    private FullHttpResponse traces(QueryStringDecoder decoder) {
+        Tracer tracer = proxy.getTracer();
+        if (tracer == null) return RequestHandler.jsonError(HttpResponseStatus.NOT_FOUND, "Tracing is only available in http mode");
+        double minMillis;
+        int limit;
+        try {
+            minMillis = Double.parseDouble(param(decoder, "minMs", "0"));
+            limit = Integer.parseInt(param(decoder, "limit", "100"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid minMs or limit");
+        }
+        return json(HttpResponseStatus.OK, tracer.toJson(param(decoder, "id", null), minMillis, limit));
+    }
+
+    private String backendsJson() {
+        StringBuilder sb = new StringBuilder("[");
+        List<BackendServer> servers = proxy.getRegistry().all();
+        for (int i = 0; i < servers.size(); i++) {
+            if (i > 0) sb.append(',');
+            backendJson(sb, servers.get(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    private String statsJson() {
+        StringBuilder sb = new StringBuilder("[");
+        List<BackendServer> servers = proxy.getRegistry().all();
+        for (int i = 0; i < servers.size(); i++) {
+            BackendServer server = servers.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"address\":");
+            Json.appendQuoted(sb, server.toString());
+            sb.append(",\"stats\":");
+            server.stats.appendJson(sb, server.pool);
+            sb.append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+    private String admissionJson() {
+        ConnectionLimiter connections = proxy.getConnectionLimiter();
+        StringBuilder sb = new StringBuilder("{\"connections\":").append(connections.getConnections())
+                .append(",\"connectionsRejected\":").append(connections.getRejected());
+        AdmissionController admission = proxy.getAdmission();
+        if (admission != null) {
+            sb.append(",\"limit\":").append(admission.getLimit())
+              .append(",\"inFlight\":").append(admission.getInFlight())
+              .append(",\"queued\":").append(admission.getQueued())
+              .append(",\"admitted\":").append(admission.getAdmitted())
+              .append(",\"queuedTotal\":").append(admission.getQueuedTotal())
+              .append(",\"rejected\":").append(admission.getRejected())
+              .append(",\"shed\":").append(admission.getShed());
+        }
+        ClientRateLimiter rateLimiter = proxy.getRateLimiter();
+        if (rateLimiter != null) sb.append(",\"rateLimited\":").append(rateLimiter.getLimited());
+        return sb.append('}').toString();
+    }
+
+    private static String configJson() {
+        StringBuilder sb = new StringBuilder("{\"file\":");
+        Json.appendQuoted(sb, Settings.describeFile());
+        sb.append(",\"lastError\":");
+        String error = Settings.getLastError();
+        if (error == null) {
+            sb.append("null");
+        } else {
+            Json.appendQuoted(sb, error);
+        }
+        sb.append(",\"settings\":[");
+        List<Settings.Entry> entries = Settings.describe("proxy.");
+        for (int i = 0; i < entries.size(); i++) {
+            Settings.Entry entry = entries.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"name\":");
+            Json.appendQuoted(sb, entry.name());
+            sb.append(",\"value\":");
+            Json.appendQuoted(sb, entry.value());
+            sb.append(",\"source\":\"").append(entry.source().name().toLowerCase(Locale.ROOT)).append('"')
+              .append(",\"reloadable\":").append(entry.reloadable());
+            if (entry.pending() != null) {
+                sb.append(",\"pending\":");
+                Json.appendQuoted(sb, entry.pending());
+            }
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static StringBuilder backendJson(StringBuilder sb, BackendServer server) {
+        sb.append("{\"host\":");
+        Json.appendQuoted(sb, server.host);
+        sb.append(",\"port\":").append(server.port)
+          .append(",\"weight\":").append(server.weight)
+          .append(",\"maxConnections\":").append(server.maxConnections)
+          .append(",\"draining\":").append(server.draining)
+          .append(",\"health\":\"").append(server.health.getState()).append('"')
+          .append(",\"inFlight\":").append(server.getInFlight())
+          .append(",\"limit\":").append(server.limit == null ? -1 : server.limit.getLimit())
+          .append(",\"latencyMs\":").append(String.format(Locale.ROOT, "%.1f", server.getLatency().get(System.nanoTime()) / 1e6))
+          .append(",\"poolConnections\":").append(server.pool.getTotalConnections())
+          .append(",\"activeConnections\":").append(server.activeConnections)
+          .append('}');
+        return sb;
+    }
+
+    private static FullHttpResponse json(HttpResponseStatus status, String content) {
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                status,
+                Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+}
@@ -0,0 +1,60 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * TCP 透传模式下后端一侧的处理器, 把后端返回的数据写回客户端, 同时统计收到的字节数和第一个字节的延迟
+ */
+public class ProxyBackendHandler extends ChannelInboundHandlerAdapter {
+    private final Channel inbound;
+    private final BackendStats stats;
+    // 开始连接后端的时间, 收到第一个字节后置为 0
+    private long start = System.nanoTime();
+
+    public ProxyBackendHandler(Channel inbound, BackendStats stats) {
+        this.inbound = inbound;
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof ByteBuf buf) {
+            if (start != 0) {
+                stats.ttfb.record(BackendStats.micros(System.nanoTime() - start));
+                start = 0;
+            }
+            stats.bytesIn.add(buf.readableBytes());
+        }
+        inbound.write(msg, inbound.voidPromise());
+        if (!inbound.isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        inbound.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        // 后端重新可写, 恢复读取客户端
+        if (ctx.channel().isWritable()) {
+            inbound.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        ProxyFrontendHandler.closeOnFlush(inbound);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ProxyFrontendHandler.closeOnFlush(ctx.channel());
+    }
+}
@@ -0,0 +1,688 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP 模式下代理的响应缓存 (微缓存)
+ * 只缓存没有请求体的 GET; 遵守 Cache-Control (no-store, private, no-cache, max-age, s-maxage,
+ * stale-while-revalidate, must-revalidate) 和 Vary. 响应没有给出有效期时按 defaultTtl 缓存 (默认 1 秒),
+ * 但这样的条目只服务不带 Cookie 的请求, 因为后端页面会按 sessionId 输出不同内容;
+ * 带 Cookie 的请求只能命中 public 或 s-maxage 的响应, 未命中时直接转发, 不写入缓存.
+ * 同一个键的并发未命中合并成一次后端请求, 过期但仍在 stale-while-revalidate 窗口内的条目先返回旧内容再后台刷新.
+ * 内存层按字节数做 LRU; 可选的磁盘层保存从内存淘汰的条目 (不含 Vary 的响应), 同样按字节数淘汰
+ */
+public class ProxyCache {
+    private static final Set<Integer> CACHEABLE_STATUS = Set.of(200, 203, 300, 301, 404, 410);
+    // 太大的响应在这段时间内直接转发, 不再尝试缓存
+    private static final long PASS_TTL_MS = 10_000;
+    private static final int MAX_PASS_KEYS = 10_000;
+    static final CharSequence X_CACHE = "X-Cache";
+
+    public enum Status { HIT, STALE, MISS, PASS }
+
+    /**
+     * @param content 命中时是已经 retain 过的响应体副本, 由调用方负责写出或释放
+     */
+    public record Lookup(Status status, String key, CachedResponse entry, ByteBuf content) { }
+
+    /**
+     * 合并请求的结果
+     * @param entry 可缓存时为缓存条目, 否则为 null
+     * @param response 不可缓存时给发起者的完整响应 (其他等待者不能共用), 否则为 null
+     */
+    public record FetchResult(CachedResponse entry, FullHttpResponse response) { }
+
+    /**
+     * 一个缓存的响应, content 由缓存持有, 淘汰时释放
+     */
+    public static final class CachedResponse {
+        final String key;
+        final HttpResponseStatus status;
+        final HttpHeaders headers;
+        final ByteBuf content;
+        final List<String> varyNames;
+        final String variant;
+        // 从默认有效期得来的条目, 不能给带 Cookie 的请求
+        final boolean anonymousOnly;
+        final long storedAt;
+        final long freshUntil;
+        final long staleUntil;
+        boolean evicted = false;
+
+        CachedResponse(String key, HttpResponseStatus status, HttpHeaders headers, ByteBuf content,
+                       List<String> varyNames, String variant, boolean anonymousOnly,
+                       long storedAt, long freshUntil, long staleUntil) {
+            this.key = key;
+            this.status = status;
+            this.headers = headers;
+            this.content = content;
+            this.varyNames = varyNames;
+            this.variant = variant;
+            this.anonymousOnly = anonymousOnly;
+            this.storedAt = storedAt;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+        }
+
+        int size() {
+            return content.readableBytes() + 256;
+        }
+    }
+
+    private record DiskEntry(File file, int size, long staleUntil) { }
+
+    private final ReverseProxyServer proxy;
+    private volatile long maxMemoryBytes;
+    private volatile int maxEntryBytes;
+    private volatile long defaultTtlMs;
+    private volatile long defaultStaleMs;
+    private final File diskDir;
+    private final long maxDiskBytes;
+
+    // 主键 -> 各个 Vary 变体, 按访问顺序排列
+    private final LinkedHashMap<String, List<CachedResponse>> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryBytes = 0;
+    private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>(256, 0.75f, true);
+    private long diskBytes = 0;
+    private final Map<String, CompletableFuture<FetchResult>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Long> passUntil = new ConcurrentHashMap<>();
+    private final ExecutorService diskExecutor;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder fetches = new LongAdder();
+
+    /**
+     * @param diskDir 磁盘层目录, 为 null 时不使用磁盘层
+     */
+    public ProxyCache(ReverseProxyServer proxy, long maxMemoryBytes, int maxEntryBytes,
+                      long defaultTtlMs, long defaultStaleMs, File diskDir, long maxDiskBytes) {
+        this.proxy = proxy;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.defaultTtlMs = defaultTtlMs;
+        this.defaultStaleMs = defaultStaleMs;
+        this.diskDir = diskDir;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskDir != null) {
+            // 磁盘层只是内存层的延伸, 重启后旧文件没有索引, 直接清掉
+            diskDir.mkdirs();
+            File[] old = diskDir.listFiles();
+            if (old != null) for (File f : old) f.delete();
+            diskExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "proxy-cache-disk");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            diskExecutor = null;
+        }
+    }
+
+    /**
+     * 修改内存层容量和默认有效期, 调小容量时立即淘汰; 已缓存条目的有效期不变
+     */
+    public synchronized void updateLimits(long maxMemoryBytes, int maxEntryBytes, long defaultTtlMs, long defaultStaleMs) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.defaultTtlMs = defaultTtlMs;
+        this.defaultStaleMs = defaultStaleMs;
+        evictMemory();
+    }
+
+    public void stop() {
+        if (diskExecutor != null) diskExecutor.shutdownNow();
+        synchronized (this) {
+            for (List<CachedResponse> variants : memory.values()) {
+                for (CachedResponse entry : variants) release(entry);
+            }
+            memory.clear();
+            memoryBytes = 0;
+        }
+    }
+
+    /**
+     * 查缓存, 不会访问后端
+     */
+    public Lookup lookup(HttpRequest request) {
+        if (!isCacheableRequest(request)) {
+            passes.increment();
+            return new Lookup(Status.PASS, null, null, null);
+        }
+        String key = key(request);
+        Long pass = passUntil.get(key);
+        long now = System.currentTimeMillis();
+        if (pass != null) {
+            if (pass > now) {
+                passes.increment();
+                return new Lookup(Status.PASS, key, null, null);
+            }
+            passUntil.remove(key, pass);
+        }
+        boolean hasCookie = request.headers().contains(HttpHeaderNames.COOKIE);
+        synchronized (this) {
+            List<CachedResponse> variants = memory.get(key);
+            if (variants != null) {
+                Iterator<CachedResponse> it = variants.iterator();
+                while (it.hasNext()) {
+                    CachedResponse entry = it.next();
+                    if (entry.staleUntil <= now) {
+                        it.remove();
+                        memoryBytes -= entry.size();
+                        release(entry);
+                        continue;
+                    }
+                    if (!entry.variant.equals(variant(request, entry.varyNames))) continue;
+                    if (entry.anonymousOnly && hasCookie) {
+                        passes.increment();
+                        return new Lookup(Status.PASS, key, null, null);
+                    }
+                    boolean fresh = entry.freshUntil > now;
+                    (fresh ? hits : staleHits).increment();
+                    return new Lookup(fresh ? Status.HIT : Status.STALE, key, entry, entry.content.retainedDuplicate());
+                }
+                if (variants.isEmpty()) memory.remove(key);
+            }
+        }
+        // 带 Cookie 的请求不发起合并请求: 它的响应大多不能共享, 等待者还要再转发一次
+        if (hasCookie) {
+            passes.increment();
+            return new Lookup(Status.PASS, key, null, null);
+        }
+        misses.increment();
+        return new Lookup(Status.MISS, key, null, null);
+    }
+
+    /**
+     * 取缓存条目的响应体副本, 条目已经被淘汰时返回 null
+     */
+    public synchronized ByteBuf retainContent(CachedResponse entry) {
+        return entry.evicted ? null : entry.content.retainedDuplicate();
+    }
+
+    /**
+     * 向后端请求 key 对应的响应, 同一个 key 同时只有一个请求在进行, 其他调用者共用结果
+     * @param leader 返回的 Future 是否由本次调用新建 (只有发起者能拿到不可缓存的响应)
+     */
+    public CompletableFuture<FetchResult> fetch(String key, HttpRequest request, EventLoop loop, boolean[] leader) {
+        CompletableFuture<FetchResult> created = new CompletableFuture<>();
+        CompletableFuture<FetchResult> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.increment();
+            leader[0] = false;
+            return existing;
+        }
+        leader[0] = true;
+        created.whenComplete((r, e) -> inFlight.remove(key, created));
+
+        FullHttpRequest copy = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, request.uri(),
+                Unpooled.EMPTY_BUFFER, request.headers().copy(), EmptyHttpHeaders.INSTANCE);
+        copy.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+        copy.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+        DiskEntry onDisk = diskExecutor != null ? diskEntry(key) : null;
+        if (onDisk != null) {
+            diskExecutor.execute(() -> {
+                CachedResponse entry = readFromDisk(key, onDisk);
+                if (entry != null) {
+                    diskHits.increment();
+                    created.complete(new FetchResult(entry, null));
+                } else {
+                    loop.execute(() -> new Fetch(key, copy, loop, created).start());
+                }
+            });
+        } else {
+            new Fetch(key, copy, loop, created).start();
+        }
+        return created;
+    }
+
+    /**
+     * 后台刷新一个过期的条目, 已经有请求在进行时什么也不做
+     */
+    public void revalidate(String key, HttpRequest request, EventLoop loop) {
+        if (inFlight.containsKey(key)) return;
+        boolean[] leader = new boolean[1];
+        fetch(key, request, loop, leader).whenComplete((result, e) -> {
+            if (leader[0] && result != null && result.response() != null) result.response().release();
+        });
+    }
+
+    /**
+     * 给客户端的响应: 缓存的头部加上 Age 和 X-Cache
+     */
+    public static FullHttpResponse toResponse(CachedResponse entry, ByteBuf content, String cacheStatus) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, entry.status, content,
+                entry.headers.copy(), EmptyHttpHeaders.INSTANCE);
+        long age = Math.max(0, (System.currentTimeMillis() - entry.storedAt) / 1000);
+        response.headers().set(HttpHeaderNames.AGE, age);
+        response.headers().set(X_CACHE, cacheStatus);
+        return response;
+    }
+
+    static boolean isCacheableRequest(HttpRequest request) {
+        if (request.method() != HttpMethod.GET) return false;
+        HttpHeaders headers = request.headers();
+        if (headers.contains(HttpHeaderNames.AUTHORIZATION)) return false;
+        if (HttpUtil.isTransferEncodingChunked(request) || HttpUtil.getContentLength(request, 0L) != 0) return false;
+        Map<String, String> cc = cacheControl(headers);
+        return !cc.containsKey("no-store") && !cc.containsKey("no-cache") && !"0".equals(cc.get("max-age"));
+    }
+
+    private static String key(HttpRequest request) {
+        String host = request.headers().get(HttpHeaderNames.HOST, "");
+        return host.toLowerCase(Locale.ROOT) + " " + request.uri();
+    }
+
+    private static String variant(HttpRequest request, List<String> varyNames) {
+        if (varyNames.isEmpty()) return "";
+        StringBuilder sb = new StringBuilder();
+        for (String name : varyNames) {
+            sb.append(name).append('=').append(String.join(",", request.headers().getAll(name))).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 解析 Cache-Control, 指令名转成小写, 值去掉引号
+     */
+    static Map<String, String> cacheControl(HttpHeaders headers) {
+        List<String> values = headers.getAll(HttpHeaderNames.CACHE_CONTROL);
+        if (values.isEmpty()) return Map.of();
+        Map<String, String> directives = new HashMap<>();
+        for (String value : values) {
+            for (String part : value.split(",")) {
+                String directive = part.trim();
+                if (directive.isEmpty()) continue;
+                int eq = directive.indexOf('=');
+                if (eq < 0) {
+                    directives.put(directive.toLowerCase(Locale.ROOT), "");
+                } else {
+                    String v = directive.substring(eq + 1).trim();
+                    if (v.length() >= 2 && v.startsWith("\"") && v.endsWith("\"")) v = v.substring(1, v.length() - 1);
+                    directives.put(directive.substring(0, eq).trim().toLowerCase(Locale.ROOT), v);
+                }
+            }
+        }
+        return directives;
+    }
+
+    private static long seconds(Map<String, String> cc, String name) {
+        String value = cc.get(name);
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 按响应头判断能否缓存, 能缓存时放入内存层并返回条目, 响应的所有权转给缓存
+     */
+    private CachedResponse store(String key, HttpRequest request, FullHttpResponse response) {
+        HttpHeaders headers = response.headers();
+        if (!CACHEABLE_STATUS.contains(response.status().code())) return null;
+        if (headers.contains(HttpHeaderNames.SET_COOKIE)) return null;
+        Map<String, String> cc = cacheControl(headers);
+        if (cc.containsKey("no-store") || cc.containsKey("private") || cc.containsKey("no-cache")) return null;
+
+        List<String> varyNames = new ArrayList<>();
+        for (String value : headers.getAll(HttpHeaderNames.VARY)) {
+            for (String name : value.split(",")) {
+                String trimmed = name.trim().toLowerCase(Locale.ROOT);
+                if (trimmed.equals("*")) return null;
+                if (!trimmed.isEmpty()) varyNames.add(trimmed);
+            }
+        }
+
+        boolean hasCookie = request.headers().contains(HttpHeaderNames.COOKIE);
+        boolean explicitShared = cc.containsKey("public") || cc.containsKey("s-maxage");
+        if (hasCookie && !explicitShared) return null;
+
+        long ttl = seconds(cc, "s-maxage");
+        if (ttl < 0) ttl = seconds(cc, "max-age");
+        boolean anonymousOnly = false;
+        long ttlMs;
+        if (ttl >= 0) {
+            ttlMs = ttl * 1000;
+        } else {
+            ttlMs = defaultTtlMs;
+            anonymousOnly = !explicitShared;
+        }
+        long staleMs;
+        if (cc.containsKey("must-revalidate") || cc.containsKey("proxy-revalidate")) {
+            staleMs = 0;
+        } else {
+            long swr = seconds(cc, "stale-while-revalidate");
+            staleMs = swr >= 0 ? swr * 1000 : defaultStaleMs;
+        }
+        if (ttlMs <= 0 && staleMs <= 0) return null;
+
+        long now = System.currentTimeMillis();
+        HttpHeaders stored = headers.copy();
+        stored.remove(HttpHeaderNames.CONNECTION);
+        stored.remove(HttpHeaderNames.AGE);
+        ByteBuf content = response.content();
+        CachedResponse entry = new CachedResponse(key, response.status(), stored, content, List.copyOf(varyNames),
+                variant(request, varyNames), anonymousOnly, now, now + ttlMs, now + ttlMs + staleMs);
+        insert(entry);
+        return entry;
+    }
+
+    private synchronized void insert(CachedResponse entry) {
+        List<CachedResponse> variants = memory.computeIfAbsent(entry.key, k -> new ArrayList<>(1));
+        // 同一个变体只保留最新的一份
+        Iterator<CachedResponse> it = variants.iterator();
+        while (it.hasNext()) {
+            CachedResponse old = it.next();
+            if (old.variant.equals(entry.variant)) {
+                it.remove();
+                memoryBytes -= old.size();
+                release(old);
+            }
+        }
+        variants.add(entry);
+        memoryBytes += entry.size();
+        evictMemory();
+    }
+
+    /**
+     * 按 LRU 淘汰内存层, 还没过期的条目交给磁盘层
+     */
+    private void evictMemory() {
+        Iterator<Map.Entry<String, List<CachedResponse>>> it = memory.entrySet().iterator();
+        long now = System.currentTimeMillis();
+        while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+            List<CachedResponse> variants = it.next().getValue();
+            it.remove();
+            for (CachedResponse entry : variants) {
+                memoryBytes -= entry.size();
+                if (diskExecutor != null && entry.varyNames.isEmpty() && entry.staleUntil > now) {
+                    // 交给磁盘线程写出, 写完再释放
+                    entry.evicted = true;
+                    diskExecutor.execute(() -> writeToDisk(entry));
+                } else {
+                    release(entry);
+                }
+            }
+        }
+    }
+
+    private void release(CachedResponse entry) {
+        if (!entry.evicted) {
+            entry.evicted = true;
+            entry.content.release();
+        }
+    }
+
+    private synchronized DiskEntry diskEntry(String key) {
+        DiskEntry entry = disk.get(key);
+        if (entry != null && entry.staleUntil() <= System.currentTimeMillis()) {
+            removeDisk(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private void removeDisk(String key, DiskEntry entry) {
+        disk.remove(key, entry);
+        diskBytes -= entry.size();
+        entry.file().delete();
+    }
+
+    /**
+     * 磁盘文件格式: 状态码, 头部数量, 头部名和值, 各个时间戳, 是否仅匿名, 响应体
+     */
+    private void writeToDisk(CachedResponse entry) {
+        File file = new File(diskDir, sha256(entry.key));
+        int size = entry.content.readableBytes();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(entry.status.code());
+            out.writeInt(entry.headers.size());
+            for (Map.Entry<String, String> header : entry.headers) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+            out.writeLong(entry.storedAt);
+            out.writeLong(entry.freshUntil);
+            out.writeLong(entry.staleUntil);
+            out.writeBoolean(entry.anonymousOnly);
+            out.writeInt(size);
+            entry.content.getBytes(entry.content.readerIndex(), out, size);
+        } catch (IOException e) {
+            System.err.println("Failed to write proxy cache file: " + e.getMessage());
+            file.delete();
+            return;
+        } finally {
+            entry.content.release();
+        }
+        synchronized (this) {
+            DiskEntry old = disk.put(entry.key, new DiskEntry(file, size, entry.staleUntil));
+            if (old != null) diskBytes -= old.size();
+            diskBytes += size;
+            Iterator<Map.Entry<String, DiskEntry>> it = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && it.hasNext()) {
+                DiskEntry victim = it.next().getValue();
+                it.remove();
+                diskBytes -= victim.size();
+                // 文件名由 key 决定, 同名的只可能是刚写入的条目自己, 同样要删掉
+                victim.file().delete();
+            }
+        }
+    }
+
+    /**
+     * 从磁盘读回条目并放回内存层, 失败或已过期时返回 null
+     */
+    private CachedResponse readFromDisk(String key, DiskEntry diskEntry) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(diskEntry.file())))) {
+            HttpResponseStatus status = HttpResponseStatus.valueOf(in.readInt());
+            HttpHeaders headers = new DefaultHttpHeaders();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) headers.add(in.readUTF(), in.readUTF());
+            long storedAt = in.readLong();
+            long freshUntil = in.readLong();
+            long staleUntil = in.readLong();
+            boolean anonymousOnly = in.readBoolean();
+            int size = in.readInt();
+            if (staleUntil <= System.currentTimeMillis()) return null;
+            byte[] bytes = new byte[size];
+            in.readFully(bytes);
+            ByteBuf content = ByteBufAllocator.DEFAULT.directBuffer(size).writeBytes(bytes);
+            CachedResponse entry = new CachedResponse(key, status, headers, content, List.of(), "",
+                    anonymousOnly, storedAt, freshUntil, staleUntil);
+            insert(entry);
+            return entry;
+        } catch (IOException e) {
+            synchronized (this) {
+                removeDisk(key, diskEntry);
+            }
+            return null;
+        }
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void markPass(String key) {
+        if (passUntil.size() > MAX_PASS_KEYS) passUntil.clear();
+        passUntil.put(key, System.currentTimeMillis() + PASS_TTL_MS);
+    }
+
+    /**
+     * 合并后的一次后端请求, 完整收下响应 (不超过 maxEntryBytes) 后判断能否缓存
+     */
+    private final class Fetch implements BackendExchange {
+        private final String key;
+        private final FullHttpRequest request;
+        private final EventLoop loop;
+        private final CompletableFuture<FetchResult> result;
+        private BackendServer server;
+        private Channel channel;
+        private ScheduledFuture<?> timeout;
+        private HttpResponse head;
+        private ByteBuf body;
+        private long start;
+        private long firstByteNanos = -1;
+        private boolean reusable = true;
+        private boolean done = false;
+
+        Fetch(String key, FullHttpRequest request, EventLoop loop, CompletableFuture<FetchResult> result) {
+            this.key = key;
+            this.request = request;
+            this.loop = loop;
+            this.result = result;
+        }
+
+        void start() {
+            fetches.increment();
+            server = proxy.selectBestServer(null);
+            if (server == null) {
+                done = true;
+                result.completeExceptionally(new IllegalStateException("No backend server available"));
+                return;
+            }
+            server.onStart();
+            start = System.nanoTime();
+            Future<Channel> acquire = server.pool.acquire(loop);
+            acquire.addListener(f -> {
+                if (!acquire.isSuccess()) {
+                    finish(null, false, false);
+                    return;
+                }
+                channel = acquire.getNow();
+                timeout = loop.schedule(() -> finish(null, false, false),
+                        ReverseProxyServer.RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                HttpProxyBackendHandler.of(channel).attach(this);
+                channel.writeAndFlush(request, channel.voidPromise());
+            });
+        }
+
+        @Override
+        public void onBackendRead(Object msg) {
+            try {
+                if (done) return;
+                if (msg instanceof HttpResponse response) {
+                    if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                        head = null;
+                    } else {
+                        head = response;
+                        firstByteNanos = System.nanoTime() - start;
+                        reusable = HttpUtil.isKeepAlive(response);
+                        if (HttpUtil.getContentLength(response, 0L) > maxEntryBytes) {
+                            finish(null, true, false);
+                            return;
+                        }
+                        body = channel.alloc().directBuffer();
+                    }
+                }
+                if (msg instanceof HttpContent content && head != null) {
+                    if (body.readableBytes() + content.content().readableBytes() > maxEntryBytes) {
+                        finish(null, true, false);
+                        return;
+                    }
+                    body.writeBytes(content.content());
+                }
+                if (msg instanceof LastHttpContent && head != null) {
+                    HttpHeaders headers = head.headers();
+                    HttpProxyFrontendHandler.stripHopByHop(headers);
+                    headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+                    headers.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+                    FullHttpResponse full = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, head.status(), body,
+                            headers, EmptyHttpHeaders.INSTANCE);
+                    body = null;
+                    finish(full, false, true);
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void onBackendReadComplete() { }
+
+        @Override
+        public void onBackendWritabilityChanged(boolean writable) { }
+
+        @Override
+        public void onBackendClosed() {
+            channel = null;
+            finish(null, false, false);
+        }
+
+        /**
+         * @param tooLarge 响应超过 maxEntryBytes, 这个键暂时不再尝试缓存
+         */
+        private void finish(FullHttpResponse response, boolean tooLarge, boolean complete) {
+            if (done) {
+                if (response != null) response.release();
+                return;
+            }
+            done = true;
+            if (timeout != null) timeout.cancel(false);
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+            if (channel != null) {
+                HttpProxyBackendHandler.detach(channel);
+                server.pool.release(channel, complete && reusable);
+            }
+            server.onEnd(firstByteNanos, System.nanoTime());
+            if (!tooLarge) {
+                server.recordResult(response != null && !BackendHealth.isUnavailable(response.status()), firstByteNanos);
+            }
+
+            if (response == null) {
+                if (tooLarge) markPass(key);
+                result.complete(null);
+                return;
+            }
+            CachedResponse entry = store(key, request, response);
+            if (entry != null) {
+                result.complete(new FetchResult(entry, null));
+            } else {
+                // 只有按头部策略 (Cache-Control, Set-Cookie, Vary 等) 不能缓存时才直通; 5xx 这类状态码下次仍然尝试合并
+                if (CACHEABLE_STATUS.contains(response.status().code())) markPass(key);
+                result.complete(new FetchResult(null, response));
+            }
+        }
+    }
+
+    // 统计数据
+    public long getHits() { return hits.sum(); }
+    public long getStaleHits() { return staleHits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getPasses() { return passes.sum(); }
+    public long getCoalesced() { return coalesced.sum(); }
+    public long getDiskHits() { return diskHits.sum(); }
+    public long getFetches() { return fetches.sum(); }
+    public synchronized long getMemoryBytes() { return memoryBytes; }
+    public synchronized long getDiskBytes() { return diskBytes; }
+}
@@ -0,0 +1,114 @@
+package Server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+
+import java.net.InetSocketAddress;
+
+/**
+ * TCP 透传模式下客户端一侧的处理器
+ * 连接建立后选择一个后端, 在同一个 event loop 上建立到后端的连接, 两边的数据直接转发;
+ * 对端写缓冲超过高水位 (不可写) 时关闭本端 autoRead, 恢复可写后再打开, 内存占用有上限
+ */
+public class ProxyFrontendHandler extends ChannelInboundHandlerAdapter {
+    private final ReverseProxyServer proxy;
+    private Channel outbound;
+    private BackendServer target;
+    // 连接后端的耗时, 作为这个连接的延迟样本; 连接失败时为 -1
+    private long connectNanos = -1;
+    private long connectStart;
+
+    public ProxyFrontendHandler(ReverseProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        Channel inbound = ctx.channel();
+        // 后端连上之前先不读客户端数据
+        inbound.config().setAutoRead(false);
+
+        // TCP 模式看不到 cookie, 粘性会话按客户端 IP 计算
+        String clientIp = ((InetSocketAddress) inbound.remoteAddress()).getAddress().getHostAddress();
+        BackendServer server = proxy.selectBestServer(clientIp);
+        if (server == null) {
+            inbound.close();
+            return;
+        }
+        target = server;
+        server.onStart();
+        connectStart = System.nanoTime();
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(inbound.eventLoop())
+                .channel(inbound.getClass())
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, ReverseProxyServer.waterMark())
+                .handler(new ProxyBackendHandler(inbound, server.stats));
+        ChannelFuture connectFuture = bootstrap.connect(target.host, target.port);
+        outbound = connectFuture.channel();
+        connectFuture.addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                connectNanos = System.nanoTime() - connectStart;
+                server.recordResult(true, connectNanos);
+                server.stats.recordConnect(connectNanos);
+                inbound.config().setAutoRead(true);
+            } else {
+                System.err.println("Error connecting to target server: " + future.cause().getMessage());
+                server.recordResult(false, -1);
+                inbound.close();
+            }
+        });
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof ByteBuf buf) target.stats.bytesOut.add(buf.readableBytes());
+        outbound.write(msg, outbound.voidPromise());
+        if (!outbound.isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // 一次读循环结束再 flush, 而不是每读一块就 flush 一次
+        outbound.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        // 客户端重新可写, 恢复读取后端
+        if (ctx.channel().isWritable() && outbound != null) {
+            outbound.config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (target != null) {
+            long now = System.nanoTime();
+            target.onEnd(connectNanos, now);
+            target.stats.recordExchange(connectNanos >= 0, -1, now - connectStart);
+            target = null;
+        }
+        if (outbound != null) closeOnFlush(outbound);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        closeOnFlush(ctx.channel());
+    }
+
+    /**
+     * 把已经写入的数据发完再关闭连接
+     */
+    static void closeOnFlush(Channel ch) {
+        if (ch.isActive()) {
+            ch.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package Server;
+
+import io.netty.handler.ssl.*;
+import io.netty.util.DomainWildcardMappingBuilder;
+import io.netty.util.Mapping;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.KeyManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * 代理的 TLS 终止
+ * 每个 PKCS12 keystore 建一个 SslContext, 按证书里的域名 (SAN 的 DNS 名, 没有时取 CN) 建立 SNI 映射,
+ * 客户端没有发 SNI 或者域名不匹配时使用第一个 keystore; 握手后转发给后端的仍是明文 HTTP/1.1.
+ * ALPN 只协商 http/1.1, 因为客户端一侧只有 HTTP/1.1 的编解码器;
+ * 会话缓存放大并延长有效期, 客户端重连时可以恢复会话, 省掉完整握手.
+ * 有 OpenSSL (netty-tcnative) 时优先使用, 否则使用 JDK 的实现
+ */
+public class ProxyTls {
+    private static final int SESSION_CACHE_SIZE = 20_000;
+    private static final int SESSION_TIMEOUT_SECONDS = 3_600;
+
+    private final Mapping<String, SslContext> mapping;
+    private final List<String> hostnames = new ArrayList<>();
+
+    /**
+     * @param keystores keystore 路径, 第一个作为默认证书
+     */
+    public ProxyTls(List<String> keystores, char[] password) throws IOException, GeneralSecurityException {
+        if (keystores.isEmpty()) throw new IllegalArgumentException("No keystore given for TLS");
+        DomainWildcardMappingBuilder<SslContext> builder = null;
+        for (String path : keystores) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(Paths.get(path))) {
+                keyStore.load(in, password);
+            }
+            SslContext context = newContext(keyStore, password);
+            if (builder == null) builder = new DomainWildcardMappingBuilder<>(context);
+            for (String name : certificateNames(keyStore)) {
+                builder.add(name, context);
+                hostnames.add(name + " -> " + path);
+            }
+        }
+        mapping = builder.build();
+    }
+
+    /**
+     * 放在客户端连接 pipeline 最前面的处理器, 读到 ClientHello 后按 SNI 换成对应的 SslHandler
+     */
+    public SniHandler newHandler() {
+        return new SniHandler(mapping);
+    }
+
+    public List<String> getHostnames() {
+        return hostnames;
+    }
+
+    private static SslContext newContext(KeyStore keyStore, char[] password)
+            throws GeneralSecurityException, IOException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        return SslContextBuilder.forServer(kmf)
+                .sslProvider(OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK)
+                .applicationProtocolConfig(new ApplicationProtocolConfig(
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_1_1))
+                .sessionCacheSize(SESSION_CACHE_SIZE)
+                .sessionTimeout(SESSION_TIMEOUT_SECONDS)
+                .build();
+    }
+
+    /**
+     * keystore 里所有私钥条目的证书域名
+     */
+    private static Set<String> certificateNames(KeyStore keyStore) throws GeneralSecurityException {
+        Set<String> names = new LinkedHashSet<>();
+        for (String alias : Collections.list(keyStore.aliases())) {
+            if (!keyStore.isKeyEntry(alias)) continue;
+            if (!(keyStore.getCertificate(alias) instanceof X509Certificate cert)) continue;
+            Collection<List<?>> altNames = cert.getSubjectAlternativeNames();
+            if (altNames != null) {
+                for (List<?> altName : altNames) {
+                    // 类型 2 是 dNSName
+                    if (Integer.valueOf(2).equals(altName.get(0))) {
+                        names.add(altName.get(1).toString().toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+            if (altNames == null || names.isEmpty()) {
+                try {
+                    for (Rdn rdn : new LdapName(cert.getSubjectX500Principal().getName()).getRdns()) {
+                        if (rdn.getType().equalsIgnoreCase("CN")) {
+                            names.add(rdn.getValue().toString().toLowerCase(Locale.ROOT));
+                        }
+                    }
+                } catch (InvalidNameException e) {
+                    System.err.println("Unparsable certificate subject in alias " + alias + ": " + e.getMessage());
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,37 @@
+package Server;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * 多方共同控制一个连接的 autoRead: 每一方用自己的位暂停读取, 所有位都清除后才恢复,
+ * 一方恢复时不会打断另一方的暂停 (例如带宽整形恢复读取时, 上传写盘的背压还没解除). 只在连接的 event loop 上调用
+ */
+final class ReadSuspension {
+    // 上传写盘的背压
+    static final int UPLOAD = 1;
+    // 带宽整形的读限速
+    static final int SHAPING = 1 << 1;
+    // 等待在其他线程完成的响应 (登录校验, 缩略图生成), 后面的请求要等它写出
+    static final int ASYNC_RESPONSE = 1 << 2;
+    // 上传的请求体已经收完, 等 UploadHandler 写出响应
+    static final int UPLOAD_RESPONSE = 1 << 3;
+
+    private static final AttributeKey<Integer> REASONS = AttributeKey.valueOf("readSuspension");
+
+    private ReadSuspension() { }
+
+    static void suspend(Channel channel, int reason) {
+        Integer reasons = channel.attr(REASONS).get();
+        int updated = (reasons == null ? 0 : reasons) | reason;
+        channel.attr(REASONS).set(updated);
+        channel.config().setAutoRead(false);
+    }
+
+    static void resume(Channel channel, int reason) {
+        Integer reasons = channel.attr(REASONS).get();
+        int updated = (reasons == null ? 0 : reasons) & ~reason;
+        channel.attr(REASONS).set(updated);
+        if (updated == 0) channel.config().setAutoRead(true);
+    }
+}
@@ -0,0 +1,215 @@
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * 仓库目录的文件索引与搜索结果缓存
+ * 目录列表和最近的查询结果都缓存在内存里, 由 WatchService 监听目录变化后整体失效
+ */
+public class RepoSearchService {
+    private static final int DEFAULT_CACHE_SIZE = 64;
+
+    /**
+     * 排序字段
+     */
+    public enum SortKey {
+        NAME, SIZE, MTIME;
+
+        public static SortKey parse(String value) {
+            if (value == null || value.isEmpty()) return NAME;
+            return switch (value.toLowerCase()) {
+                case "name" -> NAME;
+                case "size" -> SIZE;
+                case "mtime" -> MTIME;
+                default -> throw new IllegalArgumentException("Unknown sort key: " + value);
+            };
+        }
+    }
+
+    /**
+     * 仓库中的一个文件
+     */
+    public record FileEntry(String name, long size, long mtime) { }
+
+    private final File dir;
+    private final int cacheSize;
+    private final Map<String, List<FileEntry>> resultCache;
+    private volatile List<FileEntry> listing;
+    private long generation = 0;
+
+    private WatchService watchService;
+    private Thread watchThread;
+
+    public RepoSearchService(String dir) {
+        this(dir, DEFAULT_CACHE_SIZE);
+    }
+
+    public RepoSearchService(String dir, int cacheSize) {
+        this.dir = new File(dir);
+        this.cacheSize = cacheSize;
+        // accessOrder = true 的 LinkedHashMap 就是一个 LRU
+        this.resultCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<FileEntry>> eldest) {
+                return size() > RepoSearchService.this.cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 启动目录监听线程, 目录有任何变化都清空缓存
+     */
+    public void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            dir.toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Failed to watch " + dir + ": " + e.getMessage());
+            return;
+        }
+        watchThread = new Thread(this::watchLoop, "repo-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents();
+            invalidate();
+            if (!key.reset()) return;
+        }
+    }
+
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // 忽略关闭错误
+            }
+        }
+        if (watchThread != null) watchThread.interrupt();
+    }
+
+    /**
+     * 清空目录列表和所有查询结果
+     */
+    public synchronized void invalidate() {
+        listing = null;
+        resultCache.clear();
+        generation++;
+    }
+
+    public synchronized long getGeneration() { return generation; }
+
+    /**
+     * 返回目录下所有普通文件, 没有缓存时重新扫描
+     */
+    public List<FileEntry> listAll() {
+        List<FileEntry> current = listing;
+        if (current != null) return current;
+        synchronized (this) {
+            if (listing == null) {
+                File[] files = dir.listFiles();
+                List<FileEntry> entries = new ArrayList<>(files == null ? 0 : files.length);
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.isFile()) {
+                            entries.add(new FileEntry(file.getName(), file.length(), file.lastModified()));
+                        }
+                    }
+                }
+                listing = Collections.unmodifiableList(entries);
+            }
+            return listing;
+        }
+    }
+
+    /**
+     * 按文件名子串搜索并排序, 结果放进 LRU 缓存
+     * @param query 文件名需要包含的字符串, null 表示全部
+     * @param sort 排序字段
+     * @param descending 是否倒序
+     * @return 不可修改的有序结果
+     */
+    public List<FileEntry> search(String query, SortKey sort, boolean descending) {
+        String cacheKey = sort.name() + (descending ? ":d:" : ":a:") + (query == null ? "" : query);
+        long gen;
+        synchronized (this) {
+            List<FileEntry> cached = resultCache.get(cacheKey);
+            if (cached != null) return cached;
+            gen = generation;
+        }
+
+        List<FileEntry> matched = new ArrayList<>();
+        for (FileEntry entry : listAll()) {
+            if (query == null || entry.name().contains(query)) matched.add(entry);
+        }
+        matched.sort(comparator(sort, descending));
+        List<FileEntry> result = Collections.unmodifiableList(matched);
+
+        synchronized (this) {
+            // 计算期间目录发生变化时不缓存旧结果
+            if (gen == generation) resultCache.put(cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * 排序比较器, 文件名作为最后的比较条件, 保证顺序唯一, 游标才能稳定
+     */
+    public static Comparator<FileEntry> comparator(SortKey sort, boolean descending) {
+        Comparator<FileEntry> c = switch (sort) {
+            case NAME -> Comparator.comparing(FileEntry::name);
+            case SIZE -> Comparator.comparingLong(FileEntry::size).thenComparing(FileEntry::name);
+            case MTIME -> Comparator.comparingLong(FileEntry::mtime).thenComparing(FileEntry::name);
+        };
+        return descending ? c.reversed() : c;
+    }
+
+    /**
+     * 找到游标之后第一条结果的下标
+     * @param results 有序结果
+     * @param cursor 上一页最后一条记录
+     * @return 下一页的起始下标
+     */
+    public static int indexAfter(List<FileEntry> results, FileEntry cursor, SortKey sort, boolean descending) {
+        int pos = Collections.binarySearch(results, cursor, comparator(sort, descending));
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    /**
+     * 把一条记录编码成不透明游标 (size:mtime:name 的 base64url)
+     */
+    public static String encodeCursor(FileEntry entry) {
+        String raw = entry.size() + ":" + entry.mtime() + ":" + entry.name();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 解码游标, 格式不对时抛出 IllegalArgumentException
+     */
+    public static FileEntry decodeCursor(String cursor) {
+        String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        String[] parts = raw.split(":", 3);
+        if (parts.length != 3) throw new IllegalArgumentException("Malformed cursor");
+        try {
+            return new FileEntry(parts[2], Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package Server;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -8,6 +10,7 @@ import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
+import io.netty.handler.stream.ChunkedNioFile;
 
 import io.netty.util.CharsetUtil;
 import util.*;
@@ -17,9 +20,28 @@ import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 
 public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    private static final int API_SEARCH_DEFAULT_LIMIT = 50;
+    private static final int API_SEARCH_MAX_LIMIT = 1000;
+    // 不超过这个大小的下载一次读进内存整个写出, 更大的分块写出
+    private static final long DOWNLOAD_INLINE_MAX = 64 * 1024;
+
     private final HttpWebServer server;
+    // 当前请求的追踪, 由 RequestTimer 在请求头解码时创建
+    private Trace trace;
+    // 当前请求的响应在其他线程上生成; 这期间暂停读取, 已经解码出来的流水线请求放进 deferred 等它写出后再处理,
+    // 保证 keep-alive 连接上的响应按请求顺序返回. 两者只在 event loop 上访问
+    private boolean asyncPending = false;
+    private final ArrayDeque<Deferred> deferred = new ArrayDeque<>();
+
+    /**
+     * 推迟处理的请求和它的追踪 (channel 属性上的 Trace 已经换成后面的请求)
+     */
+    private record Deferred(FullHttpRequest request, Trace trace) { }
 
     public RequestHandler(HttpWebServer server) {
         this.server = server;
@@ -27,6 +49,52 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+        Trace current = ctx.channel().attr(Trace.KEY).get();
+        if (asyncPending) {
+            deferred.addLast(new Deferred(request.retain(), current));
+            return;
+        }
+        handle(ctx, request, current);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Deferred next;
+        while ((next = deferred.pollFirst()) != null) next.request().release();
+        super.channelInactive(ctx);
+    }
+
+    private void handle(ChannelHandlerContext ctx, FullHttpRequest request, Trace current) {
+        trace = current;
+        if (trace != null) {
+            trace.handlerNanos = System.nanoTime();
+            trace.add(Trace.Span.AGGREGATE, trace.handlerNanos - trace.headNanos);
+        }
+        String uri = request.uri();
+        String path = uri.contains("?") ? uri.substring(0, uri.indexOf('?')) : uri;
+        // 流式响应的路由自己负责写出和记录日志
+        if (path.equals("/api/search")) {
+            handleApiSearch(ctx, request);
+            return;
+        }
+        if (path.equals("/repo/zip")) {
+            handleZipDownload(ctx, request);
+            return;
+        }
+        if (path.equals("/repo")) {
+            handleDownload(ctx, request);
+            return;
+        }
+        if (path.startsWith("/thumb/")) {
+            handleThumbnail(ctx, request, path);
+            return;
+        }
+        if (path.equals("/login") && request.method().equals(HttpMethod.POST)) {
+            server.getTotalRequests().incrementAndGet();
+            handleLoginPost(ctx, request);
+            return;
+        }
+
         FullHttpResponse response = processRequest(request);
         ctx.writeAndFlush(response);
 
@@ -50,10 +118,11 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 case "/login" -> handleLogin(request);
                 case "/logout" -> handleLogout(request);
                 case "/search" -> handleSearch(request);
-                case "/repo" -> handleDownload(request);
                 case "/admin" -> handleAdmin(request);
                 case "/admin/shutdown" -> handleShutdown(request);
                 case "/admin/connections" -> handleConnectionsCount(request);
+                case "/admin/stats" -> handleStats(request);
+                case "/admin/traces" -> handleTraces(request);
                 default -> handleStaticFile(request);
             };
         } catch (Exception e) {
@@ -83,95 +152,94 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 HttpResponseStatus.OK,
                 Unpooled.copiedBuffer(String.valueOf(count), StandardCharsets.UTF_8)
         );
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, count);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
+    /**
+     * 供代理汇总集群统计的纯文本, 每行 "名称 值"; serviceTime 是 Histogram.encode 的结果, 可以跨进程合并
+     */
+    private FullHttpResponse handleStats(FullHttpRequest request) {
+        LoginVerifier verifier = server.getLoginVerifier();
+        ConnectionTimeouts.Counters timeouts = server.getTimeoutCloses();
+        TrafficShaper.Shared shaping = server.getShaping();
+        // 一次拼好再按 ASCII 写进正好大小的缓冲区, serviceTime 的桶很多时也只有一次扩容
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("requests ").append(server.getTotalRequests().get()).append('\n')
+          .append("activeUsers ").append(server.getActiveUsers().get()).append('\n')
+          .append("connections ").append(server.getOpenConnections().get()).append('\n')
+          .append("uptimeSeconds ").append((System.currentTimeMillis() - server.getStartTime().get()) / 1000).append('\n')
+          .append("loginVerifications ").append(verifier.getVerifications()).append('\n')
+          .append("loginFailures ").append(verifier.getFailures()).append('\n')
+          .append("loginRejected ").append(verifier.getRejectedBusy() + verifier.getRejectedThrottled()).append('\n')
+          .append("closedIdle ").append(timeouts.getIdle()).append('\n')
+          .append("closedHeaderTimeout ").append(timeouts.getHeader()).append('\n')
+          .append("closedBodyTimeout ").append(timeouts.getBody()).append('\n')
+          .append("closedWriteTimeout ").append(timeouts.getWrite()).append('\n')
+          .append("shapingDelayedWrites ").append(shaping.getDelayedWrites()).append('\n')
+          .append("shapingWriteDelayMs ").append(shaping.getWriteDelayMillis()).append('\n')
+          .append("shapingReadPauses ").append(shaping.getReadPauses()).append('\n')
+          .append("shapingReadDelayMs ").append(shaping.getReadDelayMillis()).append('\n')
+          .append("shapingInteractiveBytes ").append(shaping.getInteractiveBytes()).append('\n')
+          .append("shapingBulkBytes ").append(shaping.getBulkBytes()).append('\n')
+          .append("serviceTime ");
+        server.getServiceTime().appendEncoded(sb);
+        sb.append('\n');
+        ByteBuf content = Unpooled.buffer(sb.length());
+        ByteBufUtil.writeAscii(content, sb);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
+    /**
+     * 最近保存的请求追踪, 新的在前; 参数 id (只看一个请求), minMs (总耗时下限), limit (默认 100). 需要管理员登录
+     */
+    private FullHttpResponse handleTraces(FullHttpRequest request) {
+        String sessionId = getCookieValue(request, "sessionId");
+        Session session = sessionId != null ? server.getSessions().get(sessionId) : null;
+        if (session == null || !session.getUsername().equals("admin")) {
+            return jsonError(HttpResponseStatus.FORBIDDEN, "Admin access required");
+        }
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        double minMillis;
+        int limit;
+        try {
+            String minParam = firstParam(decoder, "minMs");
+            String limitParam = firstParam(decoder, "limit");
+            minMillis = minParam == null ? 0 : Double.parseDouble(minParam);
+            limit = limitParam == null ? 100 : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            return jsonError(HttpResponseStatus.BAD_REQUEST, "Invalid minMs or limit");
+        }
+        String content = server.getTracer().toJson(firstParam(decoder, "id"), minMillis, limit);
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         return response;
     }
 
     /**
-     * 处理登录请求
+     * 把从 since 开始的耗时记到当前请求的追踪上
+     */
+    private void span(Trace.Span span, long since) {
+        if (trace != null) trace.since(span, since);
+    }
+
+    /**
+     * 处理登录请求, POST 由 handleLoginPost 异步处理, 这里只处理其他方法
      */
     private FullHttpResponse handleLogin(FullHttpRequest request) {
         FullHttpResponse response;
         if (request.method().equals(HttpMethod.GET)) {
             request.setUri("/login.html");
             response = handleStaticFile(request);
-        } else if (request.method().equals(HttpMethod.POST)) {
-            Map<String, String> params = parseFormData(request.content().toString(CharsetUtil.UTF_8));
-            String username = params.get("username");
-            String password = params.get("password");
-
-            if (username != null && password != null) {
-                User user = server.getUsers().get(username);
-                if (user != null && user.password().equals(password)) {
-                    // Create session
-                    String sessionId = generateSessionId();
-                    Session session = new Session(sessionId, username);
-                    server.getSessions().put(sessionId, session);
-
-                    try {
-                        File file = new File("static/login_success.html");
-                        String content = new String(Files.readAllBytes(file.toPath()));
-                        content = content.replace("{{ username }}", user.name());
-
-                        response = new DefaultFullHttpResponse(
-                                HttpVersion.HTTP_1_1,
-                                HttpResponseStatus.OK,
-                                Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
-                        );
-                        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-                        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
-
-                        Cookie cookie = new DefaultCookie("sessionId", sessionId);
-                        cookie.setHttpOnly(true);
-                        cookie.setPath("/");
-                        cookie.setMaxAge(3600);
-                        String encodedCookie = ServerCookieEncoder.LAX.encode(cookie);
-                        response.headers().add(HttpHeaderNames.SET_COOKIE, encodedCookie);
-
-                        server.getActiveUsers().incrementAndGet();
-                    } catch (IOException e) {
-                        String content = errorHTMLPage(
-                                500,
-                                "Internal Server Error",
-                                "Error reading login success page: " + e.getMessage()
-                        );
-                        response = new DefaultFullHttpResponse(
-                                HttpVersion.HTTP_1_1,
-                                HttpResponseStatus.INTERNAL_SERVER_ERROR,
-                                Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
-                        );
-                        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-                        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
-                    }
-                } else {
-                    String content = errorHTMLPage(
-                            401,
-                            "Unauthorized",
-                            "Invalid credentials, please try again."
-                    );
-                    response = new DefaultFullHttpResponse(
-                            HttpVersion.HTTP_1_1,
-                            HttpResponseStatus.UNAUTHORIZED,
-                            Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
-                    );
-                    response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-                    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
-                }
-            } else {
-                String content = errorHTMLPage(
-                        400,
-                        "Bad Request",
-                        "Username and password are required."
-                );
-                response = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1,
-                        HttpResponseStatus.BAD_REQUEST,
-                        Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
-                );
-                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
-            }
         } else {
             String content = errorHTMLPage(
                     400,
@@ -189,6 +257,106 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         return response;
     }
 
+    /**
+     * 处理登录表单提交, 密码校验交给 LoginVerifier 的线程池, 完成后再写回响应
+     */
+    private void handleLoginPost(ChannelHandlerContext ctx, FullHttpRequest request) {
+        InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        Map<String, String> params = parseFormData(request.content().toString(CharsetUtil.UTF_8));
+        String username = params.get("username");
+        String password = params.get("password");
+
+        if (username == null || password == null) {
+            String content = errorHTMLPage(
+                    400,
+                    "Bad Request",
+                    "Username and password are required."
+            );
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.BAD_REQUEST,
+                    Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
+            );
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            writeAsyncResponse(ctx, request, clientAddress, response);
+            return;
+        }
+
+        beginAsync(ctx);
+        server.getLoginVerifier().verify(username, password).thenAccept(result -> {
+            FullHttpResponse response = switch (result.status()) {
+                case OK -> loginSuccess(result.user());
+                case INVALID -> errorResponse(HttpResponseStatus.UNAUTHORIZED, "Unauthorized",
+                        "Invalid credentials, please try again.");
+                case THROTTLED -> errorResponse(HttpResponseStatus.TOO_MANY_REQUESTS, "Too Many Requests",
+                        "Too many concurrent login attempts, please try again.");
+                case BUSY -> errorResponse(HttpResponseStatus.SERVICE_UNAVAILABLE, "Service Unavailable",
+                        "Server is busy, please try again.");
+            };
+            if (result.status() == LoginVerifier.Status.THROTTLED || result.status() == LoginVerifier.Status.BUSY) {
+                response.headers().set(HttpHeaderNames.RETRY_AFTER, 1);
+            }
+            writeAsyncResponse(ctx, request, clientAddress, response);
+        });
+    }
+
+    /**
+     * 登录成功, 创建 session 并返回欢迎页面
+     */
+    private FullHttpResponse loginSuccess(User user) {
+        FullHttpResponse response;
+        String sessionId = generateSessionId();
+        Session session = new Session(sessionId, user.username());
+        server.putSession(session);
+
+        try {
+            File file = new File("static/login_success.html");
+            long readStart = System.nanoTime();
+            String content = new String(Files.readAllBytes(file.toPath()));
+            long renderStart = System.nanoTime();
+            span(Trace.Span.FILE, readStart);
+            content = content.replace("{{ username }}", user.name());
+            span(Trace.Span.RENDER, renderStart);
+
+            response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
+            );
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+
+            Cookie cookie = new DefaultCookie("sessionId", sessionId);
+            cookie.setHttpOnly(true);
+            cookie.setPath("/");
+            cookie.setMaxAge(3600);
+            String encodedCookie = ServerCookieEncoder.LAX.encode(cookie);
+            response.headers().add(HttpHeaderNames.SET_COOKIE, encodedCookie);
+
+            server.getActiveUsers().incrementAndGet();
+        } catch (IOException e) {
+            response = errorResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR, "Internal Server Error",
+                    "Error reading login success page: " + e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * 生成 HTML 错误页面的响应
+     */
+    private FullHttpResponse errorResponse(HttpResponseStatus status, String statusText, String message) {
+        String content = errorHTMLPage(status.code(), statusText, message);
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                status,
+                Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        return response;
+    }
+
     /**
      * 处理退出登录请求
      */
@@ -210,13 +378,17 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
             response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         } else {
-            User user = server.getUsers().get(server.getSessions().get(sessionId).getUsername());
-            server.getSessions().remove(sessionId);
+            User user = server.getUserStore().get(server.getSessions().get(sessionId).getUsername());
+            server.removeSession(sessionId);
 
             try {
                 File file = new File("static/logout_success.html");
+                long readStart = System.nanoTime();
                 String content = new String(Files.readAllBytes(file.toPath()));
+                long renderStart = System.nanoTime();
+                span(Trace.Span.FILE, readStart);
                 content = content.replace("{{ username }}", user.name());
+                span(Trace.Span.RENDER, renderStart);
 
                 response = new DefaultFullHttpResponse(
                         HttpVersion.HTTP_1_1,
@@ -277,25 +449,34 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         } else {
             try {
                 // 读取模板内容
+                long readStart = System.nanoTime();
                 String content = Files.readString(htmlFile.toPath(), StandardCharsets.UTF_8);
                 // 动态插入文件列表
                 File[] files = new File(HttpWebServer.RECOURSES_DIR).listFiles();
+                long renderStart = System.nanoTime();
+                span(Trace.Span.FILE, readStart);
                 StringBuilder fileListHtml = new StringBuilder();
                 if (files != null) {
                     int index = 0;
                     for (File file : files) {
                         if (query == null || file.getName().contains(query)) {
+                            // 文件名里可能有 ' # ? % 空格甚至标签, 缩略图路径按路径段编码, 所有输出都做 HTML 转义
+                            String name = escapeHtml(file.getName());
                             fileListHtml.append("<div class='file-item' style='animation-delay: ")
                                     .append(0.4 * index / files.length)
                                     .append("s;'>")
-                                    .append("<div>").append(file.getName()).append("</div>")
-                                    .append("<a href='/repo?").append(file.getName()).append("'>Download</a>")
+                                    .append(ThumbnailService.isSupported(file.getName())
+                                            ? "<img src='/thumb/" + escapeHtml(encodePathSegment(file.getName())) + "?w=256' loading='lazy' style='max-width: 100%;'>"
+                                            : "")
+                                    .append("<div>").append(name).append("</div>")
+                                    .append("<a href='/repo?").append(name).append("'>Download</a>")
                                     .append("</div>\n");
                             index++;
                         }
                     }
                 }
                 content = content.replace("{{fileList}}", fileListHtml.toString());
+                span(Trace.Span.RENDER, renderStart);
 
                 response = new DefaultFullHttpResponse(
                         HttpVersion.HTTP_1_1,
@@ -323,6 +504,244 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         return response;
     }
 
+    /**
+     * 处理 JSON 搜索接口 /api/search?q=&sort=name|size|mtime&order=asc|desc&limit=&cursor=
+     * 结果按游标分页, 用 HttpChunkedInput 分块写出
+     */
+    private void handleApiSearch(ChannelHandlerContext ctx, FullHttpRequest request) {
+        InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        server.getTotalRequests().incrementAndGet();
+
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        String query = firstParam(decoder, "q");
+        if (query != null && query.isEmpty()) query = null;
+        RepoSearchService.SortKey sort;
+        boolean descending;
+        int limit;
+        RepoSearchService.FileEntry cursor;
+        try {
+            sort = RepoSearchService.SortKey.parse(firstParam(decoder, "sort"));
+            String order = firstParam(decoder, "order");
+            if (order == null || order.equals("asc")) descending = false;
+            else if (order.equals("desc")) descending = true;
+            else throw new IllegalArgumentException("Unknown order: " + order);
+            String limitParam = firstParam(decoder, "limit");
+            limit = limitParam == null ? API_SEARCH_DEFAULT_LIMIT : Integer.parseInt(limitParam);
+            if (limit <= 0 || limit > API_SEARCH_MAX_LIMIT) {
+                throw new IllegalArgumentException("limit must be between 1 and " + API_SEARCH_MAX_LIMIT);
+            }
+            String cursorParam = firstParam(decoder, "cursor");
+            cursor = cursorParam == null ? null : RepoSearchService.decodeCursor(cursorParam);
+        } catch (IllegalArgumentException e) {
+            FullHttpResponse response = jsonError(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+            server.getLogger().log(request, response, clientAddress.getAddress());
+            ctx.writeAndFlush(response);
+            return;
+        }
+
+        List<RepoSearchService.FileEntry> results = server.getRepoSearch().search(query, sort, descending);
+        int from = cursor == null ? 0 : RepoSearchService.indexAfter(results, cursor, sort, descending);
+        int to = Math.min(from + limit, results.size());
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.SERVER, "Netty HTTP Server");
+        response.headers().set(HttpHeaderNames.DATE, new Date());
+        HttpUtil.setTransferEncodingChunked(response, true);
+        HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(request));
+
+        SearchResultInput input = new SearchResultInput(results, from, to, query, sort, descending);
+        ctx.write(response);
+        ctx.writeAndFlush(new HttpChunkedInput(input)).addListener(future -> {
+            server.getLogger().log(request, 200, input.progress(), clientAddress.getAddress());
+            if (!HttpUtil.isKeepAlive(request)) ctx.close();
+        });
+    }
+
+    /**
+     * 把多个仓库文件打包成一个 ZIP 流式下载
+     * /repo/zip?name=a.png&name=b.txt 指定文件, 或 /repo/zip?q=image 打包搜索结果
+     */
+    private void handleZipDownload(ChannelHandlerContext ctx, FullHttpRequest request) {
+        InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        server.getTotalRequests().incrementAndGet();
+
+        QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+        List<String> names = decoder.parameters().get("name");
+        String query = firstParam(decoder, "q");
+        RepoSearchService repoSearch = server.getRepoSearch();
+
+        List<RepoSearchService.FileEntry> entries;
+        String error = null;
+        HttpResponseStatus errorStatus = HttpResponseStatus.NOT_FOUND;
+        if (names != null && !names.isEmpty()) {
+            // 只接受仓库目录列表中存在的文件名, 防止路径穿越
+            Map<String, RepoSearchService.FileEntry> byName = new HashMap<>();
+            for (RepoSearchService.FileEntry entry : repoSearch.listAll()) byName.put(entry.name(), entry);
+            entries = new ArrayList<>(names.size());
+            Set<String> seen = new HashSet<>();
+            for (String name : names) {
+                RepoSearchService.FileEntry entry = byName.get(name);
+                if (entry == null) {
+                    error = "File not found: " + name;
+                    break;
+                }
+                if (seen.add(name)) entries.add(entry);
+            }
+        } else if (query != null) {
+            entries = repoSearch.search(query, RepoSearchService.SortKey.NAME, false);
+        } else {
+            entries = List.of();
+            error = "name or q parameter required";
+            errorStatus = HttpResponseStatus.BAD_REQUEST;
+        }
+        if (error == null && entries.isEmpty()) error = "No matching files";
+
+        if (error != null) {
+            FullHttpResponse response = jsonError(errorStatus, error);
+            server.getLogger().log(request, response, clientAddress.getAddress());
+            ctx.writeAndFlush(response);
+            return;
+        }
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, MimeType.ZIP.getMimeType());
+        response.headers().set(HttpHeaderNames.CONTENT_DISPOSITION, "attachment; filename=\"repo.zip\"");
+        response.headers().set(HttpHeaderNames.SERVER, "Netty HTTP Server");
+        response.headers().set(HttpHeaderNames.DATE, new Date());
+        HttpUtil.setTransferEncodingChunked(response, true);
+        HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(request));
+
+        ZipStreamInput input = new ZipStreamInput(new File(HttpWebServer.RECOURSES_DIR), entries);
+        ctx.write(response);
+        ctx.writeAndFlush(new HttpChunkedInput(input)).addListener(future -> {
+            server.getLogger().log(request, 200, input.progress(), clientAddress.getAddress());
+            if (!future.isSuccess() || !HttpUtil.isKeepAlive(request)) ctx.close();
+        });
+    }
+
+    /**
+     * 处理缩略图请求 /thumb/{name}?w=宽度, 生成在线程池里完成, 完成后再写回响应
+     */
+    private void handleThumbnail(ChannelHandlerContext ctx, FullHttpRequest request, String path) {
+        InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        server.getTotalRequests().incrementAndGet();
+
+        String name = URLDecoder.decode(path.substring("/thumb/".length()), StandardCharsets.UTF_8);
+        RepoSearchService.FileEntry source = null;
+        for (RepoSearchService.FileEntry entry : server.getRepoSearch().listAll()) {
+            if (entry.name().equals(name)) {
+                source = entry;
+                break;
+            }
+        }
+        int width;
+        try {
+            width = ThumbnailService.normalizeWidth(firstParam(new QueryStringDecoder(request.uri()), "w"));
+        } catch (NumberFormatException e) {
+            writeAsyncResponse(ctx, request, clientAddress,
+                    jsonError(HttpResponseStatus.BAD_REQUEST, "Invalid width"));
+            return;
+        }
+        if (source == null || !ThumbnailService.isSupported(name)) {
+            writeAsyncResponse(ctx, request, clientAddress,
+                    jsonError(HttpResponseStatus.NOT_FOUND, "Image not found: " + name));
+            return;
+        }
+
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        // 命中缓存时也在 ThumbnailService 的线程上读文件, 不在 event loop 上记 FILE
+        CompletableFuture<ThumbnailService.Thumbnail> future = server.getThumbnails().get(source, width);
+        beginAsync(ctx);
+        future.whenComplete((thumbnail, error) -> {
+            FullHttpResponse response;
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof RejectedExecutionException) {
+                    response = jsonError(HttpResponseStatus.SERVICE_UNAVAILABLE, "Thumbnail service busy");
+                    response.headers().set(HttpHeaderNames.RETRY_AFTER, 1);
+                } else {
+                    response = jsonError(HttpResponseStatus.INTERNAL_SERVER_ERROR, String.valueOf(cause.getMessage()));
+                }
+            } else if (("\"" + thumbnail.etag() + "\"").equals(ifNoneMatch)) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+                response.headers().set(HttpHeaderNames.ETAG, "\"" + thumbnail.etag() + "\"");
+            } else {
+                byte[] data = thumbnail.data();
+                response = new DefaultFullHttpResponse(
+                        HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.OK,
+                        Unpooled.wrappedBuffer(data)
+                );
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, thumbnail.mimeType().getMimeType());
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, data.length);
+                response.headers().set(HttpHeaderNames.ETAG, "\"" + thumbnail.etag() + "\"");
+                response.headers().set(HttpHeaderNames.CACHE_CONTROL, "public, max-age=86400");
+            }
+            HttpUtil.setKeepAlive(response, keepAlive);
+            writeAsyncResponse(ctx, request, clientAddress, response);
+        });
+    }
+
+    /**
+     * 响应要在其他线程上生成, 在 writeAsyncResponse 写出之前暂停读取并推迟后面的请求
+     */
+    private void beginAsync(ChannelHandlerContext ctx) {
+        asyncPending = true;
+        ReadSuspension.suspend(ctx.channel(), ReadSuspension.ASYNC_RESPONSE);
+    }
+
+    /**
+     * 在其他线程完成的请求写回响应并记录日志, 可以在任意线程调用; 写出后恢复读取并处理推迟的请求
+     */
+    private void writeAsyncResponse(ChannelHandlerContext ctx, HttpRequest request,
+                                        InetSocketAddress clientAddress, FullHttpResponse response) {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(() -> writeAsyncResponse(ctx, request, clientAddress, response));
+            return;
+        }
+        response.headers().set(HttpHeaderNames.SERVER, "Netty HTTP Server");
+        response.headers().set(HttpHeaderNames.DATE, new Date());
+        server.getLogger().log(request, response, clientAddress.getAddress());
+        ctx.writeAndFlush(response);
+        if (!asyncPending) return;
+        asyncPending = false;
+        ReadSuspension.resume(ctx.channel(), ReadSuspension.ASYNC_RESPONSE);
+        Deferred next;
+        while (!asyncPending && (next = deferred.pollFirst()) != null) {
+            try {
+                handle(ctx, next.request(), next.trace());
+            } catch (Exception e) {
+                ctx.fireExceptionCaught(e);
+            } finally {
+                next.request().release();
+            }
+        }
+    }
+
+    private static String firstParam(QueryStringDecoder decoder, String name) {
+        List<String> values = decoder.parameters().get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * 生成 JSON 格式的错误响应, 给 /api 下的接口使用
+     */
+    static FullHttpResponse jsonError(HttpResponseStatus status, String message) {
+        String content = "{\"error\":" + Json.quote(message) + "}";
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                status,
+                Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        response.headers().set(HttpHeaderNames.SERVER, "Netty HTTP Server");
+        response.headers().set(HttpHeaderNames.DATE, new Date());
+        return response;
+    }
+
     /**
      * 从请求路径中提取查询参数 ?q=search
      */
@@ -337,54 +756,78 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
     }
 
     /**
-     * 处理文件下载请求
+     * 处理文件下载请求 /repo?文件名
+     * 小文件整个读进内存写出; 大文件用 ChunkedNioFile 分块写出, 客户端读得慢时 ChunkedWriteHandler 按 channel 的可写性暂停,
+     * 开启带宽整形时同样受整形的可写性控制, 占用的内存有上限
      */
-    private FullHttpResponse handleDownload(FullHttpRequest request) {
-        FullHttpResponse response;
+    private void handleDownload(ChannelHandlerContext ctx, FullHttpRequest request) {
+        InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        server.getTotalRequests().incrementAndGet();
         String path = request.uri();
         String filename = path.substring("/repo/".length());
         File file = new File(HttpWebServer.RECOURSES_DIR, filename);
 
+        ChunkedNioFile input = null;
+        byte[] inline = null;
+        String content = null;
+        HttpResponseStatus status = HttpResponseStatus.NOT_FOUND;
         if (!file.exists() || file.isDirectory()) {
-            String content = errorHTMLPage(
-                    404,
-                    "Not Found",
-                    "Page Not Found"
-            );
-            response = new DefaultFullHttpResponse(
-                    HttpVersion.HTTP_1_1,
-                    HttpResponseStatus.NOT_FOUND,
-                    Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
-            );
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            content = errorHTMLPage(404, "Not Found", "Page Not Found");
         } else {
             try {
-                byte[] fileContent = Files.readAllBytes(file.toPath());
+                long readStart = System.nanoTime();
+                if (file.length() <= DOWNLOAD_INLINE_MAX) {
+                    inline = Files.readAllBytes(file.toPath());
+                } else {
+                    input = new ChunkedNioFile(file);
+                }
+                span(Trace.Span.FILE, readStart);
+            } catch (IOException e) {
+                status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+                content = errorHTMLPage(500, "Internal Server Error", "Internal Server Error" + e.getMessage());
+            }
+        }
+        if (input == null) {
+            FullHttpResponse response;
+            if (inline != null) {
                 response = new DefaultFullHttpResponse(
                         HttpVersion.HTTP_1_1,
                         HttpResponseStatus.OK,
-                        Unpooled.wrappedBuffer(fileContent)
+                        Unpooled.wrappedBuffer(inline)
                 );
                 response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
-                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, fileContent.length);
                 response.headers().set(HttpHeaderNames.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
-            } catch (IOException e) {
-                String content = errorHTMLPage(
-                        500,
-                        "Internal Server Error",
-                        "Internal Server Error" + e.getMessage()
-                );
+            } else {
                 response = new DefaultFullHttpResponse(
                         HttpVersion.HTTP_1_1,
-                        HttpResponseStatus.INTERNAL_SERVER_ERROR,
+                        status,
                         Unpooled.copiedBuffer(content, StandardCharsets.UTF_8)
                 );
                 response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
             }
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            response.headers().set(HttpHeaderNames.SERVER, "Netty HTTP Server");
+            response.headers().set(HttpHeaderNames.DATE, new Date());
+            server.getLogger().log(request, response, clientAddress.getAddress());
+            ctx.writeAndFlush(response);
+            return;
         }
-        return response;
+
+        long length = file.length();
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, length);
+        response.headers().set(HttpHeaderNames.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+        response.headers().set(HttpHeaderNames.SERVER, "Netty HTTP Server");
+        response.headers().set(HttpHeaderNames.DATE, new Date());
+        HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(request));
+
+        ChunkedNioFile chunks = input;
+        ctx.write(response);
+        ctx.writeAndFlush(new HttpChunkedInput(chunks)).addListener(future -> {
+            server.getLogger().log(request, 200, chunks.progress(), clientAddress.getAddress());
+            if (!future.isSuccess() || !HttpUtil.isKeepAlive(request)) ctx.close();
+        });
     }
 
     /**
@@ -413,7 +856,10 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 // 读取 admin.html 文件
                 File adminFile = new File("static/admin.html");
                 if (adminFile.exists() && adminFile.isFile()) {
+                    long readStart = System.nanoTime();
                     String content = new String(Files.readAllBytes(adminFile.toPath()));
+                    long renderStart = System.nanoTime();
+                    span(Trace.Span.FILE, readStart);
 
                     // 获取服务器数据
                     long activeUsers = server.getActiveUsers().get();
@@ -427,6 +873,25 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                     content = content.replace("{{ startTime }}", new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date(startTime)));
                     content = content.replace("{{ uptime }}", String.valueOf(uptime));
 
+                    LoginVerifier verifier = server.getLoginVerifier();
+                    content = content.replace("{{ loginVerifications }}", String.valueOf(verifier.getVerifications()));
+                    content = content.replace("{{ loginFailures }}", String.valueOf(verifier.getFailures()));
+                    content = content.replace("{{ loginCacheHits }}", String.valueOf(verifier.getCacheHits()));
+                    content = content.replace("{{ loginBusy }}", String.valueOf(verifier.getRejectedBusy()));
+                    content = content.replace("{{ loginThrottled }}", String.valueOf(verifier.getRejectedThrottled()));
+                    content = content.replace("{{ loginQueueDepth }}", String.valueOf(verifier.getQueueDepth()));
+                    content = content.replace("{{ loginAvgQueue }}", String.format("%.2f", verifier.getAvgQueueMillis()));
+                    content = content.replace("{{ loginMaxQueue }}", String.format("%.2f", verifier.getMaxQueueMillis()));
+                    content = content.replace("{{ loginAvgVerify }}", String.format("%.2f", verifier.getAvgVerifyMillis()));
+                    content = content.replace("{{ loginMaxVerify }}", String.format("%.2f", verifier.getMaxVerifyMillis()));
+
+                    String configError = Settings.getLastError();
+                    content = content.replace("{{ configFile }}", escapeHtml(Settings.describeFile()));
+                    content = content.replace("{{ configLoadedAt }}", new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date(Settings.getLoadedAt())));
+                    content = content.replace("{{ configError }}", configError == null ? "" : "<p>Last reload failed: " + escapeHtml(configError) + "</p>");
+                    content = content.replace("{{ configRows }}", configRows());
+                    span(Trace.Span.RENDER, renderStart);
+
                     response = new DefaultFullHttpResponse(
                             HttpVersion.HTTP_1_1,
                             HttpResponseStatus.OK,
@@ -466,6 +931,34 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
         return response;
     }
 
+    /**
+     * 管理页面上生效配置的表格行
+     */
+    private static String configRows() {
+        StringBuilder sb = new StringBuilder();
+        for (Settings.Entry entry : Settings.describe("server.")) {
+            sb.append("<tr><td title=\"").append(escapeHtml(entry.description())).append("\">")
+              .append(escapeHtml(entry.name())).append("</td><td>")
+              .append(escapeHtml(entry.value()));
+            if (entry.pending() != null) sb.append(" (restart to apply ").append(escapeHtml(entry.pending())).append(')');
+            sb.append("</td><td>").append(entry.source().name().toLowerCase(Locale.ROOT))
+              .append("</td><td>").append(entry.reloadable() ? "yes" : "no").append("</td></tr>\n");
+        }
+        return sb.toString();
+    }
+
+    private static String escapeHtml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&#39;");
+    }
+
+    /**
+     * 按 URL 路径段编码, 空格编码成 %20 (URLDecoder 会把路径里的 + 解码成空格)
+     */
+    private static String encodePathSegment(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
     /**
      * 处理关闭服务器请求
      */
@@ -488,18 +981,12 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
             response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         } else {
-            // 防止重复关闭服务器
-            if (!server.getShuttingDown().get()) {
+            // 防止重复关闭服务器; 排空会等这个响应和其他在途请求写完, 不需要固定等待
+            if (server.getShuttingDown().compareAndSet(false, true)) {
                 new Thread(() -> {
-                    try {
-                        Thread.sleep(5000);
-                        server.stop();
-                        System.exit(0);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }).start();
-                server.getShuttingDown().set(true);
+                    server.stop();
+                    System.exit(0);
+                }, "server-shutdown").start();
             }
             String content = "<!DOCTYPE html>" +
                     "<html><head><title>Shutdown</title>" +
@@ -507,7 +994,7 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                     "</head><body class='error-page'>" +
                     "<div class='error-container'>" +
                     "<h1>"+ "Shutting Down" + "</h1>" +
-                    "<div class='error-details'>" + "The server will shutdown in 5 seconds..." + "</div>" +
+                    "<div class='error-details'>" + "The server is finishing in-flight requests and will shut down shortly..." + "</div>" +
                     "</div></body></html>";
             response = new DefaultFullHttpResponse(
                     HttpVersion.HTTP_1_1,
@@ -552,7 +1039,10 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
             response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         } else {
             try {
+                long readStart = System.nanoTime();
                 byte[] byteContent = java.nio.file.Files.readAllBytes(file.toPath());
+                long renderStart = System.nanoTime();
+                span(Trace.Span.FILE, readStart);
                 String mimeType = getMimeType(file.getName());
 
                 String content = new String(byteContent, StandardCharsets.UTF_8);
@@ -566,6 +1056,7 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
                 Session session = sessionId != null ? server.getSessions().get(sessionId) : null;
                 boolean isAdmin = session != null && "admin".equals(session.getUsername());
                 if (!isAdmin) content = content.replace("<a href='/admin'>Admin</a>", "");
+                span(Trace.Span.RENDER, renderStart);
 
                 response = new DefaultFullHttpResponse(
                         HttpVersion.HTTP_1_1,
@@ -598,7 +1089,7 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
      * @param body 请求体, 来自 POST 请求 (登录和搜索)
      * @return 解析好的参数键值对
      */
-    private Map<String, String> parseFormData(String body) {
+    static Map<String, String> parseFormData(String body) {
         Map<String, String> params = new HashMap<>();
         if (body != null && !body.isEmpty()) {
             String[] pairs = body.split("&");
@@ -620,7 +1111,7 @@ public class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest>
      * @param cookieName 需要的 cookie 名称
      * @return cookie 的值
      */
-    private String getCookieValue(FullHttpRequest request, String cookieName) {
+    static String getCookieValue(HttpRequest request, String cookieName) {
         String cookieHeader = request.headers().get(HttpHeaderNames.COOKIE);
         if (cookieHeader != null) {
             Set<Cookie> cookies = ServerCookieDecoder.STRICT.decode(cookieHeader);
@@ -1,13 +1,14 @@
 package Server;
 
-import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class RequestLogger {
     private PrintWriter logWriter;
@@ -22,15 +23,29 @@ public class RequestLogger {
         }
     }
     
-    public synchronized void log(FullHttpRequest request, FullHttpResponse response, InetAddress clientAddress) {
+    public void log(HttpRequest request, FullHttpResponse response, InetAddress clientAddress) {
+        log(request, response.status().code(), response.content().readableBytes(), clientAddress);
+    }
+
+    /**
+     * 流式响应没有完整的 FullHttpResponse, 直接传状态码和写出的字节数
+     * 成功的响应按 server.accessLog.sampleRate 抽样记录, 4xx/5xx 总是记录
+     */
+    public void log(HttpRequest request, int status, long size, InetAddress clientAddress) {
+        double sampleRate = Settings.SERVER_ACCESS_LOG_SAMPLE_RATE.get();
+        if (status < 400 && sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) return;
+        write(request, status, size, clientAddress);
+    }
+
+    private synchronized void write(HttpRequest request, int status, long size, InetAddress clientAddress) {
         if (logWriter != null) {
             // Common Log Format: IP - - [timestamp] "method path version" status size
             String logEntry = String.format("%s - - [%s] \"%s\" %d %d",
                 clientAddress.getHostAddress(),
                 dateFormat.format(new Date()),
                 request.method().name() + " " + request.uri() + " " + request.protocolVersion(),
-                response.status().code(),
-                response.content().readableBytes()
+                status,
+                size
             );
             
             logWriter.println(logEntry);
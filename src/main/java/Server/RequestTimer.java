@@ -0,0 +1,124 @@
+package Server;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+import java.util.ArrayDeque;
+
+/**
+ * 后端服务器的连接数, 请求处理耗时和请求追踪, 紧跟在 HttpServerCodec 后面
+ * 收到请求头时记下时间并开始 Trace, 写出响应的 LastHttpContent 时记入 HttpWebServer 的 serviceTime (微秒);
+ * 最后一个字节交给 socket 后结束 Trace. 流水线上的请求按顺序响应, 用队列对应; 1xx 响应不结束请求.
+ * 当前请求的 Trace 放在 channel 属性 Trace.KEY 上, RequestHandler 从这里取
+ */
+public class RequestTimer extends ChannelDuplexHandler {
+    private final HttpWebServer server;
+    private final Tracer tracer;
+    private final ArrayDeque<Trace> traces = new ArrayDeque<>();
+    private boolean informational = false;
+    // 正在读请求体, 这时读到的字节不是下一个请求的开始
+    private boolean reading = false;
+    // 下一个请求的第一个字节到达的时间, 0 表示还没有
+    private long firstByteNanos = 0;
+    private long activeNanos;
+    // TLS 握手的耗时, 记到连接上的第一个请求后清零
+    private long tlsNanos = 0;
+
+    public RequestTimer(HttpWebServer server) {
+        this.server = server;
+        this.tracer = server.getTracer();
+    }
+
+    /**
+     * 放在 HttpServerCodec 前面, 记录每个请求第一个字节到达的时间, 算出请求头的解码耗时
+     */
+    public ChannelHandler byteWatcher() {
+        return new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                if (!reading && firstByteNanos == 0) firstByteNanos = System.nanoTime();
+                ctx.fireChannelRead(msg);
+            }
+        };
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        server.getOpenConnections().incrementAndGet();
+        activeNanos = System.nanoTime();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof SslHandshakeCompletionEvent) tlsNanos = System.nanoTime() - activeNanos;
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        server.getOpenConnections().decrementAndGet();
+        // 没有写完响应的请求也保存, 慢到客户端放弃的请求正是要找的
+        long now = System.nanoTime();
+        Trace trace;
+        while ((trace = traces.pollFirst()) != null) tracer.finish(trace, trace.status, now);
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest request) {
+            long now = System.nanoTime();
+            long start = firstByteNanos != 0 ? firstByteNanos : now;
+            Trace trace = tracer.start(request, start);
+            trace.headNanos = now;
+            trace.add(Trace.Span.DECODE, now - start);
+            trace.add(Trace.Span.TLS, tlsNanos);
+            tlsNanos = 0;
+            traces.addLast(trace);
+            ctx.channel().attr(Trace.KEY).set(trace);
+            firstByteNanos = 0;
+            reading = true;
+        }
+        if (msg instanceof LastHttpContent) reading = false;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof HttpResponse response) {
+            informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+            Trace trace = informational ? null : traces.peekFirst();
+            if (trace != null) {
+                trace.status = response.status().code();
+                trace.responseNanos = System.nanoTime();
+                if (trace.handlerNanos != 0) trace.add(Trace.Span.HANDLER, trace.responseNanos - trace.handlerNanos);
+                response.headers().set(Tracer.X_TRACE_ID, trace.idString());
+            }
+        }
+        if (msg instanceof LastHttpContent) {
+            Trace trace = informational ? null : traces.pollFirst();
+            informational = false;
+            if (trace != null) {
+                server.getServiceTime().record(BackendStats.micros(System.nanoTime() - trace.headNanos));
+                ChannelPromise unvoid = promise.unvoid();
+                unvoid.addListener(f -> {
+                    long now = System.nanoTime();
+                    trace.add(Trace.Span.WRITE, now - trace.responseNanos);
+                    tracer.finish(trace, f.isSuccess() ? trace.status : 0, now);
+                });
+                ctx.write(msg, unvoid);
+                return;
+            }
+        }
+        ctx.write(msg, promise);
+    }
+}
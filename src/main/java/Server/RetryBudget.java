@@ -0,0 +1,55 @@
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 重试预算: 每个请求存入 ratio 个重试额度, 每次重试取出 1 个
+ * 另外每秒保底 minPerSecond 次, 流量很小时也能重试;
+ * 后端整体出问题时重试量最多是正常流量的 ratio 倍, 不会因为重试把后端彻底压垮
+ */
+public class RetryBudget {
+    // 额度以千分之一为单位保存, 用整数做原子操作
+    private static final long UNIT = 1000;
+
+    private final long depositPerRequest;
+    private final long maxBalance;
+    private final int minPerSecond;
+    private final AtomicLong balance = new AtomicLong();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong windowUsed = new AtomicLong();
+
+    public RetryBudget(double ratio, int minPerSecond, int maxRetries) {
+        this.depositPerRequest = (long) (ratio * UNIT);
+        this.minPerSecond = minPerSecond;
+        this.maxBalance = maxRetries * UNIT;
+    }
+
+    public void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) return;
+        } while (!balance.compareAndSet(current, Math.min(maxBalance, current + depositPerRequest)));
+    }
+
+    /**
+     * @return 可以重试时返回 true, 同时扣除一次额度
+     */
+    public boolean tryWithdraw() {
+        long current;
+        while ((current = balance.get()) >= UNIT) {
+            if (balance.compareAndSet(current, current - UNIT)) return true;
+        }
+        // 额度不够时使用每秒的保底次数
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= 1_000_000_000L && windowStart.compareAndSet(start, now)) {
+            windowUsed.set(0);
+        }
+        return windowUsed.incrementAndGet() <= minPerSecond;
+    }
+
+    public double getBalance() {
+        return (double) balance.get() / UNIT;
+    }
+}
@@ -1,184 +1,502 @@
 package Server;
 
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.*;
-import java.util.regex.*;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 public class ReverseProxyServer {
-    private static final String TARGET_HOST = "localhost";
-    private static final int THREAD_POOL_SIZE = 50;
+    static final String TARGET_HOST = "localhost";
+    // HTTP 模式下每个 event loop 到每个后端的连接池参数
+    private static final int POOL_MIN_IDLE = 1;
+    private static final int POOL_MAX_CONNECTIONS = 64;
+    private static final long POOL_IDLE_TIMEOUT_MS = 60_000;
+    private static final long POOL_ACQUIRE_TIMEOUT_MS = 5_000;
+    // 健康检查和被动剔除参数
+    private static final long HEALTH_CHECK_INTERVAL_MS = 2_000;
+    private static final long HEALTH_CHECK_TIMEOUT_MS = 1_000;
+    private static final int MAX_EJECTION_PERCENT = 50;
+    // 后端在发出响应头之前的最长等待时间
+    static final long RESPONSE_TIMEOUT_MS = 30_000;
+    // 幂等请求的重试预算: 重试量不超过请求量的 20%, 每秒至少允许 5 次
+    private static final double RETRY_BUDGET_RATIO = 0.2;
+    private static final int RETRY_MIN_PER_SECOND = 5;
+    private static final int RETRY_MAX_BALANCE = 100;
+    // 传输和监听参数需要重启才生效, 其余的准入, 限流和缓存参数可以热加载 (见 Settings 里的 proxy.*)
+    private static final boolean EPOLL = Epoll.isAvailable() && Settings.PROXY_EPOLL.get();
+    // HTTP 模式下的代理缓存, 用 proxy.cache=true 开启
+    private static final boolean CACHE = Settings.PROXY_CACHE.get();
+    private static final String CACHE_DIR = Settings.PROXY_CACHE_DIR.get();
+    // TLS 终止, 设置 proxy.tls.port 时在该端口额外监听 HTTPS (只用于 HTTP 模式)
+    private static final int TLS_PORT = Settings.PROXY_TLS_PORT.get();
+    private static final String TLS_KEYSTORES = Settings.PROXY_TLS_KEYSTORES.get();
+    // 管理接口 (后端的增删改), 只监听本机; 设为 0 关闭
+    private static final int ADMIN_PORT = Settings.PROXY_ADMIN_PORT.get();
+    // 后端列表配置文件, 没有设置时使用 proxy.backendList
+    private static final String BACKENDS_FILE = Settings.PROXY_BACKENDS.get();
+    // 删除后端时等待在途请求结束的最长时间
+    private static final long DRAIN_TIMEOUT_MS = 60_000;
+    // 准入控制: HTTP 模式下全局和每个后端的自适应并发上限 (全局上限的最大值是 proxy.maxConcurrency)
+    private static final int GLOBAL_LIMIT_INITIAL = 200;
+    private static final int GLOBAL_LIMIT_MIN = 20;
+    private static final int BACKEND_LIMIT_INITIAL = 50;
+    private static final int BACKEND_LIMIT_MIN = 4;
+    private static final int BACKEND_LIMIT_MAX = 1_000;
     private static int proxyPort = 4040;
-    private static final List<BackendServer> backendServers = new ArrayList<>();
+    private final BackendRegistry registry;
+    private BackendConfig backendConfig;
     
-    private ServerSocket proxySocket;
-    private final ExecutorService threadPool;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel serverChannel;
+    private Channel tlsChannel;
+    private Channel adminChannel;
     private volatile boolean running = false;
-    private final ScheduledExecutorService monitorExecutor;
-    private static class BackendServer {
-        final int port;
-        int activeConnections;
+    private HealthChecker healthChecker;
+    // 可以接收流量的后端, 健康状态变化时整体替换
+    private volatile List<BackendServer> availableServers;
+    private final RetryBudget retryBudget = new RetryBudget(RETRY_BUDGET_RATIO, RETRY_MIN_PER_SECOND, RETRY_MAX_BALANCE);
+    private final Mode mode;
+    private final LoadBalancer loadBalancer;
+    private final ProxyCache cache;
+    private final Tracer tracer;
+    // 不是 HTTP 模式或没有配置录制文件时为 null
+    private final TrafficCapture capture;
+    private final AdmissionController admission;
+    // 限流参数变化时整体替换
+    private volatile ClientRateLimiter rateLimiter;
+    private final ConnectionLimiter connectionLimiter;
+    private List<BackendConfig.Entry> appliedBackendList;
+    private final Runnable settingsListener = this::applySettings;
+
+    /**
+     * TCP: 按连接透传字节流; SPLICE: 同样按连接透传, 但用 splice 在内核里直接搬运数据, 只在 epoll 下可用;
+     * HTTP: 解析请求, 每个请求单独负载均衡并复用后端连接
+     */
+    public enum Mode { TCP, SPLICE, HTTP }
 
-        BackendServer(int port) {
-            this.port = port;
-        }
-    }
     public ReverseProxyServer() {
-        this.threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        this.monitorExecutor = Executors.newSingleThreadScheduledExecutor();
-        
-        // 初始化后端服务器 (7070 和 8080)
-        backendServers.add(new BackendServer(7070));
-        backendServers.add(new BackendServer(8080));
+        this(Mode.TCP, new P2CLoadBalancer());
     }
-    
-    public void start(int port) throws IOException {
-        proxyPort = port;
-        proxySocket = new ServerSocket(proxyPort);
-        running = true;
-        
-        // 启动服务器状态监控
-        monitorExecutor.scheduleAtFixedRate(this::updateServerStats, 0, 2, TimeUnit.SECONDS);
-        
-        System.out.println("Reverse Proxy started on port " + proxyPort);
-        System.out.println("Backend servers: ");
-        for (BackendServer server : backendServers) {
-            System.out.println("  - " + TARGET_HOST + ":" + server.port);
-        }
-        handleConnections();
-    }
-        // 更新后端服务器状态
-    private void updateServerStats() {
-        for (BackendServer server : backendServers) {
-            try (Socket socket = new Socket(TARGET_HOST, server.port)) {
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                
-                // 发送状态查询请求
-                out.println("GET /admin/connections HTTP/1.1");
-                out.println();
-                
-                // 解析响应
-                String line;
-                while ((line = in.readLine()) != null) {
-                    Pattern pattern = Pattern.compile("^content-length:\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
-                    Matcher matcher = pattern.matcher(line);
-                    if (matcher.find()) {
-                        server.activeConnections = Integer.parseInt(matcher.group(1));
-                        System.out.println(server.activeConnections);
-                        break;
-                   }
-                }
-            } catch (Exception e) {
-                System.err.println("Error updating stats for " + server.port + ": " + e.getMessage());
+
+    public ReverseProxyServer(Mode mode, LoadBalancer loadBalancer) {
+        if (mode == Mode.SPLICE && !EPOLL) {
+            System.err.println("splice requires native epoll, falling back to TCP mode");
+            mode = Mode.TCP;
+        }
+        this.mode = mode;
+        this.loadBalancer = loadBalancer;
+        admission = mode == Mode.HTTP
+                ? new AdmissionController(
+                        new AdaptiveLimit(GLOBAL_LIMIT_INITIAL, GLOBAL_LIMIT_MIN, Settings.PROXY_MAX_CONCURRENCY.get()),
+                        Settings.PROXY_QUEUE_SIZE.get(), Settings.PROXY_QUEUE_TIMEOUT_MS.get())
+                : null;
+        rateLimiter = newRateLimiter();
+        // HTTP 模式下按请求限流, 透传模式下只能按连接限流
+        connectionLimiter = new ConnectionLimiter(Settings.PROXY_MAX_CLIENT_CONNECTIONS.get(),
+                mode == Mode.HTTP ? () -> null : this::getRateLimiter);
+        registry = new BackendRegistry(this::initBackend, this::refreshAvailable, DRAIN_TIMEOUT_MS);
+        availableServers = List.of();
+        if (!BACKENDS_FILE.isEmpty()) {
+            backendConfig = new BackendConfig(Paths.get(BACKENDS_FILE), registry::apply);
+            try {
+                registry.apply(backendConfig.load());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read backend config " + BACKENDS_FILE, e);
             }
+        } else {
+            applyBackendList();
         }
+        cache = mode == Mode.HTTP && CACHE
+                ? new ProxyCache(this, Settings.PROXY_CACHE_MEMORY_BYTES.get(), Settings.PROXY_CACHE_MAX_ENTRY_BYTES.get(),
+                        Settings.PROXY_CACHE_TTL_MS.get(), Settings.PROXY_CACHE_STALE_MS.get(),
+                        CACHE_DIR.isEmpty() ? null : new File(CACHE_DIR), Settings.PROXY_CACHE_DISK_BYTES.get())
+                : null;
+        tracer = mode == Mode.HTTP
+                ? new Tracer(Settings.PROXY_TRACE_SAMPLE_RATE, Settings.PROXY_TRACE_SLOW_MS,
+                        Settings.PROXY_TRACE_BUFFER_SIZE.get(), Settings.PROXY_TRACE_LOG.get(), false)
+                : null;
+        capture = mode == Mode.HTTP && !Settings.PROXY_CAPTURE_FILE.get().isEmpty()
+                ? new TrafficCapture(Settings.PROXY_CAPTURE_SAMPLE_RATE, Settings.PROXY_CAPTURE_MAX_BODY_BYTES,
+                        Settings.PROXY_CAPTURE_MAX_FILE_BYTES, Settings.PROXY_CAPTURE_FILE.get())
+                : null;
     }
-    
-    // 选择最优后端服务器
-    private BackendServer selectBestServer() {
-        return Collections.min(backendServers, Comparator.comparingInt(s -> s.activeConnections));
+
+    /**
+     * @return 不限流时为 null
+     */
+    private static ClientRateLimiter newRateLimiter() {
+        long rate = Settings.PROXY_RATE_LIMIT.get();
+        long burst = Settings.PROXY_RATE_LIMIT_BURST.get();
+        return rate > 0 ? new ClientRateLimiter(rate, ClientRateLimiter.effectiveBurst(rate, burst)) : null;
     }
-    private void handleConnections() throws IOException {
-        while (running) {
-            try {
-                Socket clientSocket = proxySocket.accept();
-                threadPool.submit(() -> handleClientRequest(clientSocket));
-            } catch (SocketException e) {
-                if (running) System.err.println("Socket error: " + e.getMessage());
-            }
+
+    /**
+     * 没有后端列表文件时按 proxy.backendList 更新后端, 列表没有变化时不动 (保留管理接口做的修改)
+     */
+    private void applyBackendList() {
+        List<BackendConfig.Entry> entries = Settings.PROXY_BACKEND_LIST.get();
+        if (entries.equals(appliedBackendList)) return;
+        appliedBackendList = entries;
+        registry.apply(entries);
+    }
+
+    /**
+     * 配置文件重新加载后应用可热加载的项; 限流参数变化时换一个新的限流器, 各 IP 的令牌和限流计数重新开始
+     */
+    private void applySettings() {
+        connectionLimiter.setMaxConnections(Settings.PROXY_MAX_CLIENT_CONNECTIONS.get());
+        if (admission != null) {
+            admission.update(Settings.PROXY_MAX_CONCURRENCY.get(),
+                    Settings.PROXY_QUEUE_SIZE.get(), Settings.PROXY_QUEUE_TIMEOUT_MS.get());
         }
+        ClientRateLimiter current = rateLimiter;
+        long rate = Settings.PROXY_RATE_LIMIT.get();
+        long burst = Settings.PROXY_RATE_LIMIT_BURST.get();
+        if (current == null ? rate > 0 : !current.hasLimits(rate, ClientRateLimiter.effectiveBurst(rate, burst))) rateLimiter = newRateLimiter();
+        if (cache != null) {
+            cache.updateLimits(Settings.PROXY_CACHE_MEMORY_BYTES.get(), Settings.PROXY_CACHE_MAX_ENTRY_BYTES.get(),
+                    Settings.PROXY_CACHE_TTL_MS.get(), Settings.PROXY_CACHE_STALE_MS.get());
+        }
+        if (BACKENDS_FILE.isEmpty()) applyBackendList();
     }
-    
-    private void handleClientRequest(Socket clientSocket) {
-        BackendServer target = selectBestServer();
-        System.out.println("Routing to server: " + target.port + " (Connections: " + target.activeConnections + ")");
-            // 1. 连接到目标服务器
-        try (Socket targetSocket = new Socket(TARGET_HOST, target.port)) {
-            
-            // 2. 获取输入输出流
-            InputStream clientIn = clientSocket.getInputStream();
-            OutputStream clientOut = clientSocket.getOutputStream();
-            InputStream targetIn = targetSocket.getInputStream();
-            OutputStream targetOut = targetSocket.getOutputStream();
-            
-            // 3. 启动两个线程进行双向数据转发
-            ExecutorService pipePool = Executors.newFixedThreadPool(2);
-            
-            // 客户端 -> 代理 -> 目标服务器
-            pipePool.submit(() -> pipeData(clientIn, targetOut, clientSocket, targetSocket));
-            
-            // 目标服务器 -> 代理 -> 客户端
-            pipePool.submit(() -> pipeData(targetIn, clientOut, targetSocket, clientSocket));
-            
-            // 等待转发任务完成
-            pipePool.shutdown();
-            try {
-                pipePool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+
+    /**
+     * 新后端加入列表之前创建连接池并挂上健康状态监听
+     */
+    private void initBackend(BackendServer server) {
+        server.pool = new BackendPool(server, POOL_MIN_IDLE, POOL_MAX_CONNECTIONS,
+                POOL_IDLE_TIMEOUT_MS, POOL_ACQUIRE_TIMEOUT_MS);
+        server.health.setListener(healthListener);
+        if (mode == Mode.HTTP) server.limit = new AdaptiveLimit(BACKEND_LIMIT_INITIAL, BACKEND_LIMIT_MIN, BACKEND_LIMIT_MAX);
+    }
+
+    private final BackendHealth.Listener healthListener = new BackendHealth.Listener() {
+        /**
+         * 被动剔除最多同时剔除 MAX_EJECTION_PERCENT 的后端 (至少允许一个)
+         */
+        @Override
+        public synchronized boolean mayEject(BackendServer server) {
+            List<BackendServer> servers = registry.all();
+            int ejected = 0;
+            for (BackendServer s : servers) {
+                if (!s.health.isAvailable()) ejected++;
             }
-        } catch (IOException e) {
-            System.err.println("Error connecting to target server: " + e.getMessage());
-        } finally {
-            // 4. 关闭连接
-            closeQuietly(clientSocket);
+            int max = Math.max(1, servers.size() * MAX_EJECTION_PERCENT / 100);
+            return ejected < max;
+        }
+
+        @Override
+        public void onStateChange(BackendServer server) {
+            refreshAvailable();
+        }
+    };
+
+    /**
+     * 重新计算可以接收流量的后端: 健康且没有在摘除
+     */
+    private synchronized void refreshAvailable() {
+        List<BackendServer> servers = registry.all();
+        List<BackendServer> available = new ArrayList<>();
+        for (BackendServer s : servers) {
+            if (s.health.isAvailable() && !s.draining) available.add(s);
+        }
+        // 所有后端都不可用时仍然在没有摘除的后端之间分配, 总比全部直接报错好
+        if (available.isEmpty()) {
+            for (BackendServer s : servers) {
+                if (!s.draining) available.add(s);
+            }
+            if (!servers.isEmpty()) System.err.println("No healthy backend left, routing to all backends");
         }
+        if (available.isEmpty()) available.addAll(servers);
+        availableServers = List.copyOf(available);
+    }
+
+    /**
+     * Linux 上有 native epoll 时使用 epoll 传输, 可以用 -Dproxy.epoll=false 强制使用 NIO
+     */
+    static boolean useEpoll() {
+        return EPOLL;
+    }
+
+    static EventLoopGroup newEventLoopGroup(int threads, String name) {
+        DefaultThreadFactory factory = new DefaultThreadFactory(name);
+        return EPOLL ? new EpollEventLoopGroup(threads, factory) : new NioEventLoopGroup(threads, factory);
+    }
+
+    /**
+     * 转发时每个连接写缓冲的高低水位, 超过高水位就暂停读取另一端
+     */
+    static WriteBufferWaterMark waterMark() {
+        return new WriteBufferWaterMark(Settings.PROXY_WRITE_BUFFER_LOW.get(), Settings.PROXY_WRITE_BUFFER_HIGH.get());
+    }
+
+    static Class<? extends ServerChannel> serverChannelClass() {
+        return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    static Class<? extends Channel> socketChannelClass() {
+        return EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
     }
     
-    private void pipeData(InputStream in, OutputStream out, Socket srcSocket, Socket destSocket) {
-        byte[] buffer = new byte[8192];
-        int bytesRead;
-        try {
-            while ((bytesRead = in.read(buffer)) != -1) {
-                if (bytesRead > 0) {
-                    out.write(buffer, 0, bytesRead);
-                    out.flush();
+    /**
+     * 启动代理并阻塞到代理关闭
+     * 客户端连接和到后端的连接都在 workerGroup 的 event loop 上处理, 不再一个连接占用多个线程
+     */
+    public void start(int port) throws IOException {
+        proxyPort = port;
+        bossGroup = newEventLoopGroup(1, "proxy-boss");
+        workerGroup = newEventLoopGroup(Settings.PROXY_THREADS.get(), "proxy-worker");
+        running = true;
+        Settings.onReload(settingsListener);
+
+        ProxyTls tls = null;
+        if (TLS_PORT > 0) {
+            if (mode != Mode.HTTP) {
+                System.err.println("TLS termination requires HTTP mode, ignoring proxy.tls.port");
+            } else {
+                try {
+                    tls = new ProxyTls(List.of(TLS_KEYSTORES.split(",")), Settings.PROXY_TLS_PASSWORD.get().toCharArray());
+                } catch (Exception e) {
+                    stop();
+                    throw new IOException("Failed to load TLS keystores " + TLS_KEYSTORES, e);
                 }
             }
-        } catch (SocketException e) {
-            // 连接被关闭是正常情况，不打印错误
-            if (!e.getMessage().contains("reset") && !e.getMessage().contains("closed")) {
-                System.err.println("Socket error in pipe: " + e.getMessage());
+        }
+        try {
+            serverChannel = newBootstrap(null).bind(proxyPort).sync().channel();
+            if (tls != null) tlsChannel = newBootstrap(tls).bind(TLS_PORT).sync().channel();
+        } catch (Exception e) {
+            stop();
+            throw new IOException("Failed to bind port " + (serverChannel == null ? proxyPort : TLS_PORT), e);
+        }
+        
+        if (ADMIN_PORT > 0) {
+            try {
+                adminChannel = newAdminBootstrap().bind(InetAddress.getLoopbackAddress(), ADMIN_PORT).sync().channel();
+            } catch (Exception e) {
+                System.err.println("Failed to start proxy admin API on port " + ADMIN_PORT + ": " + e.getMessage());
             }
-        } catch (IOException e) {
-            System.err.println("I/O error in pipe: " + e.getMessage());
-        } finally {
-            // 关闭连接以终止另一端的传输
-            closeQuietly(srcSocket);
-            closeQuietly(destSocket);
+        }
+        if (backendConfig != null) backendConfig.start();
+
+        // 启动后端健康检查
+        healthChecker = new HealthChecker(registry::all, workerGroup.next(),
+                HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_TIMEOUT_MS);
+        healthChecker.start();
+        
+        System.out.println("Reverse Proxy started on port " + proxyPort + " (" + mode + " mode, "
+                + loadBalancer.getClass().getSimpleName() + ", " + (EPOLL ? "epoll" : "nio") + ")");
+        System.out.println("Backend servers: ");
+        for (BackendServer server : registry.all()) {
+            System.out.println("  - " + server + " (weight " + server.weight + ")");
+        }
+        if (adminChannel != null) System.out.println("Admin API on 127.0.0.1:" + ADMIN_PORT);
+        if (tls != null) {
+            System.out.println("TLS termination on port " + TLS_PORT + ", certificates:");
+            for (String name : tls.getHostnames()) System.out.println("  - " + name);
+        }
+        if (cache != null) {
+            System.out.println("Proxy cache: " + (Settings.PROXY_CACHE_MEMORY_BYTES.get() >> 20) + " MB in memory"
+                    + (CACHE_DIR.isEmpty() ? "" : ", " + (Settings.PROXY_CACHE_DISK_BYTES.get() >> 20) + " MB on disk at " + CACHE_DIR));
+        }
+        try {
+            serverChannel.closeFuture().sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-    
-    private void closeQuietly(Socket socket) {
-        if (socket != null && !socket.isClosed()) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // 忽略关闭错误
+
+    /**
+     * @param tls 不为 null 时客户端连接先做 TLS 握手, 之后和明文端口一样按 HTTP 模式处理
+     */
+    private ServerBootstrap newBootstrap(ProxyTls tls) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup)
+                .channel(serverChannelClass())
+                .option(ChannelOption.SO_BACKLOG, Settings.PROXY_BACKLOG.get())
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                // 需要经过用户态转发时使用池化的 direct buffer, 写 socket 时不用再复制一次
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.config().setWriteBufferWaterMark(waterMark());
+                        ch.pipeline().addLast(connectionLimiter);
+                        if (tls != null) ch.pipeline().addLast(tls.newHandler());
+                        switch (mode) {
+                            case HTTP -> {
+                                ch.pipeline().addLast(new HttpServerCodec());
+                                if (capture != null) ch.pipeline().addLast(capture.newHandler());
+                                ch.pipeline().addLast(new HttpProxyFrontendHandler(ReverseProxyServer.this));
+                            }
+                            case SPLICE -> ch.pipeline().addLast(new SpliceProxyFrontendHandler(ReverseProxyServer.this));
+                            default -> ch.pipeline().addLast(new ProxyFrontendHandler(ReverseProxyServer.this));
+                        }
+                    }
+                });
+        if (mode == Mode.SPLICE) {
+            // splice 只支持水平触发模式
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        return bootstrap;
+    }
+
+    private ServerBootstrap newAdminBootstrap() {
+        return new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(serverChannelClass())
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                          .addLast(new HttpServerCodec())
+                          .addLast(new HttpObjectAggregator(8192))
+                          .addLast(new ProxyAdminHandler(ReverseProxyServer.this));
+                    }
+                });
+    }
+
+    /**
+     * 选择后端服务器, 具体策略由 loadBalancer 决定
+     * 调用方拿到后端后要调用 onStart, 结束时调用 onEnd, 策略依赖这两个回调统计在途请求和延迟
+     * @param affinityKey 粘性会话键, 没有时为 null
+     * @return 一个后端都没有注册时为 null
+     */
+    BackendServer selectBestServer(String affinityKey) {
+        List<BackendServer> servers = availableServers;
+        if (servers.isEmpty()) return null;
+        return loadBalancer.select(withCapacity(servers), affinityKey);
+    }
+
+    /**
+     * 去掉已经达到连接上限的后端; 都满了时不做过滤, 由连接池排队
+     */
+    private static List<BackendServer> withCapacity(List<BackendServer> servers) {
+        boolean anyFull = false;
+        boolean anyFree = false;
+        for (BackendServer server : servers) {
+            if (server.hasCapacity()) {
+                anyFree = true;
+            } else {
+                anyFull = true;
             }
         }
+        if (!anyFull || !anyFree) return servers;
+        List<BackendServer> free = new ArrayList<>(servers.size());
+        for (BackendServer server : servers) {
+            if (server.hasCapacity()) free.add(server);
+        }
+        return free;
+    }
+
+    /**
+     * 重试时选择后端, 尽量避开刚刚失败的那个
+     * @return 一个后端都没有注册时为 null
+     */
+    BackendServer selectRetryServer(String affinityKey, BackendServer failed) {
+        List<BackendServer> servers = availableServers;
+        if (servers.isEmpty()) return null;
+        List<BackendServer> candidates = new ArrayList<>(withCapacity(servers));
+        if (candidates.size() > 1) candidates.remove(failed);
+        return loadBalancer.select(candidates, affinityKey);
+    }
+
+    /**
+     * 不是 HTTP 模式时返回 null
+     */
+    AdmissionController getAdmission() {
+        return admission;
+    }
+
+    /**
+     * 没有开启按 IP 限流时返回 null
+     */
+    ClientRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    ConnectionLimiter getConnectionLimiter() {
+        return connectionLimiter;
+    }
+
+    BackendRegistry getRegistry() {
+        return registry;
+    }
+
+    RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * 没有开启代理缓存时返回 null
+     */
+    ProxyCache getCache() {
+        return cache;
+    }
+
+    /**
+     * 不是 HTTP 模式时返回 null
+     */
+    Tracer getTracer() {
+        return tracer;
     }
     
     public void stop() {
+        if (!running) return;
         running = false;
-        monitorExecutor.shutdown();
-        try {
-            if (proxySocket != null) proxySocket.close();
-            threadPool.shutdown();
-            System.out.println("Reverse Proxy stopped");
-        } catch (IOException e) {
-            System.err.println("Error stopping proxy: " + e.getMessage());
+        Settings.removeListener(settingsListener);
+        if (healthChecker != null) healthChecker.stop();
+        if (serverChannel != null) serverChannel.close();
+        if (tlsChannel != null) tlsChannel.close();
+        if (adminChannel != null) adminChannel.close();
+        if (backendConfig != null) backendConfig.stop();
+        registry.stop();
+        for (BackendServer server : registry.all()) server.pool.close();
+        if (cache != null) {
+            System.out.printf("Proxy cache: %d hits, %d stale, %d misses (%d coalesced), %d passes, %d disk hits, %d backend fetches%n",
+                    cache.getHits(), cache.getStaleHits(), cache.getMisses(), cache.getCoalesced(),
+                    cache.getPasses(), cache.getDiskHits(), cache.getFetches());
+            cache.stop();
         }
+        if (tracer != null) tracer.close();
+        if (capture != null) capture.close();
+        if (workerGroup != null) workerGroup.shutdownGracefully();
+        if (bossGroup != null) bossGroup.shutdownGracefully();
+        System.out.println("Reverse Proxy stopped");
     }
     
+    /**
+     * 用法: ReverseProxyServer [port] [tcp|splice|http] [p2c|ewma|wrr|hash]
+     * 其余参数来自配置文件, 环境变量和系统属性, 见 Settings. 后端列表可以用 proxy.backends=backends.conf 从文件读取
+     * (修改后自动生效), 或者直接写在 proxy.backendList 里, 也可以通过管理接口修改.
+     * HTTP 模式下 proxy.tls.port=4443 额外开启 HTTPS 端口, 证书由 proxy.tls.keystores (逗号分隔) 指定
+     */
     public static void main(String[] args) {
-        ReverseProxyServer proxy = new ReverseProxyServer();
+        if (args.length > 0) System.setProperty(Settings.PROXY_PORT.name(), args[0]);
+        Settings.loadOrExit();
+        Mode mode = args.length > 1 ? Mode.valueOf(args[1].toUpperCase()) : Mode.TCP;
+        LoadBalancer loadBalancer = LoadBalancer.create(args.length > 2 ? args[2] : "p2c", System::nanoTime);
+        ReverseProxyServer proxy = new ReverseProxyServer(mode, loadBalancer);
         Runtime.getRuntime().addShutdownHook(new Thread(proxy::stop));
-        
+        Settings.watch();
+
         try {
-            int port = args.length > 0 ? Integer.parseInt(args[0]) : 4040;
-            proxy.start(port);
+            proxy.start(Settings.PROXY_PORT.get());
         } catch (IOException e) {
             System.err.println("Failed to start proxy: " + e.getMessage());
         }
@@ -0,0 +1,43 @@
+package Server;
+
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+
+import java.util.Map;
+
+/**
+ * 按路由限制请求体大小的 HttpObjectAggregator
+ * 声明了 Content-Length 的请求按路由的上限检查, 超出时直接返回 413, 不会先缓冲请求体;
+ * 没有 Content-Length 的分块请求仍然受全局上限约束
+ */
+public class RouteAwareAggregator extends HttpObjectAggregator {
+    private final Map<String, Integer> routeLimits;
+
+    /**
+     * @param maxContentLength 全局上限, 也是没有单独配置的路由使用的上限
+     * @param routeLimits 路径 -> 请求体上限, 上限不能超过全局上限
+     */
+    public RouteAwareAggregator(int maxContentLength, Map<String, Integer> routeLimits) {
+        super(maxContentLength);
+        this.routeLimits = routeLimits;
+    }
+
+    @Override
+    protected boolean isContentLengthInvalid(HttpMessage start, int maxContentLength) {
+        if (start instanceof HttpRequest request) {
+            String uri = request.uri();
+            String path = uri.contains("?") ? uri.substring(0, uri.indexOf('?')) : uri;
+            Integer limit = routeLimits.get(path);
+            if (limit != null) {
+                try {
+                    return HttpUtil.getContentLength(start, -1L) > limit;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return super.isContentLengthInvalid(start, maxContentLength);
+    }
+}
@@ -0,0 +1,114 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import util.Json;
+
+import java.util.List;
+
+/**
+ * 把一页搜索结果按批次编码成 JSON, 交给 HttpChunkedInput 分块写出
+ * 每次 readChunk 只编码 BATCH_SIZE 条记录, 内存占用与结果总数无关
+ */
+class SearchResultInput implements ChunkedInput<ByteBuf> {
+    private static final int BATCH_SIZE = 32;
+
+    private final List<RepoSearchService.FileEntry> results;
+    private final int from;
+    private final int to;
+    private final String header;
+    private final String footer;
+
+    private int next;
+    private boolean headerSent = false;
+    private boolean footerSent = false;
+    private long progress = 0;
+
+    /**
+     * @param results 完整的有序结果
+     * @param from 本页起始下标 (包含)
+     * @param to 本页结束下标 (不包含)
+     * @param query 查询串
+     * @param sort 排序字段
+     * @param descending 是否倒序
+     */
+    SearchResultInput(List<RepoSearchService.FileEntry> results, int from, int to,
+                      String query, RepoSearchService.SortKey sort, boolean descending) {
+        this.results = results;
+        this.from = from;
+        this.to = to;
+        this.next = from;
+
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"query\":");
+        Json.appendQuoted(sb, query);
+        sb.append(",\"sort\":\"").append(sort.name().toLowerCase()).append('"')
+          .append(",\"order\":\"").append(descending ? "desc" : "asc").append('"')
+          .append(",\"total\":").append(results.size())
+          .append(",\"items\":[");
+        this.header = sb.toString();
+
+        String nextCursor = to < results.size() && to > from
+                ? RepoSearchService.encodeCursor(results.get(to - 1))
+                : null;
+        this.footer = "],\"nextCursor\":" + Json.quote(nextCursor) + "}";
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return footerSent;
+    }
+
+    @Override
+    public void close() {
+        // 结果来自内存缓存, 没有需要释放的资源
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) {
+        if (footerSent) return null;
+
+        StringBuilder sb = new StringBuilder(BATCH_SIZE * 64);
+        if (!headerSent) {
+            sb.append(header);
+            headerSent = true;
+        }
+        int end = Math.min(next + BATCH_SIZE, to);
+        for (; next < end; next++) {
+            RepoSearchService.FileEntry entry = results.get(next);
+            if (next > from) sb.append(',');
+            sb.append("{\"name\":");
+            Json.appendQuoted(sb, entry.name());
+            sb.append(",\"size\":").append(entry.size())
+              .append(",\"mtime\":").append(entry.mtime())
+              .append('}');
+        }
+        if (next >= to) {
+            sb.append(footer);
+            footerSent = true;
+        }
+
+        ByteBuf buf = ByteBufUtil.writeUtf8(allocator, sb);
+        progress += buf.readableBytes();
+        return buf;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -2,27 +2,49 @@ package Server;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.*;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.util.concurrent.EventExecutor;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 快速路径服务器: 只有 /plaintext 和 /json 两个固定响应, 不经过 RequestHandler 的路由, 会话, 日志和文件访问,
+ * 测的是 Netty 加上 HTTP 请求解析本身的上限; 同样的压测打到 HttpWebServer 上, 差距就是 RequestHandler 的开销
+ * 传输, 线程数和 backlog 使用和 HttpWebServer 相同的配置项 (server.epoll, server.threads, server.backlog, 见 Settings)
+ * 用法: Server [port], 默认 8080
+ */
 public class Server {
+    static final int DEFAULT_PORT = 8080;
+
     public static void main(String[] args) {
-        EventLoopGroup boss = new NioEventLoopGroup(1);
-        EventLoopGroup worker = new NioEventLoopGroup();
+        Settings.loadOrExit();
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        EventLoopGroup boss = HttpWebServer.newEventLoopGroup(1, "fast-boss");
+        EventLoopGroup worker = HttpWebServer.newEventLoopGroup(HttpWebServer.WORKER_THREADS, "fast-worker");
+        // 每个 event loop 一份预编码的响应, 只在构建完成后读取
+        Map<EventExecutor, ServerHandler.Responses> responses = new IdentityHashMap<>();
+        for (EventExecutor loop : worker) responses.put(loop, ServerHandler.Responses.start((EventLoop) loop));
         try {
             ServerBootstrap server = new ServerBootstrap();
             server.group(boss, worker)
-                  .channel(NioServerSocketChannel.class)
+                  .channel(HttpWebServer.serverChannelClass())
+                  .childOption(ChannelOption.TCP_NODELAY, true)
                   .childHandler(new ChannelInitializer<SocketChannel>() {
                       @Override
                       protected void initChannel(SocketChannel ch) {
-                          ch.pipeline().addLast(new ServerHandler());
+                          ch.pipeline()
+                            .addLast(new HttpRequestDecoder())
+                            .addLast(new ServerHandler(responses.get(ch.eventLoop())));
                       }
                   });
 
-            server.option(ChannelOption.SO_BACKLOG, 1024);
-            server.bind(8080).sync().channel().closeFuture().sync();
+            server.option(ChannelOption.SO_BACKLOG, Settings.SERVER_BACKLOG.get());
+            Channel channel = server.bind(port).sync().channel();
+            System.out.println("Fast-path server started on port " + port + " ("
+                    + (HttpWebServer.useEpoll() ? "epoll" : "nio") + ", " + responses.size() + " worker threads)");
+            channel.closeFuture().sync();
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
@@ -1,7 +1,139 @@
 package Server;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.util.ReferenceCountUtil;
+import util.Json;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 快速路径服务器 (Server) 的请求处理
+ * 请求只经过 HttpRequestDecoder, 响应是预先编码好的整段字节 (状态行, 响应头, Date, 响应体), 不经过 HttpResponseEncoder.
+ * 每个请求只 write, 在 channelReadComplete 里统一 flush, 同一次读到的多个流水线请求合并成一次写 socket
+ */
 public class ServerHandler extends ChannelInboundHandlerAdapter {
+    private final Responses responses;
+    // 收到不保持连接的请求后, 写完已有的响应就关闭, 之后的请求不再处理
+    private boolean closing = false;
+
+    public ServerHandler(Responses responses) {
+        this.responses = responses;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        try {
+            if (!(msg instanceof HttpRequest request) || closing) return;
+            if (request.decoderResult().isFailure()) {
+                ctx.write(responses.badRequest(), ctx.voidPromise());
+                closing = true;
+                return;
+            }
+            ctx.write(responses.forUri(request.uri()), ctx.voidPromise());
+            if (!HttpUtil.isKeepAlive(request)) closing = true;
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (closing) {
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+
+    /**
+     * 一个 event loop 上所有连接共用的响应
+     * 每秒在该 event loop 上重新拼一次完整响应 (只有 Date 会变), 读和刷新都在同一个线程, 不需要同步;
+     * 写出去的是 retainedDuplicate, 刷新时释放旧的那份不会影响还没写完的响应
+     */
+    public static final class Responses {
+        private static final byte[] PLAINTEXT_BODY = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] JSON_BODY = ("{\"message\":" + Json.quote("Hello, World!") + "}")
+                .getBytes(StandardCharsets.UTF_8);
+        private static final byte[] NOT_FOUND_BODY = "Not Found".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] BAD_REQUEST_BODY = "Bad Request".getBytes(StandardCharsets.US_ASCII);
+
+        private static final byte[] PLAINTEXT_HEAD = head("200 OK", "text/plain; charset=UTF-8", PLAINTEXT_BODY, false);
+        private static final byte[] JSON_HEAD = head("200 OK", "application/json", JSON_BODY, false);
+        private static final byte[] NOT_FOUND_HEAD = head("404 Not Found", "text/plain; charset=UTF-8", NOT_FOUND_BODY, false);
+        private static final byte[] BAD_REQUEST_HEAD = head("400 Bad Request", "text/plain; charset=UTF-8", BAD_REQUEST_BODY, true);
+
+        private ByteBuf plaintext;
+        private ByteBuf json;
+        private ByteBuf notFound;
+        private ByteBuf badRequest;
+
+        private Responses() {
+        }
+
+        /**
+         * 创建缓存并在 loop 上每秒刷新一次
+         */
+        public static Responses start(EventLoop loop) {
+            Responses responses = new Responses();
+            responses.refresh();
+            // 对齐到下一整秒, Date 和真实时间最多差几毫秒
+            long delay = 1000 - System.currentTimeMillis() % 1000;
+            loop.scheduleAtFixedRate(responses::refresh, delay, 1000, TimeUnit.MILLISECONDS);
+            return responses;
+        }
+
+        ByteBuf forUri(String uri) {
+            String path = uri;
+            int query = uri.indexOf('?');
+            if (query >= 0) path = uri.substring(0, query);
+            switch (path) {
+                case "/plaintext": return plaintext.retainedDuplicate();
+                case "/json": return json.retainedDuplicate();
+                default: return notFound.retainedDuplicate();
+            }
+        }
+
+        ByteBuf badRequest() {
+            return badRequest.retainedDuplicate();
+        }
+
+        private void refresh() {
+            byte[] date = ("Date: " + DateFormatter.format(new Date()) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            plaintext = rebuild(plaintext, PLAINTEXT_HEAD, date, PLAINTEXT_BODY);
+            json = rebuild(json, JSON_HEAD, date, JSON_BODY);
+            notFound = rebuild(notFound, NOT_FOUND_HEAD, date, NOT_FOUND_BODY);
+            badRequest = rebuild(badRequest, BAD_REQUEST_HEAD, date, BAD_REQUEST_BODY);
+        }
+
+        private static ByteBuf rebuild(ByteBuf old, byte[] head, byte[] date, byte[] body) {
+            ByteBuf buf = Unpooled.directBuffer(head.length + date.length + body.length);
+            buf.writeBytes(head).writeBytes(date).writeBytes(body);
+            if (old != null) old.release();
+            return buf;
+        }
 
+        private static byte[] head(String status, String contentType, byte[] body, boolean close) {
+            String head = "HTTP/1.1 " + status + "\r\n"
+                    + "Server: SimpleHttpWebServer\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + (close ? "Connection: close\r\n" : "");
+            return head.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
 }
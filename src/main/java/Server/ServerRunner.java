@@ -1,26 +1,39 @@
 package Server;
 
+/**
+ * 用法: ServerRunner [port]
+ * 端口和其余参数来自配置文件, 环境变量和系统属性, 见 Settings; 配置文件修改后可热加载的项立即生效
+ */
 public class ServerRunner {
-    static int HTTP_PORT = 8080;
-    static final int HTTPS_PORT = 8443;
     public static void main(String[] args) {
-        if (args.length > 0) HTTP_PORT = Integer.parseInt(args[0]);
-        
+        // 命令行上的端口按系统属性处理, 和其他配置一起校验, 管理页面上显示的也是实际端口
+        if (args.length > 0) System.setProperty(Settings.SERVER_HTTP_PORT.name(), args[0]);
+        Settings.loadOrExit();
+        int httpPort = Settings.SERVER_HTTP_PORT.get();
+        int httpsPort = Settings.SERVER_HTTPS_PORT.get();
+        // 缩略图在服务器上用 java.awt 绘制, 不需要显示设备
+        System.setProperty("java.awt.headless", "true");
+
         System.out.println("=== Multi-threaded HTTP Web Server ===");
         System.out.println("Starting server...");
 
-        System.out.println("Configuration:");
-        System.out.println("- HTTP Port: " + HTTP_PORT);
-        System.out.println("- HTTPS Port: " + HTTPS_PORT);
-        System.out.println("- Thread Pool Size: 50");
+        System.out.println("Configuration (" + Settings.describeFile() + "):");
+        System.out.println("- HTTP Port: " + httpPort);
+        System.out.println("- HTTPS Port: " + httpsPort);
+        // 只列出不是默认值的项, 完整的生效配置见管理页面
+        for (Settings.Entry entry : Settings.describe("server.")) {
+            if (entry.source() != Settings.Source.DEFAULT && !entry.name().endsWith("Port")) {
+                System.out.println("- " + entry.name() + " = " + entry.value() + " (" + entry.source().name().toLowerCase() + ")");
+            }
+        }
         System.out.println("- Static Files Directory: static/");
-        System.out.println("- Access Log: access.log");
         System.out.println();
 
         HttpWebServer server = new HttpWebServer();
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 
-        server.start(HTTP_PORT, HTTPS_PORT);
-    
+        Settings.watch();
+        server.start(httpPort, httpsPort);
+
     }
 }
@@ -0,0 +1,262 @@
+package Server;
+
+import util.Session;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话的持久化
+ * 快照文件和以前一样是序列化的整个 Map, 先写临时文件再原子替换. 排空开始时写一次快照并打开日志文件,
+ * 之后每次新建和删除会话都追加一行 ("+ id 用户名" 或 "- id") 并立即刷新, 排空中途进程被强制结束也不会丢会话;
+ * 正常停止时再写一次快照并删除日志. 加载时先读快照再重放日志.
+ * 滚动重启时新进程和还在排空的旧进程同时运行, 新进程每秒调用一次 follow, 把旧进程写下的快照和日志合并进来.
+ * 每个进程运行期间持有 .lock 文件的锁, 新进程拿不到锁说明旧进程还在, 拿到锁后做最后一次合并就不再跟随.
+ * 跟随期间本进程删除的会话记为墓碑, 不会被旧进程的快照带回来; 从旧进程合并来的会话以它最新的快照为准
+ */
+public class SessionJournal {
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Path lockFile;
+    private final Map<String, Session> sessions;
+    private final AtomicInteger activeUsers;
+    // 只在排空期间打开
+    private Writer journal;
+    // follow 已经合并到的位置; 快照按 inode, 修改时间和大小区分
+    private List<Object> followedSnapshot;
+    private long followedJournalOffset = 0;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    // 还有其他进程在运行, 需要继续 follow
+    private boolean following = false;
+    // 跟随期间本进程删除的会话
+    private final Set<String> tombstones = new HashSet<>();
+    // 从其他进程的文件合并来的会话
+    private final Set<String> merged = new HashSet<>();
+
+    public SessionJournal(String snapshotFile, Map<String, Session> sessions, AtomicInteger activeUsers) {
+        this.snapshotFile = Paths.get(snapshotFile);
+        this.journalFile = Paths.get(snapshotFile + ".journal");
+        this.lockFile = Paths.get(snapshotFile + ".lock");
+        this.sessions = sessions;
+        this.activeUsers = activeUsers;
+    }
+
+    /**
+     * 启动时读快照并重放日志 (上一个进程在排空中被结束时日志还在); 拿不到锁时说明旧进程还在运行, 之后要 follow
+     */
+    public synchronized void load() {
+        following = !tryLock();
+        if (!Files.exists(snapshotFile) && !Files.exists(journalFile)) {
+            System.out.println("No session file found, start with empty sessions.");
+            return;
+        }
+        int before = sessions.size();
+        mergeSnapshot();
+        mergeJournal();
+        activeUsers.set(sessions.size());
+        System.out.println("Loaded " + (sessions.size() - before) + " sessions from file.");
+        if (!following) merged.clear();
+    }
+
+    /**
+     * 开始排空: 写快照, 之后的变化逐条追加到日志
+     */
+    public synchronized void startJournal() {
+        saveSnapshot();
+        try {
+            journal = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            System.err.println("Failed to open session journal: " + e.getMessage());
+        }
+    }
+
+    public synchronized void added(Session session) {
+        append("+ " + session.getSessionId() + " " + URLEncoder.encode(session.getUsername(), StandardCharsets.UTF_8));
+    }
+
+    public synchronized void removed(String sessionId) {
+        if (following) tombstones.add(sessionId);
+        append("- " + sessionId);
+    }
+
+    /**
+     * 停止时写最终快照, 日志里的内容都已经包含在快照里, 可以删除
+     */
+    public synchronized void close() {
+        saveSnapshot();
+        if (journal != null) {
+            try {
+                journal.close();
+                Files.deleteIfExists(journalFile);
+            } catch (IOException e) {
+                System.err.println("Failed to remove session journal: " + e.getMessage());
+            }
+            journal = null;
+        }
+        // 最终快照写完才放锁, 等待的新进程拿到锁后读到的就是它
+        try {
+            if (lock != null) lock.release();
+            if (lockChannel != null) lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to release session lock: " + e.getMessage());
+        }
+        lock = null;
+        lockChannel = null;
+    }
+
+    /**
+     * 合并其他进程在这之后写下的快照和日志. 旧进程退出 (锁被释放) 后再合并一次它的最终快照, 然后停止跟随
+     * @return 是否还需要继续调用
+     */
+    public synchronized boolean follow() {
+        if (!following || journal != null) return false;
+        boolean exited = tryLock();
+        // 最终快照可能和上一次看到的快照无法区分, 强制重新读
+        if (exited) followedSnapshot = null;
+        int before = sessions.size();
+        mergeSnapshot();
+        mergeJournal();
+        activeUsers.addAndGet(sessions.size() - before);
+        if (exited) {
+            following = false;
+            tombstones.clear();
+            merged.clear();
+            System.out.println("Previous server exited, stopped following its sessions.");
+        }
+        return following;
+    }
+
+    /**
+     * @return 是否拿到了锁, 同一个 JVM 里别的实例持有锁也算拿不到
+     */
+    private boolean tryLock() {
+        if (lock != null) return true;
+        try {
+            if (lockChannel == null) {
+                lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            // 锁不可用时当作没有其他进程, 和以前一样只在启动时读一次
+            System.err.println("Failed to lock session file: " + e.getMessage());
+            return true;
+        }
+        return lock != null;
+    }
+
+    private void append(String line) {
+        if (journal == null) return;
+        try {
+            journal.write(line);
+            journal.write('\n');
+            journal.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to append to session journal: " + e.getMessage());
+        }
+    }
+
+    private void saveSnapshot() {
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(temp))) {
+            oos.writeObject(sessions);
+        } catch (IOException e) {
+            System.err.println("Failed to save sessions: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            followedSnapshot = snapshotVersion();
+            System.out.println("Saved " + sessions.size() + " sessions to file.");
+        } catch (IOException e) {
+            System.err.println("Failed to save sessions: " + e.getMessage());
+        }
+    }
+
+    private List<Object> snapshotVersion() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(snapshotFile, BasicFileAttributes.class);
+        return Arrays.asList(attrs.fileKey(), attrs.lastModifiedTime(), attrs.size());
+    }
+
+    /**
+     * 合并其他进程的快照: 之前从它合并来, 新快照里已经没有的会话删掉; 墓碑里的不再加回来
+     */
+    @SuppressWarnings("unchecked")
+    private void mergeSnapshot() {
+        try {
+            if (!Files.exists(snapshotFile)) return;
+            List<Object> version = snapshotVersion();
+            if (version.equals(followedSnapshot)) return;
+            try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(snapshotFile))) {
+                Object obj = ois.readObject();
+                if (obj instanceof Map) {
+                    Map<String, Session> snapshot = (Map<String, Session>) obj;
+                    for (Iterator<String> it = merged.iterator(); it.hasNext(); ) {
+                        String id = it.next();
+                        if (!snapshot.containsKey(id)) {
+                            sessions.remove(id);
+                            it.remove();
+                        }
+                    }
+                    for (Map.Entry<String, Session> entry : snapshot.entrySet()) {
+                        add(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            followedSnapshot = version;
+            // 新快照之后的日志是重新开始写的
+            followedJournalOffset = 0;
+        } catch (Exception e) {
+            System.err.println("Failed to load sessions: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 从上次的位置继续读日志, 只处理完整的行; 文件变短说明被重新创建过, 从头读
+     */
+    private void mergeJournal() {
+        try {
+            if (!Files.exists(journalFile)) return;
+            long size = Files.size(journalFile);
+            if (size < followedJournalOffset) followedJournalOffset = 0;
+            if (size == followedJournalOffset) return;
+            byte[] data;
+            try (InputStream in = Files.newInputStream(journalFile)) {
+                in.skipNBytes(followedJournalOffset);
+                data = in.readNBytes((int) (size - followedJournalOffset));
+            }
+            int end = data.length;
+            while (end > 0 && data[end - 1] != '\n') end--;
+            for (String line : new String(data, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3 && parts[0].equals("+")) {
+                    String username = URLDecoder.decode(parts[2], StandardCharsets.UTF_8);
+                    add(parts[1], new Session(parts[1], username));
+                } else if (parts.length == 2 && parts[0].equals("-")) {
+                    sessions.remove(parts[1]);
+                    merged.remove(parts[1]);
+                }
+            }
+            followedJournalOffset += end;
+        } catch (IOException e) {
+            System.err.println("Failed to read session journal: " + e.getMessage());
+        }
+    }
+
+    private void add(String id, Session session) {
+        if (tombstones.contains(id)) return;
+        if (sessions.putIfAbsent(id, session) == null) merged.add(id);
+    }
+}
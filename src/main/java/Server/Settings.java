@@ -0,0 +1,635 @@
+package Server;
+
+import util.MimeType;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * 服务器和代理的调优配置, 每一项是一个带类型, 默认值和取值范围的 Key
+ * 来源按优先级从低到高:
+ *   默认值
+ *   配置文件  -Dconfig.file 或环境变量 CONFIG_FILE 指定, 默认是工作目录下的 config.properties (不存在时跳过), Properties 格式
+ *   环境变量  键名转成大写加下划线, 例如 server.idleTimeoutMs 对应 SERVER_IDLE_TIMEOUT_MS
+ *   系统属性  -Dserver.idleTimeoutMs=..., 和以前的用法兼容
+ * 字节数可以带 k/m/g 后缀. 加载时校验所有值, 配置文件里出现未知的 server.* / proxy.* 键也算错误, 有错误时启动失败.
+ * watch() 之后配置文件的修改会重新加载: 校验失败时保留当前配置; 标记为可热加载的项立即生效并通知 onReload 的监听者,
+ * 其余项的修改只记下来, 重启后生效. 进程里只有一份配置, 第一次读取时加载
+ */
+public final class Settings {
+    public enum Source { DEFAULT, FILE, ENV, PROPERTY }
+
+    public static final String DEFAULT_FILE = "config.properties";
+
+    private static final List<Key<?>> KEYS = new ArrayList<>();
+
+    /**
+     * 一项配置, get() 读取当前生效的值
+     */
+    public static final class Key<T> {
+        final String name;
+        final String defaultValue;
+        final boolean reloadable;
+        final String description;
+        private final Function<String, T> parser;
+        private final int index;
+
+        private Key(String name, String defaultValue, boolean reloadable, String description, Function<String, T> parser) {
+            this.name = name;
+            this.defaultValue = defaultValue;
+            this.reloadable = reloadable;
+            this.description = description;
+            this.parser = parser;
+            this.index = KEYS.size();
+            KEYS.add(this);
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get() {
+            return (T) current().values[index];
+        }
+
+        public String name() {
+            return name;
+        }
+
+        String envName() {
+            StringBuilder sb = new StringBuilder();
+            for (char c : name.toCharArray()) {
+                if (c == '.') {
+                    sb.append('_');
+                } else if (Character.isUpperCase(c)) {
+                    sb.append('_').append(c);
+                } else {
+                    sb.append(Character.toUpperCase(c));
+                }
+            }
+            return sb.toString();
+        }
+
+        boolean secret() {
+            return name.toLowerCase(Locale.ROOT).contains("password");
+        }
+    }
+
+    // ---- 后端服务器 (ServerRunner / HttpWebServer) ----
+    public static final Key<Integer> SERVER_HTTP_PORT = intKey("server.httpPort", 8080, 0, 65535, false,
+            "HTTP 端口, 命令行参数优先");
+    public static final Key<Integer> SERVER_HTTPS_PORT = intKey("server.httpsPort", 8443, 0, 65535, false,
+            "HTTPS 端口");
+    public static final Key<Boolean> SERVER_EPOLL = boolKey("server.epoll", true, false,
+            "有 native epoll 时使用 epoll 传输, false 强制 NIO; 快速路径服务器 Server 也使用这一项");
+    public static final Key<Integer> SERVER_THREADS = intKey("server.threads", 0, 0, 1024, false,
+            "worker event loop 线程数, 0 表示 Netty 的默认值 (核数的两倍)");
+    public static final Key<Integer> SERVER_BACKLOG = intKey("server.backlog", 1024, 1, 65535, false,
+            "监听 socket 的 accept 队列长度");
+    public static final Key<Boolean> SERVER_REUSE_PORT = boolKey("server.reusePort", false, false,
+            "SO_REUSEPORT, 滚动重启时新进程可以在旧进程排空前绑定同一个端口");
+    public static final Key<Integer> SERVER_WRITE_BUFFER_LOW = intKey("server.writeBufferLow", 32 * 1024, 1, 64 << 20, true,
+            "连接写缓冲低水位 (字节), 新连接生效");
+    public static final Key<Integer> SERVER_WRITE_BUFFER_HIGH = intKey("server.writeBufferHigh", 64 * 1024, 1, 64 << 20, true,
+            "连接写缓冲高水位 (字节), 超过时流式响应暂停读文件, 新连接生效");
+    public static final Key<Integer> SERVER_MAX_CONTENT_LENGTH = intKey("server.maxContentLength", 65536, 1024, 64 << 20, true,
+            "聚合器接受的请求体上限 (字节), 上传走流式处理不受限制; 新连接生效");
+    public static final Key<Long> SERVER_DRAIN_TIMEOUT_MS = longKey("server.drainTimeoutMs", 30_000, 0, 3_600_000, true,
+            "停止时等待在途请求完成的最长时间");
+    public static final Key<Long> SERVER_IDLE_TIMEOUT_MS = longKey("server.idleTimeoutMs", 60_000, 0, 86_400_000, true,
+            "请求之间的空闲超时, 0 不限制; 新连接生效");
+    public static final Key<Long> SERVER_HEADER_TIMEOUT_MS = longKey("server.headerTimeoutMs", 20_000, 0, 86_400_000, true,
+            "读完请求头的时限, 0 不限制; 新连接生效");
+    public static final Key<Long> SERVER_BODY_TIMEOUT_MS = longKey("server.bodyTimeoutMs", 20_000, 0, 86_400_000, true,
+            "读请求体的时限, 0 不限制; 新连接生效");
+    public static final Key<Long> SERVER_BODY_MIN_RATE = longKey("server.bodyMinRate", 1024, 0, Long.MAX_VALUE, true,
+            "请求体的最低速率 (字节/秒), 每收到这么多字节时限延长一秒; 新连接生效");
+    public static final Key<Long> SERVER_WRITE_TIMEOUT_MS = longKey("server.writeTimeoutMs", 30_000, 0, 86_400_000, true,
+            "客户端不读响应时的写超时, 0 不限制; 新连接生效");
+    public static final Key<Long> SERVER_SHAPING_GLOBAL_WRITE = longKey("server.shaping.globalWrite", 0, 0, Long.MAX_VALUE, true,
+            "全局写带宽上限 (字节/秒), 0 不限制");
+    public static final Key<Long> SERVER_SHAPING_GLOBAL_READ = longKey("server.shaping.globalRead", 0, 0, Long.MAX_VALUE, true,
+            "全局读带宽上限 (字节/秒)");
+    public static final Key<Long> SERVER_SHAPING_IP_WRITE = longKey("server.shaping.ipWrite", 0, 0, Long.MAX_VALUE, true,
+            "每个客户端 IP 的写带宽上限, 该 IP 的连接全部关闭后生效");
+    public static final Key<Long> SERVER_SHAPING_IP_READ = longKey("server.shaping.ipRead", 0, 0, Long.MAX_VALUE, true,
+            "每个客户端 IP 的读带宽上限, 该 IP 的连接全部关闭后生效");
+    public static final Key<Long> SERVER_SHAPING_CHANNEL_WRITE = longKey("server.shaping.channelWrite", 0, 0, Long.MAX_VALUE, true,
+            "每个连接的写带宽上限, 新连接生效");
+    public static final Key<Long> SERVER_SHAPING_CHANNEL_READ = longKey("server.shaping.channelRead", 0, 0, Long.MAX_VALUE, true,
+            "每个连接的读带宽上限, 新连接生效");
+    public static final Key<Long> SERVER_SHAPING_BULK_WRITE = longKey("server.shaping.bulkWrite", 0, 0, Long.MAX_VALUE, true,
+            "批量类响应的全局写带宽上限");
+    public static final Key<Long> SERVER_SHAPING_BULK_CHANNEL_WRITE = longKey("server.shaping.bulkChannelWrite", 0, 0, Long.MAX_VALUE, true,
+            "批量类响应的每连接写带宽上限, 新连接生效");
+    public static final Key<List<String>> SERVER_SHAPING_BULK_ROUTES = new Key<>("server.shaping.bulkRoutes", "/repo", true,
+            "路径以这些前缀开头的请求算作批量, 逗号分隔", Settings::parseList);
+    public static final Key<Set<MimeType>> SERVER_SHAPING_BULK_TYPES = new Key<>("server.shaping.bulkTypes",
+            "OCTET_STREAM,ZIP,RAR,TAR,GZIP,MP4,AVI,MOV,WEBM,PDF", true,
+            "Content-Type 属于这些 MimeType 的响应算作批量, 逗号分隔", Settings::parseMimeTypes);
+    public static final Key<List<TrafficShaper.ClassLimit>> SERVER_SHAPING_CLASS_LIMITS = new Key<>("server.shaping.classLimits", "", true,
+            "按路由前缀或 MimeType 的每连接写带宽上限, 例如 /repo=1m,MP4=512k; 按顺序取第一条匹配的", Settings::parseClassLimits);
+    public static final Key<String> SERVER_ACCESS_LOG = stringKey("server.accessLog", "access.log", false,
+            "访问日志文件");
+    public static final Key<Double> SERVER_ACCESS_LOG_SAMPLE_RATE = doubleKey("server.accessLog.sampleRate", 1.0, 0, 1, true,
+            "成功响应写入访问日志的比例, 4xx/5xx 总是记录");
+    public static final Key<Double> SERVER_TRACE_SAMPLE_RATE = doubleKey("server.trace.sampleRate", 0.01, 0, 1, true,
+            "按 trace ID 抽样保存请求追踪的比例, 同一个 ID 在代理和后端上的结果一致");
+    public static final Key<Long> SERVER_TRACE_SLOW_MS = longKey("server.trace.slowMs", 500, 0, 86_400_000, true,
+            "总耗时不低于这个值 (毫秒) 的请求总是保存追踪");
+    public static final Key<Integer> SERVER_TRACE_BUFFER_SIZE = intKey("server.trace.bufferSize", 1024, 1, 1_000_000, false,
+            "内存里保留的追踪条数, 见 /admin/traces");
+    public static final Key<String> SERVER_TRACE_LOG = stringKey("server.trace.log", "", false,
+            "保存的追踪同时追加到这个文件 (比如 trace.log, 放在访问日志旁边), 空表示不写");
+    public static final Key<String> SERVER_CAPTURE_FILE = stringKey("server.capture.file", "", false,
+            "流量录制文件, 空表示不录制; 用 TrafficReplay 回放");
+    public static final Key<Double> SERVER_CAPTURE_SAMPLE_RATE = doubleKey("server.capture.sampleRate", 1.0, 0, 1, true,
+            "录制的请求比例");
+    public static final Key<Integer> SERVER_CAPTURE_MAX_BODY_BYTES = intKey("server.capture.maxBodyBytes", 64 * 1024, 0, 64 << 20, true,
+            "每个请求最多录下的请求体字节数, 超过的部分截断");
+    public static final Key<Long> SERVER_CAPTURE_MAX_FILE_BYTES = longKey("server.capture.maxFileBytes", 1L << 30, 0, Long.MAX_VALUE, true,
+            "录制文件达到这个大小后停止录制");
+    public static final Key<Integer> SERVER_UPLOAD_THREADS = intKey("server.uploadThreads", 4, 1, 256, false,
+            "上传写盘线程数");
+    public static final Key<Integer> SERVER_LOGIN_THREADS = intKey("server.loginThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 1, 256, false,
+            "登录时计算 PBKDF2 的线程数, 默认一半的核");
+    public static final Key<Long> SERVER_THUMBNAIL_CACHE_BYTES = longKey("server.thumbnailCacheBytes", 256L << 20, 0, Long.MAX_VALUE, true,
+            "缩略图磁盘缓存上限, 调小时立即淘汰");
+
+    // ---- 反向代理 (ReverseProxyServer) ----
+    public static final Key<Integer> PROXY_PORT = intKey("proxy.port", 4040, 1, 65535, false,
+            "代理端口, 命令行参数优先");
+    public static final Key<Boolean> PROXY_EPOLL = boolKey("proxy.epoll", true, false,
+            "有 native epoll 时使用 epoll 传输, false 强制 NIO");
+    public static final Key<Integer> PROXY_THREADS = intKey("proxy.threads", 0, 0, 1024, false,
+            "worker event loop 线程数, 0 表示 Netty 的默认值 (核数的两倍)");
+    public static final Key<Integer> PROXY_BACKLOG = intKey("proxy.backlog", 1024, 1, 65535, false,
+            "监听 socket 的 accept 队列长度");
+    public static final Key<Integer> PROXY_WRITE_BUFFER_LOW = intKey("proxy.writeBufferLow", 32 * 1024, 1, 64 << 20, true,
+            "转发时每个连接写缓冲的低水位 (字节), 新连接生效");
+    public static final Key<Integer> PROXY_WRITE_BUFFER_HIGH = intKey("proxy.writeBufferHigh", 64 * 1024, 1, 64 << 20, true,
+            "转发时每个连接写缓冲的高水位, 超过时暂停读取另一端; 新连接生效");
+    public static final Key<String> PROXY_BACKENDS = stringKey("proxy.backends", "", false,
+            "后端列表文件, 设置后忽略 proxy.backendList, 文件修改后自动生效");
+    public static final Key<List<BackendConfig.Entry>> PROXY_BACKEND_LIST = new Key<>("proxy.backendList",
+            "localhost:7070, localhost:8080", true,
+            "没有后端列表文件时使用的后端, 逗号分隔, 格式同后端列表文件 (host:port weight=N maxConnections=N drain)",
+            Settings::parseBackends);
+    public static final Key<Integer> PROXY_ADMIN_PORT = intKey("proxy.admin.port", 4041, 0, 65535, false,
+            "管理接口端口, 只监听本机, 0 关闭");
+    public static final Key<Integer> PROXY_MAX_CLIENT_CONNECTIONS = intKey("proxy.maxClientConnections", 10_000, 1, 10_000_000, true,
+            "客户端连接数上限");
+    public static final Key<Integer> PROXY_MAX_CONCURRENCY = intKey("proxy.maxConcurrency", 5_000, 20, 1_000_000, true,
+            "HTTP 模式下自适应全局并发上限的最大值");
+    public static final Key<Integer> PROXY_QUEUE_SIZE = intKey("proxy.queueSize", 1_000, 0, 1_000_000, true,
+            "准入排队的长度");
+    public static final Key<Long> PROXY_QUEUE_TIMEOUT_MS = longKey("proxy.queueTimeoutMs", 1_000, 1, 600_000, true,
+            "准入排队的最长等待时间");
+    public static final Key<Long> PROXY_RATE_LIMIT = longKey("proxy.rateLimit", 0, 0, 1_000_000, true,
+            "每个客户端 IP 每秒的请求数 (透传模式下是连接数), 0 不限流");
+    public static final Key<Long> PROXY_RATE_LIMIT_BURST = longKey("proxy.rateLimitBurst", 0, 0, ClientRateLimiter.MAX_BURST, true,
+            "按 IP 限流的突发量, 0 表示 rateLimit 的两倍 (不超过 " + ClientRateLimiter.MAX_BURST + ")");
+    public static final Key<Boolean> PROXY_CACHE = boolKey("proxy.cache", false, false,
+            "HTTP 模式下开启代理缓存");
+    public static final Key<Long> PROXY_CACHE_MEMORY_BYTES = longKey("proxy.cache.memoryBytes", 64L << 20, 0, Long.MAX_VALUE, true,
+            "代理缓存内存层上限, 调小时立即淘汰");
+    public static final Key<Integer> PROXY_CACHE_MAX_ENTRY_BYTES = intKey("proxy.cache.maxEntryBytes", 1 << 20, 0, Integer.MAX_VALUE, true,
+            "单个缓存条目的上限");
+    public static final Key<Long> PROXY_CACHE_TTL_MS = longKey("proxy.cache.ttlMs", 1_000, 0, 86_400_000, true,
+            "响应没有给出有效期时的缓存时间");
+    public static final Key<Long> PROXY_CACHE_STALE_MS = longKey("proxy.cache.staleMs", 10_000, 0, 86_400_000, true,
+            "响应没有给出 stale-while-revalidate 时过期后还能使用的时间");
+    public static final Key<String> PROXY_CACHE_DIR = stringKey("proxy.cache.dir", "", false,
+            "代理缓存磁盘层目录, 空表示不使用磁盘层");
+    public static final Key<Long> PROXY_CACHE_DISK_BYTES = longKey("proxy.cache.diskBytes", 1L << 30, 0, Long.MAX_VALUE, false,
+            "代理缓存磁盘层上限");
+    public static final Key<Double> PROXY_TRACE_SAMPLE_RATE = doubleKey("proxy.trace.sampleRate", 0.01, 0, 1, true,
+            "HTTP 模式下按 trace ID 抽样保存请求追踪的比例, 应和后端的 server.trace.sampleRate 相同");
+    public static final Key<Long> PROXY_TRACE_SLOW_MS = longKey("proxy.trace.slowMs", 500, 0, 86_400_000, true,
+            "总耗时不低于这个值 (毫秒) 的请求总是保存追踪");
+    public static final Key<Integer> PROXY_TRACE_BUFFER_SIZE = intKey("proxy.trace.bufferSize", 1024, 1, 1_000_000, false,
+            "内存里保留的追踪条数, 见管理接口的 /traces");
+    public static final Key<String> PROXY_TRACE_LOG = stringKey("proxy.trace.log", "", false,
+            "保存的追踪同时追加到这个文件, 空表示不写");
+    public static final Key<String> PROXY_CAPTURE_FILE = stringKey("proxy.capture.file", "", false,
+            "HTTP 模式下的流量录制文件, 空表示不录制; 用 TrafficReplay 回放");
+    public static final Key<Double> PROXY_CAPTURE_SAMPLE_RATE = doubleKey("proxy.capture.sampleRate", 1.0, 0, 1, true,
+            "录制的请求比例");
+    public static final Key<Integer> PROXY_CAPTURE_MAX_BODY_BYTES = intKey("proxy.capture.maxBodyBytes", 64 * 1024, 0, 64 << 20, true,
+            "每个请求最多录下的请求体字节数, 超过的部分截断");
+    public static final Key<Long> PROXY_CAPTURE_MAX_FILE_BYTES = longKey("proxy.capture.maxFileBytes", 1L << 30, 0, Long.MAX_VALUE, true,
+            "录制文件达到这个大小后停止录制");
+    public static final Key<Integer> PROXY_TLS_PORT = intKey("proxy.tls.port", -1, -1, 65535, false,
+            "HTTP 模式下额外监听的 HTTPS 端口, -1 不开启");
+    public static final Key<String> PROXY_TLS_KEYSTORES = stringKey("proxy.tls.keystores", "keystore.p12", false,
+            "TLS 证书的 PKCS12 文件, 逗号分隔");
+    public static final Key<String> PROXY_TLS_PASSWORD = stringKey("proxy.tls.password", "123456", false,
+            "证书文件的密码");
+
+    /**
+     * 一次加载的结果, 整体替换
+     * @param raw     每项生效值的原始字符串
+     * @param pending 配置文件里改过但要重启才生效的值, 没有时为 null
+     */
+    private record Snapshot(Object[] values, String[] raw, Source[] sources, String[] pending) { }
+
+    /**
+     * 管理页面上的一行
+     */
+    public record Entry(String name, String value, Source source, boolean reloadable, String pending, String description) { }
+
+    private static final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private static volatile Snapshot current;
+    private static Path file;
+    private static boolean fileRequired;
+    private static volatile String lastError;
+    private static volatile long loadedAt;
+    private static WatchService watchService;
+    private static Thread watchThread;
+
+    private Settings() { }
+
+    /**
+     * 加载配置, 有任何错误时抛出 IllegalArgumentException, 消息里列出所有错误
+     */
+    public static synchronized void load() {
+        String configured = System.getProperty("config.file", System.getenv("CONFIG_FILE"));
+        fileRequired = configured != null && !configured.isBlank();
+        file = Paths.get(fileRequired ? configured : DEFAULT_FILE).toAbsolutePath();
+        List<String> errors = new ArrayList<>();
+        Snapshot snapshot = resolve(readFile(errors), errors);
+        if (!errors.isEmpty()) throw new IllegalArgumentException(String.join("\n", errors));
+        current = snapshot;
+        loadedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 启动入口使用: 配置有错误时打印出来并退出
+     */
+    public static void loadOrExit() {
+        try {
+            load();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid configuration:");
+            for (String error : e.getMessage().split("\n")) System.err.println("  - " + error);
+            System.exit(1);
+        }
+    }
+
+    private static Snapshot current() {
+        Snapshot snapshot = current;
+        if (snapshot == null) {
+            synchronized (Settings.class) {
+                if (current == null) load();
+                snapshot = current;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return 文件不存在时为 null
+     */
+    private static Properties readFile(List<String> errors) {
+        if (!Files.exists(file)) {
+            if (fileRequired) errors.add("config file " + file + " not found");
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            errors.add("failed to read " + file + ": " + e.getMessage());
+        }
+        return properties;
+    }
+
+    private static Snapshot resolve(Properties fileValues, List<String> errors) {
+        int n = KEYS.size();
+        Snapshot snapshot = new Snapshot(new Object[n], new String[n], new Source[n], new String[n]);
+        Set<String> known = new HashSet<>();
+        for (Key<?> key : KEYS) {
+            known.add(key.name);
+            String raw = key.defaultValue;
+            Source source = Source.DEFAULT;
+            if (fileValues != null && fileValues.getProperty(key.name) != null) {
+                raw = fileValues.getProperty(key.name);
+                source = Source.FILE;
+            }
+            if (System.getenv(key.envName()) != null) {
+                raw = System.getenv(key.envName());
+                source = Source.ENV;
+            }
+            if (System.getProperty(key.name) != null) {
+                raw = System.getProperty(key.name);
+                source = Source.PROPERTY;
+            }
+            raw = raw.trim();
+            try {
+                snapshot.values[key.index] = key.parser.apply(raw);
+            } catch (IllegalArgumentException e) {
+                errors.add(key.name + " (" + source.name().toLowerCase(Locale.ROOT) + "): " + e.getMessage());
+            }
+            snapshot.raw[key.index] = raw;
+            snapshot.sources[key.index] = source;
+        }
+        if (fileValues != null) {
+            for (String name : fileValues.stringPropertyNames()) {
+                if ((name.startsWith("server.") || name.startsWith("proxy.")) && !known.contains(name)) {
+                    errors.add(name + " (file): unknown setting");
+                }
+            }
+        }
+        if (errors.isEmpty()) validate(snapshot, errors);
+        return snapshot;
+    }
+
+    /**
+     * 涉及多项的约束
+     */
+    private static void validate(Snapshot s, List<String> errors) {
+        if (value(s, SERVER_WRITE_BUFFER_LOW) > value(s, SERVER_WRITE_BUFFER_HIGH)) {
+            errors.add("server.writeBufferLow must not exceed server.writeBufferHigh");
+        }
+        if (value(s, PROXY_WRITE_BUFFER_LOW) > value(s, PROXY_WRITE_BUFFER_HIGH)) {
+            errors.add("proxy.writeBufferLow must not exceed proxy.writeBufferHigh");
+        }
+        int http = value(s, SERVER_HTTP_PORT);
+        if (http != 0 && http == value(s, SERVER_HTTPS_PORT)) {
+            errors.add("server.httpPort and server.httpsPort must differ");
+        }
+        if (value(s, PROXY_BACKENDS).isEmpty() && value(s, PROXY_BACKEND_LIST).isEmpty()) {
+            errors.add("proxy.backendList must not be empty when proxy.backends is not set");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T value(Snapshot snapshot, Key<T> key) {
+        return (T) snapshot.values[key.index];
+    }
+
+    /**
+     * 监听配置文件所在目录, 文件创建或修改后重新加载
+     */
+    public static synchronized void watch() {
+        current();
+        if (watchThread != null) return;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println("Failed to watch " + file + ": " + e.getMessage());
+            return;
+        }
+        watchThread = new Thread(Settings::watchLoop, "config-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private static void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (file.getFileName().equals(event.context())) changed = true;
+            }
+            if (changed) reload();
+            if (!key.reset()) return;
+        }
+    }
+
+    /**
+     * 重新读取配置文件, 校验通过后替换可热加载的项并通知监听者
+     * @return 是否成功
+     */
+    public static boolean reload() {
+        synchronized (Settings.class) {
+            Snapshot old = current();
+            List<String> errors = new ArrayList<>();
+            Properties fileValues = readFile(errors);
+            if (errors.isEmpty() && fileValues != null && fileValues.isEmpty() && hasFileValues(old)) {
+                // 多半是编辑器先清空再写入, 不要因此把所有项恢复成默认值
+                System.err.println("Ignoring empty config file " + file);
+                return false;
+            }
+            Snapshot next = resolve(fileValues, errors);
+            if (!errors.isEmpty()) {
+                lastError = String.join("; ", errors);
+                System.err.println("Failed to reload " + file + ", keeping current settings: " + lastError);
+                return false;
+            }
+            int changed = 0;
+            for (Key<?> key : KEYS) {
+                int i = key.index;
+                if (key.reloadable || Objects.equals(old.raw[i], next.raw[i])) {
+                    if (!Objects.equals(old.raw[i], next.raw[i])) {
+                        System.out.println("Setting " + key.name + ": " + display(key, old.raw[i]) + " -> " + display(key, next.raw[i]));
+                        changed++;
+                    }
+                    continue;
+                }
+                // 需要重启的项保留当前值, 新值记为待生效
+                next.pending[i] = next.raw[i];
+                next.values[i] = old.values[i];
+                next.raw[i] = old.raw[i];
+                next.sources[i] = old.sources[i];
+                if (!Objects.equals(old.pending[i], next.pending[i])) {
+                    System.out.println("Setting " + key.name + " changed to " + display(key, next.pending[i]) + ", takes effect after restart");
+                }
+            }
+            current = next;
+            lastError = null;
+            loadedAt = System.currentTimeMillis();
+            if (changed == 0) return true;
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                System.err.println("Failed to apply settings: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasFileValues(Snapshot snapshot) {
+        for (Source source : snapshot.sources) {
+            if (source == Source.FILE) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 可热加载的项变化后调用, 在监听线程上执行
+     */
+    public static void onReload(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 名字以 prefix 开头的项的当前状态, 按定义顺序
+     */
+    public static List<Entry> describe(String prefix) {
+        Snapshot snapshot = current();
+        List<Entry> entries = new ArrayList<>();
+        for (Key<?> key : KEYS) {
+            if (!key.name.startsWith(prefix)) continue;
+            int i = key.index;
+            String pending = snapshot.pending[i] == null ? null : display(key, snapshot.pending[i]);
+            entries.add(new Entry(key.name, display(key, snapshot.raw[i]), snapshot.sources[i],
+                    key.reloadable, pending, key.description));
+        }
+        return entries;
+    }
+
+    private static String display(Key<?> key, String raw) {
+        return key.secret() && !raw.isEmpty() ? "******" : raw;
+    }
+
+    /**
+     * 配置文件路径, 以及文件是否存在
+     */
+    public static String describeFile() {
+        current();
+        return file + (Files.exists(file) ? "" : " (not found)");
+    }
+
+    /**
+     * 最近一次重新加载失败的原因, 成功后清空
+     */
+    public static String getLastError() {
+        return lastError;
+    }
+
+    public static long getLoadedAt() {
+        return loadedAt;
+    }
+
+    // ---- 解析 ----
+
+    private static Key<Integer> intKey(String name, int defaultValue, int min, int max, boolean reloadable, String description) {
+        return new Key<>(name, String.valueOf(defaultValue), reloadable, description, raw -> {
+            long value = parseSize(raw);
+            if (value < min || value > max) throw new IllegalArgumentException("must be between " + min + " and " + max + ", got " + raw);
+            return (int) value;
+        });
+    }
+
+    private static Key<Long> longKey(String name, long defaultValue, long min, long max, boolean reloadable, String description) {
+        return new Key<>(name, String.valueOf(defaultValue), reloadable, description, raw -> {
+            long value = parseSize(raw);
+            if (value < min || value > max) throw new IllegalArgumentException("must be between " + min + " and " + max + ", got " + raw);
+            return value;
+        });
+    }
+
+    private static Key<Double> doubleKey(String name, double defaultValue, double min, double max, boolean reloadable, String description) {
+        return new Key<>(name, String.valueOf(defaultValue), reloadable, description, raw -> {
+            double value;
+            try {
+                value = Double.parseDouble(raw);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("expected a number, got '" + raw + "'");
+            }
+            if (!(value >= min && value <= max)) throw new IllegalArgumentException("must be between " + min + " and " + max + ", got " + raw);
+            return value;
+        });
+    }
+
+    private static Key<Boolean> boolKey(String name, boolean defaultValue, boolean reloadable, String description) {
+        return new Key<>(name, String.valueOf(defaultValue), reloadable, description, raw -> {
+            if (raw.equalsIgnoreCase("true")) return true;
+            if (raw.equalsIgnoreCase("false")) return false;
+            throw new IllegalArgumentException("expected true or false, got '" + raw + "'");
+        });
+    }
+
+    private static Key<String> stringKey(String name, String defaultValue, boolean reloadable, String description) {
+        return new Key<>(name, defaultValue, reloadable, description, raw -> raw);
+    }
+
+    /**
+     * 整数, 可以带 k/m/g 后缀 (1024 进制)
+     */
+    static long parseSize(String raw) {
+        String s = raw.toLowerCase(Locale.ROOT);
+        int shift = 0;
+        if (!s.isEmpty()) {
+            switch (s.charAt(s.length() - 1)) {
+                case 'k' -> shift = 10;
+                case 'm' -> shift = 20;
+                case 'g' -> shift = 30;
+                default -> { }
+            }
+        }
+        if (shift > 0) s = s.substring(0, s.length() - 1).trim();
+        long value;
+        try {
+            value = Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected an integer, got '" + raw + "'");
+        }
+        if (shift > 0 && Math.abs(value) > (Long.MAX_VALUE >> shift)) throw new IllegalArgumentException("value too large: " + raw);
+        return value << shift;
+    }
+
+    private static List<String> parseList(String raw) {
+        List<String> items = new ArrayList<>();
+        for (String item : raw.split(",")) {
+            if (!item.isBlank()) items.add(item.trim());
+        }
+        return List.copyOf(items);
+    }
+
+    private static Set<MimeType> parseMimeTypes(String raw) {
+        Set<MimeType> types = EnumSet.noneOf(MimeType.class);
+        for (String item : parseList(raw)) {
+            try {
+                types.add(MimeType.valueOf(item.toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown MimeType " + item);
+            }
+        }
+        return Collections.unmodifiableSet(types);
+    }
+
+    /**
+     * 路由前缀 (以 / 开头) 或 MimeType 名 = 字节/秒
+     */
+    private static List<TrafficShaper.ClassLimit> parseClassLimits(String raw) {
+        List<TrafficShaper.ClassLimit> limits = new ArrayList<>();
+        for (String item : parseList(raw)) {
+            int eq = item.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("expected route=rate or MimeType=rate, got '" + item + "'");
+            String target = item.substring(0, eq).trim();
+            long rate = parseSize(item.substring(eq + 1).trim());
+            if (rate <= 0) throw new IllegalArgumentException("rate must be positive: " + item);
+            if (target.startsWith("/")) {
+                limits.add(new TrafficShaper.ClassLimit(target, null, rate));
+            } else {
+                limits.add(new TrafficShaper.ClassLimit(null, parseMimeTypes(target).iterator().next(), rate));
+            }
+        }
+        return List.copyOf(limits);
+    }
+
+    private static List<BackendConfig.Entry> parseBackends(String raw) {
+        List<BackendConfig.Entry> entries = new ArrayList<>();
+        for (String item : parseList(raw)) entries.add(BackendConfig.parseEntry(item.split("\\s+")));
+        return List.copyOf(entries);
+    }
+}
@@ -0,0 +1,167 @@
+package Server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.unix.FileDescriptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SPLICE 透传模式下客户端一侧的处理器
+ * 连上后端后两个方向都调用 EpollSocketChannel.spliceTo, 数据经过内核管道在两个 socket 之间直接搬运,
+ * 不进入用户态, 也不经过 pipeline; 两个连接必须在同一个 event loop 上, 并且使用水平触发模式.
+ * 负载均衡和健康检测的记账方式与 ProxyFrontendHandler 相同
+ */
+public class SpliceProxyFrontendHandler extends ChannelInboundHandlerAdapter {
+    private final ReverseProxyServer proxy;
+    private Channel outbound;
+    private BackendServer target;
+    private long connectNanos = -1;
+    private long connectStart;
+
+    public SpliceProxyFrontendHandler(ReverseProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        EpollSocketChannel inbound = (EpollSocketChannel) ctx.channel();
+        inbound.config().setAutoRead(false);
+
+        String clientIp = inbound.remoteAddress().getAddress().getHostAddress();
+        BackendServer server = proxy.selectBestServer(clientIp);
+        if (server == null) {
+            inbound.close();
+            return;
+        }
+        target = server;
+        server.onStart();
+        connectStart = System.nanoTime();
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(inbound.eventLoop())
+                .channel(EpollSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.AUTO_READ, false)
+                // 后端关闭时先只关输入, 由 PeerCloser 把剩下的数据搬完再关闭
+                .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                .handler(new PeerCloser(inbound));
+        ChannelFuture connectFuture = bootstrap.connect(server.host, server.port);
+        outbound = connectFuture.channel();
+        connectFuture.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                System.err.println("Error connecting to target server: " + future.cause().getMessage());
+                server.recordResult(false, -1);
+                inbound.close();
+                return;
+            }
+            connectNanos = System.nanoTime() - connectStart;
+            server.recordResult(true, connectNanos);
+            server.stats.recordConnect(connectNanos);
+            EpollSocketChannel backend = (EpollSocketChannel) future.channel();
+            splice(inbound, backend);
+            splice(backend, inbound);
+            inbound.config().setAutoRead(true);
+            backend.config().setAutoRead(true);
+        });
+    }
+
+    /**
+     * 从 from 搬运到 to, 一直到连接关闭
+     * spliceTo 的长度是 int, 搬够这么多字节 (约 2 GiB) 后 future 就会完成; Netty 4.1 目前把 Integer.MAX_VALUE 当作不限长度,
+     * 但这只是实现细节, future 成功完成时两端都还连着就接着搬;
+     * 只有搬运失败 (包括源连接关闭时未完成的 splice) 才在发完已搬运的数据后关闭两端, 正常断开由 channelInactive 和 PeerCloser 处理
+     */
+    private static void splice(EpollSocketChannel from, EpollSocketChannel to) {
+        from.spliceTo(to, Integer.MAX_VALUE).addListener((ChannelFutureListener) f -> {
+            if (f.isSuccess() && from.isActive() && to.isActive()) {
+                splice(from, to);
+            } else {
+                ProxyFrontendHandler.closeOnFlush(from);
+                ProxyFrontendHandler.closeOnFlush(to);
+            }
+        });
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (target != null) {
+            long now = System.nanoTime();
+            target.onEnd(connectNanos, now);
+            target.stats.recordExchange(connectNanos >= 0, -1, now - connectStart);
+            target = null;
+        }
+        if (outbound != null) ProxyFrontendHandler.closeOnFlush(outbound);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ctx.close();
+    }
+
+    /**
+     * 后端连接上的处理器, 后端断开时等已经搬运的数据写完再关闭客户端连接
+     * 收到 EPOLLRDHUP 时 Netty 只再 splice 一次 (管道满了就一个字节也搬不动) 就关闭输入, 后端 socket 里可能还有数据;
+     * 后端连接允许半关闭, 输入关闭后在这里直接从 fd 读出剩下的数据写给客户端 (排在已经 splice 的数据后面), 然后再关闭两端.
+     * 剩下的数据不超过后端 socket 的接收缓冲区
+     */
+    private static final class PeerCloser extends ChannelInboundHandlerAdapter {
+        private static final int DRAIN_CHUNK_SIZE = 64 * 1024;
+        private final Channel peer;
+
+        PeerCloser(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof ChannelInputShutdownEvent) {
+                drain(ctx, ((EpollSocketChannel) ctx.channel()).fd());
+                ProxyFrontendHandler.closeOnFlush(peer);
+                ctx.close();
+                return;
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+
+        /**
+         * 对端已经发了 FIN, read 只会返回数据或 EOF (-1); 读出错时剩下的数据也就没有了
+         */
+        private void drain(ChannelHandlerContext ctx, FileDescriptor fd) {
+            if (!peer.isActive()) return;
+            while (true) {
+                ByteBuf buf = ctx.alloc().directBuffer(DRAIN_CHUNK_SIZE);
+                int n;
+                try {
+                    ByteBuffer nio = buf.internalNioBuffer(0, DRAIN_CHUNK_SIZE);
+                    n = fd.read(nio, nio.position(), nio.limit());
+                } catch (IOException e) {
+                    n = -1;
+                }
+                if (n <= 0) {
+                    buf.release();
+                    break;
+                }
+                peer.write(buf.writerIndex(n), peer.voidPromise());
+            }
+            peer.flush();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            ProxyFrontendHandler.closeOnFlush(peer);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,268 @@
+package Server;
+
+import util.MimeType;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * 缩略图生成与磁盘缓存
+ * 缓存文件按 (文件名, 大小, 修改时间, 宽度) 的 SHA-256 命名, 源文件变化后自然换成新的 key;
+ * 内存里维护一份 LRU 索引记录每个缓存文件的大小, 总大小超过上限时删除最久未用的文件;
+ * 同一个 key 同时只会有一个生成任务, 其他请求等待同一个 Future.
+ * 返回的是缩略图的字节而不是缓存文件, 文件随时可能被另一个请求触发的淘汰删掉; 命中缓存时读不到文件就重新生成.
+ * 读缓存文件和生成都不在调用线程 (event loop) 上进行: 读文件用单独的小线程池, 不排在耗 CPU 的生成任务后面
+ */
+public class ThumbnailService {
+    // 宽度只允许这几档, 向上取整, 防止任意宽度把缓存撑满
+    private static final int[] WIDTHS = {64, 128, 256, 512, 1024};
+    private static final int DEFAULT_WIDTH = 256;
+    private static final int WORKER_THREADS = 2;
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int READER_THREADS = 2;
+    private static final int READER_QUEUE_CAPACITY = 256;
+
+    /**
+     * 生成好的缩略图
+     * @param data 图片内容
+     * @param etag 缓存 key, 同时用作 ETag
+     * @param mimeType 输出格式
+     */
+    public record Thumbnail(byte[] data, String etag, MimeType mimeType) { }
+
+    private final File sourceDir;
+    private final File cacheDir;
+    private volatile long maxCacheBytes;
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor readers;
+    private final Map<String, CompletableFuture<Thumbnail>> inFlight = new ConcurrentHashMap<>();
+    // 缓存文件名 -> 文件大小, accessOrder 的 LinkedHashMap 作为 LRU
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(64, 0.75f, true);
+    private long cacheBytes = 0;
+
+    public ThumbnailService(String sourceDir, String cacheDir, long maxCacheBytes) {
+        this.sourceDir = new File(sourceDir);
+        this.cacheDir = new File(cacheDir);
+        this.maxCacheBytes = maxCacheBytes;
+        this.workers = new ThreadPoolExecutor(
+                WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.readers = new ThreadPoolExecutor(
+                READER_THREADS, READER_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(READER_QUEUE_CAPACITY),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    /**
+     * 扫描缓存目录重建索引, 按修改时间从旧到新放入 LRU
+     */
+    public void start() {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            System.err.println("Failed to create thumbnail cache dir " + cacheDir);
+            return;
+        }
+        File[] files = cacheDir.listFiles(File::isFile);
+        if (files == null) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        synchronized (index) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                    continue;
+                }
+                index.put(file.getName(), file.length());
+                cacheBytes += file.length();
+            }
+            evict();
+        }
+    }
+
+    public void stop() {
+        workers.shutdownNow();
+        readers.shutdownNow();
+    }
+
+    /**
+     * 是否能为该文件生成缩略图
+     */
+    public static boolean isSupported(String filename) {
+        MimeType type = MimeType.fromFilename(filename);
+        return type == MimeType.PNG || type == MimeType.JPEG || type == MimeType.GIF || type == MimeType.BMP;
+    }
+
+    /**
+     * 把请求的宽度向上取整到允许的档位
+     */
+    public static int normalizeWidth(String width) {
+        if (width == null) return DEFAULT_WIDTH;
+        int w = Integer.parseInt(width);
+        for (int allowed : WIDTHS) {
+            if (w <= allowed) return allowed;
+        }
+        return WIDTHS[WIDTHS.length - 1];
+    }
+
+    /**
+     * 获取缩略图, 命中缓存时在 readers 上读出文件, 否则交给工作线程生成; 都不阻塞调用线程
+     * 队列已满时返回的 Future 以 RejectedExecutionException 失败
+     */
+    public CompletableFuture<Thumbnail> get(RepoSearchService.FileEntry source, int width) {
+        MimeType format = MimeType.fromFilename(source.name()) == MimeType.JPEG ? MimeType.JPEG : MimeType.PNG;
+        String key = cacheKey(source, width);
+        String cacheName = key + "." + format.getExtensions()[0];
+        File file = new File(cacheDir, cacheName);
+
+        Long size;
+        synchronized (index) {
+            size = index.get(cacheName);
+        }
+        if (size == null) return create(source, width, format, key, file);
+
+        CompletableFuture<Thumbnail> result = new CompletableFuture<>();
+        try {
+            readers.execute(() -> {
+                try {
+                    result.complete(new Thumbnail(Files.readAllBytes(file.toPath()), key, format));
+                } catch (NoSuchFileException e) {
+                    // 查索引之后被淘汰或者被外部删除, 从索引中去掉后重新生成
+                    synchronized (index) {
+                        if (index.remove(cacheName, size)) cacheBytes -= size;
+                    }
+                    create(source, width, format, key, file).whenComplete((thumbnail, error) -> {
+                        if (error != null) {
+                            result.completeExceptionally(error);
+                        } else {
+                            result.complete(thumbnail);
+                        }
+                    });
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * 交给工作线程生成, 同一个 key 已经在生成时返回同一个 Future
+     */
+    private CompletableFuture<Thumbnail> create(RepoSearchService.FileEntry source, int width, MimeType format,
+                                                String key, File file) {
+        CompletableFuture<Thumbnail> created = new CompletableFuture<>();
+        CompletableFuture<Thumbnail> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) return existing;
+        try {
+            workers.execute(() -> {
+                try {
+                    created.complete(new Thumbnail(generate(source, width, format, file), key, format));
+                } catch (Throwable t) {
+                    created.completeExceptionally(t);
+                } finally {
+                    inFlight.remove(key, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    /**
+     * 生成缩略图并写进缓存, 返回编码后的字节; 写入后可能马上被淘汰, 所以不再从文件读回
+     */
+    private byte[] generate(RepoSearchService.FileEntry source, int width, MimeType format, File file) throws IOException {
+        BufferedImage image = ImageIO.read(new File(sourceDir, source.name()));
+        if (image == null) throw new IOException("Unsupported image: " + source.name());
+
+        BufferedImage scaled = scale(image, Math.min(width, image.getWidth()), format == MimeType.PNG);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        if (!ImageIO.write(scaled, format.getExtensions()[0], encoded)) {
+            throw new IOException("No writer for " + format);
+        }
+        byte[] data = encoded.toByteArray();
+        File tmp = new File(cacheDir, file.getName() + ".tmp");
+        Files.write(tmp.toPath(), data);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        synchronized (index) {
+            Long old = index.put(file.getName(), (long) data.length);
+            if (old != null) cacheBytes -= old;
+            cacheBytes += data.length;
+            evict();
+        }
+        return data;
+    }
+
+    /**
+     * 逐步减半缩放, 比一次缩放到目标尺寸的双线性插值更清晰
+     */
+    private static BufferedImage scale(BufferedImage image, int targetWidth, boolean alpha) {
+        int targetHeight = Math.max(1, (int) Math.round((double) image.getHeight() * targetWidth / image.getWidth()));
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(targetWidth, w / 2);
+            h = Math.max(targetHeight, h / 2);
+            BufferedImage next = new BufferedImage(w, h, type);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (w != targetWidth || h != targetHeight);
+        return current;
+    }
+
+    /**
+     * 修改缓存容量, 调小时立即淘汰
+     */
+    public void setMaxCacheBytes(long maxCacheBytes) {
+        synchronized (index) {
+            this.maxCacheBytes = maxCacheBytes;
+            evict();
+        }
+    }
+
+    /**
+     * 超过容量时按 LRU 顺序删除缓存文件, 调用方持有 index 锁
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(cacheDir, eldest.getKey()).delete();
+            cacheBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private static String cacheKey(RepoSearchService.FileEntry source, int width) {
+        String raw = source.name() + '\0' + source.size() + '\0' + source.mtime() + '\0' + width;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(raw.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
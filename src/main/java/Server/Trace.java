@@ -0,0 +1,110 @@
+package Server;
+
+import io.netty.util.AttributeKey;
+
+/**
+ * 一个请求在一跳 (代理或后端) 上的耗时分解, 由 Tracer 创建
+ * 只在连接的 event loop 上修改; 异步处理的线程在把响应交回 event loop 之前写入, 由任务队列保证可见
+ */
+public final class Trace {
+    /**
+     * 耗时分段, 一个请求只会用到其中一部分; FILE 和 RENDER 包含在 HANDLER 里
+     */
+    public enum Span {
+        // TLS 握手, 只记在连接上的第一个请求; 发生在请求开始之前, 不计入总耗时
+        TLS,
+        // 代理: 等待准入名额
+        QUEUE,
+        // 代理: 等待合并的缓存回源
+        CACHE,
+        // 代理: 从连接池取到后端连接
+        CONNECT,
+        // 代理: 请求发给后端到收到响应头
+        UPSTREAM,
+        // 后端: 第一个字节到请求头解码完成
+        DECODE,
+        // 后端: 请求头到请求体聚合完成
+        AGGREGATE,
+        // 后端: 开始处理到写出响应头
+        HANDLER,
+        // 后端: 读文件
+        FILE,
+        // 后端: 页面模板替换和拼接
+        RENDER,
+        // 写出响应头到最后一个字节交给 socket
+        WRITE
+    }
+
+    private static final Span[] SPANS = Span.values();
+
+    static final AttributeKey<Trace> KEY = AttributeKey.valueOf("trace");
+
+    final long id;
+    final long startMillis;
+    final long startNanos;
+    final String method;
+    final String uri;
+    private final long[] spans = new long[SPANS.length];
+    private String idString;
+    // 响应状态码, 0 表示没有响应 (连接断开)
+    int status;
+    long totalNanos;
+    // 代理: 最后一次尝试的后端, 缓存直接响应时为 "cache"
+    String upstream;
+    int attempts;
+    // 各阶段开始的时间点, 由记录的一方使用
+    long headNanos;
+    long handlerNanos;
+    long responseNanos;
+
+    Trace(long id, long startNanos, String method, String uri) {
+        this.id = id;
+        this.startNanos = startNanos;
+        this.startMillis = System.currentTimeMillis() - (System.nanoTime() - startNanos) / 1_000_000;
+        this.method = method;
+        this.uri = uri;
+    }
+
+    public void add(Span span, long nanos) {
+        if (nanos > 0) spans[span.ordinal()] += nanos;
+    }
+
+    /**
+     * 记入从 since 到现在的耗时
+     */
+    public void since(Span span, long since) {
+        add(span, System.nanoTime() - since);
+    }
+
+    public long get(Span span) {
+        return spans[span.ordinal()];
+    }
+
+    static Span[] spans() {
+        return SPANS;
+    }
+
+    public String idString() {
+        if (idString == null) idString = formatId(id);
+        return idString;
+    }
+
+    /**
+     * 16 位小写十六进制, 和 X-Trace-Id 头的格式一致
+     */
+    static String formatId(long id) {
+        String hex = Long.toHexString(id);
+        return hex.length() == 16 ? hex : "0".repeat(16 - hex.length()) + hex;
+    }
+
+    /**
+     * @return 合法的 16 位十六进制 ID, 否则为 0 (0 不会被生成)
+     */
+    static long parseId(String value) {
+        if (value == null || value.length() != 16) return 0;
+        for (int i = 0; i < 16; i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) return 0;
+        }
+        return Long.parseUnsignedLong(value, 16);
+    }
+}
@@ -0,0 +1,196 @@
+package Server;
+
+import io.netty.handler.codec.http.HttpRequest;
+import util.Json;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 请求追踪: 每个请求都有一个 Trace 记录各阶段耗时, 结束时决定是否保存
+ * 后端沿用请求里合法的 X-Trace-Id, 否则生成新的; 代理在客户端一侧总是生成新的 (客户端不能借此强制抽样),
+ * 再把 ID 转发给后端, 两边的响应都带上这个头.
+ * 是否保存只由 ID 决定 (ID 的高 53 位按均匀分布和 sampleRate 比较), 同一个请求在代理和后端上要么都保存要么都不保存;
+ * 总耗时达到 slowMs 的请求总是保存, p99 的离群值不会被抽样漏掉.
+ * 保存的追踪放进固定大小的环形缓冲区, 新的覆盖旧的, 可选同时追加到日志文件;
+ * 日志由一个单独的线程格式化和写入, 队列空了才 flush, 队列满时丢弃并计数, event loop 不会阻塞在文件上
+ */
+public class Tracer {
+    static final CharSequence X_TRACE_ID = "X-Trace-Id";
+    private static final int LOG_QUEUE_CAPACITY = 10_000;
+
+    private final Settings.Key<Double> sampleRate;
+    private final Settings.Key<Long> slowMs;
+    private final AtomicReferenceArray<Trace> ring;
+    private final AtomicLong next = new AtomicLong();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder kept = new LongAdder();
+    private final LongAdder logDropped = new LongAdder();
+    private final boolean trustIncomingId;
+    // 只在日志线程上使用
+    private PrintWriter logWriter;
+    private ThreadPoolExecutor logExecutor;
+
+    /**
+     * @param trustIncomingId 是否沿用请求里的 X-Trace-Id; 直接面对客户端的代理传 false
+     * @param logFile         为空时不写日志
+     */
+    public Tracer(Settings.Key<Double> sampleRate, Settings.Key<Long> slowMs, int bufferSize, String logFile,
+                  boolean trustIncomingId) {
+        this.sampleRate = sampleRate;
+        this.slowMs = slowMs;
+        this.ring = new AtomicReferenceArray<>(bufferSize);
+        this.trustIncomingId = trustIncomingId;
+        if (!logFile.isEmpty()) {
+            try {
+                this.logWriter = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)));
+                this.logExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(LOG_QUEUE_CAPACITY), r -> {
+                            Thread t = new Thread(r, "trace-log");
+                            t.setDaemon(true);
+                            return t;
+                        }, new ThreadPoolExecutor.AbortPolicy());
+            } catch (IOException e) {
+                System.err.println("Failed to open trace log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 收到请求头时调用
+     * @param startNanos 请求开始的时间 (后端是读到第一个字节的时间)
+     */
+    public Trace start(HttpRequest request, long startNanos) {
+        long id = trustIncomingId ? Trace.parseId(request.headers().get(X_TRACE_ID)) : 0;
+        while (id == 0) id = ThreadLocalRandom.current().nextLong();
+        started.increment();
+        return new Trace(id, startNanos, request.method().name(), request.uri());
+    }
+
+    /**
+     * 请求结束, 每个 Trace 只调用一次
+     * @param status 响应状态码, 0 表示没有响应
+     */
+    public void finish(Trace trace, int status, long endNanos) {
+        trace.status = status;
+        trace.totalNanos = endNanos - trace.startNanos;
+        if (!isSampled(trace.id) && trace.totalNanos < slowMs.get() * 1_000_000) return;
+        kept.increment();
+        ring.set((int) (next.getAndIncrement() % ring.length()), trace);
+        if (logExecutor != null) {
+            try {
+                logExecutor.execute(() -> log(trace));
+            } catch (RejectedExecutionException e) {
+                logDropped.increment();
+            }
+        }
+    }
+
+    private boolean isSampled(long id) {
+        double rate = sampleRate.get();
+        return rate >= 1 || (id >>> 11) * 0x1.0p-53 < rate;
+    }
+
+    /**
+     * 在日志线程上执行
+     */
+    private void log(Trace trace) {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append(Instant.ofEpochMilli(trace.startMillis)).append(' ')
+          .append(trace.idString()).append(' ')
+          .append(trace.method).append(' ')
+          .append(trace.uri).append(' ')
+          .append(trace.status)
+          .append(" total=").append(millis(trace.totalNanos)).append("ms");
+        for (Trace.Span span : Trace.spans()) {
+            long nanos = trace.get(span);
+            if (nanos > 0) sb.append(' ').append(span.name().toLowerCase(Locale.ROOT)).append('=').append(millis(nanos)).append("ms");
+        }
+        if (trace.upstream != null) sb.append(" upstream=").append(trace.upstream).append(" attempts=").append(trace.attempts);
+        logWriter.println(sb);
+        if (logExecutor.getQueue().isEmpty()) logWriter.flush();
+    }
+
+    /**
+     * 最近保存的追踪, 新的在前
+     * @param id       只要这个 ID 的追踪, null 表示不限
+     * @param minMillis 只要总耗时不低于这个值的追踪
+     * @param limit    最多返回的条数
+     */
+    public String toJson(String id, double minMillis, int limit) {
+        long wanted = id == null ? 0 : Trace.parseId(id);
+        StringBuilder sb = new StringBuilder("{\"started\":").append(started.sum())
+                .append(",\"kept\":").append(kept.sum())
+                .append(",\"logDropped\":").append(logDropped.sum())
+                .append(",\"sampleRate\":").append(sampleRate.get())
+                .append(",\"slowMs\":").append(slowMs.get())
+                .append(",\"traces\":[");
+        long end = next.get();
+        int count = 0;
+        for (long i = end - 1; i >= 0 && i >= end - ring.length() && count < limit; i--) {
+            Trace trace = ring.get((int) (i % ring.length()));
+            if (trace == null) continue;
+            if (id != null && trace.id != wanted) continue;
+            if (trace.totalNanos < minMillis * 1_000_000) continue;
+            if (count++ > 0) sb.append(',');
+            appendJson(sb, trace);
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void appendJson(StringBuilder sb, Trace trace) {
+        sb.append("{\"id\":\"").append(trace.idString()).append('"')
+          .append(",\"start\":\"").append(Instant.ofEpochMilli(trace.startMillis)).append('"')
+          .append(",\"method\":");
+        Json.appendQuoted(sb, trace.method);
+        sb.append(",\"uri\":");
+        Json.appendQuoted(sb, trace.uri);
+        sb.append(",\"status\":").append(trace.status)
+          .append(",\"totalMs\":").append(millis(trace.totalNanos));
+        if (trace.upstream != null) {
+            sb.append(",\"upstream\":");
+            Json.appendQuoted(sb, trace.upstream);
+            sb.append(",\"attempts\":").append(trace.attempts);
+        }
+        sb.append(",\"spans\":{");
+        boolean first = true;
+        for (Trace.Span span : Trace.spans()) {
+            long nanos = trace.get(span);
+            if (nanos <= 0) continue;
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(span.name().toLowerCase(Locale.ROOT)).append("\":").append(millis(nanos));
+        }
+        sb.append("}}");
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    public long getStarted() { return started.sum(); }
+    public long getKept() { return kept.sum(); }
+    public long getLogDropped() { return logDropped.sum(); }
+
+    /**
+     * 写完已经排队的日志再关闭文件
+     */
+    public void close() {
+        if (logExecutor == null) return;
+        logExecutor.shutdown();
+        try {
+            if (!logExecutor.awaitTermination(5, TimeUnit.SECONDS)) logExecutor.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logWriter.close();
+    }
+}
@@ -0,0 +1,392 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.cookie.ClientCookieDecoder;
+import io.netty.handler.codec.http.cookie.Cookie;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * 流量录制: 按比例抽样, 把请求的方法, URI, 头部和请求体 (超过上限时截断) 连同响应的状态码, 长度和 CRC32 写进二进制文件,
+ * 由 TrafficReplay 回放并比较响应. 处理器放在 HttpServerCodec 后面, 只有配置了录制文件时才加入 pipeline.
+ * 文件里有原样的 Cookie 和登录表单, 创建时只给所有者读写权限.
+ * event loop 只负责收集, 编码和写文件都在一个单独的线程上; 它的队列满时丢弃记录并计数.
+ *
+ * 文件格式 (DataOutputStream, 大端):
+ *   文件头  int MAGIC, int VERSION
+ *   记录    long 开始时间 (epoch 微秒), long 耗时 (微秒), UTF 方法, UTF URI,
+ *           short 头部个数, 每个头部 UTF 名称 UTF 值,
+ *           int 请求体原始长度, int 录下的长度, 请求体字节,
+ *           short 状态码 (0 表示没有响应), long 响应体长度, int 响应体 CRC32, UTF 响应设置的 sessionId (没有时为空)
+ */
+public class TrafficCapture {
+    static final int MAGIC = 0x48434150;
+    static final int VERSION = 1;
+    private static final String SESSION_COOKIE = "sessionId";
+    // 每条记录最多带 maxBodyBytes 的请求体, 队列不宜太长
+    private static final int WRITE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * 一条录下的请求和响应摘要
+     * @param bodyLength 请求体的原始长度, 大于 body.length 说明被截断
+     * @param sessionId  响应通过 Set-Cookie 设置的 sessionId, 没有时为空串; 回放时用来把录下的会话对应到新会话
+     */
+    record Record(long startMicros, long durationMicros, String method, String uri, List<Map.Entry<String, String>> headers,
+                  int bodyLength, byte[] body, int status, long responseLength, int responseCrc, String sessionId) {
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(startMicros);
+            out.writeLong(durationMicros);
+            out.writeUTF(method);
+            out.writeUTF(uri);
+            out.writeShort(headers.size());
+            for (Map.Entry<String, String> header : headers) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+            out.writeInt(bodyLength);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(status);
+            out.writeLong(responseLength);
+            out.writeInt(responseCrc);
+            out.writeUTF(sessionId);
+        }
+
+        /**
+         * @return 文件结束时为 null
+         */
+        static Record read(DataInputStream in) throws IOException {
+            long startMicros;
+            try {
+                startMicros = in.readLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            long durationMicros = in.readLong();
+            String method = in.readUTF();
+            String uri = in.readUTF();
+            int headerCount = in.readUnsignedShort();
+            List<Map.Entry<String, String>> headers = new ArrayList<>(headerCount);
+            for (int i = 0; i < headerCount; i++) headers.add(Map.entry(in.readUTF(), in.readUTF()));
+            int bodyLength = in.readInt();
+            byte[] body = in.readNBytes(in.readInt());
+            int status = in.readUnsignedShort();
+            long responseLength = in.readLong();
+            int responseCrc = in.readInt();
+            String sessionId = in.readUTF();
+            return new Record(startMicros, durationMicros, method, uri, headers, bodyLength, body,
+                    status, responseLength, responseCrc, sessionId);
+        }
+    }
+
+    /**
+     * 打开录制文件并检查文件头
+     */
+    static DataInputStream open(Path file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+        if (in.readInt() != MAGIC) {
+            in.close();
+            throw new IOException("Not a capture file: " + file);
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            in.close();
+            throw new IOException("Unsupported capture file version " + version + ": " + file);
+        }
+        return in;
+    }
+
+    private final Settings.Key<Double> sampleRate;
+    private final Settings.Key<Integer> maxBodyBytes;
+    private final Settings.Key<Long> maxFileBytes;
+    // 开始时间换算成 epoch 微秒, 用 nanoTime 保证单调
+    private final long baseMicros = System.currentTimeMillis() * 1000;
+    private final long baseNanos = System.nanoTime();
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // 以下只在写线程上使用 (构造时除外)
+    private final ExecutorService writer;
+    private OutputStream out;
+    // 每条记录先编码到这里, 写进文件的字节数才好统计
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream(1024);
+    private final DataOutputStream encoder = new DataOutputStream(encoded);
+    private long written;
+    // 文件没有打开, 已经关闭或达到上限
+    private volatile boolean stopped = false;
+
+    /**
+     * 文件已存在时追加记录, 不存在时新建并写文件头; 打开失败时不录制
+     */
+    public TrafficCapture(Settings.Key<Double> sampleRate, Settings.Key<Integer> maxBodyBytes,
+                          Settings.Key<Long> maxFileBytes, String file) {
+        this.sampleRate = sampleRate;
+        this.maxBodyBytes = maxBodyBytes;
+        this.maxFileBytes = maxFileBytes;
+        Path path = Paths.get(file);
+        try {
+            boolean exists = Files.exists(path);
+            if (!exists) {
+                Files.createFile(path);
+                try {
+                    Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+                } catch (UnsupportedOperationException e) {
+                    // 不是 POSIX 文件系统
+                }
+            } else {
+                truncateIncomplete(path);
+            }
+            out = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.APPEND), 1 << 16);
+            written = Files.size(path);
+            if (!exists) {
+                encoder.writeInt(MAGIC);
+                encoder.writeInt(VERSION);
+                encoded.writeTo(out);
+                written += encoded.size();
+                encoded.reset();
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to open capture file " + file + ": " + e.getMessage());
+            out = null;
+            stopped = true;
+        }
+        writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WRITE_QUEUE_CAPACITY), r -> {
+                    Thread t = new Thread(r, "traffic-capture");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 进程被强制结束时文件末尾可能有写了一半的记录, 追加之前截掉, 否则后面的记录都读不出来
+     */
+    private static void truncateIncomplete(Path path) throws IOException {
+        long[] position = new long[1];
+        long valid;
+        try (DataInputStream in = open(path)) {
+            // open 已经读过文件头, 之后从 8 开始计数
+            position[0] = 8;
+            DataInputStream counted = new DataInputStream(new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) position[0]++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) position[0] += n;
+                    return n;
+                }
+            });
+            valid = position[0];
+            try {
+                while (Record.read(counted) != null) valid = position[0];
+            } catch (IOException e) {
+                // 写了一半的记录
+            }
+        }
+        if (valid < Files.size(path)) {
+            System.err.println("Truncating incomplete capture record at offset " + valid + " of " + path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    /**
+     * 每个连接一个处理器
+     */
+    public ChannelHandler newHandler() {
+        return new Handler();
+    }
+
+    /**
+     * 交给写线程, 在 event loop 上调用
+     */
+    private void submit(Record record) {
+        if (stopped) return;
+        try {
+            writer.execute(() -> write(record));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * 在写线程上执行
+     */
+    private void write(Record record) {
+        if (out == null || stopped) return;
+        try {
+            encoded.reset();
+            record.write(encoder);
+            encoded.writeTo(out);
+            written += encoded.size();
+            captured.increment();
+            if (written >= maxFileBytes.get()) {
+                stopped = true;
+                out.flush();
+                System.err.println("Capture file reached " + written + " bytes, capture stopped");
+            }
+        } catch (IOException e) {
+            // 比如字符串超过 writeUTF 的 64K 上限, 丢掉这一条
+            System.err.println("Failed to write capture record: " + e.getMessage());
+        }
+    }
+
+    private long nowMicros() {
+        return baseMicros + (System.nanoTime() - baseNanos) / 1000;
+    }
+
+    public long getCaptured() {
+        return captured.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 写完已经排队的记录再关闭文件
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) writer.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopped = true;
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close capture file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * 一个正在进行的请求, 请求体读完之前响应就可能开始
+     */
+    private static final class Pending {
+        final long startMicros;
+        final String method;
+        final String uri;
+        final List<Map.Entry<String, String>> headers;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int bodyLength;
+        int status;
+        long responseLength;
+        final CRC32 crc = new CRC32();
+        String sessionId = "";
+
+        Pending(long startMicros, HttpRequest request) {
+            this.startMicros = startMicros;
+            this.method = request.method().name();
+            this.uri = request.uri();
+            this.headers = new ArrayList<>(request.headers().size());
+            for (Map.Entry<String, String> header : request.headers()) headers.add(Map.entry(header.getKey(), header.getValue()));
+        }
+    }
+
+    // 没有抽中的请求在队列里的占位
+    private static final Pending SKIP = new Pending(0, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+
+    /**
+     * 流水线上的请求按顺序响应, 用队列对应; 1xx 响应不结束请求
+     */
+    private final class Handler extends ChannelDuplexHandler {
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        // 正在读请求体的请求
+        private Pending reading;
+        private boolean informational = false;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest request) {
+                double rate = sampleRate.get();
+                boolean sampled = !stopped && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+                reading = sampled ? new Pending(nowMicros(), request) : SKIP;
+                pending.addLast(reading);
+            }
+            if (msg instanceof HttpContent content && reading != null && reading != SKIP) {
+                ByteBuf buf = content.content();
+                int length = buf.readableBytes();
+                int room = maxBodyBytes.get() - reading.body.size();
+                if (room > 0) buf.getBytes(buf.readerIndex(), reading.body, Math.min(room, length));
+                reading.bodyLength += length;
+            }
+            if (msg instanceof LastHttpContent) reading = null;
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            Pending current = pending.peekFirst();
+            if (msg instanceof HttpResponse response) {
+                informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+                if (current != null && current != SKIP && !informational) {
+                    current.status = response.status().code();
+                    for (String header : response.headers().getAll(HttpHeaderNames.SET_COOKIE)) {
+                        Cookie cookie = ClientCookieDecoder.LAX.decode(header);
+                        if (cookie != null && SESSION_COOKIE.equals(cookie.name())) current.sessionId = cookie.value();
+                    }
+                }
+            }
+            if (msg instanceof HttpContent content && current != null && current != SKIP && !informational) {
+                ByteBuf buf = content.content();
+                current.responseLength += buf.readableBytes();
+                if (buf.isReadable()) current.crc.update(buf.nioBuffer());
+            }
+            if (msg instanceof LastHttpContent) {
+                if (!informational) {
+                    pending.pollFirst();
+                    if (current != null && current != SKIP) finish(current);
+                }
+                informational = false;
+            }
+            ctx.write(msg, promise);
+        }
+
+        private void finish(Pending p) {
+            try {
+                submit(new Record(p.startMicros, nowMicros() - p.startMicros, p.method, p.uri, p.headers,
+                        p.bodyLength, p.body.toByteArray(), p.status, p.responseLength, (int) p.crc.getValue(), p.sessionId));
+            } catch (RuntimeException e) {
+                System.err.println("Failed to capture " + p.method + " " + p.uri + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            // 没有写完响应的请求也录下, 回放时按录下的状态码 0 比较
+            Pending p;
+            while ((p = pending.pollFirst()) != null) {
+                if (p == SKIP) continue;
+                p.status = 0;
+                finish(p);
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+}
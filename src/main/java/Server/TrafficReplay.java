@@ -0,0 +1,591 @@
+package Server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.cookie.ClientCookieDecoder;
+import io.netty.handler.codec.http.cookie.ClientCookieEncoder;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.DefaultCookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.netty.util.concurrent.ScheduledFuture;
+import util.Histogram;
+import util.Json;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * 回放 TrafficCapture 录下的流量, 可以打 HttpWebServer 也可以打 ReverseProxyServer, 只允许本机回环地址
+ * --speed=1 按录制时的时间间隔发出请求, 其他倍数按比例加速或减速, --speed=max 尽快发出 (最多 connections 个并发).
+ * 定速回放是开环的: 每个请求有计划时间, 没有空闲连接时新建 (最多 connections 个) 或排队, 延迟从计划时间算起;
+ * max 时延迟从发出请求算起.
+ * 请求头原样发出, 去掉逐跳头部和 X-Trace-Id, Host 换成目标地址, 录制时截断的请求体按截断后的长度发出.
+ * 录制时响应设置的 sessionId 对应到回放时得到的新 sessionId, 之后请求里的 Cookie 换成新值, 登录后的请求回放时同样是登录状态.
+ * 同一个录下的会话的请求按录制顺序一个接一个发出: 前一个 (包括设置这个 sessionId 的登录) 还没有响应时后面的先留在队列里,
+ * 不会在会话对应关系建立之前就带着旧的 Cookie 发出去; 等待的时间计入定速回放的延迟.
+ * /admin/shutdown 和 /upload 默认跳过 (计入 skipped), 加 --destructive=true 才回放.
+ * 每个响应和录下的比较: 状态码不同, 或者状态码相同但响应体长度或 CRC32 不同都算分歧, 按路由 (方法和路径) 统计,
+ * 并列出录制时和回放时的延迟
+ *
+ * 用法: TrafficReplay --file=capture.bin [--target=localhost:8080] [--speed=1|倍数|max] [--connections=16]
+ *       [--limit=N] [--timeout=秒] [--destructive=true] [--output=text|json] [--json=文件]
+ */
+public class TrafficReplay {
+    private static final String SESSION_COOKIE = "sessionId";
+    private static final long TICK_MICROS = 500;
+    // 每个连接最多提前读入的记录数, max 时不会把整个文件读进内存
+    private static final int READ_AHEAD_PER_CONNECTION = 4;
+    // 会停掉或改动目标服务器的路由 (路径前缀), 默认不回放
+    private static final List<String> DESTRUCTIVE_ROUTES = List.of("/admin/shutdown", "/upload");
+
+    private final Path file;
+    private final String host;
+    private final int port;
+    // 0 表示 max
+    private final double speed;
+    private final int maxConnections;
+    private final long limit;
+    private final long timeoutNanos;
+    private final boolean destructive;
+
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicInteger active = new AtomicInteger();
+    // 录制时的 sessionId -> 回放时的 sessionId
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+
+    // 调度状态, 只在 dispatcher 上访问
+    private EventLoop dispatcher;
+    private DataInputStream in;
+    private TrafficCapture.Record lookahead;
+    private boolean eof = false;
+    private long firstMicros = -1;
+    private long replayStart;
+    private long read = 0;
+    private final ArrayDeque<Job> pending = new ArrayDeque<>();
+    private final ArrayDeque<Client> idle = new ArrayDeque<>();
+    private final List<Client> clients = new ArrayList<>();
+    // 有请求在途的录下的 sessionId
+    private final Set<String> busySessions = new HashSet<>();
+    private long maxBacklog = 0;
+
+    // 统计
+    private final Histogram replayLatency = new Histogram();
+    private final Histogram capturedLatency = new Histogram();
+    private final Map<String, RouteStats> routes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> statusChanges = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder statusDiverged = new LongAdder();
+    private final LongAdder bodyDiverged = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private long elapsedNanos;
+
+    private static final class RouteStats {
+        final Histogram replay = new Histogram();
+        final Histogram captured = new Histogram();
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder statusDiverged = new LongAdder();
+        final LongAdder bodyDiverged = new LongAdder();
+    }
+
+    /**
+     * @param session 请求 Cookie 里录下的 sessionId, 没有时为 null
+     * @param creates 响应设置的录下的 sessionId, 没有时为 null; 之后用这个 sessionId 的请求要等它完成
+     */
+    private record Job(TrafficCapture.Record record, long intended, String session, String creates) {
+        Job(TrafficCapture.Record record, long intended) {
+            this(record, intended, capturedSession(record), record.sessionId().isEmpty() ? null : record.sessionId());
+        }
+    }
+
+    TrafficReplay(Map<String, String> options) throws IOException {
+        if (!options.containsKey("file")) throw new IllegalArgumentException("--file is required");
+        this.file = Path.of(options.get("file"));
+        String target = options.getOrDefault("target", "localhost:8080");
+        int colon = target.lastIndexOf(':');
+        this.host = target.substring(0, colon);
+        this.port = Integer.parseInt(target.substring(colon + 1));
+        if (!InetAddress.getByName(host).isLoopbackAddress()) {
+            throw new IllegalArgumentException("Only loopback targets are allowed: " + target);
+        }
+        String speedOption = options.getOrDefault("speed", "1");
+        this.speed = speedOption.equalsIgnoreCase("max") ? 0 : Double.parseDouble(speedOption);
+        if (!speedOption.equalsIgnoreCase("max") && speed <= 0) throw new IllegalArgumentException("speed must be positive or max");
+        this.maxConnections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        if (maxConnections <= 0) throw new IllegalArgumentException("connections must be positive");
+        this.limit = Long.parseLong(options.getOrDefault("limit", String.valueOf(Long.MAX_VALUE)));
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("timeout", "30")));
+        this.destructive = Boolean.parseBoolean(options.getOrDefault("destructive", "false"));
+
+        this.group = new NioEventLoopGroup(Math.min(maxConnections, Runtime.getRuntime().availableProcessors()));
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 5000);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Bad argument: " + arg + " (expected --name=value)");
+                System.exit(2);
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        TrafficReplay replay = new TrafficReplay(options);
+        try {
+            replay.run();
+        } finally {
+            replay.group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+        String json = replay.toJson();
+        if (options.containsKey("json")) Files.writeString(Path.of(options.get("json")), json);
+        if ("json".equals(options.get("output"))) {
+            System.out.println(json);
+        } else {
+            replay.printText();
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        in = TrafficCapture.open(file);
+        dispatcher = group.next();
+        replayStart = System.nanoTime();
+        ScheduledFuture<?> ticker = dispatcher.scheduleAtFixedRate(this::tick, 0, TICK_MICROS, TimeUnit.MICROSECONDS);
+        done.await();
+        ticker.cancel(false);
+        elapsedNanos = System.nanoTime() - replayStart;
+        in.close();
+        for (Client client : clients) client.loop.execute(client::close);
+    }
+
+    /**
+     * 读入计划时间已到的记录, 交给空闲连接; 文件读完且没有在途请求时结束
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        while (!eof && pending.size() < maxConnections * READ_AHEAD_PER_CONNECTION) {
+            if (lookahead == null) {
+                lookahead = readNext();
+                if (lookahead == null) break;
+            }
+            long intended = speed == 0 ? now
+                    : replayStart + (long) ((lookahead.startMicros() - firstMicros) * 1000 / speed);
+            if (intended > now) break;
+            pending.addLast(new Job(lookahead, intended));
+            lookahead = null;
+        }
+        dispatch();
+        if (eof && pending.isEmpty() && active.get() == 0) done.countDown();
+    }
+
+    /**
+     * 下一条要回放的记录, 跳过的记录不计入 limit
+     */
+    private TrafficCapture.Record readNext() {
+        while (read < limit) {
+            TrafficCapture.Record record;
+            try {
+                record = TrafficCapture.Record.read(in);
+            } catch (IOException e) {
+                // 录制进程被强制结束时最后一条可能不完整
+                System.err.println("Stopped reading " + file + " after " + read + " records: " + e);
+                break;
+            }
+            if (record == null) break;
+            if (firstMicros < 0) firstMicros = record.startMicros();
+            if (!destructive && isDestructive(record.uri())) {
+                skipped.increment();
+                continue;
+            }
+            read++;
+            return record;
+        }
+        eof = true;
+        return null;
+    }
+
+    private static boolean isDestructive(String uri) {
+        int query = uri.indexOf('?');
+        String path = query < 0 ? uri : uri.substring(0, query);
+        for (String route : DESTRUCTIVE_ROUTES) {
+            if (path.startsWith(route)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 请求 Cookie 里的 sessionId
+     */
+    private static String capturedSession(TrafficCapture.Record record) {
+        for (Map.Entry<String, String> header : record.headers()) {
+            if (!header.getKey().equalsIgnoreCase(HttpHeaderNames.COOKIE.toString())) continue;
+            for (Cookie cookie : ServerCookieDecoder.LAX.decodeAll(header.getValue())) {
+                if (SESSION_COOKIE.equals(cookie.name())) return cookie.value();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按顺序发出可以发的请求; 会话还有请求在途, 或者前面有同一会话的请求在等时留在队列里
+     */
+    private void dispatch() {
+        Set<String> held = null;
+        for (Iterator<Job> it = pending.iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            if (blocked(job.session(), held) || blocked(job.creates(), held)) {
+                if (held == null) held = new HashSet<>();
+                if (job.session() != null) held.add(job.session());
+                if (job.creates() != null) held.add(job.creates());
+                continue;
+            }
+            Client client = idle.pollFirst();
+            if (client == null) {
+                if (clients.size() >= maxConnections) break;
+                client = new Client(group.next());
+                clients.add(client);
+            }
+            it.remove();
+            if (job.session() != null) busySessions.add(job.session());
+            if (job.creates() != null) busySessions.add(job.creates());
+            active.incrementAndGet();
+            Client chosen = client;
+            chosen.loop.execute(() -> chosen.start(job));
+        }
+        maxBacklog = Math.max(maxBacklog, pending.size());
+    }
+
+    private boolean blocked(String session, Set<String> held) {
+        return session != null && (busySessions.contains(session) || (held != null && held.contains(session)));
+    }
+
+    private void onClientIdle(Client client, Job job) {
+        dispatcher.execute(() -> {
+            active.decrementAndGet();
+            if (job.session() != null) busySessions.remove(job.session());
+            if (job.creates() != null) busySessions.remove(job.creates());
+            idle.addLast(client);
+            dispatch();
+        });
+    }
+
+    /**
+     * 由录下的请求构造回放的请求
+     */
+    private FullHttpRequest toRequest(TrafficCapture.Record record) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(record.method()),
+                record.uri(), Unpooled.wrappedBuffer(record.body()));
+        HttpHeaders headers = request.headers();
+        for (Map.Entry<String, String> header : record.headers()) headers.add(header.getKey(), header.getValue());
+        HttpProxyFrontendHandler.stripHopByHop(headers);
+        headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+        headers.remove(HttpHeaderNames.EXPECT);
+        headers.remove(Tracer.X_TRACE_ID);
+        headers.set(HttpHeaderNames.HOST, host + ":" + port);
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, record.body().length);
+        String cookieHeader = headers.get(HttpHeaderNames.COOKIE);
+        if (cookieHeader != null && cookieHeader.contains(SESSION_COOKIE)) {
+            headers.set(HttpHeaderNames.COOKIE, remapSession(cookieHeader));
+        }
+        return request;
+    }
+
+    private String remapSession(String cookieHeader) {
+        List<Cookie> cookies = new ArrayList<>();
+        for (Cookie cookie : ServerCookieDecoder.LAX.decodeAll(cookieHeader)) {
+            String replayed = SESSION_COOKIE.equals(cookie.name()) ? sessions.get(cookie.value()) : null;
+            cookies.add(replayed == null ? cookie : new DefaultCookie(SESSION_COOKIE, replayed));
+        }
+        return ClientCookieEncoder.LAX.encode(cookies);
+    }
+
+    /**
+     * 记录一个回放结果
+     * @param status 0 表示连接失败, 超时或连接提前关闭
+     */
+    private void onResult(Job job, long latencyNanos, int status, long length, int crc, String sessionId) {
+        TrafficCapture.Record record = job.record();
+        String uri = record.uri();
+        String route = record.method() + " " + (uri.contains("?") ? uri.substring(0, uri.indexOf('?')) : uri);
+        RouteStats stats = routes.computeIfAbsent(route, k -> new RouteStats());
+        requests.increment();
+        stats.requests.increment();
+        if (record.bodyLength() > record.body().length) truncated.increment();
+        capturedLatency.record(record.durationMicros());
+        stats.captured.record(record.durationMicros());
+        if (status == 0) {
+            errors.increment();
+            stats.errors.increment();
+        } else {
+            long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+            replayLatency.record(micros);
+            stats.replay.record(micros);
+        }
+        if (status != record.status()) {
+            statusDiverged.increment();
+            stats.statusDiverged.increment();
+            statusChanges.computeIfAbsent(record.status() + " -> " + status, k -> new LongAdder()).increment();
+        } else if (status != 0 && (length != record.responseLength() || crc != record.responseCrc())) {
+            bodyDiverged.increment();
+            stats.bodyDiverged.increment();
+        }
+        if (!record.sessionId().isEmpty()) {
+            if (sessionId == null || sessionId.isEmpty()) {
+                sessions.remove(record.sessionId());
+            } else {
+                sessions.put(record.sessionId(), sessionId);
+            }
+        }
+    }
+
+    /**
+     * 一个到目标的连接, 同一时间只有一个请求; 所有状态只在自己的 event loop 上访问
+     */
+    private final class Client {
+        final EventLoop loop;
+        Channel channel;
+        Job job;
+        long sendNanos;
+        // 正在等待响应的连接, 连接提前关闭时用来判断是否失败
+        Channel waiting;
+        ScheduledFuture<?> timeout;
+
+        Client(EventLoop loop) {
+            this.loop = loop;
+        }
+
+        void start(Job job) {
+            this.job = job;
+            sendNanos = System.nanoTime();
+            if (channel != null && channel.isActive()) {
+                send();
+                return;
+            }
+            connects.increment();
+            bootstrap.clone(loop)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline()
+                              .addLast(new HttpClientCodec())
+                              .addLast(new ResponseReader(Client.this));
+                        }
+                    })
+                    .connect(host, port)
+                    .addListener((ChannelFutureListener) f -> {
+                        if (f.isSuccess()) {
+                            channel = f.channel();
+                            send();
+                        } else {
+                            finish(0, 0, 0, null);
+                        }
+                    });
+        }
+
+        private void send() {
+            waiting = channel;
+            timeout = loop.schedule(() -> {
+                timeout = null;
+                closeChannel();
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+            channel.writeAndFlush(toRequest(job.record()));
+        }
+
+        void onResponse(HttpResponse response, long length, int crc) {
+            waiting = null;
+            String sessionId = null;
+            for (String header : response.headers().getAll(HttpHeaderNames.SET_COOKIE)) {
+                Cookie cookie = ClientCookieDecoder.LAX.decode(header);
+                if (cookie != null && SESSION_COOKIE.equals(cookie.name())) {
+                    sessionId = cookie.maxAge() == 0 ? "" : cookie.value();
+                }
+            }
+            if (!HttpUtil.isKeepAlive(response)) closeChannel();
+            finish(response.status().code(), length, crc, sessionId);
+        }
+
+        void onChannelClosed(Channel ch) {
+            if (ch == channel) channel = null;
+            if (ch == waiting) {
+                waiting = null;
+                finish(0, 0, 0, null);
+            }
+        }
+
+        private void finish(int status, long length, int crc, String sessionId) {
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+            long now = System.nanoTime();
+            Job finished = job;
+            onResult(finished, now - (speed == 0 ? sendNanos : finished.intended()), status, length, crc, sessionId);
+            job = null;
+            onClientIdle(this, finished);
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                Channel ch = channel;
+                channel = null;
+                ch.close();
+            }
+        }
+
+        void close() {
+            closeChannel();
+        }
+    }
+
+    /**
+     * 读响应, 不聚合响应体, 只统计字节数和 CRC32
+     */
+    private static final class ResponseReader extends SimpleChannelInboundHandler<HttpObject> {
+        private final Client client;
+        private HttpResponse response;
+        private long length;
+        private final CRC32 crc = new CRC32();
+
+        ResponseReader(Client client) {
+            this.client = client;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (msg instanceof HttpResponse r) {
+                response = r;
+                length = 0;
+                crc.reset();
+            }
+            if (msg instanceof HttpContent content) {
+                ByteBuf buf = content.content();
+                length += buf.readableBytes();
+                if (buf.isReadable()) crc.update(buf.nioBuffer());
+            }
+            if (msg instanceof LastHttpContent && response != null) {
+                HttpResponse done = response;
+                response = null;
+                if (done.status().codeClass() != HttpStatusClass.INFORMATIONAL) {
+                    client.onResponse(done, length, (int) crc.getValue());
+                }
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            client.onChannelClosed(ctx.channel());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    private double seconds() {
+        return elapsedNanos / 1e9;
+    }
+
+    String toJson() {
+        StringBuilder sb = new StringBuilder("{\"file\":");
+        Json.appendQuoted(sb, file.toString());
+        sb.append(",\"target\":");
+        Json.appendQuoted(sb, host + ":" + port);
+        sb.append(",\"speed\":").append(speed == 0 ? "\"max\"" : String.valueOf(speed))
+          .append(",\"connections\":").append(maxConnections)
+          .append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds()))
+          .append(",\"requests\":").append(requests.sum())
+          .append(",\"errors\":").append(errors.sum())
+          .append(",\"statusDiverged\":").append(statusDiverged.sum())
+          .append(",\"bodyDiverged\":").append(bodyDiverged.sum())
+          .append(",\"truncatedBodies\":").append(truncated.sum())
+          .append(",\"skipped\":").append(skipped.sum())
+          .append(",\"connects\":").append(connects.sum())
+          .append(",\"maxBacklog\":").append(maxBacklog)
+          .append(",\"statusChanges\":{");
+        boolean first = true;
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(statusChanges).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            Json.appendQuoted(sb, entry.getKey());
+            sb.append(':').append(entry.getValue().sum());
+        }
+        sb.append("},\"capturedLatencyMs\":");
+        capturedLatency.appendJson(sb, 1000);
+        sb.append(",\"replayLatencyMs\":");
+        replayLatency.appendJson(sb, 1000);
+        sb.append(",\"routes\":{");
+        first = true;
+        for (Map.Entry<String, RouteStats> entry : new TreeMap<>(routes).entrySet()) {
+            RouteStats stats = entry.getValue();
+            if (!first) sb.append(',');
+            first = false;
+            Json.appendQuoted(sb, entry.getKey());
+            sb.append(":{\"requests\":").append(stats.requests.sum())
+              .append(",\"errors\":").append(stats.errors.sum())
+              .append(",\"statusDiverged\":").append(stats.statusDiverged.sum())
+              .append(",\"bodyDiverged\":").append(stats.bodyDiverged.sum())
+              .append(",\"capturedLatencyMs\":");
+            stats.captured.appendJson(sb, 1000);
+            sb.append(",\"replayLatencyMs\":");
+            stats.replay.appendJson(sb, 1000);
+            sb.append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    void printText() {
+        System.out.printf(Locale.ROOT, "replay %s -> %s:%d, speed %s, %d connections, %.1f s%n",
+                file, host, port, speed == 0 ? "max" : speed + "x", maxConnections, seconds());
+        System.out.printf(Locale.ROOT, "requests %d (%.1f/s), errors %d; diverged: %d status, %d body; %d truncated bodies; %d skipped; %d connects; max backlog %d%n",
+                requests.sum(), requests.sum() / Math.max(seconds(), 1e-9), errors.sum(), statusDiverged.sum(),
+                bodyDiverged.sum(), truncated.sum(), skipped.sum(), connects.sum(), maxBacklog);
+        System.out.printf(Locale.ROOT, "%-34s %7s %6s %6s %6s %9s %9s %9s %9s %9s%n",
+                "latency (ms)", "count", "errors", "status", "body", "cap p50", "cap p99", "p50", "p99", "max");
+        printRow("all" + (speed == 0 ? "" : " (from intended start)"), replayLatency, capturedLatency,
+                requests.sum(), errors.sum(), statusDiverged.sum(), bodyDiverged.sum());
+        for (Map.Entry<String, RouteStats> entry : new TreeMap<>(routes).entrySet()) {
+            RouteStats stats = entry.getValue();
+            printRow("  " + entry.getKey(), stats.replay, stats.captured, stats.requests.sum(), stats.errors.sum(),
+                    stats.statusDiverged.sum(), stats.bodyDiverged.sum());
+        }
+        if (!statusChanges.isEmpty()) {
+            StringBuilder sb = new StringBuilder("status changes (captured -> replayed, 0 = no response):");
+            new TreeMap<>(statusChanges).forEach((change, count) -> sb.append(' ').append(change).append(" x").append(count.sum()));
+            System.out.println(sb);
+        }
+    }
+
+    private static void printRow(String name, Histogram replay, Histogram captured, long count, long errors,
+                                 long statusDiverged, long bodyDiverged) {
+        System.out.printf(Locale.ROOT, "%-34s %7d %6d %6d %6d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                name, count, errors, statusDiverged, bodyDiverged,
+                captured.valueAt(0.5) / 1000.0, captured.valueAt(0.99) / 1000.0,
+                replay.valueAt(0.5) / 1000.0, replay.valueAt(0.99) / 1000.0, replay.getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,439 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import util.MimeType;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 后端服务器的带宽整形, 放在 RequestTimer 后面, 按 HTTP 消息的内容字节计量
+ * 写方向有全局, 每个客户端 IP, 每个连接三层令牌桶. 响应按请求路由或 Content-Type 对应的 MimeType 分成交互和批量两类:
+ * 批量 (默认是 /repo 下的下载和压缩包, 音视频等大文件类型) 另有自己的全局和每连接上限, 并且只在全局桶里还留有一半容量时才能发送,
+ * 页面和样式表等交互流量总能立即用上剩下的那部分带宽. 另外可以按路由前缀或 MimeType 类别给每个连接单独限速 (classLimits).
+ * 读方向同样三层, 超出时通过 ReadSuspension 暂停读取, 令牌恢复后再继续.
+ * 令牌桶允许欠账: 令牌够门槛时整条消息直接发出, 令牌可以变成负数, 之后的消息等到还清为止.
+ * 要等待的消息排在连接自己的队列里, 队列超过 MAX_QUEUED_BYTES 时把 channel 标记为不可写,
+ * ChunkedWriteHandler 随之暂停读文件, 所以整形中的下载占用的内存有上限
+ */
+public class TrafficShaper extends ChannelDuplexHandler {
+    private static final long MAX_QUEUED_BYTES = 64 * 1024;
+    // 令牌桶容量: 四分之一秒的流量, 至少 16KB
+    private static final long MIN_BURST = 16 * 1024;
+    // Netty 自带的整形器也用这个序号, 两者不会同时出现在一条 pipeline 里
+    private static final int WRITABILITY_INDEX = 1;
+
+    /**
+     * 各项限速 (字节/秒), 0 表示不限制
+     * @param bulkWrite        批量类响应的全局上限
+     * @param bulkChannelWrite 批量类响应的每连接上限
+     * @param bulkRoutes       路径以这些前缀开头的请求, 响应算作批量
+     * @param bulkTypes        Content-Type 属于这些类型的响应算作批量
+     * @param classLimits      按路由或类型的每连接上限, 和上面各层同时生效
+     */
+    public record Config(long globalWrite, long globalRead, long ipWrite, long ipRead,
+                         long channelWrite, long channelRead, long bulkWrite, long bulkChannelWrite,
+                         List<String> bulkRoutes, Set<MimeType> bulkTypes, List<ClassLimit> classLimits) {
+        /**
+         * 当前的 server.shaping.* 配置; 默认全部不限制
+         */
+        static Config fromSettings() {
+            return new Config(
+                    Settings.SERVER_SHAPING_GLOBAL_WRITE.get(), Settings.SERVER_SHAPING_GLOBAL_READ.get(),
+                    Settings.SERVER_SHAPING_IP_WRITE.get(), Settings.SERVER_SHAPING_IP_READ.get(),
+                    Settings.SERVER_SHAPING_CHANNEL_WRITE.get(), Settings.SERVER_SHAPING_CHANNEL_READ.get(),
+                    Settings.SERVER_SHAPING_BULK_WRITE.get(), Settings.SERVER_SHAPING_BULK_CHANNEL_WRITE.get(),
+                    Settings.SERVER_SHAPING_BULK_ROUTES.get(), Settings.SERVER_SHAPING_BULK_TYPES.get(),
+                    Settings.SERVER_SHAPING_CLASS_LIMITS.get());
+        }
+
+        /**
+         * 有任何一项限速时才需要把 TrafficShaper 加进 pipeline
+         */
+        boolean enabled() {
+            return globalWrite > 0 || globalRead > 0 || ipWrite > 0 || ipRead > 0
+                    || channelWrite > 0 || channelRead > 0 || bulkWrite > 0 || bulkChannelWrite > 0
+                    || !classLimits.isEmpty();
+        }
+
+        boolean isBulkRoute(String uri) {
+            for (String route : bulkRoutes) {
+                if (uri.startsWith(route)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * 按配置顺序取第一条匹配的规则
+         * @param type 响应的类型, 没有 Content-Type 时为 null
+         * @return 没有匹配时为 null
+         */
+        ClassLimit classLimit(String uri, MimeType type) {
+            for (ClassLimit limit : classLimits) {
+                if (limit.matches(uri, type)) return limit;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 一类响应的每连接写上限 (字节/秒)
+     * @param route 路径前缀, 按类型匹配时为 null
+     * @param type  MimeType 类别, 按路由匹配时为 null
+     */
+    public record ClassLimit(String route, MimeType type, long bytesPerSecond) {
+        boolean matches(String uri, MimeType responseType) {
+            return route != null ? uri != null && uri.startsWith(route) : type == responseType;
+        }
+    }
+
+    /**
+     * 整个服务器共用的全局桶, 每个 IP 的桶和统计
+     * 配置变化时全局桶立即替换; 每个 IP 的桶在这个 IP 的连接全部关闭后重建, 每连接的桶只影响新连接
+     */
+    public static final class Shared {
+        volatile Config config;
+        volatile Bucket globalWrite;
+        volatile Bucket globalRead;
+        volatile Bucket bulkWrite;
+        private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+
+        final LongAdder delayedWrites = new LongAdder();
+        final LongAdder writeDelayMicros = new LongAdder();
+        final LongAdder readPauses = new LongAdder();
+        final LongAdder readDelayMicros = new LongAdder();
+        final LongAdder interactiveBytes = new LongAdder();
+        final LongAdder bulkBytes = new LongAdder();
+
+        public Shared(Config config) {
+            update(config);
+        }
+
+        void update(Config config) {
+            if (config.equals(this.config)) return;
+            Config old = this.config;
+            this.config = config;
+            if (old == null || old.globalWrite() != config.globalWrite()) globalWrite = Bucket.of(config.globalWrite());
+            if (old == null || old.globalRead() != config.globalRead()) globalRead = Bucket.of(config.globalRead());
+            if (old == null || old.bulkWrite() != config.bulkWrite()) bulkWrite = Bucket.of(config.bulkWrite());
+        }
+
+        public boolean enabled() { return config.enabled(); }
+        public long getDelayedWrites() { return delayedWrites.sum(); }
+        public long getWriteDelayMillis() { return writeDelayMicros.sum() / 1000; }
+        public long getReadPauses() { return readPauses.sum(); }
+        public long getReadDelayMillis() { return readDelayMicros.sum() / 1000; }
+        public long getInteractiveBytes() { return interactiveBytes.sum(); }
+        public long getBulkBytes() { return bulkBytes.sum(); }
+
+        private Client acquire(InetAddress address) {
+            return clients.compute(address, (key, client) -> {
+                if (client == null) client = new Client(Bucket.of(config.ipWrite()), Bucket.of(config.ipRead()));
+                client.channels++;
+                return client;
+            });
+        }
+
+        private void release(InetAddress address) {
+            clients.computeIfPresent(address, (key, client) -> --client.channels == 0 ? null : client);
+        }
+    }
+
+    /**
+     * 一个客户端 IP 的桶, 所有来自这个 IP 的连接共用, 最后一个连接关闭时删除
+     */
+    private static final class Client {
+        final Bucket write;
+        final Bucket read;
+        int channels;
+
+        Client(Bucket write, Bucket read) {
+            this.write = write;
+            this.read = read;
+        }
+    }
+
+    /**
+     * 允许欠账的令牌桶, 单位是字节
+     */
+    static final class Bucket {
+        private final double bytesPerNano;
+        private final long burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        private Bucket(long bytesPerSecond) {
+            this.bytesPerNano = bytesPerSecond / 1e9;
+            this.burst = Math.max(bytesPerSecond / 4, MIN_BURST);
+            this.tokens = burst;
+        }
+
+        /**
+         * @return 不限速时为 null
+         */
+        static Bucket of(long bytesPerSecond) {
+            return bytesPerSecond > 0 ? new Bucket(bytesPerSecond) : null;
+        }
+
+        /**
+         * 令牌不少于 floor 时返回 0, 否则返回还要等待的纳秒数
+         */
+        synchronized long waitNanos(long floor, long now) {
+            refill(now);
+            return tokens >= floor ? 0 : (long) ((floor - tokens) / bytesPerNano) + 1;
+        }
+
+        synchronized void take(long bytes, long now) {
+            refill(now);
+            tokens -= bytes;
+        }
+
+        long reserve() {
+            return burst / 2;
+        }
+
+        private void refill(long now) {
+            if (now > last) {
+                tokens = Math.min(burst, tokens + (now - last) * bytesPerNano);
+                last = now;
+            }
+        }
+    }
+
+    private record Pending(Object msg, ChannelPromise promise, long size, boolean bulk, Bucket classWrite, long queuedAt) { }
+
+    private final Shared shared;
+    private final Bucket channelWrite;
+    private final Bucket channelRead;
+    private final Bucket bulkChannelWrite;
+    // 还没有响应的请求的 URI, 响应头到达时按顺序取出, 用来分类
+    private final ArrayDeque<String> requestUris = new ArrayDeque<>();
+    // 各条 classLimits 规则在这个连接上的桶, 第一次用到时创建
+    private final Map<ClassLimit, Bucket> classBuckets = new HashMap<>();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private ChannelHandlerContext ctx;
+    private InetAddress address;
+    private Client client;
+    private boolean bulk = false;
+    // 当前响应匹配的 classLimits 规则的桶, 没有匹配时为 null
+    private Bucket classWrite;
+    private boolean informational = false;
+    private long queuedBytes = 0;
+    private boolean drainScheduled = false;
+    private boolean writable = true;
+    private boolean readPaused = false;
+    private long readPausedAt;
+
+    public TrafficShaper(Shared shared) {
+        this.shared = shared;
+        this.channelWrite = Bucket.of(shared.config.channelWrite());
+        this.channelRead = Bucket.of(shared.config.channelRead());
+        this.bulkChannelWrite = Bucket.of(shared.config.bulkChannelWrite());
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        if (ctx.channel().remoteAddress() instanceof InetSocketAddress remote) {
+            address = remote.getAddress();
+            client = shared.acquire(address);
+        }
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        discardQueue();
+        if (client != null) {
+            shared.release(address);
+            client = null;
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        discardQueue();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest request) requestUris.addLast(request.uri());
+        if (msg instanceof HttpContent content && content.content().isReadable()) {
+            onRead(content.content().readableBytes());
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * 读到的字节直接记账, 欠账时暂停读取, 等所有层的令牌都还清再恢复
+     */
+    private void onRead(long size) {
+        long now = System.nanoTime();
+        Bucket ipRead = client == null ? null : client.read;
+        take(shared.globalRead, size, now);
+        take(ipRead, size, now);
+        take(channelRead, size, now);
+        if (readPaused) return;
+        long wait = Math.max(waitNanos(shared.globalRead, 0, now),
+                Math.max(waitNanos(ipRead, 0, now), waitNanos(channelRead, 0, now)));
+        if (wait == 0) return;
+        readPaused = true;
+        readPausedAt = now;
+        shared.readPauses.increment();
+        ReadSuspension.suspend(ctx.channel(), ReadSuspension.SHAPING);
+        ctx.executor().schedule(this::resumeRead, wait, TimeUnit.NANOSECONDS);
+    }
+
+    private void resumeRead() {
+        if (!readPaused || !ctx.channel().isActive()) return;
+        long now = System.nanoTime();
+        Bucket ipRead = client == null ? null : client.read;
+        long wait = Math.max(waitNanos(shared.globalRead, 0, now),
+                Math.max(waitNanos(ipRead, 0, now), waitNanos(channelRead, 0, now)));
+        if (wait > 0) {
+            ctx.executor().schedule(this::resumeRead, wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        readPaused = false;
+        shared.readDelayMicros.add((now - readPausedAt) / 1000);
+        ReadSuspension.resume(ctx.channel(), ReadSuspension.SHAPING);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof HttpResponse response) classify(response);
+        long size = sizeOf(msg);
+        long now = System.nanoTime();
+        if (queue.isEmpty() && (size == 0 || writeWait(bulk, classWrite, now) == 0)) {
+            send(msg, promise, size, bulk, classWrite, now);
+            return;
+        }
+        queue.addLast(new Pending(msg, promise, size, bulk, classWrite, now));
+        queuedBytes += size;
+        if (writable && queuedBytes > MAX_QUEUED_BYTES) setWritable(false);
+        Pending first = queue.peekFirst();
+        if (!drainScheduled) scheduleDrain(Math.max(1, writeWait(first.bulk(), first.classWrite(), now)));
+    }
+
+    /**
+     * 响应头决定这个响应后面所有内容的类别; 1xx 响应不对应请求
+     */
+    private void classify(HttpResponse response) {
+        informational = response.status().codeClass() == HttpStatusClass.INFORMATIONAL;
+        if (informational) return;
+        Config config = shared.config;
+        String uri = requestUris.pollFirst();
+        String contentType = response.headers().get(HttpHeaderNames.CONTENT_TYPE);
+        MimeType type = contentType != null ? MimeType.fromContentType(contentType) : null;
+        bulk = (uri != null && config.isBulkRoute(uri)) || (type != null && config.bulkTypes().contains(type));
+        ClassLimit limit = config.classLimits().isEmpty() ? null : config.classLimit(uri, type);
+        classWrite = limit == null ? null : classBuckets.computeIfAbsent(limit, l -> Bucket.of(l.bytesPerSecond()));
+    }
+
+    private void scheduleDrain(long delayNanos) {
+        drainScheduled = true;
+        ctx.executor().schedule(this::drain, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void drain() {
+        drainScheduled = false;
+        if (!ctx.channel().isActive()) return;
+        long now = System.nanoTime();
+        boolean wrote = false;
+        while (!queue.isEmpty()) {
+            Pending pending = queue.peekFirst();
+            long wait = pending.size() == 0 ? 0 : writeWait(pending.bulk(), pending.classWrite(), now);
+            if (wait > 0) {
+                scheduleDrain(wait);
+                break;
+            }
+            queue.pollFirst();
+            queuedBytes -= pending.size();
+            if (pending.size() > 0) {
+                shared.delayedWrites.increment();
+                shared.writeDelayMicros.add((now - pending.queuedAt()) / 1000);
+            }
+            send(pending.msg(), pending.promise(), pending.size(), pending.bulk(), pending.classWrite(), now);
+            wrote = true;
+        }
+        if (wrote) ctx.flush();
+        if (!writable && queuedBytes <= MAX_QUEUED_BYTES / 2) setWritable(true);
+    }
+
+    private void send(Object msg, ChannelPromise promise, long size, boolean bulk, Bucket classWrite, long now) {
+        if (size > 0) {
+            take(shared.globalWrite, size, now);
+            take(client == null ? null : client.write, size, now);
+            take(channelWrite, size, now);
+            take(classWrite, size, now);
+            if (bulk) {
+                take(shared.bulkWrite, size, now);
+                take(bulkChannelWrite, size, now);
+                shared.bulkBytes.add(size);
+            } else {
+                shared.interactiveBytes.add(size);
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * 所有适用的桶里最长的等待时间; 批量类在全局桶上要留出 reserve 给交互流量
+     */
+    private long writeWait(boolean bulk, Bucket classWrite, long now) {
+        Bucket global = shared.globalWrite;
+        long wait = waitNanos(global, bulk && global != null ? global.reserve() : 0, now);
+        wait = Math.max(wait, waitNanos(client == null ? null : client.write, 0, now));
+        wait = Math.max(wait, waitNanos(channelWrite, 0, now));
+        wait = Math.max(wait, waitNanos(classWrite, 0, now));
+        if (bulk) {
+            wait = Math.max(wait, waitNanos(shared.bulkWrite, 0, now));
+            wait = Math.max(wait, waitNanos(bulkChannelWrite, 0, now));
+        }
+        return wait;
+    }
+
+    private static long waitNanos(Bucket bucket, long floor, long now) {
+        return bucket == null ? 0 : bucket.waitNanos(floor, now);
+    }
+
+    private static void take(Bucket bucket, long size, long now) {
+        if (bucket != null) bucket.take(size, now);
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf buf) return buf.readableBytes();
+        if (msg instanceof ByteBufHolder holder) return holder.content().readableBytes();
+        if (msg instanceof FileRegion region) return region.count();
+        return 0;
+    }
+
+    private void setWritable(boolean value) {
+        writable = value;
+        ChannelOutboundBuffer out = ctx.channel().unsafe().outboundBuffer();
+        if (out != null) out.setUserDefinedWritability(WRITABILITY_INDEX, value);
+    }
+
+    private void discardQueue() {
+        Pending pending;
+        while ((pending = queue.pollFirst()) != null) {
+            ReferenceCountUtil.release(pending.msg());
+            if (!pending.promise().isVoid()) pending.promise().tryFailure(new ClosedChannelException());
+        }
+        queuedBytes = 0;
+    }
+}
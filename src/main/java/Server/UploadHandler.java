@@ -0,0 +1,360 @@
+package Server;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.netty.handler.codec.http.multipart.*;
+import io.netty.util.ReferenceCountUtil;
+import util.Json;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流式处理 POST /upload 的 multipart 上传, 放在 HttpObjectAggregator 之前
+ * 请求体不经过聚合器, 由 HttpPostRequestDecoder 边收边解码, 大的文件块直接落盘;
+ * 解码和写盘在独立线程池里按请求串行执行, 待写字节过多时关闭 autoRead 形成背压;
+ * 文件先写到仓库外的临时目录 (和仓库在同一个文件系统上), 完成后原子地链接到仓库目录; 同名文件已存在时返回 409.
+ * 请求体收完到响应写出之间暂停读取, 已经解码出来的流水线请求先放在 deferred 里, 保证响应按请求顺序返回
+ */
+public class UploadHandler extends ChannelInboundHandlerAdapter {
+    static final String UPLOAD_PATH = "/upload";
+    // 不能放在仓库目录下, 否则写了一半的文件会出现在 /search 和 /repo 里, 还能被下载
+    static final String UPLOAD_TMP_DIR = "cache/upload";
+    private static final long MAX_UPLOAD_SIZE = 8L * 1024 * 1024 * 1024;
+    // 小于该大小的 part 留在内存, 超过后写入临时文件
+    private static final long MEMORY_THRESHOLD = 16 * 1024;
+    private static final long HIGH_WATER_MARK = 4 * 1024 * 1024;
+    private static final long LOW_WATER_MARK = 1024 * 1024;
+
+    private static final HttpDataFactory DATA_FACTORY;
+
+    static {
+        DefaultHttpDataFactory factory = new DefaultHttpDataFactory(MEMORY_THRESHOLD);
+        factory.setBaseDir(UPLOAD_TMP_DIR);
+        factory.setDeleteOnExit(false);
+        factory.setMaxLimit(MAX_UPLOAD_SIZE);
+        DATA_FACTORY = factory;
+    }
+
+    private final HttpWebServer server;
+    private final ExecutorService ioExecutor;
+
+    // 当前连接上正在接收的上传, 只在 event loop 上读写
+    private Upload current;
+    // 被拒绝的请求剩下的请求体直接丢弃
+    private boolean discarding = false;
+    // 请求体已经收完, 响应还在 ioExecutor 上生成; 这期间收到的消息放进 deferred, 两者只在 event loop 上访问
+    private boolean responsePending = false;
+    private final ArrayDeque<Object> deferred = new ArrayDeque<>();
+
+    /**
+     * 一次上传的状态, received 只在 event loop 上访问, 解码器和结果只在 ioExecutor 的串行任务里访问
+     */
+    private static final class Upload {
+        final HttpRequest request;
+        final HttpPostRequestDecoder decoder;
+        final InetSocketAddress clientAddress;
+        final AtomicLong pending = new AtomicLong();
+        final AtomicBoolean paused = new AtomicBoolean(false);
+        final List<RepoSearchService.FileEntry> saved = new ArrayList<>();
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        long received = 0;
+        boolean failed = false;
+
+        Upload(HttpRequest request, HttpPostRequestDecoder decoder, InetSocketAddress clientAddress) {
+            this.request = request;
+            this.decoder = decoder;
+            this.clientAddress = clientAddress;
+        }
+    }
+
+    public UploadHandler(HttpWebServer server, ExecutorService ioExecutor) {
+        this.server = server;
+        this.ioExecutor = ioExecutor;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (responsePending) {
+            deferred.addLast(msg);
+            return;
+        }
+        if (msg instanceof HttpRequest request) {
+            if (!isUpload(request)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            beginUpload(ctx, request);
+        }
+
+        if (msg instanceof HttpContent content) {
+            if (discarding) {
+                if (content instanceof LastHttpContent) discarding = false;
+                ReferenceCountUtil.release(content);
+            } else if (current != null) {
+                feed(ctx, current, content);
+            } else {
+                ctx.fireChannelRead(msg);
+            }
+        } else if (!(msg instanceof HttpRequest)) {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    private static boolean isUpload(HttpRequest request) {
+        if (!request.method().equals(HttpMethod.POST)) return false;
+        String uri = request.uri();
+        String path = uri.contains("?") ? uri.substring(0, uri.indexOf('?')) : uri;
+        return path.equals(UPLOAD_PATH);
+    }
+
+    /**
+     * 校验登录状态和请求头, 通过后创建解码器
+     */
+    private void beginUpload(ChannelHandlerContext ctx, HttpRequest request) {
+        InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        server.getTotalRequests().incrementAndGet();
+
+        HttpResponseStatus status = null;
+        String message = null;
+        if (!hasSession(request)) {
+            status = HttpResponseStatus.FORBIDDEN;
+            message = "Login required";
+        } else if (!HttpPostRequestDecoder.isMultipart(request)) {
+            status = HttpResponseStatus.BAD_REQUEST;
+            message = "multipart/form-data required";
+        } else if (HttpUtil.getContentLength(request, -1L) > MAX_UPLOAD_SIZE) {
+            status = HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+            message = "Upload too large";
+        }
+        if (status != null) {
+            discarding = true;
+            reject(ctx, request, status, message);
+            return;
+        }
+
+        try {
+            new File(UPLOAD_TMP_DIR).mkdirs();
+            HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(DATA_FACTORY, request);
+            current = new Upload(request, decoder, clientAddress);
+        } catch (HttpPostRequestDecoder.ErrorDataDecoderException e) {
+            discarding = true;
+            reject(ctx, request, HttpResponseStatus.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (HttpUtil.is100ContinueExpected(request)) {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        }
+    }
+
+    /**
+     * 把一块请求体交给 ioExecutor, 待写字节超过高水位时暂停读取
+     */
+    private void feed(ChannelHandlerContext ctx, Upload upload, HttpContent content) {
+        int size = content.content().readableBytes();
+        boolean last = content instanceof LastHttpContent;
+        upload.received += size;
+        if (last) current = null;
+
+        if (upload.received > MAX_UPLOAD_SIZE) {
+            ReferenceCountUtil.release(content);
+            current = null;
+            discarding = !last;
+            submit(upload, () -> abort(upload));
+            reject(ctx, upload.request, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "Upload too large");
+            return;
+        }
+
+        if (upload.pending.addAndGet(size) > HIGH_WATER_MARK && upload.paused.compareAndSet(false, true)) {
+            ReadSuspension.suspend(ctx.channel(), ReadSuspension.UPLOAD);
+        }
+        if (last) {
+            responsePending = true;
+            ReadSuspension.suspend(ctx.channel(), ReadSuspension.UPLOAD_RESPONSE);
+        }
+        submit(upload, () -> {
+            try {
+                if (!upload.failed) {
+                    upload.decoder.offer(content);
+                    drain(upload);
+                }
+            } catch (HttpPostRequestDecoder.ErrorDataDecoderException e) {
+                abort(upload);
+                reject(ctx, upload.request, HttpResponseStatus.BAD_REQUEST, e.getMessage());
+            } catch (FileAlreadyExistsException e) {
+                abort(upload);
+                reject(ctx, upload.request, HttpResponseStatus.CONFLICT, "File already exists");
+            } catch (IOException e) {
+                abort(upload);
+                reject(ctx, upload.request, HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+            } finally {
+                content.release();
+                if (upload.pending.addAndGet(-size) <= LOW_WATER_MARK && upload.paused.compareAndSet(true, false)) {
+                    ctx.channel().eventLoop().execute(() -> ReadSuspension.resume(ctx.channel(), ReadSuspension.UPLOAD));
+                }
+            }
+            if (last) {
+                try {
+                    if (!upload.failed) finish(ctx, upload);
+                } finally {
+                    // 排在响应的写任务后面执行
+                    ctx.channel().eventLoop().execute(() -> responded(ctx));
+                }
+            }
+        });
+    }
+
+    /**
+     * 上传的响应已经写出, 恢复读取并处理推迟的消息; 推迟的消息里又有上传时停在那里
+     */
+    private void responded(ChannelHandlerContext ctx) {
+        if (!responsePending) return;
+        responsePending = false;
+        ReadSuspension.resume(ctx.channel(), ReadSuspension.UPLOAD_RESPONSE);
+        Object next;
+        while (!responsePending && (next = deferred.pollFirst()) != null) {
+            channelRead(ctx, next);
+        }
+    }
+
+    private void submit(Upload upload, Runnable task) {
+        upload.tail = upload.tail.thenRunAsync(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                System.err.println("Upload task failed: " + t.getMessage());
+            }
+        }, ioExecutor);
+    }
+
+    /**
+     * 取出已经解码完成的 part, 文件 part 落盘到仓库
+     */
+    private void drain(Upload upload) throws IOException {
+        try {
+            while (upload.decoder.hasNext()) {
+                InterfaceHttpData data = upload.decoder.next();
+                if (data instanceof FileUpload fileUpload && fileUpload.isCompleted()) {
+                    store(upload, fileUpload);
+                }
+            }
+        } catch (HttpPostRequestDecoder.EndOfDataDecoderException e) {
+            // 所有 part 都已经取出
+        }
+    }
+
+    /**
+     * 先 rename 到临时目录 (同一文件系统上只是改名, 内存中的小文件用 FileChannel 写出),
+     * 再用硬链接放进仓库目录: 链接是原子的, 目标已存在时失败而不是覆盖, 其他请求也不会看到写了一半的文件
+     * @throws FileAlreadyExistsException 仓库里已经有同名文件
+     */
+    private void store(Upload upload, FileUpload fileUpload) throws IOException {
+        String filename = sanitizeFilename(fileUpload.getFilename());
+        if (filename == null) throw new IOException("Invalid filename: " + fileUpload.getFilename());
+
+        File tmp = new File(UPLOAD_TMP_DIR, UUID.randomUUID() + ".part");
+        if (!fileUpload.renameTo(tmp)) throw new IOException("Failed to write " + filename);
+        Path target = new File(HttpWebServer.RECOURSES_DIR, filename).toPath();
+        try {
+            try {
+                Files.createLink(target, tmp.toPath());
+            } catch (UnsupportedOperationException e) {
+                // 不支持硬链接的文件系统, 退回到不覆盖的 move (检查和改名之间不是原子的)
+                Files.move(tmp.toPath(), target);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+        upload.saved.add(new RepoSearchService.FileEntry(filename, fileUpload.length(), System.currentTimeMillis()));
+    }
+
+    /**
+     * 只保留文件名部分, 拒绝空名字和隐藏文件
+     */
+    static String sanitizeFilename(String filename) {
+        if (filename == null) return null;
+        int slash = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\'));
+        String name = filename.substring(slash + 1).trim();
+        if (name.isEmpty() || name.startsWith(".")) return null;
+        return name;
+    }
+
+    private void finish(ChannelHandlerContext ctx, Upload upload) {
+        StringBuilder sb = new StringBuilder("{\"files\":[");
+        for (int i = 0; i < upload.saved.size(); i++) {
+            RepoSearchService.FileEntry entry = upload.saved.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"name\":");
+            Json.appendQuoted(sb, entry.name());
+            sb.append(",\"size\":").append(entry.size()).append('}');
+        }
+        sb.append("]}");
+        upload.decoder.destroy();
+
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                Unpooled.copiedBuffer(sb, StandardCharsets.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+        response.headers().set(HttpHeaderNames.SERVER, "Netty HTTP Server");
+        response.headers().set(HttpHeaderNames.DATE, new Date());
+        server.getLogger().log(upload.request, response, upload.clientAddress.getAddress());
+        ctx.writeAndFlush(response);
+    }
+
+    private void abort(Upload upload) {
+        upload.failed = true;
+        upload.decoder.destroy();
+    }
+
+    /**
+     * 返回错误并关闭连接, 剩下的请求体不再读取
+     */
+    private void reject(ChannelHandlerContext ctx, HttpRequest request, HttpResponseStatus status, String message) {
+        FullHttpResponse response = RequestHandler.jsonError(status, message);
+        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        InetSocketAddress clientAddress = (InetSocketAddress) ctx.channel().remoteAddress();
+        server.getLogger().log(request, response, clientAddress.getAddress());
+        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private boolean hasSession(HttpRequest request) {
+        String cookieHeader = request.headers().get(HttpHeaderNames.COOKIE);
+        if (cookieHeader == null) return false;
+        for (Cookie cookie : ServerCookieDecoder.STRICT.decode(cookieHeader)) {
+            if (cookie.name().equals("sessionId")) {
+                return server.getSessions().containsKey(cookie.value());
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Upload upload = current;
+        if (upload != null) {
+            current = null;
+            submit(upload, () -> abort(upload));
+        }
+        Object next;
+        while ((next = deferred.pollFirst()) != null) ReferenceCountUtil.release(next);
+        super.channelInactive(ctx);
+    }
+}
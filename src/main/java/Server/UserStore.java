@@ -0,0 +1,109 @@
+package Server;
+
+import util.PasswordHasher;
+import util.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于文件的用户表, 每行一个用户: 用户名:密码哈希:显示名称
+ * 独立线程每秒检查一次文件修改时间, 文件变化后重新加载; 查询只读内存里的表, 在 event loop 上调用也不会读文件
+ */
+public class UserStore {
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private final File file;
+    private volatile Map<String, User> users = Map.of();
+    private volatile long loadedModified = -1;
+    private final List<Runnable> reloadListeners = new ArrayList<>();
+    private ScheduledExecutorService watcher;
+
+    public UserStore(String path) {
+        this.file = new File(path);
+    }
+
+    /**
+     * 文件不存在时写入默认的两个账号 (密码与原来硬编码的一致), 然后加载并开始检查文件变化
+     */
+    public synchronized void init() {
+        if (!file.exists()) {
+            List<String> lines = List.of(
+                    "# username:passwordHash:name",
+                    "admin:" + PasswordHasher.hash("password") + ":Administrator",
+                    "user:" + PasswordHasher.hash("123456") + ":Regular User"
+            );
+            try {
+                Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+                System.out.println("Created default user file " + file);
+            } catch (IOException e) {
+                System.err.println("Failed to create user file: " + e.getMessage());
+            }
+        }
+        reload();
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "user-store-watcher");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(this::checkForChanges, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (watcher != null) watcher.shutdownNow();
+    }
+
+    /**
+     * 文件变化时回调, 在检查线程上执行, 登录校验缓存用它清空旧结果
+     */
+    public synchronized void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
+    public User get(String username) {
+        return users.get(username);
+    }
+
+    public Map<String, User> getAll() {
+        return users;
+    }
+
+    private void checkForChanges() {
+        if (file.lastModified() != loadedModified) {
+            synchronized (this) {
+                if (file.lastModified() != loadedModified) reload();
+            }
+        }
+    }
+
+    private void reload() {
+        long modified = file.lastModified();
+        Map<String, User> loaded = new HashMap<>();
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split(":", 3);
+                if (parts.length != 3) {
+                    System.err.println("Skipping malformed user line in " + file);
+                    continue;
+                }
+                loaded.put(parts[0], new User(parts[0], parts[1], parts[2]));
+            }
+        } catch (IOException e) {
+            // 读取失败时保留旧的用户表
+            System.err.println("Failed to load users: " + e.getMessage());
+            return;
+        }
+        users = Collections.unmodifiableMap(loaded);
+        loadedModified = modified;
+        System.out.println("Loaded " + loaded.size() + " users from " + file);
+        for (Runnable listener : reloadListeners) listener.run();
+    }
+}
@@ -0,0 +1,40 @@
+package Server;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 平滑加权轮询 (与 nginx 的算法相同)
+ * 每次选择时每个后端的当前值加上自己的权重, 选当前值最大的, 再把它减去总权重;
+ * 权重 5:1:1 的结果是 a a b a c a a, 而不是连续 5 个 a.
+ * 当前值按线程 (即按 event loop) 各存一份, select 不加锁; 每个 event loop 上的序列各自平滑,
+ * 合起来的比例仍然等于权重
+ */
+public class WeightedRoundRobinLoadBalancer implements LoadBalancer {
+    private final ThreadLocal<Map<BackendServer, double[]>> currentByThread = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    @Override
+    public BackendServer select(List<BackendServer> servers, String affinityKey) {
+        Map<BackendServer, double[]> current = currentByThread.get();
+        BackendServer best = null;
+        double[] bestWeight = null;
+        double total = 0;
+        for (BackendServer server : servers) {
+            double[] weight = current.computeIfAbsent(server, s -> new double[1]);
+            double effective = server.effectiveWeight();
+            weight[0] += effective;
+            total += effective;
+            if (best == null || weight[0] > bestWeight[0]) {
+                best = server;
+                bestWeight = weight;
+            }
+        }
+        bestWeight[0] -= total;
+        // 后端列表变化后清掉已经不存在的后端
+        if (current.size() > servers.size()) {
+            current.keySet().retainAll(servers);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,160 @@
+package Server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import util.MimeType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 边读文件边生成 ZIP, 交给 HttpChunkedInput 分块写出, 不产生临时文件
+ * 每次 readChunk 最多从磁盘读 CHUNK_SIZE 字节, 内存占用与压缩包大小无关;
+ * 本身已经压缩过的格式用 NO_COMPRESSION 级别写入, 不会再花 CPU 重新压缩
+ */
+class ZipStreamInput implements ChunkedInput<ByteBuf> {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final Iterator<RepoSearchService.FileEntry> files;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+    private final ChunkSink sink = new ChunkSink();
+    private final ZipOutputStream zip = new ZipOutputStream(sink);
+
+    private FileChannel current;
+    private boolean finished = false;
+    private long progress = 0;
+
+    /**
+     * ZipOutputStream 的输出目标, 每次 readChunk 换成新的 ByteBuf
+     */
+    private static final class ChunkSink extends OutputStream {
+        ByteBuf target;
+
+        @Override
+        public void write(int b) {
+            target.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target.writeBytes(b, off, len);
+        }
+    }
+
+    /**
+     * @param dir 文件所在目录
+     * @param entries 需要打包的文件, 调用方负责保证都在 dir 下
+     */
+    ZipStreamInput(File dir, List<RepoSearchService.FileEntry> entries) {
+        this.dir = dir;
+        this.files = entries.iterator();
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return finished;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (current != null) current.close();
+        // 没有正常结束时 ZipOutputStream 也要释放 Deflater 的本地内存
+        sink.target = ByteBufAllocator.DEFAULT.heapBuffer();
+        try {
+            zip.close();
+        } finally {
+            sink.target.release();
+            sink.target = null;
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        if (finished) return null;
+
+        ByteBuf buf = allocator.buffer(CHUNK_SIZE + 1024);
+        sink.target = buf;
+        try {
+            while (buf.readableBytes() < CHUNK_SIZE && !finished) {
+                if (current == null && !nextEntry()) {
+                    zip.finish();
+                    finished = true;
+                    break;
+                }
+                readBuffer.clear();
+                int n = current.read(readBuffer);
+                if (n < 0) {
+                    zip.closeEntry();
+                    current.close();
+                    current = null;
+                } else {
+                    zip.write(readBuffer.array(), 0, n);
+                }
+            }
+        } catch (IOException e) {
+            buf.release();
+            throw e;
+        } finally {
+            sink.target = null;
+        }
+        progress += buf.readableBytes();
+        return buf;
+    }
+
+    /**
+     * 打开下一个文件并写入 ZIP 条目头
+     * @return 没有更多文件时返回 false
+     */
+    private boolean nextEntry() throws IOException {
+        RepoSearchService.FileEntry entry;
+        FileChannel channel = null;
+        // 列表生成之后被删除的文件直接跳过
+        do {
+            if (!files.hasNext()) return false;
+            entry = files.next();
+            try {
+                channel = FileChannel.open(new File(dir, entry.name()).toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // 跳过
+            }
+        } while (channel == null);
+
+        ZipEntry zipEntry = new ZipEntry(entry.name());
+        zipEntry.setTime(entry.mtime());
+        zip.setLevel(MimeType.fromFilename(entry.name()).isCompressed()
+                ? Deflater.NO_COMPRESSION
+                : Deflater.DEFAULT_COMPRESSION);
+        current = channel;
+        zip.putNextEntry(zipEntry);
+        return true;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
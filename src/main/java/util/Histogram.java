@@ -0,0 +1,156 @@
+package util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的对数线性直方图, 用于延迟 (微秒) 和字节数这类跨越多个数量级的非负整数
+ * 0 到 15 每个值一个桶, 之后每个 2 的幂区间再均分成 16 个桶, 相对误差不超过 1/16;
+ * 记录只是几次原子加法, 可以在 event loop 上直接调用. 多个直方图可以合并,
+ * 也可以编码成 "桶号:计数,..." 的紧凑文本在进程之间传递
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) return;
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * 分位数, 返回所在桶的上界 (不超过最大值)
+     * @param quantile 0 到 1 之间
+     */
+    public long valueAt(double quantile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * 把另一个直方图的数据加进来
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    /**
+     * 紧凑文本: 总和, 最大值, 然后是非零的桶, 例如 "1200;300;17:2,40:1"
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        appendEncoded(sb);
+        return sb.toString();
+    }
+
+    /**
+     * 把 encode 的文本直接追加到 sb, 省掉中间的字符串
+     */
+    public void appendEncoded(StringBuilder sb) {
+        sb.append(sum.get()).append(';').append(max.get()).append(';');
+        boolean first = true;
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c == 0) continue;
+            if (!first) sb.append(',');
+            sb.append(i).append(':').append(c);
+            first = false;
+        }
+    }
+
+    /**
+     * 把 encode 的结果合并进来
+     * @throws IllegalArgumentException 格式不对
+     */
+    public void addEncoded(String encoded) {
+        String[] parts = encoded.trim().split(";", -1);
+        if (parts.length != 3) throw new IllegalArgumentException("Bad histogram: " + encoded);
+        long total = 0;
+        if (!parts[2].isEmpty()) {
+            for (String bucket : parts[2].split(",")) {
+                int colon = bucket.indexOf(':');
+                int index = Integer.parseInt(bucket.substring(0, colon));
+                long c = Long.parseLong(bucket.substring(colon + 1));
+                if (index < 0 || index >= BUCKETS || c < 0) throw new IllegalArgumentException("Bad bucket: " + bucket);
+                counts.addAndGet(index, c);
+                total += c;
+            }
+        }
+        count.addAndGet(total);
+        sum.addAndGet(Long.parseLong(parts[0]));
+        max.accumulateAndGet(Long.parseLong(parts[1]), Math::max);
+    }
+
+    /**
+     * 输出 JSON 对象: 次数, 平均值和常用分位数, 数值都除以 scale (比如微秒转毫秒用 1000)
+     */
+    public void appendJson(StringBuilder sb, double scale) {
+        sb.append("{\"count\":").append(getCount())
+          .append(",\"mean\":").append(format(getMean() / scale))
+          .append(",\"p50\":").append(format(valueAt(0.5) / scale))
+          .append(",\"p90\":").append(format(valueAt(0.9) / scale))
+          .append(",\"p99\":").append(format(valueAt(0.99) / scale))
+          .append(",\"p999\":").append(format(valueAt(0.999) / scale))
+          .append(",\"max\":").append(format(getMax() / scale))
+          .append('}');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,51 @@
+package util;
+
+/**
+ * 手写 JSON 输出时使用的小工具, 避免为了几个接口引入 JSON 库
+ */
+public final class Json {
+    private Json() { }
+
+    /**
+     * 把字符串转义并加上双引号, null 输出为 JSON 的 null
+     * @param value 原始字符串
+     * @return 可以直接拼进 JSON 的字面量
+     */
+    public static String quote(String value) {
+        if (value == null) return "null";
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        appendQuoted(sb, value);
+        return sb.toString();
+    }
+
+    /**
+     * 把转义后的字符串追加到 StringBuilder, 避免中间字符串
+     */
+    public static void appendQuoted(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append("\\u00");
+                        sb.append(Character.forDigit(c >> 4, 16));
+                        sb.append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
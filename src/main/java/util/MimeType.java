@@ -45,6 +45,7 @@ public enum MimeType {
     private final String[] extensions;
 
     private static final Map<String, MimeType> EXTENSION_MAP = new HashMap<>();
+    private static final Map<String, MimeType> CONTENT_TYPE_MAP = new HashMap<>();
 
     static {
         // Build the extension to MimeType mapping
@@ -52,6 +53,7 @@ public enum MimeType {
             for (String extension : type.extensions) {
                 EXTENSION_MAP.put(extension.toLowerCase(), type);
             }
+            CONTENT_TYPE_MAP.put(type.mimeType, type);
         }
     }
 
@@ -99,6 +101,20 @@ public enum MimeType {
         return fromExtension(extension);
     }
 
+    /**
+     * Get MimeType by Content-Type header value, parameters such as charset are ignored
+     * @param contentType Content-Type header value
+     * @return MimeType enum, or OCTET_STREAM if not found
+     */
+    public static MimeType fromContentType(String contentType) {
+        if (contentType == null || contentType.isEmpty()) {
+            return OCTET_STREAM;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase();
+        return CONTENT_TYPE_MAP.getOrDefault(type, OCTET_STREAM);
+    }
+
     /**
      * Check if this MimeType represents a text-based content
      * @return true if it's a text-based MIME type
@@ -134,6 +150,18 @@ public enum MimeType {
         return mimeType.startsWith("video/");
     }
 
+    /**
+     * Check if this MimeType is already compressed, so compressing it again only wastes CPU
+     * @return true if the format carries its own compression
+     */
+    public boolean isCompressed() {
+        return switch (this) {
+            case PNG, JPEG, GIF, WEBP, MP3, OGG, MP4, AVI, MOV, WEBM,
+                 DOCX, XLSX, PPTX, ZIP, RAR, GZIP, WOFF, WOFF2 -> true;
+            default -> false;
+        };
+    }
+
     @Override
     public String toString() {
         return mimeType;
@@ -1,3 +1,6 @@
 package util;
 
-public record User(String username, String password, String name) { }
+/**
+ * @param passwordHash PasswordHasher 生成的哈希串, 不保存明文密码
+ */
+public record User(String username, String passwordHash, String name) { }
@@ -0,0 +1,91 @@
+package Server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveLimitTest {
+    private static final long MS = 1_000_000;
+
+    private static void samples(AdaptiveLimit limit, int count, long rttNanos, int inFlight) {
+        for (int i = 0; i < count; i++) limit.onSample(rttNanos, inFlight, false);
+    }
+
+    @Test
+    void firstSampleOnlySeedsTheRtt() {
+        AdaptiveLimit limit = new AdaptiveLimit(20, 10, 100);
+        limit.onSample(MS, 20, false);
+        assertEquals(20, limit.getLimit());
+    }
+
+    @Test
+    void missingSamplesAreIgnored() {
+        AdaptiveLimit limit = new AdaptiveLimit(20, 10, 100);
+        samples(limit, 10, -1, 20);
+        assertEquals(20, limit.getLimit());
+    }
+
+    @Test
+    void stableLatencyUnderLoadGrowsTheLimit() {
+        AdaptiveLimit limit = new AdaptiveLimit(20, 10, 100);
+        samples(limit, 11, MS, 20);
+        // 每个样本增加 QUEUE_SIZE * SMOOTHING = 0.8
+        assertEquals(28, limit.getLimit());
+    }
+
+    @Test
+    void idleTrafficDoesNotGrowTheLimit() {
+        AdaptiveLimit limit = new AdaptiveLimit(20, 10, 100);
+        samples(limit, 100, MS, 5);
+        assertEquals(20, limit.getLimit());
+    }
+
+    @Test
+    void growthStopsAtTheMaximum() {
+        AdaptiveLimit limit = new AdaptiveLimit(20, 10, 30);
+        samples(limit, 1000, MS, 1000);
+        assertEquals(30, limit.getLimit());
+    }
+
+    @Test
+    void risingLatencyShrinksTheLimit() {
+        AdaptiveLimit limit = new AdaptiveLimit(50, 10, 100);
+        samples(limit, 100, MS, 50);
+        int before = limit.getLimit();
+        samples(limit, 20, 20 * MS, 50);
+        assertTrue(limit.getLimit() < before, limit.getLimit() + " >= " + before);
+    }
+
+    @Test
+    void sustainedLatencyBecomesTheNewBaseline() {
+        AdaptiveLimit limit = new AdaptiveLimit(50, 10, 100);
+        samples(limit, 100, MS, 50);
+        samples(limit, 20, 20 * MS, 50);
+        int shrunk = limit.getLimit();
+        // 长期 EWMA 追上新的延迟后, 上限重新增长
+        samples(limit, 1000, 20 * MS, 100);
+        assertTrue(limit.getLimit() > shrunk);
+        assertEquals(100, limit.getLimit());
+    }
+
+    @Test
+    void dropsBackOffMultiplicatively() {
+        AdaptiveLimit limit = new AdaptiveLimit(100, 10, 100);
+        limit.onSample(-1, 100, true);
+        assertEquals(90, limit.getLimit());
+        limit.onSample(-1, 100, true);
+        assertEquals(81, limit.getLimit());
+        for (int i = 0; i < 100; i++) limit.onSample(-1, 100, true);
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    void loweringTheMaximumAppliesImmediately() {
+        AdaptiveLimit limit = new AdaptiveLimit(50, 10, 100);
+        limit.setMaxLimit(30);
+        assertEquals(30, limit.getLimit());
+        // 不会低于最小值
+        limit.setMaxLimit(5);
+        assertEquals(10, limit.getLimit());
+    }
+}
@@ -0,0 +1,128 @@
+package Server;
+
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControllerTest {
+    private static final int LIMIT = 20;
+
+    private EventLoop loop;
+    private AdmissionController admission;
+
+    @BeforeEach
+    void setUp() {
+        loop = new DefaultEventLoop();
+        // 最小值等于初始值, release 时不给延迟样本, 上限保持不变
+        admission = new AdmissionController(new AdaptiveLimit(LIMIT, LIMIT, 100), 2, 60_000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        loop.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    private void fill() {
+        for (int i = 0; i < LIMIT; i++) assertTrue(admission.tryAcquire());
+        assertFalse(admission.tryAcquire());
+    }
+
+    @Test
+    void admitsUpToTheLimit() {
+        fill();
+        assertEquals(LIMIT, admission.getInFlight());
+        admission.release(-1, false);
+        assertTrue(admission.tryAcquire());
+        assertEquals(LIMIT + 1, admission.getAdmitted());
+    }
+
+    @Test
+    void releaseAdmitsQueuedRequestsInOrder() throws Exception {
+        fill();
+        StringBuilder order = new StringBuilder();
+        CountDownLatch admitted = new CountDownLatch(2);
+        admission.enqueue(loop, () -> { order.append('a'); admitted.countDown(); }, () -> fail("shed"));
+        admission.enqueue(loop, () -> { order.append('b'); admitted.countDown(); }, () -> fail("shed"));
+        assertEquals(2, admission.getQueued());
+
+        admission.release(-1, false);
+        admission.release(-1, false);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        loop.submit(() -> { }).sync();
+        assertEquals("ab", order.toString());
+        assertEquals(0, admission.getQueued());
+        assertEquals(LIMIT, admission.getInFlight());
+    }
+
+    @Test
+    void directAcquireDoesNotOvertakeTheQueue() {
+        fill();
+        admission.enqueue(loop, () -> { }, () -> { });
+        admission.release(-1, false);
+        // 名额已经给了排队的请求
+        assertFalse(admission.tryAcquire());
+        assertEquals(LIMIT, admission.getInFlight());
+    }
+
+    @Test
+    void fullQueueRejects() {
+        fill();
+        assertNotNull(admission.enqueue(loop, () -> { }, () -> { }));
+        assertNotNull(admission.enqueue(loop, () -> { }, () -> { }));
+        assertNull(admission.enqueue(loop, () -> { }, () -> { }));
+        assertEquals(1, admission.getRejected());
+        assertEquals(2, admission.getQueued());
+    }
+
+    @Test
+    void waitersAreShedAfterTheQueueTimeout() throws Exception {
+        admission = new AdmissionController(new AdaptiveLimit(LIMIT, LIMIT, 100), 2, 50);
+        fill();
+        CountDownLatch shed = new CountDownLatch(1);
+        admission.enqueue(loop, () -> fail("admitted"), shed::countDown);
+        assertTrue(shed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, admission.getShed());
+        assertEquals(0, admission.getQueued());
+        // 超时的请求不再占用名额
+        admission.release(-1, false);
+        assertEquals(LIMIT - 1, admission.getInFlight());
+    }
+
+    @Test
+    void cancelledWaitersAreSkipped() throws Exception {
+        fill();
+        AtomicInteger admitted = new AtomicInteger();
+        AdmissionController.Waiter waiter = admission.enqueue(loop, admitted::incrementAndGet, () -> { });
+        assertTrue(waiter.cancel());
+        assertEquals(0, admission.getQueued());
+        admission.release(-1, false);
+        loop.submit(() -> { }).sync();
+        assertEquals(0, admitted.get());
+        assertEquals(LIMIT - 1, admission.getInFlight());
+    }
+
+    @Test
+    void cancelAfterAdmissionStillNeedsRelease() throws Exception {
+        fill();
+        AdmissionController.Waiter waiter = admission.enqueue(loop, () -> { }, () -> { });
+        admission.release(-1, false);
+        assertFalse(waiter.cancel());
+        assertEquals(LIMIT, admission.getInFlight());
+    }
+
+    @Test
+    void loweringTheMaximumLowersTheLimit() {
+        admission = new AdmissionController(new AdaptiveLimit(50, 10, 100), 10, 60_000);
+        admission.update(20, 10, 60_000);
+        assertEquals(20, admission.getLimit());
+        fill();
+    }
+}
@@ -0,0 +1,152 @@
+package Server;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BackendHealthTest {
+    private BackendServer server;
+    private BackendHealth health;
+    private int stateChanges;
+    private boolean mayEject;
+
+    @BeforeEach
+    void setUp() {
+        server = new BackendServer("127.0.0.1", 9001, 1, 0);
+        health = server.health;
+        stateChanges = 0;
+        mayEject = true;
+        health.setListener(new BackendHealth.Listener() {
+            @Override
+            public boolean mayEject(BackendServer s) { return mayEject; }
+
+            @Override
+            public void onStateChange(BackendServer s) { stateChanges++; }
+        });
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) health.record(false, -1);
+    }
+
+    /**
+     * 剔除后经过 BASE_EJECTION_NANOS 进入 HALF_OPEN, 主动检查成功后恢复
+     */
+    private void recover() {
+        assertTrue(health.beforeProbe(System.nanoTime() + BackendHealth.MAX_EJECTION_NANOS));
+        health.onProbeResult(true, System.nanoTime());
+        assertEquals(BackendHealth.State.CLOSED, health.getState());
+    }
+
+    @Test
+    void onlyGatewayErrorsMeanTheBackendIsUnavailable() {
+        assertFalse(BackendHealth.isUnavailable(HttpResponseStatus.INTERNAL_SERVER_ERROR));
+        assertFalse(BackendHealth.isUnavailable(HttpResponseStatus.NOT_IMPLEMENTED));
+        assertFalse(BackendHealth.isUnavailable(HttpResponseStatus.NOT_FOUND));
+        assertTrue(BackendHealth.isUnavailable(HttpResponseStatus.BAD_GATEWAY));
+        assertTrue(BackendHealth.isUnavailable(HttpResponseStatus.SERVICE_UNAVAILABLE));
+        assertTrue(BackendHealth.isUnavailable(HttpResponseStatus.GATEWAY_TIMEOUT));
+    }
+
+    @Test
+    void consecutiveFailuresEject() {
+        fail(BackendHealth.CONSECUTIVE_FAILURES - 1);
+        assertTrue(health.isAvailable());
+        fail(1);
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        assertFalse(health.isAvailable());
+        assertEquals(1, stateChanges);
+    }
+
+    @Test
+    void successResetsTheFailureCount() {
+        fail(BackendHealth.CONSECUTIVE_FAILURES - 1);
+        health.record(true, 1_000_000);
+        fail(BackendHealth.CONSECUTIVE_FAILURES - 1);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    void slowResponsesCountAsFailures() {
+        for (int i = 0; i < BackendHealth.CONSECUTIVE_FAILURES; i++) {
+            health.record(true, BackendHealth.SLOW_RESPONSE_NANOS);
+        }
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    void ejectionLimitKeepsTheBackend() {
+        mayEject = false;
+        fail(BackendHealth.CONSECUTIVE_FAILURES);
+        assertTrue(health.isAvailable());
+        assertEquals(0, stateChanges);
+        // 计数已经清零, 允许剔除后要重新累计
+        mayEject = true;
+        fail(BackendHealth.CONSECUTIVE_FAILURES - 1);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    void halfOpenAfterEjectionTime() {
+        long ejected = System.nanoTime();
+        fail(BackendHealth.CONSECUTIVE_FAILURES);
+        assertFalse(health.beforeProbe(ejected));
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        assertTrue(health.beforeProbe(System.nanoTime() + BackendHealth.BASE_EJECTION_NANOS));
+        assertEquals(BackendHealth.State.HALF_OPEN, health.getState());
+        assertFalse(health.isAvailable());
+    }
+
+    @Test
+    void successfulProbeRecoversWithSlowStart() {
+        fail(BackendHealth.CONSECUTIVE_FAILURES);
+        recover();
+        assertEquals(2, stateChanges);
+        double factor = health.rampFactor();
+        assertTrue(factor >= BackendHealth.SLOW_START_MIN_FACTOR && factor < 1, "ramp factor " + factor);
+        assertTrue(server.effectiveWeight() < server.weight);
+    }
+
+    @Test
+    void failedProbeWhileHalfOpenBacksOff() {
+        fail(BackendHealth.CONSECUTIVE_FAILURES);
+        long now = System.nanoTime() + BackendHealth.BASE_EJECTION_NANOS;
+        assertTrue(health.beforeProbe(now));
+        health.onProbeResult(false, now);
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        // 第二次剔除的时长翻倍
+        assertFalse(health.beforeProbe(now + BackendHealth.BASE_EJECTION_NANOS));
+        assertTrue(health.beforeProbe(now + 2 * BackendHealth.BASE_EJECTION_NANOS));
+        assertEquals(BackendHealth.State.HALF_OPEN, health.getState());
+    }
+
+    @Test
+    void failedProbesEjectEvenWhenLimited() {
+        mayEject = false;
+        long now = System.nanoTime();
+        health.onProbeResult(false, now);
+        assertTrue(health.isAvailable());
+        health.onProbeResult(false, now);
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    void successfulProbeResetsProbeFailures() {
+        long now = System.nanoTime();
+        health.onProbeResult(false, now);
+        health.onProbeResult(true, now);
+        health.onProbeResult(false, now);
+        assertTrue(health.isAvailable());
+    }
+
+    @Test
+    void recoveredBackendCanBeEjectedAgain() {
+        fail(BackendHealth.CONSECUTIVE_FAILURES);
+        recover();
+        fail(BackendHealth.CONSECUTIVE_FAILURES);
+        assertEquals(BackendHealth.State.OPEN, health.getState());
+        assertEquals(3, stateChanges);
+    }
+}
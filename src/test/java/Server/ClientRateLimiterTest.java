@@ -0,0 +1,111 @@
+package Server;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientRateLimiterTest {
+    private static final InetAddress CLIENT = address(10, 0, 0, 1);
+    private static final InetAddress OTHER = address(10, 0, 0, 2);
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 在同一时刻连续取令牌, 返回放行的个数
+     */
+    private static int drain(ClientRateLimiter limiter, InetAddress address, long now) {
+        int allowed = 0;
+        while (limiter.tryAcquire(address, now) == 0) allowed++;
+        return allowed;
+    }
+
+    @Test
+    void burstMustFitThePackedState() {
+        assertDoesNotThrow(() -> new ClientRateLimiter(1, ClientRateLimiter.MAX_BURST));
+        assertThrows(IllegalArgumentException.class, () -> new ClientRateLimiter(1, ClientRateLimiter.MAX_BURST + 1));
+        assertThrows(IllegalArgumentException.class, () -> new ClientRateLimiter(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new ClientRateLimiter(0, 1));
+    }
+
+    @Test
+    void defaultBurstIsClamped() {
+        assertEquals(20, ClientRateLimiter.effectiveBurst(10, 0));
+        assertEquals(5, ClientRateLimiter.effectiveBurst(10, 5));
+        assertEquals(ClientRateLimiter.MAX_BURST, ClientRateLimiter.effectiveBurst(1_000_000, 0));
+        assertEquals(ClientRateLimiter.MAX_BURST, ClientRateLimiter.effectiveBurst(ClientRateLimiter.MAX_BURST / 2 + 1, 0));
+        assertDoesNotThrow(() -> new ClientRateLimiter(1_000_000, ClientRateLimiter.effectiveBurst(1_000_000, 0)));
+    }
+
+    @Test
+    void fullBucketAllowsExactlyTheBurst() {
+        long now = System.currentTimeMillis();
+        assertEquals(20, drain(new ClientRateLimiter(10, 20), CLIENT, now));
+        assertEquals(ClientRateLimiter.MAX_BURST, drain(new ClientRateLimiter(1, ClientRateLimiter.MAX_BURST), CLIENT, now));
+    }
+
+    @Test
+    void waitIsTheTimeUntilTheNextToken() {
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 20);
+        long now = System.currentTimeMillis();
+        drain(limiter, CLIENT, now);
+        assertEquals(100, limiter.tryAcquire(CLIENT, now));
+        // 40ms 补充了 0.4 个令牌, 还差 0.6 个
+        assertEquals(60, limiter.tryAcquire(CLIENT, now + 40));
+        assertEquals(0, limiter.tryAcquire(CLIENT, now + 100));
+        assertEquals(100, limiter.tryAcquire(CLIENT, now + 100));
+        assertEquals(4, limiter.getLimited());
+    }
+
+    @Test
+    void fastRatesRefillWithinAMillisecond() {
+        ClientRateLimiter limiter = new ClientRateLimiter(5000, 10);
+        long now = System.currentTimeMillis();
+        drain(limiter, CLIENT, now);
+        // 不足一个令牌时至少等 1ms
+        assertEquals(1, limiter.tryAcquire(CLIENT, now));
+        assertEquals(5, drain(limiter, CLIENT, now + 1));
+    }
+
+    @Test
+    void refillStopsAtTheBurst() {
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 20);
+        long now = System.currentTimeMillis();
+        drain(limiter, CLIENT, now);
+        assertEquals(20, drain(limiter, CLIENT, now + 3_600_000));
+    }
+
+    @Test
+    void timestampsFarFromTheEpochStillPack() {
+        ClientRateLimiter limiter = new ClientRateLimiter(1, 2);
+        // 一年后, 时间差仍然放得进打包格式里的 42 位
+        long later = System.currentTimeMillis() + 365L * 86_400_000;
+        assertEquals(2, drain(limiter, CLIENT, later));
+        assertEquals(1000, limiter.tryAcquire(CLIENT, later));
+        assertEquals(1, drain(limiter, CLIENT, later + 1000));
+    }
+
+    @Test
+    void clientsHaveSeparateBuckets() {
+        ClientRateLimiter limiter = new ClientRateLimiter(1, 1);
+        long now = System.currentTimeMillis();
+        assertEquals(1, drain(limiter, CLIENT, now));
+        assertEquals(1, drain(limiter, OTHER, now));
+    }
+
+    @Test
+    void comparesLimits() {
+        ClientRateLimiter limiter = new ClientRateLimiter(10, 20);
+        assertTrue(limiter.hasLimits(10, 20));
+        assertFalse(limiter.hasLimits(10, 30));
+        assertFalse(limiter.hasLimits(20, 20));
+    }
+}
@@ -0,0 +1,312 @@
+package Server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 分配量和吞吐量的回归检查, 由 pom.xml 的 perf profile 在 test 阶段运行 (mvn -Pperf test);
+ * 放在测试源码里, 不进入服务器的 jar, 但不是 JUnit 测试, 普通的 mvn test 不会运行
+ * 在本进程里用临时端口启动 HttpWebServer, 对每个路由 (以及按固定比例混合的 mix) 用 keep-alive 连接
+ * 发固定数量的请求, 用 ThreadMXBean 统计服务端线程在这段时间分配的字节数, 得到每个请求分配的字节数和每秒请求数.
+ * 和 BASELINE_FILE 里的基线比较: 分配量超过基线 allocTolerance (加上 ALLOC_SLACK_BYTES) 时退出码为 1, 构建失败.
+ * 吞吐量只做提示: 低于基线 throughputTolerance (默认 15%) 时在报告里标出, 不影响退出码;
+ * 吞吐量和机器以及机器上的其他负载有关, 同一台机器上前后两次运行也能差出一半, 当作硬门槛只会误报.
+ * 每项取 rounds 轮中最好的一轮, 偶发的干扰不会误报分配量.
+ * 改动确认无误后用 -Dperf.updateBaseline=true 重新生成基线并提交.
+ * 处理器里逐请求的 System.out 打印会被重定向到空流, 报告写到原来的标准输出和 target/perf-report.txt.
+ * 访问日志, 会话快照和用户文件写到临时目录, 结束后删除, 不会留在工作目录里
+ */
+public class PerfRegression {
+    static final String BASELINE_FILE = "src/perf/baseline.properties";
+    static final String REPORT_FILE = "target/perf-report.txt";
+    // 分配量的绝对余量, 避免很小的值因为后台线程的噪声误报
+    private static final long ALLOC_SLACK_BYTES = 512;
+    private static final String CLIENT_THREAD_PREFIX = "perf-client";
+
+    private record Route(String name, HttpMethod method, String uri, String body) { }
+
+    private static final List<Route> ROUTES = List.of(
+            new Route("GET /index.html", HttpMethod.GET, "/index.html", null),
+            new Route("GET /error_style.css", HttpMethod.GET, "/error_style.css", null),
+            new Route("GET /login.html", HttpMethod.GET, "/login", null),
+            new Route("POST /login", HttpMethod.POST, "/login", "username=admin&password=password"),
+            new Route("GET /search", HttpMethod.GET, "/search?q=image", null),
+            new Route("GET /api/search", HttpMethod.GET, "/api/search?q=image&limit=20", null),
+            new Route("GET /repo", HttpMethod.GET, "/repo?abcd.html", null),
+            new Route("GET 404", HttpMethod.GET, "/no-such-page.html", null),
+            new Route("GET /admin/stats", HttpMethod.GET, "/admin/stats", null)
+    );
+    // mix 里各路由的比例, 大致是真实流量的形状: 以静态文件为主, 少量登录和下载
+    private static final int[] MIX_WEIGHTS = { 30, 20, 5, 5, 10, 10, 10, 5, 5 };
+
+    private final int requests;
+    private final int warmup;
+    private final int rounds;
+    private final int concurrency;
+    private final double allocTolerance;
+    private final double throughputTolerance;
+    private final PrintStream out;
+    private final EventLoopGroup clientGroup;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private int port;
+
+    private record Result(String route, long requests, double requestsPerSecond, long bytesPerRequest, long errors) { }
+
+    PerfRegression(PrintStream out) {
+        this.out = out;
+        this.requests = Integer.getInteger("perf.requests", 5000);
+        this.warmup = Integer.getInteger("perf.warmup", 3000);
+        this.rounds = Math.max(1, Integer.getInteger("perf.rounds", 5));
+        this.concurrency = Integer.getInteger("perf.concurrency", 4);
+        this.allocTolerance = Double.parseDouble(System.getProperty("perf.allocTolerance", "0.10"));
+        this.throughputTolerance = Double.parseDouble(System.getProperty("perf.throughputTolerance", "0.15"));
+        this.clientGroup = new NioEventLoopGroup(2, new DefaultThreadFactory(CLIENT_THREAD_PREFIX));
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("java.awt.headless", "true");
+        Path dataDir = Files.createTempDirectory("perf-regression");
+        // 在第一次读取配置之前设置, 系统属性优先于配置文件
+        System.setProperty(Settings.SERVER_ACCESS_LOG.name(), dataDir.resolve("access.log").toString());
+        PerfRegression perf = new PerfRegression(out);
+        int failures;
+        try {
+            failures = perf.run(dataDir);
+        } finally {
+            perf.clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            deleteRecursively(dataDir);
+        }
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    /**
+     * @param dataDir 服务器的数据目录, 放访问日志之外的运行时文件
+     */
+    int run(Path dataDir) throws Exception {
+        HttpWebServer server = new HttpWebServer(dataDir);
+        server.start(0, 0);
+        List<Result> results = new ArrayList<>();
+        try {
+            port = server.getHttpPort();
+            // 先登录一次, 之后的登录命中校验缓存, 测的是处理器本身而不是 PBKDF2
+            server.getLoginVerifier().verify("admin", "password").join();
+            for (Route route : ROUTES) results.add(measure(route.name(), List.of(route)));
+            List<Route> mix = new ArrayList<>();
+            for (int i = 0; i < ROUTES.size(); i++) {
+                for (int j = 0; j < MIX_WEIGHTS[i]; j++) mix.add(ROUTES.get(i));
+            }
+            Collections.shuffle(mix, new Random(42));
+            results.add(measure("mix", mix));
+        } finally {
+            server.stop();
+        }
+        return report(results);
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 预热后发 rounds 轮, 每轮 requests 个请求, 按顺序循环使用 script 里的路由
+     * 吞吐量取最好的一轮, 分配量取最少的一轮: 机器上别的负载只会让结果变差, 不会变好
+     */
+    private Result measure(String name, List<Route> script) throws InterruptedException {
+        drive(script, warmup);
+        double bestRps = 0;
+        long leastBytes = Long.MAX_VALUE;
+        long errors = 0;
+        for (int round = 0; round < rounds; round++) {
+            System.gc();
+            long allocBefore = serverAllocatedBytes();
+            long start = System.nanoTime();
+            errors += drive(script, requests);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long allocated = serverAllocatedBytes() - allocBefore;
+            bestRps = Math.max(bestRps, requests / seconds);
+            leastBytes = Math.min(leastBytes, allocated / requests);
+        }
+        return new Result(name, requests, bestRps, leastBytes, errors);
+    }
+
+    /**
+     * 服务端线程 (除了客户端和当前线程之外的所有线程) 累计分配的字节数
+     */
+    private long serverAllocatedBytes() {
+        long self = Thread.currentThread().getId();
+        long total = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getId() == self || thread.getName().startsWith(CLIENT_THREAD_PREFIX)) continue;
+            long bytes = threads.getThreadAllocatedBytes(thread.getId());
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * concurrency 个 keep-alive 连接, 每个连接收到响应后发下一个, 一共发 count 个请求
+     * @return 失败的请求数 (状态码 >= 400, 404 路由除外)
+     */
+    private long drive(List<Route> script, int count) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        Bootstrap bootstrap = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                          .addLast(new HttpClientCodec())
+                          .addLast(new HttpObjectAggregator(16 * 1024 * 1024))
+                          .addLast(new SimpleChannelInboundHandler<FullHttpResponse>() {
+                              private Route current;
+
+                              @Override
+                              public void channelActive(ChannelHandlerContext ctx) {
+                                  sendNext(ctx);
+                              }
+
+                              @Override
+                              protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+                                  int status = response.status().code();
+                                  boolean expected = current.name().equals("GET 404") ? status == 404 : status < 400;
+                                  if (!expected) errors.incrementAndGet();
+                                  if (!HttpUtil.isKeepAlive(response)) {
+                                      ctx.close();
+                                      return;
+                                  }
+                                  sendNext(ctx);
+                              }
+
+                              private void sendNext(ChannelHandlerContext ctx) {
+                                  int n = next.getAndIncrement();
+                                  if (n >= count) {
+                                      ctx.close();
+                                      return;
+                                  }
+                                  current = script.get(n % script.size());
+                                  ctx.writeAndFlush(request(current));
+                              }
+
+                              @Override
+                              public void channelInactive(ChannelHandlerContext ctx) {
+                                  done.countDown();
+                              }
+
+                              @Override
+                              public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                  errors.incrementAndGet();
+                                  ctx.close();
+                              }
+                          });
+                    }
+                });
+        for (int i = 0; i < concurrency; i++) bootstrap.connect("127.0.0.1", port);
+        if (!done.await(5, TimeUnit.MINUTES)) throw new IllegalStateException("Timed out driving " + script);
+        // 服务端关闭连接导致没发完的请求也算失败
+        return errors.get() + Math.max(0, count - next.get());
+    }
+
+    private FullHttpRequest request(Route route) {
+        FullHttpRequest request = route.body() == null
+                ? new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, route.method(), route.uri())
+                : new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, route.method(), route.uri(),
+                        Unpooled.copiedBuffer(route.body(), StandardCharsets.UTF_8));
+        request.headers().set(HttpHeaderNames.HOST, "127.0.0.1:" + port);
+        request.headers().set(HttpHeaderNames.CONTENT_LENGTH, request.content().readableBytes());
+        if (route.body() != null) {
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED);
+        }
+        return request;
+    }
+
+    /**
+     * 打印报告并和基线比较; 需要更新基线时写入新基线
+     * @return 退化的项数
+     */
+    private int report(List<Result> results) throws IOException {
+        Properties baseline = new Properties();
+        Path baselinePath = Path.of(BASELINE_FILE);
+        if (Files.exists(baselinePath)) {
+            try (Reader reader = Files.newBufferedReader(baselinePath, StandardCharsets.UTF_8)) {
+                baseline.load(reader);
+            }
+        }
+        boolean update = Boolean.getBoolean("perf.updateBaseline");
+        StringWriter text = new StringWriter();
+        PrintWriter report = new PrintWriter(text);
+        report.printf(Locale.ROOT, "best of %d x %d requests per route after %d warmup, %d connections; tolerance: alloc +%.0f%%, throughput -%.0f%% (advisory)%n",
+                rounds, requests, warmup, concurrency, allocTolerance * 100, throughputTolerance * 100);
+        report.printf(Locale.ROOT, "%-20s %10s %10s %10s %10s %7s  %s%n",
+                "route", "req/s", "base", "B/req", "base", "errors", "verdict");
+        int failures = 0;
+        Properties updated = new Properties();
+        for (Result r : results) {
+            String key = r.route().replace(' ', '_');
+            String baseRps = baseline.getProperty(key + ".requestsPerSecond");
+            String baseAlloc = baseline.getProperty(key + ".bytesPerRequest");
+            List<String> problems = new ArrayList<>();
+            if (r.errors() > 0) problems.add("ERRORS");
+            if (baseAlloc != null && r.bytesPerRequest()
+                    > Long.parseLong(baseAlloc) * (1 + allocTolerance) + ALLOC_SLACK_BYTES) {
+                problems.add("MORE ALLOC");
+            }
+            // 只提示, 不算失败
+            if (baseRps != null && r.requestsPerSecond() < Double.parseDouble(baseRps) * (1 - throughputTolerance)) {
+                problems.add("slower?");
+            }
+            if (baseRps == null || baseAlloc == null) problems.add("no baseline");
+            boolean failed = problems.contains("ERRORS") || problems.contains("MORE ALLOC");
+            if (failed) failures++;
+            report.printf(Locale.ROOT, "%-20s %10.0f %10s %10d %10s %7d  %s%n",
+                    r.route(), r.requestsPerSecond(), baseRps == null ? "-" : baseRps,
+                    r.bytesPerRequest(), baseAlloc == null ? "-" : baseAlloc, r.errors(),
+                    problems.isEmpty() ? "ok" : String.join(", ", problems));
+            updated.setProperty(key + ".requestsPerSecond", String.format(Locale.ROOT, "%.0f", r.requestsPerSecond()));
+            updated.setProperty(key + ".bytesPerRequest", String.valueOf(r.bytesPerRequest()));
+        }
+        if (update) {
+            Files.createDirectories(baselinePath.getParent());
+            try (Writer writer = Files.newBufferedWriter(baselinePath, StandardCharsets.UTF_8)) {
+                updated.store(writer, "PerfRegression baseline, regenerate with mvn -Pperf test -Dperf.updateBaseline=true");
+            }
+            report.println("Baseline written to " + BASELINE_FILE);
+            failures = 0;
+        } else if (failures > 0) {
+            report.println(failures + " regression(s) against " + BASELINE_FILE);
+        }
+        report.flush();
+        out.print(text);
+        Path reportPath = Path.of(REPORT_FILE);
+        Files.createDirectories(reportPath.getParent());
+        Files.writeString(reportPath, text.toString());
+        return failures;
+    }
+}
@@ -0,0 +1,241 @@
+package Server;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 用一个本地的 Netty 后端测试合并回源, stale-while-revalidate 和磁盘层
+ */
+class ProxyCacheTest {
+    private static EventLoopGroup group;
+    private static EventLoop loop;
+    private static Channel backend;
+    private static ReverseProxyServer proxy;
+    // uri -> 后端收到的请求数
+    private static final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    @TempDir
+    File diskDir;
+    private ProxyCache cache;
+
+    @BeforeAll
+    static void startBackend() throws Exception {
+        group = ReverseProxyServer.newEventLoopGroup(1, "proxy-cache-test");
+        loop = group.next();
+        backend = new ServerBootstrap()
+                .group(group)
+                .channel(ReverseProxyServer.serverChannelClass())
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline()
+                          .addLast(new HttpServerCodec())
+                          .addLast(new HttpObjectAggregator(8192))
+                          .addLast(new Backend());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        int port = ((InetSocketAddress) backend.localAddress()).getPort();
+        System.setProperty("proxy.backendList", "127.0.0.1:" + port);
+        Settings.load();
+        proxy = new ReverseProxyServer(ReverseProxyServer.Mode.HTTP, new P2CLoadBalancer());
+    }
+
+    @AfterAll
+    static void stopBackend() {
+        proxy.getRegistry().stop();
+        backend.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        System.clearProperty("proxy.backendList");
+        Settings.load();
+    }
+
+    @BeforeEach
+    void setUp() {
+        requests.clear();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (cache != null) cache.stop();
+    }
+
+    /**
+     * 按路径给出不同的响应, 路径里带 slow 的延迟 200ms
+     */
+    private static final class Backend extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            String uri = request.uri();
+            int n = requests.computeIfAbsent(uri, k -> new AtomicInteger()).incrementAndGet();
+            HttpResponseStatus status = uri.startsWith("/error") ? HttpResponseStatus.SERVICE_UNAVAILABLE : HttpResponseStatus.OK;
+            ByteBuf body = Unpooled.copiedBuffer(uri + " #" + n + " " + "x".repeat(uri.startsWith("/disk") ? 1000 : 0),
+                    StandardCharsets.UTF_8);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+            if (uri.startsWith("/stale")) {
+                response.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=0, stale-while-revalidate=60");
+            } else if (uri.startsWith("/nostore")) {
+                response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-store");
+            } else {
+                response.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+            }
+            if (uri.contains("slow")) {
+                ctx.executor().schedule(() -> ctx.writeAndFlush(response), 200, TimeUnit.MILLISECONDS);
+            } else {
+                ctx.writeAndFlush(response);
+            }
+        }
+    }
+
+    private ProxyCache newCache(long maxMemoryBytes, File dir, long maxDiskBytes) {
+        cache = new ProxyCache(proxy, maxMemoryBytes, 1 << 20, 1000, 0, dir, maxDiskBytes);
+        return cache;
+    }
+
+    private static HttpRequest get(String uri) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, "test");
+        return request;
+    }
+
+    /**
+     * fetch 要在 event loop 上调用
+     */
+    private CompletableFuture<ProxyCache.FetchResult> fetch(HttpRequest request, boolean[] leader) throws Exception {
+        String key = cache.lookup(request).key();
+        return loop.submit(() -> cache.fetch(key, request, loop, leader)).get();
+    }
+
+    private static int requestCount(String uri) {
+        AtomicInteger count = requests.get(uri);
+        return count == null ? 0 : count.get();
+    }
+
+    private void release(ProxyCache.Lookup lookup) {
+        if (lookup.content() != null) lookup.content().release();
+    }
+
+    @Test
+    void concurrentMissesAreCoalesced() throws Exception {
+        newCache(1 << 20, null, 0);
+        boolean[] first = new boolean[1];
+        boolean[] second = new boolean[1];
+        CompletableFuture<ProxyCache.FetchResult> a = fetch(get("/slow"), first);
+        CompletableFuture<ProxyCache.FetchResult> b = fetch(get("/slow"), second);
+        assertTrue(first[0]);
+        assertFalse(second[0]);
+        assertSame(a, b);
+        ProxyCache.FetchResult result = a.get(5, TimeUnit.SECONDS);
+        assertNotNull(result.entry());
+        assertEquals(1, requestCount("/slow"));
+        assertEquals(1, cache.getCoalesced());
+
+        ProxyCache.Lookup hit = cache.lookup(get("/slow"));
+        assertEquals(ProxyCache.Status.HIT, hit.status());
+        release(hit);
+    }
+
+    @Test
+    void staleEntryIsServedWhileRevalidating() throws Exception {
+        newCache(1 << 20, null, 0);
+        // 后端慢一些, 第二次 revalidate 时第一次一定还没完成
+        String uri = "/stale/slow";
+        fetch(get(uri), new boolean[1]).get(5, TimeUnit.SECONDS);
+        ProxyCache.Lookup stale = cache.lookup(get(uri));
+        assertEquals(ProxyCache.Status.STALE, stale.status());
+        assertTrue(stale.content().toString(StandardCharsets.UTF_8).contains("#1"));
+        release(stale);
+
+        loop.submit(() -> cache.revalidate(stale.key(), get(uri), loop)).get();
+        // 已经有刷新在进行时不再发起
+        loop.submit(() -> cache.revalidate(stale.key(), get(uri), loop)).get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        String body = "";
+        while (!body.contains("#2") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            ProxyCache.Lookup refreshed = cache.lookup(get(uri));
+            assertEquals(ProxyCache.Status.STALE, refreshed.status());
+            body = refreshed.content().toString(StandardCharsets.UTF_8);
+            release(refreshed);
+        }
+        assertTrue(body.contains("#2"), body);
+        assertEquals(2, requestCount(uri));
+    }
+
+    @Test
+    void onlyPolicyRefusalsAreRememberedAsPass() throws Exception {
+        newCache(1 << 20, null, 0);
+        ProxyCache.FetchResult error = fetch(get("/error"), new boolean[1]).get(5, TimeUnit.SECONDS);
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, error.response().status());
+        error.response().release();
+        assertEquals(ProxyCache.Status.MISS, cache.lookup(get("/error")).status());
+
+        ProxyCache.FetchResult noStore = fetch(get("/nostore"), new boolean[1]).get(5, TimeUnit.SECONDS);
+        assertNull(noStore.entry());
+        noStore.response().release();
+        assertEquals(ProxyCache.Status.PASS, cache.lookup(get("/nostore")).status());
+    }
+
+    @Test
+    void evictedEntriesAreReadBackFromDisk() throws Exception {
+        // 内存层只放得下一个条目
+        newCache(1500, diskDir, 1 << 20);
+        fetch(get("/disk/a"), new boolean[1]).get(5, TimeUnit.SECONDS);
+        fetch(get("/disk/b"), new boolean[1]).get(5, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cache.getDiskBytes() == 0 && System.nanoTime() < deadline) Thread.sleep(10);
+        assertEquals(1, diskDir.listFiles().length);
+
+        ProxyCache.Lookup miss = cache.lookup(get("/disk/a"));
+        assertEquals(ProxyCache.Status.MISS, miss.status());
+        ProxyCache.FetchResult result = fetch(get("/disk/a"), new boolean[1]).get(5, TimeUnit.SECONDS);
+        assertNotNull(result.entry());
+        assertEquals(1, cache.getDiskHits());
+        assertEquals(1, requestCount("/disk/a"));
+    }
+
+    @Test
+    void entryLargerThanTheDiskTierLeavesNoFile() throws Exception {
+        newCache(1500, diskDir, 100);
+        fetch(get("/disk/a"), new boolean[1]).get(5, TimeUnit.SECONDS);
+        fetch(get("/disk/b"), new boolean[1]).get(5, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cache.getMemoryBytes() > 1500 && System.nanoTime() < deadline) Thread.sleep(10);
+        Thread.sleep(200);
+        assertEquals(0, cache.getDiskBytes());
+        assertEquals(0, diskDir.listFiles().length);
+    }
+
+    @Test
+    void fetchFailsWhenNoBackendIsRegistered() throws Exception {
+        ReverseProxyServer empty = new ReverseProxyServer(ReverseProxyServer.Mode.HTTP, new P2CLoadBalancer());
+        try {
+            BackendServer server = empty.getRegistry().all().get(0);
+            assertTrue(empty.getRegistry().remove(server.host, server.port));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!empty.getRegistry().all().isEmpty() && System.nanoTime() < deadline) Thread.sleep(10);
+            assertNull(empty.selectBestServer(null));
+
+            cache = new ProxyCache(empty, 1 << 20, 1 << 20, 1000, 0, null, 0);
+            CompletableFuture<ProxyCache.FetchResult> result = fetch(get("/none"), new boolean[1]);
+            assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        } finally {
+            empty.getRegistry().stop();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package Server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import util.Session;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 用同一个目录下的两个实例模拟滚动重启中的旧进程和新进程
+ */
+class SessionJournalTest {
+    @TempDir
+    Path dir;
+    private Process oldServer;
+    private Process newServer;
+
+    /**
+     * 一个进程的会话表和它的 SessionJournal
+     */
+    private final class Process {
+        final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        final AtomicInteger activeUsers = new AtomicInteger();
+        final SessionJournal journal = new SessionJournal(dir.resolve("sessions.dat").toString(), sessions, activeUsers);
+
+        void login(String id) {
+            sessions.put(id, new Session(id, "user " + id));
+            journal.added(sessions.get(id));
+        }
+
+        void logout(String id) {
+            if (sessions.remove(id) != null) journal.removed(id);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        oldServer = new Process();
+        newServer = new Process();
+    }
+
+    @AfterEach
+    void tearDown() {
+        // 释放锁
+        oldServer.journal.close();
+        newServer.journal.close();
+    }
+
+    /**
+     * 旧进程已经运行, 开始排空并写下快照后新进程启动
+     */
+    private void startRollingRestart() {
+        oldServer.journal.load();
+        oldServer.login("a");
+        oldServer.login("b");
+        oldServer.journal.startJournal();
+        newServer.journal.load();
+        assertEquals(Map.of("a", "user a", "b", "user b"), usernames(newServer));
+    }
+
+    private static Map<String, String> usernames(Process process) {
+        Map<String, String> result = new ConcurrentHashMap<>();
+        process.sessions.forEach((id, session) -> result.put(id, session.getUsername()));
+        return result;
+    }
+
+    @Test
+    void onlyProcessDoesNotFollow() {
+        oldServer.journal.load();
+        assertFalse(oldServer.journal.follow());
+    }
+
+    @Test
+    void changesOnTheDrainingProcessAreFollowed() {
+        startRollingRestart();
+        oldServer.login("c");
+        oldServer.logout("a");
+        assertTrue(newServer.journal.follow());
+        assertEquals(Map.of("b", "user b", "c", "user c"), usernames(newServer));
+        assertEquals(2, newServer.activeUsers.get());
+    }
+
+    @Test
+    void followingStopsAfterTheOldProcessExits() {
+        startRollingRestart();
+        assertTrue(newServer.journal.follow());
+        oldServer.journal.close();
+        assertFalse(newServer.journal.follow());
+        assertFalse(newServer.journal.follow());
+    }
+
+    @Test
+    void logoutOnTheNewProcessIsNotUndoneByTheFinalSnapshot() {
+        startRollingRestart();
+        newServer.logout("a");
+        // 旧进程的最终快照里还有 a
+        oldServer.journal.close();
+        assertFalse(newServer.journal.follow());
+        assertEquals(Map.of("b", "user b"), usernames(newServer));
+    }
+
+    @Test
+    void finalSnapshotReplacesTheOldProcessSessions() {
+        startRollingRestart();
+        newServer.login("n");
+        // 日志在新进程读到之前随最终快照一起删掉, 只能从快照看出 a 已经退出
+        oldServer.sessions.remove("a");
+        oldServer.journal.close();
+        assertFalse(newServer.journal.follow());
+        assertEquals(Map.of("b", "user b", "n", "user n"), usernames(newServer));
+    }
+
+    @Test
+    void journalIsReplayedAfterACrashDuringDrain() {
+        startRollingRestart();
+        oldServer.login("c");
+        oldServer.logout("b");
+        newServer.journal.close();
+
+        // 旧进程没写最终快照就被结束, 再启动的进程从快照和日志恢复
+        Process restarted = new Process();
+        restarted.journal.load();
+        assertEquals(Map.of("a", "user a", "c", "user c"), usernames(restarted));
+        assertEquals(2, restarted.activeUsers.get());
+        restarted.journal.close();
+    }
+}
@@ -0,0 +1,182 @@
+package Server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.io.TempDir;
+import util.MimeType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 用 -Dconfig.file 指向临时文件测试解析, 校验和热加载
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class SettingsTest {
+    // 监听线程只注册第一次 watch 时的目录, 所有测试共用一个目录
+    @TempDir
+    static Path dir;
+    private Path file;
+    private final AtomicInteger reloads = new AtomicInteger();
+    private final Runnable listener = reloads::incrementAndGet;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = dir.resolve("config.properties");
+        Files.deleteIfExists(file);
+        System.setProperty("config.file", file.toString());
+        Settings.onReload(listener);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Settings.removeListener(listener);
+        System.clearProperty("config.file");
+        System.clearProperty("server.drainTimeoutMs");
+        Settings.load();
+    }
+
+    private void write(String... lines) throws IOException {
+        Files.write(file, List.of(lines), StandardCharsets.UTF_8);
+    }
+
+    private static Settings.Entry entry(String name) {
+        return Settings.describe(name).stream().filter(e -> e.name().equals(name)).findFirst().orElseThrow();
+    }
+
+    @Test
+    void configuredFileMustExist() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, Settings::load);
+        assertTrue(e.getMessage().contains("not found"), e.getMessage());
+    }
+
+    @Test
+    void fileValuesAreParsedWithSizeSuffixes() throws IOException {
+        write("server.writeBufferHigh=128k", "proxy.cache.memoryBytes=1m", "server.accessLog.sampleRate=0.5");
+        Settings.load();
+        assertEquals(128 * 1024, Settings.SERVER_WRITE_BUFFER_HIGH.get());
+        assertEquals(1L << 20, Settings.PROXY_CACHE_MEMORY_BYTES.get());
+        assertEquals(0.5, Settings.SERVER_ACCESS_LOG_SAMPLE_RATE.get());
+        assertEquals(Settings.Source.FILE, entry("server.writeBufferHigh").source());
+        assertEquals(Settings.Source.DEFAULT, entry("server.writeBufferLow").source());
+    }
+
+    @Test
+    void systemPropertyOverridesTheFile() throws IOException {
+        write("server.drainTimeoutMs=1000");
+        System.setProperty("server.drainTimeoutMs", "2000");
+        Settings.load();
+        assertEquals(2000, Settings.SERVER_DRAIN_TIMEOUT_MS.get());
+        assertEquals(Settings.Source.PROPERTY, entry("server.drainTimeoutMs").source());
+    }
+
+    @Test
+    void allErrorsAreReportedTogether() throws IOException {
+        write("server.httpPort=70000", "server.epoll=maybe", "server.nosuchSetting=1");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, Settings::load);
+        assertTrue(e.getMessage().contains("server.httpPort"), e.getMessage());
+        assertTrue(e.getMessage().contains("server.epoll"), e.getMessage());
+        assertTrue(e.getMessage().contains("server.nosuchSetting (file): unknown setting"), e.getMessage());
+    }
+
+    @Test
+    void crossFieldConstraintsAreChecked() throws IOException {
+        write("server.writeBufferLow=128k", "server.writeBufferHigh=64k");
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, Settings::load);
+        assertTrue(e.getMessage().contains("server.writeBufferLow must not exceed server.writeBufferHigh"), e.getMessage());
+    }
+
+    @Test
+    void shapingClassLimitsAreParsed() throws IOException {
+        write("server.shaping.classLimits=/repo=1m, mp4=512k");
+        Settings.load();
+        assertEquals(List.of(new TrafficShaper.ClassLimit("/repo", null, 1 << 20),
+                        new TrafficShaper.ClassLimit(null, MimeType.MP4, 512 * 1024)),
+                Settings.SERVER_SHAPING_CLASS_LIMITS.get());
+
+        write("server.shaping.classLimits=/repo=0");
+        assertThrows(IllegalArgumentException.class, Settings::load);
+        write("server.shaping.classLimits=NOPE=1k");
+        assertThrows(IllegalArgumentException.class, Settings::load);
+    }
+
+    @Test
+    void reloadAppliesReloadableSettingsAndDefersTheRest() throws IOException {
+        write("server.drainTimeoutMs=1000", "server.httpPort=8080");
+        Settings.load();
+        write("server.drainTimeoutMs=5000", "server.httpPort=9090");
+        assertTrue(Settings.reload());
+        assertEquals(5000, Settings.SERVER_DRAIN_TIMEOUT_MS.get());
+        assertEquals(8080, Settings.SERVER_HTTP_PORT.get());
+        assertEquals("9090", entry("server.httpPort").pending());
+        assertEquals(1, reloads.get());
+
+        // 只有要重启的项变化时不通知
+        write("server.drainTimeoutMs=5000", "server.httpPort=9191");
+        assertTrue(Settings.reload());
+        assertEquals(1, reloads.get());
+    }
+
+    @Test
+    void invalidReloadKeepsTheCurrentSettings() throws IOException {
+        write("server.drainTimeoutMs=1000");
+        Settings.load();
+        write("server.drainTimeoutMs=-1");
+        assertFalse(Settings.reload());
+        assertEquals(1000, Settings.SERVER_DRAIN_TIMEOUT_MS.get());
+        assertNotNull(Settings.getLastError());
+        assertEquals(0, reloads.get());
+
+        write("server.drainTimeoutMs=2000");
+        assertTrue(Settings.reload());
+        assertNull(Settings.getLastError());
+    }
+
+    @Test
+    void emptyFileDuringAnEditIsIgnored() throws IOException {
+        write("server.drainTimeoutMs=1000");
+        Settings.load();
+        write();
+        assertFalse(Settings.reload());
+        assertEquals(1000, Settings.SERVER_DRAIN_TIMEOUT_MS.get());
+    }
+
+    /**
+     * 监听线程启动后不会停止, 放在最后, 免得它在其他测试改文件时也去 reload
+     */
+    @Test
+    @Order(Integer.MAX_VALUE)
+    void watcherRunsListenersOnItsOwnThread() throws Exception {
+        write("server.drainTimeoutMs=1000");
+        Settings.load();
+        CountDownLatch applied = new CountDownLatch(1);
+        AtomicReference<String> thread = new AtomicReference<>();
+        Runnable watcher = () -> {
+            if (Settings.SERVER_DRAIN_TIMEOUT_MS.get() != 3000) return;
+            thread.set(Thread.currentThread().getName());
+            applied.countDown();
+        };
+        Settings.onReload(watcher);
+        try {
+            Settings.watch();
+            write("server.drainTimeoutMs=3000");
+            assertTrue(applied.await(10, TimeUnit.SECONDS));
+            assertEquals("config-watcher", thread.get());
+        } finally {
+            Settings.removeListener(watcher);
+        }
+    }
+}
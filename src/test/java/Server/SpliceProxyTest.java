@@ -0,0 +1,131 @@
+package Server;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * SPLICE 模式下后端发完一段数据马上关闭连接, 客户端读得慢, 数据还留在管道和后端 socket 里
+ */
+class SpliceProxyTest {
+    private static final int BYTES = 16 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static EventLoopGroup group;
+    private static Channel backend;
+    private static ReverseProxyServer proxy;
+    private static Thread proxyThread;
+    private static int proxyPort;
+
+    @BeforeAll
+    static void start() throws Exception {
+        Assumptions.assumeTrue(Epoll.isAvailable() && ReverseProxyServer.useEpoll(), "splice requires native epoll");
+        group = ReverseProxyServer.newEventLoopGroup(1, "splice-test");
+        backend = new ServerBootstrap()
+                .group(group)
+                .channel(ReverseProxyServer.serverChannelClass())
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new Burst());
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        System.setProperty("proxy.backendList", "127.0.0.1:" + ((InetSocketAddress) backend.localAddress()).getPort());
+        Settings.load();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            proxyPort = socket.getLocalPort();
+        }
+        proxy = new ReverseProxyServer(ReverseProxyServer.Mode.SPLICE, new P2CLoadBalancer());
+        proxyThread = new Thread(() -> {
+            try {
+                proxy.start(proxyPort);
+            } catch (IOException e) {
+                System.err.println("Failed to start proxy: " + e.getMessage());
+            }
+        }, "splice-test-proxy");
+        proxyThread.start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", proxyPort).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        fail("proxy did not start");
+    }
+
+    @AfterAll
+    static void stop() throws InterruptedException {
+        if (group == null) return;
+        proxy.stop();
+        proxyThread.join(5000);
+        backend.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        System.clearProperty("proxy.backendList");
+        Settings.load();
+    }
+
+    /**
+     * 健康检查正常返回; 其他请求一次写出 BYTES 字节 (第 i 个字节是 i % 251), 写完立即关闭
+     */
+    private static final class Burst extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            String text = ((ByteBuf) msg).toString(StandardCharsets.US_ASCII);
+            ReferenceCountUtil.release(msg);
+            if (text.contains(HealthChecker.CHECK_PATH)) {
+                ctx.writeAndFlush(Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n0", StandardCharsets.US_ASCII));
+                return;
+            }
+            for (int offset = 0; offset < BYTES; offset += CHUNK_SIZE) {
+                ByteBuf chunk = ctx.alloc().buffer(CHUNK_SIZE);
+                for (int i = 0; i < CHUNK_SIZE; i++) chunk.writeByte((offset + i) % 251);
+                ctx.write(chunk, ctx.voidPromise());
+            }
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    @Test
+    void everyByteArrivesWhenTheBackendClosesAfterABurst() throws Exception {
+        for (int round = 0; round < 3; round++) {
+            try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+                client.setSoTimeout(10_000);
+                client.getOutputStream().write("GET /blast HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                // 先不读, 让后端在管道和 socket 缓冲区都满的时候关闭
+                Thread.sleep(500);
+                InputStream in = client.getInputStream();
+                byte[] buffer = new byte[CHUNK_SIZE];
+                long received = 0;
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        if ((buffer[i] & 0xff) != (received + i) % 251) fail("corrupted byte at offset " + (received + i));
+                    }
+                    received += n;
+                }
+                assertEquals(BYTES, received, "round " + round);
+            }
+        }
+    }
+}
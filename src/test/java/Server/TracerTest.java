@@ -0,0 +1,66 @@
+package Server;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracerTest {
+    private static final String CLIENT_ID = "00000000000000ff";
+
+    @TempDir
+    Path dir;
+
+    private static HttpRequest request(String traceId) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+        if (traceId != null) request.headers().set(Tracer.X_TRACE_ID, traceId);
+        return request;
+    }
+
+    private static Tracer tracer(String logFile, boolean trustIncomingId) {
+        return new Tracer(Settings.SERVER_TRACE_SAMPLE_RATE, Settings.SERVER_TRACE_SLOW_MS, 16, logFile, trustIncomingId);
+    }
+
+    @Test
+    void backendKeepsTheForwardedId() {
+        Tracer tracer = tracer("", true);
+        assertEquals(CLIENT_ID, tracer.start(request(CLIENT_ID), System.nanoTime()).idString());
+        assertNotEquals(CLIENT_ID, tracer.start(request("not-an-id"), System.nanoTime()).idString());
+    }
+
+    @Test
+    void edgeProxyIgnoresTheClientId() {
+        Tracer tracer = tracer("", false);
+        // 这个 ID 的高位全是 0, 沿用的话总会被抽中
+        Trace trace = tracer.start(request(CLIENT_ID), System.nanoTime());
+        assertNotEquals(CLIENT_ID, trace.idString());
+        assertEquals(16, trace.idString().length());
+    }
+
+    @Test
+    void slowTracesAreLoggedByTheWriterThread() throws Exception {
+        Path log = dir.resolve("trace.log");
+        Tracer tracer = tracer(log.toString(), true);
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            Trace trace = tracer.start(request(null), start);
+            tracer.finish(trace, 200, start + TimeUnit.SECONDS.toNanos(1));
+        }
+        assertEquals(3, tracer.getKept());
+        tracer.close();
+        List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).contains("GET /index.html 200 total=1000.000ms"), lines.get(0));
+        assertEquals(0, tracer.getLogDropped());
+    }
+}
@@ -0,0 +1,89 @@
+package Server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import util.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 在临时端口上启动 HttpWebServer, 用原始 socket 发送流水线请求
+ */
+class UploadHandlerTest {
+    private static final String BOUNDARY = "----upload-test";
+
+    @TempDir
+    Path dir;
+    private HttpWebServer server;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty(Settings.SERVER_ACCESS_LOG.name(), dir.resolve("access.log").toString());
+        Settings.load();
+        server = new HttpWebServer(dir);
+        server.start(0, 0);
+        server.getSessions().put("upload-test", new Session("upload-test", "admin"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+        System.clearProperty(Settings.SERVER_ACCESS_LOG.name());
+        Settings.load();
+    }
+
+    /**
+     * 只有普通字段的 multipart 请求, 不会在仓库里留下文件
+     */
+    private static String upload() {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "x".repeat(4096) + "\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+        return "POST /upload HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Cookie: sessionId=upload-test\r\n"
+                + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n"
+                + body;
+    }
+
+    /**
+     * 读到 404 页面的结尾为止
+     */
+    private static String readUntil(InputStream in, String end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while (!out.toString(StandardCharsets.UTF_8).contains(end) && (n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void pipelinedGetIsAnsweredAfterTheUpload() throws Exception {
+        try (Socket client = new Socket("127.0.0.1", server.getHttpPort())) {
+            client.setSoTimeout(10_000);
+            String get = "GET /no-such-page.html HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            client.getOutputStream().write((upload() + get).getBytes(StandardCharsets.US_ASCII));
+            String responses = readUntil(client.getInputStream(), "</html>");
+
+            int second = responses.indexOf("HTTP/1.1 ", 1);
+            assertTrue(second > 0, responses);
+            String first = responses.substring(0, second);
+            assertTrue(first.startsWith("HTTP/1.1 200"), first);
+            assertTrue(first.contains("{\"files\":[]}"), first);
+            assertTrue(responses.substring(second).startsWith("HTTP/1.1 404"), responses.substring(second));
+        }
+    }
+}
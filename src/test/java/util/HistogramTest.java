@@ -0,0 +1,116 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+
+    @Test
+    void smallValuesHaveTheirOwnBuckets() {
+        for (long v = 0; v < 16; v++) {
+            assertEquals(v, Histogram.indexOf(v));
+            assertEquals(v, Histogram.upperBound((int) v));
+        }
+    }
+
+    @Test
+    void bucketsCoverEveryValueWithinOneSixteenth() {
+        long[] values = {16, 17, 31, 32, 33, 100, 1000, 4095, 4096, 123_456_789, 1L << 40, Long.MAX_VALUE};
+        for (long v : values) {
+            int index = Histogram.indexOf(v);
+            long upper = Histogram.upperBound(index);
+            long lower = Histogram.upperBound(index - 1) + 1;
+            assertTrue(lower <= v && v <= upper, v + " not in [" + lower + ", " + upper + "]");
+            assertTrue(upper - lower + 1 <= Math.max(1, lower / 16), "bucket too wide for " + v);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(Histogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    void emptyHistogram() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.valueAt(0.99));
+        assertEquals(0, h.getMean());
+    }
+
+    @Test
+    void negativeValuesAreIgnored() {
+        Histogram h = new Histogram();
+        h.record(-1);
+        assertEquals(0, h.getCount());
+    }
+
+    @Test
+    void quantilesAreBucketUpperBoundsCappedAtMax() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 1000; v++) h.record(v);
+        assertEquals(1000, h.getCount());
+        assertEquals(500_500, h.getSum());
+        assertEquals(500.5, h.getMean());
+        long p50 = h.valueAt(0.5);
+        assertTrue(p50 >= 500 && p50 <= 500 + 500 / 16, "p50 " + p50);
+        long p99 = h.valueAt(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99 " + p99);
+        assertEquals(1000, h.valueAt(1));
+        assertEquals(1, h.valueAt(0));
+    }
+
+    @Test
+    void mergingEqualsRecordingEverything() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        Histogram all = new Histogram();
+        for (long v = 0; v < 500; v++) {
+            a.record(v * 7);
+            all.record(v * 7);
+            b.record(v * v);
+            all.record(v * v);
+        }
+        Histogram merged = new Histogram();
+        merged.add(a);
+        merged.add(b);
+        assertEquals(all.encode(), merged.encode());
+        assertEquals(all.getCount(), merged.getCount());
+        assertEquals(all.valueAt(0.9), merged.valueAt(0.9));
+    }
+
+    @Test
+    void encodedFormRoundTrips() {
+        Histogram h = new Histogram();
+        h.record(3);
+        h.record(3);
+        h.record(300);
+        assertEquals("306;300;3:2," + Histogram.indexOf(300) + ":1", h.encode());
+
+        Histogram copy = new Histogram();
+        copy.addEncoded(h.encode());
+        assertEquals(h.encode(), copy.encode());
+        assertEquals(3, copy.getCount());
+        assertEquals(300, copy.getMax());
+
+        Histogram empty = new Histogram();
+        empty.addEncoded(new Histogram().encode());
+        assertEquals(0, empty.getCount());
+    }
+
+    @Test
+    void malformedEncodingIsRejected() {
+        Histogram h = new Histogram();
+        assertThrows(IllegalArgumentException.class, () -> h.addEncoded("1;2"));
+        assertThrows(IllegalArgumentException.class, () -> h.addEncoded("1;2;-1:5"));
+        assertThrows(IllegalArgumentException.class, () -> h.addEncoded("1;2;99999:5"));
+        assertThrows(IllegalArgumentException.class, () -> h.addEncoded("1;2;3:x"));
+    }
+
+    @Test
+    void jsonIsScaled() {
+        Histogram h = new Histogram();
+        h.record(1500);
+        StringBuilder sb = new StringBuilder();
+        h.appendJson(sb, 1000);
+        assertTrue(sb.toString().startsWith("{\"count\":1,\"mean\":1.50,"), sb.toString());
+        assertTrue(sb.toString().endsWith("\"max\":1.50}"), sb.toString());
+    }
+}